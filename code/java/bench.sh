@@ -0,0 +1,12 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Benchmarks the menu operations, extra options go to OperationBenchmark.
+# Example: source ./bench.sh flightDB 5432 user --threads 1,8 --seconds 20
+# Group commit: source ./bench.sh flightDB 5432 user --ops BookDirect,BookQueued --threads 1,64
+# The same operations under JMH: mvn -B package -P jmh, then
+#   java -jar target/benchmarks.jar -p db=flightDB -p port=5432 -p user=user -t 8
+java -cp lib/*:bin/ OperationBenchmark $DBNAME $PORT $USER "$@"
@@ -0,0 +1,142 @@
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the menu operations of OperationBenchmark, against a
+ * loaded database, one benchmark per operation.  The rows an iteration
+ * inserted are removed after it, as the custom harness does after a run.
+ *
+ * Build with mvn -B package -P jmh from code/java, then for example:
+ *   java -jar target/benchmarks.jar -p db=cruiseDB -p port=5432 -p user=me -t 8
+ *   java -jar target/benchmarks.jar "BookDirect|BookQueued" -p db=cruiseDB ... -t 64
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class MenuBenchmark{
+	@Param("cruiseDB")
+	public String db;
+	@Param("5432")
+	public String port;
+	@Param("postgres")
+	public String user;
+	//at least the thread count given with -t
+	@Param("64")
+	public int pool;
+	@Param("256")
+	public int queueBatch;
+	@Param("200")
+	public long queueLinger;
+
+	private Map<String, Callable<Object>> _ops;
+	private Callable<Object> _addShip, _addCaptain, _addCruise, _bookCruise, _bookDirect, _bookQueued;
+	private Callable<Object> _availableSeats, _repairsPerShip, _passengersWithStatus;
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void open() throws Exception {
+		//the default package cannot be imported, see OperationBenchmark.bind
+		try{
+			this._ops = (Map<String, Callable<Object>>) Class.forName("OperationBenchmark")
+				.getMethod("bind", String.class, String.class, String.class, int.class, int.class, long.class)
+				.invoke(null, this.db, this.port, this.user, this.pool, this.queueBatch, this.queueLinger);
+		}catch (InvocationTargetException e){
+			throw (Exception) e.getCause();
+		}//end try
+		this._addShip = operation("AddShip");
+		this._addCaptain = operation("AddCaptain");
+		this._addCruise = operation("AddCruise");
+		this._bookCruise = operation("BookCruise");
+		this._bookDirect = operation("BookDirect");
+		this._bookQueued = operation("BookQueued");
+		this._availableSeats = operation("AvailableSeats");
+		this._repairsPerShip = operation("RepairsPerShip");
+		this._passengersWithStatus = operation("PassengersWithStatus");
+	}
+
+	private Callable<Object> operation(String name){
+		Callable<Object> op = this._ops.get(name);
+		if (op == null){
+			throw new IllegalStateException("OperationBenchmark has no operation " + name);
+		}
+		return op;
+	}
+
+	@TearDown(Level.Iteration)
+	public void cleanup() throws Exception {
+		operation("cleanup").call();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		operation("close").call();
+	}
+
+	@Benchmark
+	public Object AddShip() throws Exception {
+		return this._addShip.call();
+	}
+
+	@Benchmark
+	public Object AddCaptain() throws Exception {
+		return this._addCaptain.call();
+	}
+
+	@Benchmark
+	public Object AddCruise() throws Exception {
+		return this._addCruise.call();
+	}
+
+	@Benchmark
+	public Object BookCruise() throws Exception {
+		return this._bookCruise.call();
+	}
+
+	@Benchmark
+	public Object BookDirect() throws Exception {
+		return this._bookDirect.call();
+	}
+
+	@Benchmark
+	public Object BookQueued() throws Exception {
+		return this._bookQueued.call();
+	}
+
+	@Benchmark
+	public Object AvailableSeats() throws Exception {
+		return this._availableSeats.call();
+	}
+
+	@Benchmark
+	public Object RepairsPerShip() throws Exception {
+		return this._repairsPerShip.call();
+	}
+
+	@Benchmark
+	public Object PassengersWithStatus() throws Exception {
+		return this._passengersWithStatus.call();
+	}
+}
@@ -0,0 +1,11 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Open-loop load, extra options go to LoadGenerator.
+# Record: java -cp lib/*:bin/ DBproject flightDB 5432 user --record workload.log.gz
+# Replay: source ./load.sh flightDB 5432 user --replay workload.log.gz --speed 2 --clients 256
+# Mix:    source ./load.sh flightDB 5432 user --mix book=50,seats=40,passengers=8,repairs=2 --rate 500 --seconds 60
+java -cp lib/*:bin/ LoadGenerator $DBNAME $PORT $USER "$@"
@@ -0,0 +1,192 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class runs the execute methods of DBproject asynchronously, so that
+ * independent statements overlap instead of each waiting for the round trip
+ * of the one before.  Every call returns a CompletableFuture completed on a
+ * dedicated executor, one virtual thread per call where the JVM has them.
+ *
+ * At most maxInFlight calls run at once.  Beyond that, submitting blocks
+ * the caller until a call completes, which keeps a fan-out over thousands
+ * of inputs from queueing thousands of tasks in front of the pool.  A task
+ * must not submit and wait on further calls itself.
+ *
+ * A failed call completes its future exceptionally with the SQLException,
+ * wrapped in a CompletionException by join().
+ *
+ */
+
+public class AsyncQueries{
+	private final DBproject _esql;
+	private final ExecutorService _executor;
+	private final Semaphore _permits;
+	private final int _maxInFlight;
+	private final LongAdder _submitted = new LongAdder();
+	private final LongAdder _throttled = new LongAdder();
+
+	/**
+	 * @param esql the database the calls run against
+	 * @param maxInFlight the number of calls that may run at once
+	 */
+	public AsyncQueries(DBproject esql, int maxInFlight){
+		if (maxInFlight < 1){
+			throw new IllegalArgumentException("in-flight limit must be positive: " + maxInFlight);
+		}
+		this._esql = esql;
+		this._maxInFlight = maxInFlight;
+		this._permits = new Semaphore(maxInFlight);
+		this._executor = WorkerThreads.newExecutor("async", maxInFlight);
+	}
+
+	/**
+	 * Method to run a call on the executor.  Blocks while maxInFlight calls
+	 * are running.
+	 *
+	 * @param call the work to run
+	 * @return a future completed with the result of the call
+	 */
+	public <T> CompletableFuture<T> supply(Metrics.Call<T> call){
+		if (!this._permits.tryAcquire()){
+			this._throttled.increment();
+			try{
+				this._permits.acquire();
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				return CompletableFuture.failedFuture(e);
+			}//end try
+		}//end if
+		this._submitted.increment();
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		try{
+			this._executor.execute(() -> {
+				try{
+					future.complete(call.call());
+				}catch (SQLException | RuntimeException e){
+					future.completeExceptionally(e);
+				}finally{
+					this._permits.release();
+				}//end try
+			});
+		}catch (RejectedExecutionException e){
+			this._permits.release();
+			future.completeExceptionally(e);
+		}//end try
+		return future;
+	}
+
+	public CompletableFuture<Integer> executeUpdate(String key, String sql, Object... params){
+		return supply(() -> this._esql.executeUpdate(key, sql, params));
+	}
+
+	public CompletableFuture<Integer> executeQuery(String key, String sql, Object... params){
+		return supply(() -> this._esql.executeQuery(key, sql, params));
+	}
+
+	/**
+	 * Method to run a read-only query on the read route and return its rows.
+	 */
+	public CompletableFuture<List<List<String>>> executeReadQueryAndReturnResult(String query){
+		return supply(() -> this._esql.executeReadQueryAndReturnResult(query));
+	}
+
+	public <T> CompletableFuture<T> withConnection(String key, DBproject.SqlWork<T> work){
+		return supply(() -> this._esql.withConnection(key, work));
+	}
+
+	public <T> CompletableFuture<T> withReadConnection(String key, DBproject.SqlWork<T> work){
+		return supply(() -> this._esql.withReadConnection(key, work));
+	}
+
+	/**
+	 * Function from an input to the database work for it.
+	 */
+	public interface Task<I, T> {
+		T apply(I input) throws SQLException;
+	}
+
+	/**
+	 * Method to run one call per input and gather the results.  The calls
+	 * are submitted in order, blocking while the in-flight limit is reached,
+	 * and the method returns once the last one is submitted.
+	 *
+	 * @param inputs the inputs, one call each
+	 * @param task the work for one input
+	 * @return a future completed with the results in input order, or with
+	 *         the first failure once every call finished
+	 */
+	public <I, T> CompletableFuture<List<T>> fanOut(List<I> inputs, Task<I, T> task){
+		List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>(inputs.size());
+		for (I input : inputs){
+			futures.add(supply(() -> task.apply(input)));
+		}
+		return gather(futures);
+	}
+
+	/**
+	 * @return a future completed with the results of the futures in order,
+	 *         or with the first failure once every future completed
+	 */
+	public static <T> CompletableFuture<List<T>> gather(List<CompletableFuture<T>> futures){
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+			List<T> results = new ArrayList<T>(futures.size());
+			for (CompletableFuture<T> f : futures){
+				results.add(f.join());
+			}
+			return results;
+		});
+	}
+
+	/**
+	 * Method to read the free seats of many cruises departing on one day at
+	 * once, see CruiseService.availableSeats.
+	 *
+	 * @return a future completed with the seats of each cruise, in order
+	 */
+	public CompletableFuture<List<Integer>> availableSeats(List<Integer> cnums, LocalDate day){
+		CruiseService service = this._esql.getService();
+		return fanOut(cnums, cnum -> service.availableSeats(cnum, day));
+	}
+
+	/**
+	 * Method to wait for a future and rethrow its SQLException, for callers
+	 * that block at the end of a pipeline.
+	 *
+	 * @throws java.sql.SQLException when the call failed
+	 */
+	public static <T> T await(CompletableFuture<T> future) throws SQLException {
+		try{
+			return future.join();
+		}catch (CompletionException e){
+			if (e.getCause() instanceof SQLException){
+				throw (SQLException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new SQLException("async call failed", e.getCause());
+		}//end try
+	}
+
+	public int getInFlight(){
+		return this._maxInFlight - this._permits.availablePermits();
+	}
+
+	public void close(){
+		this._executor.shutdown();
+	}
+
+	@Override
+	public String toString(){
+		return String.format("async: in-flight=%d/%d submitted=%d throttled=%d", getInFlight(), this._maxInFlight,
+			this._submitted.sum(), this._throttled.sum());
+	}
+}
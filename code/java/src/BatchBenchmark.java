@@ -0,0 +1,61 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the single-row insert path of AddShip (one autocommit round trip
+ * per row) against BatchInserter for the same number of new ships.  The
+ * benchmark ships get ids from the KeyAllocator and exactly those are
+ * deleted again after each run.
+ *
+ * Usage: java BatchBenchmark <dbname> <port> <user> [rows] [chunkSize]
+ *
+ */
+
+public class BatchBenchmark{
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java BatchBenchmark <dbname> <port> <user> [rows] [chunkSize]");
+			return;
+		}
+		int rows = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+		int chunkSize = args.length > 4 ? Integer.parseInt(args[4]) : BatchInserter.DEFAULT_CHUNK_SIZE;
+		Class.forName("org.postgresql.Driver");
+
+		DBproject esql = new DBproject(args[0], args[1], args[2], "", 2);
+		try{
+			List<BatchInserter.ShipRecord> ships = new ArrayList<BatchInserter.ShipRecord>(rows);
+			Integer[] ids = new Integer[rows];
+			for (int i = 0; i < rows; ++i){
+				ids[i] = esql.getKeys().next(KeyAllocator.Key.SHIP);
+				ships.add(new BatchInserter.ShipRecord(ids[i], "Bench", "Model" + (i % 97), i % 40, 1 + i % 499));
+			}
+
+			long start = System.nanoTime();
+			for (BatchInserter.ShipRecord r : ships){
+				esql.executeUpdate("AddShip", "INSERT INTO Ship (id, make, model, age, seats) VALUES (?, ?, ?, ?, ?);",
+					r.id(), r.make(), r.model(), r.age(), r.seats());
+			}
+			double single = rows / ((System.nanoTime() - start) / 1e9);
+			delete(esql, ids);
+			System.out.printf("single-row: %d rows, %.0f rows/s%n", rows, single);
+
+			BatchInserter.BatchResult result = new BatchInserter(esql, chunkSize).insertShips(ships);
+			delete(esql, ids);
+			System.out.println("batched (chunk " + chunkSize + "): " + result);
+			System.out.printf("speedup: %.1fx%n", result.getRowsPerSecond() / single);
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	private static void delete(DBproject esql, Integer[] ids) throws SQLException {
+		esql.withConnection("BatchBenchmark.delete", conn -> {
+			PreparedStatement stmt = conn.prepare("BatchBenchmark.delete", "DELETE FROM Ship WHERE id = ANY(?);");
+			stmt.setArray(1, conn.connection().createArrayOf("integer", ids));
+			return stmt.executeUpdate();
+		});
+	}
+}
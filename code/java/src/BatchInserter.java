@@ -0,0 +1,377 @@
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.ResultSet;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class inserts many ships, captains, cruises or reservations with
+ * JDBC batching.  Rows are sent in chunks, each chunk in one transaction;
+ * the pool opens connections with reWriteBatchedInserts so the driver turns
+ * a chunk into a few multi-row INSERTs.  When a chunk fails it is replayed
+ * row by row behind savepoints, so one bad row does not sink its neighbours
+ * and every row gets its own outcome.
+ *
+ * When a chunk cannot be written at all, i.e. the connection failed, the
+ * import stops with BatchInserter.Aborted, which holds the outcome of the
+ * chunks committed before it.
+ *
+ */
+
+public class BatchInserter{
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+	public record ShipRecord(int id, String make, String model, int age, int seats){}
+
+	public record CaptainRecord(int id, String fullname, String nationality){}
+
+	public record CruiseRecord(int cnum, int cost, int numSold, int numStops, String departureDate,
+			String arrivalDate, String arrivalPort, String departurePort){}
+
+	public record ReservationRecord(int rnum, int ccid, int cid, char status){}
+
+	/**
+	 * Binds one record to the parameters of the insert statement.
+	 */
+	interface Binder<T> {
+		void bind(PreparedStatement stmt, T row) throws SQLException;
+	}
+
+	/**
+	 * The outcome of a batch: per row, null when it was inserted or the error
+	 * message when it was rejected.
+	 */
+	public static final class BatchResult{
+		private final String[] _errors;
+		private int _inserted;
+		private int _waitlisted;
+		private long _nanos;
+
+		BatchResult(int rows){
+			this._errors = new String[rows];
+		}
+
+		public boolean isInserted(int row){
+			return this._errors[row] == null;
+		}
+
+		public String getError(int row){
+			return this._errors[row];
+		}
+
+		public int getInserted(){
+			return this._inserted;
+		}
+
+		public int getFailed(){
+			return this._errors.length - this._inserted;
+		}
+
+		/**
+		 * @return the reservations imported as 'R' that found their cruise
+		 *         full and were stored as 'W'
+		 */
+		public int getWaitlisted(){
+			return this._waitlisted;
+		}
+
+		public double getRowsPerSecond(){
+			return this._nanos == 0 ? 0.0 : this._inserted * 1e9 / this._nanos;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%d rows inserted, %d failed, %d waitlisted in %.3fs (%.0f rows/s)",
+				this._inserted, getFailed(), this._waitlisted, this._nanos / 1e9, getRowsPerSecond());
+		}
+	}
+
+	static final String SHIP_SQL = "INSERT INTO Ship (id, make, model, age, seats) VALUES (?, ?, ?, ?, ?);";
+	static final String CAPTAIN_SQL = "INSERT INTO Captain (id, fullname, nationality) VALUES (?, ?, ?);";
+	static final String CRUISE_SQL = "INSERT INTO Cruise (cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port) VALUES (?, ?, ?, ?, CAST(? AS DATE), CAST(? AS DATE), ?, ?);";
+	//the partition key is the departure of the cruise, unknown cruises fail on its NOT NULL
+	static final String RESERVATION_SQL =
+		"INSERT INTO Reservation (rnum, ccid, cid, status, departure_date) VALUES (?, ?, ?, ?, (SELECT actual_departure_date FROM Cruise WHERE cnum = ?));";
+	//takes up to ? free seats of a cruise for imported 'R' reservations, as BookingEngine
+	//does one at a time; a cruise without a ship has none
+	static final String SOLD_SQL =
+		"WITH free AS (SELECT C.cnum, LEAST(?, GREATEST(S.seats - C.num_sold, 0)) AS seats FROM Cruise C, CruiseInfo CI, Ship S" +
+		" WHERE C.cnum = ? AND CI.cruise_id = C.cnum AND CI.ship_id = S.id FOR UPDATE OF C)" +
+		" UPDATE Cruise C SET num_sold = C.num_sold + F.seats FROM free F WHERE C.cnum = F.cnum RETURNING F.seats;";
+	//gives back the seats of 'R' rows that were rejected after all
+	static final String UNSOLD_SQL = "UPDATE Cruise SET num_sold = num_sold - ? WHERE cnum = ?;";
+
+	/**
+	 * Thrown when a chunk could not be written at all.  The chunks before it
+	 * are committed; getResult() has their rows as inserted and every later
+	 * row as failed.
+	 */
+	public static final class Aborted extends SQLException{
+		private static final long serialVersionUID = 1L;
+		private final transient BatchResult _result;
+
+		Aborted(BatchResult result, int committed, SQLException cause){
+			super("import stopped after " + committed + " committed rows: " + cause.getMessage(), cause.getSQLState(), cause);
+			this._result = result;
+		}
+
+		public BatchResult getResult(){
+			return this._result;
+		}
+
+		public int getCommitted(){
+			return this._result.getInserted();
+		}
+	}
+
+	private final DBproject _esql;
+	private final int _chunkSize;
+
+	public BatchInserter(DBproject esql){
+		this(esql, DEFAULT_CHUNK_SIZE);
+	}
+
+	public BatchInserter(DBproject esql, int chunkSize){
+		if (chunkSize < 1){
+			throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+		}
+		this._esql = esql;
+		this._chunkSize = chunkSize;
+	}
+
+	public BatchResult insertShips(List<ShipRecord> ships) throws SQLException {
+		return insertAll("Batch.Ship", SHIP_SQL, ships, (stmt, r) -> {
+			stmt.setInt(1, r.id());
+			stmt.setString(2, r.make());
+			stmt.setString(3, r.model());
+			stmt.setInt(4, r.age());
+			stmt.setInt(5, r.seats());
+		}, null);
+	}
+
+	public BatchResult insertCaptains(List<CaptainRecord> captains) throws SQLException {
+		return insertAll("Batch.Captain", CAPTAIN_SQL, captains, (stmt, r) -> {
+			stmt.setInt(1, r.id());
+			stmt.setString(2, r.fullname());
+			stmt.setString(3, r.nationality());
+		}, null);
+	}
+
+	public BatchResult insertCruises(List<CruiseRecord> cruises) throws SQLException {
+		BatchResult result = insertAll("Batch.Cruise", CRUISE_SQL, cruises, (stmt, r) -> {
+			stmt.setInt(1, r.cnum());
+			stmt.setInt(2, r.cost());
+			stmt.setInt(3, r.numSold());
+			stmt.setInt(4, r.numStops());
+			stmt.setString(5, r.departureDate());
+			stmt.setString(6, r.arrivalDate());
+			stmt.setString(7, r.arrivalPort());
+			stmt.setString(8, r.departurePort());
+		}, null);
+		SeatCache seats = this._esql.getSeatCache();
+		for (int i = 0; seats != null && i < cruises.size(); ++i){
+			if (result.isInserted(i)){
+				seats.invalidate(cruises.get(i).cnum());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Method to import reservations with the status they already have, i.e.
+	 * a partner's bookings.  Before each chunk is inserted its 'R' rows take
+	 * seats on their cruises, in cruise order and in the chunk's transaction;
+	 * rows past the free seats are stored as 'W', as BookingEngine does.
+	 * Taking the Cruise rows first, then inserting Reservation, is the lock
+	 * order of BookingEngine too.  New bookings that need one seat each go
+	 * through BookingEngine instead.
+	 *
+	 * @param reservations the reservations to insert
+	 * @return the outcome of every row
+	 * @throws BatchInserter.Aborted when a chunk failed as a whole
+	 * @throws java.sql.SQLException when the connection failed
+	 */
+	public BatchResult insertReservations(List<ReservationRecord> reservations) throws SQLException {
+		//the rows as stored, 'R' turned into 'W' where the seats ran out
+		List<ReservationRecord> stored = new ArrayList<ReservationRecord>(reservations);
+		BatchResult result;
+		try{
+			result = insertAll("Batch.Reservation", RESERVATION_SQL, stored, (stmt, r) -> {
+				stmt.setInt(1, r.rnum());
+				stmt.setInt(2, r.ccid());
+				stmt.setInt(3, r.cid());
+				stmt.setString(4, String.valueOf(r.status()));
+				stmt.setInt(5, r.cid());
+			}, new ChunkHook(){
+				@Override
+				public void beforeChunk(ConnectionPool.PooledConnection conn, int from, int to) throws SQLException {
+					PreparedStatement stmt = conn.prepare("Batch.Reservation.sold", SOLD_SQL);
+					for (Map.Entry<Integer, List<Integer>> e : reserved(reservations, from, to, null).entrySet()){
+						List<Integer> rows = e.getValue();
+						stmt.setInt(1, rows.size());
+						stmt.setInt(2, e.getKey());
+						int seats = 0;
+						ResultSet rs = stmt.executeQuery();
+						try{
+							seats = rs.next() ? rs.getInt(1) : 0;
+						}finally{
+							rs.close();
+						}
+						for (int k = 0; k < rows.size(); ++k){
+							int i = rows.get(k);
+							ReservationRecord r = reservations.get(i);
+							stored.set(i, k < seats ? r : new ReservationRecord(r.rnum(), r.ccid(), r.cid(), 'W'));
+						}
+					}//end for
+				}
+
+				@Override
+				public void afterChunk(ConnectionPool.PooledConnection conn, int from, int to, String[] errors) throws SQLException {
+					//the Cruise rows are locked already, this takes no new lock
+					PreparedStatement stmt = conn.prepare("Batch.Reservation.unsold", UNSOLD_SQL);
+					boolean any = false;
+					for (Map.Entry<Integer, List<Integer>> e : reserved(stored, from, to, errors).entrySet()){
+						stmt.setInt(1, e.getValue().size());
+						stmt.setInt(2, e.getKey());
+						stmt.addBatch();
+						any = true;
+					}
+					if (any){
+						stmt.executeBatch();
+					}
+				}
+			});
+		}catch (Aborted e){
+			recordBookings(reservations, stored, e.getResult());
+			throw e;
+		}//end try
+		recordBookings(reservations, stored, result);
+		return result;
+	}
+
+	//counts the downgraded rows and passes the stored ones on to the caches
+	private void recordBookings(List<ReservationRecord> reservations, List<ReservationRecord> stored, BatchResult result){
+		SeatCache seats = this._esql.getSeatCache();
+		StatusCounts counts = this._esql.getStatusCounts();
+		for (int i = 0; i < stored.size(); ++i){
+			if (result.isInserted(i)){
+				ReservationRecord r = stored.get(i);
+				if (r.status() != reservations.get(i).status()){
+					result._waitlisted++;
+				}
+				if (seats != null){
+					seats.recordBooking(r.cid(), r.status());
+				}
+				if (counts != null){
+					counts.recordBooking(r.cid(), r.status());
+				}
+			}
+		}//end for
+	}
+
+	/**
+	 * @param errors when given, only the rejected rows are taken
+	 * @return the 'R' rows of a chunk by cruise, in cruise order
+	 */
+	private static Map<Integer, List<Integer>> reserved(List<ReservationRecord> rows, int from, int to, String[] errors){
+		Map<Integer, List<Integer>> byCruise = new TreeMap<Integer, List<Integer>>();
+		for (int i = from; i < to; ++i){
+			ReservationRecord r = rows.get(i);
+			if (r.status() == 'R' && (errors == null || errors[i] != null)){
+				byCruise.computeIfAbsent(r.cid(), c -> new ArrayList<Integer>()).add(i);
+			}
+		}
+		return byCruise;
+	}
+
+	/**
+	 * Runs extra statements for a chunk inside the chunk's transaction: one
+	 * before its rows are bound, again when the chunk is replayed row by row
+	 * after a rollback, and one after its rows went in.
+	 */
+	interface ChunkHook {
+		void beforeChunk(ConnectionPool.PooledConnection conn, int from, int to) throws SQLException;
+
+		void afterChunk(ConnectionPool.PooledConnection conn, int from, int to, String[] errors) throws SQLException;
+	}
+
+	<T> BatchResult insertAll(String key, String sql, List<T> rows, Binder<T> binder, ChunkHook hook) throws SQLException {
+		BatchResult result = new BatchResult(rows.size());
+		long start = System.nanoTime();
+		int[] committed = {0};
+		try{
+			this._esql.withConnection(key, conn -> {
+				Connection c = conn.connection();
+				c.setAutoCommit(false);
+				PreparedStatement stmt = conn.prepare(key, sql);
+				for (int from = 0; from < rows.size(); from += this._chunkSize){
+					int to = Math.min(rows.size(), from + this._chunkSize);
+					if (hook != null){
+						hook.beforeChunk(conn, from, to);
+					}
+					try{
+						for (int i = from; i < to; ++i){
+							binder.bind(stmt, rows.get(i));
+							stmt.addBatch();
+						}
+						stmt.executeBatch();
+					}catch (BatchUpdateException e){
+						c.rollback();
+						stmt.clearBatch();
+						if (hook != null){
+							hook.beforeChunk(conn, from, to);
+						}
+						insertOneByOne(c, stmt, rows, binder, from, to, result._errors);
+					}//end try
+					if (hook != null){
+						hook.afterChunk(conn, from, to, result._errors);
+					}
+					c.commit();
+					committed[0] = to;
+				}//end for
+				return null;
+			});
+		}catch (SQLException e){
+			//the pool rolled the open chunk back, the rows before it stay
+			for (int i = committed[0]; i < rows.size(); ++i){
+				result._errors[i] = "not inserted, the import stopped: " + e.getMessage();
+			}
+			finish(result, start);
+			throw new Aborted(result, result._inserted, e);
+		}//end try
+		finish(result, start);
+		return result;
+	}//end insertAll
+
+	private static void finish(BatchResult result, long start){
+		result._nanos = System.nanoTime() - start;
+		int failed = 0;
+		for (String error : result._errors){
+			failed += error == null ? 0 : 1;
+		}
+		result._inserted = result._errors.length - failed;
+	}
+
+	private static <T> void insertOneByOne(Connection c, PreparedStatement stmt, List<T> rows, Binder<T> binder,
+			int from, int to, String[] errors) throws SQLException {
+		for (int i = from; i < to; ++i){
+			Savepoint sp = c.setSavepoint();
+			try{
+				binder.bind(stmt, rows.get(i));
+				stmt.executeUpdate();
+				c.releaseSavepoint(sp);
+			}catch (SQLException e){
+				if (DBproject.isConnectionFailure(e)){
+					throw e;
+				}
+				c.rollback(sp);
+				errors[i] = e.getMessage();
+			}//end try
+		}//end for
+	}
+}
@@ -0,0 +1,218 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a stream of menu commands without prompts, one command per line:
+ *
+ *   add-ship [id] &lt;make&gt; &lt;model&gt; &lt;age&gt; &lt;seats&gt;
+ *   add-captain [id] &lt;full name&gt; &lt;nationality&gt;
+ *   add-cruise [cnum] &lt;cost&gt; &lt;sold&gt; &lt;stops&gt; &lt;departure&gt; &lt;arrival&gt; &lt;arrival port&gt; &lt;departure port&gt;
+ *   book [rnum] &lt;customer&gt; &lt;cnum&gt;
+ *   seats &lt;cnum&gt; &lt;YYYY-MM-DD&gt;
+ *   repairs [top]
+ *   passengers &lt;cnum&gt; &lt;W|C|R&gt;
+ *
+ * A command that leaves out the key in brackets adds its row under the
+ * next key from KeyAllocator, and book then writes "&lt;rnum&gt; &lt;status&gt;".
+ * A key that is given moves the key sequence past it, see KeyAllocator.claim.
+ * Fields are separated by blanks; a field holding blanks is written in
+ * double quotes.  Blank lines and lines starting with # are skipped.  Each
+ * command writes one line "&lt;line&gt;\tok\t&lt;result&gt;" or
+ * "&lt;line&gt;\terror\t&lt;message&gt;", in input order.
+ *
+ * With more than one thread, commands run concurrently and only the output
+ * keeps the input order, so a command must not depend on an earlier one.
+ *
+ */
+
+public class BatchRunner{
+	private final CruiseService _service;
+	private final int _threads;
+	private long _ok, _failed;
+
+	public BatchRunner(CruiseService service, int threads){
+		if (threads < 1){
+			throw new IllegalArgumentException("thread count must be positive: " + threads);
+		}
+		this._service = service;
+		this._threads = threads;
+	}
+
+	/**
+	 * Method to run every command of a stream.
+	 *
+	 * @param in the commands
+	 * @param out receives one result line per command
+	 * @throws java.io.IOException when reading or writing failed
+	 */
+	public void run(BufferedReader in, Writer out) throws IOException {
+		long start = System.nanoTime();
+		ExecutorService workers = this._threads > 1 ? WorkerThreads.newExecutor("batch", this._threads) : null;
+		//bounded window of running commands, written strictly in order
+		ArrayDeque<Future<String>> window = new ArrayDeque<Future<String>>();
+		try{
+			String line;
+			int lineNo = 0;
+			while ((line = in.readLine()) != null){
+				lineNo++;
+				String trimmed = line.trim();
+				if (trimmed.isEmpty() || trimmed.startsWith("#")){
+					continue;
+				}
+				int n = lineNo;
+				if (workers == null){
+					write(out, execute(n, trimmed));
+					continue;
+				}
+				window.add(workers.submit(() -> execute(n, trimmed)));
+				if (window.size() >= this._threads * 4){
+					write(out, await(window.poll()));
+				}
+			}//end while
+			while (!window.isEmpty()){
+				write(out, await(window.poll()));
+			}
+		}finally{
+			out.flush();
+			if (workers != null){
+				workers.shutdownNow();
+			}
+		}//end try
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.printf("batch: %d ok, %d failed in %.2fs (%.0f commands/s)%n",
+			this._ok, this._failed, seconds, (this._ok + this._failed) / Math.max(seconds, 1e-9));
+	}
+
+	private void write(Writer out, String result) throws IOException {
+		if (result.contains("\terror\t")){
+			this._failed++;
+		}else{
+			this._ok++;
+		}
+		out.write(result);
+		out.write('\n');
+	}
+
+	private static String await(Future<String> f) throws IOException {
+		try{
+			return f.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		}catch (ExecutionException e){
+			throw new IOException(e.getCause());
+		}
+	}
+
+	String execute(int lineNo, String line){
+		try{
+			return lineNo + "\tok\t" + dispatch(split(line));
+		}catch (SQLException | RuntimeException e){
+			String message = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+			return lineNo + "\terror\t" + message.replace('\n', ' ').replace('\t', ' ');
+		}//end try
+	}
+
+	private String dispatch(List<String> f) throws SQLException {
+		String op = f.get(0);
+		switch (op){
+			case "add-ship":
+				withKey(f, 6, KeyAllocator.Key.SHIP);
+				this._service.addShip(Integer.parseInt(f.get(1)), f.get(2), f.get(3), Integer.parseInt(f.get(4)), Integer.parseInt(f.get(5)));
+				return "added ship " + f.get(1);
+			case "add-captain":
+				withKey(f, 4, KeyAllocator.Key.CAPTAIN);
+				this._service.addCaptain(Integer.parseInt(f.get(1)), f.get(2), f.get(3));
+				return "added captain " + f.get(1);
+			case "add-cruise":
+				withKey(f, 9, KeyAllocator.Key.CRUISE);
+				this._service.addCruise(Integer.parseInt(f.get(1)), Integer.parseInt(f.get(2)), Integer.parseInt(f.get(3)),
+					Integer.parseInt(f.get(4)), f.get(5), f.get(6), f.get(7), f.get(8));
+				return "added cruise " + f.get(1);
+			case "book":{
+				boolean allocated = withKey(f, 4, KeyAllocator.Key.RESERVATION);
+				char status = this._service.bookCruise(Integer.parseInt(f.get(1)), Integer.parseInt(f.get(2)), Integer.parseInt(f.get(3)));
+				return allocated ? f.get(1) + " " + status : String.valueOf(status);
+			}
+			case "seats":{
+				arity(f, 3);
+				int seats = this._service.availableSeats(Integer.parseInt(f.get(1)), LocalDate.parse(f.get(2)));
+				if (seats == SeatCache.UNKNOWN){
+					throw new IllegalArgumentException("cruise " + f.get(1) + " has no ship assigned");
+				}
+				return seats == SeatCache.NO_SAILING ? "no sailing" : String.valueOf(seats);
+			}
+			case "repairs":{
+				int top = f.size() > 1 ? Integer.parseInt(f.get(1)) : Integer.MAX_VALUE;
+				StringBuilder sb = new StringBuilder();
+				for (CruiseService.ShipRepairs r : this._service.repairsPerShip(top)){
+					sb.append(sb.length() == 0 ? "" : " ").append(r.shipId()).append(':').append(r.repairs());
+				}
+				return sb.toString();
+			}
+			case "passengers":
+				arity(f, 3);
+				if (f.get(2).length() != 1){
+					throw new IllegalArgumentException("status must be W, C or R: " + f.get(2));
+				}
+				return String.valueOf(this._service.passengersWithStatus(Integer.parseInt(f.get(1)), f.get(2).charAt(0)));
+			default:
+				throw new IllegalArgumentException("unknown command: " + op);
+		}
+	}
+
+	//inserts the next key as the first argument when the command left it out
+	private boolean withKey(List<String> fields, int n, KeyAllocator.Key key) throws SQLException {
+		if (fields.size() != n - 1){
+			arity(fields, n);
+			return false;
+		}
+		fields.add(1, String.valueOf(this._service.nextKey(key)));
+		return true;
+	}
+
+	private static void arity(List<String> fields, int n){
+		if (fields.size() != n){
+			throw new IllegalArgumentException(fields.get(0) + " takes " + (n - 1) + " arguments, got " + (fields.size() - 1));
+		}
+	}
+
+	//splits a line on blanks, keeping "double quoted" fields together
+	static List<String> split(String line){
+		List<String> fields = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false, inField = false;
+		for (int i = 0; i < line.length(); ++i){
+			char c = line.charAt(i);
+			if (c == '"'){
+				quoted = !quoted;
+				inField = true;
+			}else if (!quoted && Character.isWhitespace(c)){
+				if (inField){
+					fields.add(sb.toString());
+					sb.setLength(0);
+					inField = false;
+				}
+			}else{
+				sb.append(c);
+				inField = true;
+			}
+		}//end for
+		if (quoted){
+			throw new IllegalArgumentException("unterminated quote");
+		}
+		if (inField){
+			fields.add(sb.toString());
+		}
+		return fields;
+	}
+}
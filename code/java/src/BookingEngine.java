@@ -0,0 +1,111 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class books cruise seats atomically.  A booking is one statement: it
+ * conditionally increments Cruise.num_sold while the ship still has a free
+ * seat and inserts the reservation with status 'R' when it got the seat, or
+ * 'W' (waitlisted) when the cruise is full.
+ *
+ * The increment takes the row lock on the cruise, so concurrent bookers of
+ * the same cruise queue on that lock and each one re-checks the seat limit
+ * against the committed count before it proceeds.  The lock is held only for
+ * the single autocommit statement, which keeps a hot cruise moving.
+ *
+ */
+
+public class BookingEngine{
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	static final String BOOK_SQL =
+		"WITH seat AS (" +
+		" UPDATE Cruise C SET num_sold = C.num_sold + 1" +
+		" FROM CruiseInfo CI, Ship S" +
+		" WHERE C.cnum = ? AND CI.cruise_id = C.cnum AND CI.ship_id = S.id AND C.num_sold < S.seats" +
+		" RETURNING C.cnum)" +
+		" INSERT INTO Reservation (rnum, ccid, cid, status, departure_date)" +
+		" SELECT ?, ?, ?, CASE WHEN EXISTS (SELECT 1 FROM seat) THEN 'R' ELSE 'W' END," +
+		" (SELECT actual_departure_date FROM Cruise WHERE cnum = ?)" +
+		" RETURNING status;";
+
+	private final DBproject _esql;
+	private final int _maxAttempts;
+
+	public BookingEngine(DBproject esql){
+		this(esql, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	public BookingEngine(DBproject esql, int maxAttempts){
+		this._esql = esql;
+		this._maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Method to book a seat on a cruise for a customer.  Serialization
+	 * failures and deadlocks are retried with a short randomized backoff.
+	 *
+	 * @param rnum the reservation number to insert
+	 * @param custID the customer making the booking
+	 * @param cnum the cruise to book
+	 * @return 'R' when a seat was reserved, 'W' when the customer was waitlisted
+	 * @throws java.sql.SQLException when the booking failed, i.e. unknown
+	 *         customer or cruise, or a duplicate reservation number
+	 */
+	public char book(int rnum, int custID, int cnum) throws SQLException {
+		for (int attempt = 1; ; ++attempt){
+			try{
+				char status = this._esql.withConnection("BookCruise.book", conn -> book(conn.prepare("BookCruise.book", BOOK_SQL), rnum, custID, cnum));
+				SeatCache seats = this._esql.getSeatCache();
+				if (seats != null){
+					seats.recordBooking(cnum, status);
+				}
+				StatusCounts counts = this._esql.getStatusCounts();
+				if (counts != null){
+					counts.recordBooking(cnum, status);
+				}
+				return status;
+			}catch (SQLException e){
+				if (attempt >= this._maxAttempts || !isRetryable(e)){
+					throw e;
+				}
+				backoff(attempt);
+			}//end try
+		}//end for
+	}//end book
+
+	static char book(PreparedStatement stmt, int rnum, int custID, int cnum) throws SQLException {
+		stmt.setInt(1, cnum);
+		stmt.setInt(2, rnum);
+		stmt.setInt(3, custID);
+		stmt.setInt(4, cnum);
+		stmt.setInt(5, cnum);
+		ResultSet rs = stmt.executeQuery();
+		try{
+			if (!rs.next()){
+				throw new SQLException("Booking returned no reservation");
+			}
+			return rs.getString(1).charAt(0);
+		}finally{
+			rs.close();
+		}
+	}
+
+	/**
+	 * @return true for serialization failures and deadlocks
+	 */
+	static boolean isRetryable(SQLException e){
+		String state = e.getSQLState();
+		return "40001".equals(state) || "40P01".equals(state);
+	}
+
+	static void backoff(int attempt){
+		long bound = Math.min(50L, 1L << attempt);
+		try{
+			Thread.sleep(ThreadLocalRandom.current().nextLong(1, bound + 1));
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+	}
+}
@@ -0,0 +1,340 @@
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class books cruises in groups.  Callers put their booking into a
+ * bounded in-process ring buffer and get a future; a single writer thread
+ * drains the buffer and books everything it took in one statement, so a
+ * burst of bookings costs one commit and one WAL flush per group instead of
+ * one per booking.
+ *
+ * The group statement locks the cruises of the group in cnum order, hands
+ * out the free seats of each cruise to its bookings in arrival order and
+ * waitlists the rest, exactly as the same bookings one after another would.
+ * When the group fails as a whole (a duplicate reservation number, an
+ * unknown customer) its bookings are retried one at a time through
+ * BookingEngine, so only the bad ones fail.
+ *
+ * Knobs: the ring capacity, the largest group, and how long the writer
+ * lingers for more bookings after the first one of a group arrives.
+ *
+ */
+
+public class BookingQueue{
+	public static final int DEFAULT_CAPACITY = 8192;
+	public static final int DEFAULT_MAX_BATCH = 256;
+	public static final long DEFAULT_LINGER_MICROS = 200;
+	//how long submit waits for room in a full ring before failing
+	public static final long ENQUEUE_TIMEOUT_MS = 5000;
+
+	static final String BOOK_GROUP_SQL =
+		"WITH req AS (" +
+		" SELECT r.rnum, r.ccid, r.cid, r.ord FROM unnest(?::int[], ?::int[], ?::int[]) WITH ORDINALITY AS r(rnum, ccid, cid, ord))," +
+		" free AS (" +
+		" SELECT C.cnum, S.seats - C.num_sold AS n FROM Cruise C, CruiseInfo CI, Ship S" +
+		" WHERE C.cnum IN (SELECT cid FROM req) AND CI.cruise_id = C.cnum AND CI.ship_id = S.id" +
+		" ORDER BY C.cnum FOR UPDATE OF C)," +
+		" ranked AS (" +
+		" SELECT req.rnum, req.ccid, req.cid, req.ord," +
+		" CASE WHEN row_number() OVER (PARTITION BY req.cid ORDER BY req.ord) <= COALESCE(free.n, 0) THEN 'R' ELSE 'W' END AS status" +
+		" FROM req LEFT JOIN free ON free.cnum = req.cid)," +
+		" sold AS (" +
+		" UPDATE Cruise C SET num_sold = C.num_sold + g.n" +
+		" FROM (SELECT cid, count(*) AS n FROM ranked WHERE status = 'R' GROUP BY cid) g WHERE C.cnum = g.cid RETURNING C.cnum)," +
+		" booked AS (" +
+		" INSERT INTO Reservation (rnum, ccid, cid, status, departure_date)" +
+		" SELECT ranked.rnum, ranked.ccid, ranked.cid, ranked.status, C.actual_departure_date" +
+		" FROM ranked LEFT JOIN Cruise C ON C.cnum = ranked.cid ORDER BY ranked.ord)" +
+		//the insert runs to completion or fails the statement, so every request has its row
+		" SELECT ranked.ord, ranked.status FROM ranked ORDER BY ranked.ord;";
+
+	public record Booking(int rnum, char status){}
+
+	private static final class Request{
+		final int rnum, custID, cnum;
+		final CompletableFuture<Booking> future = new CompletableFuture<Booking>();
+
+		Request(int rnum, int custID, int cnum){
+			this.rnum = rnum;
+			this.custID = custID;
+			this.cnum = cnum;
+		}
+	}
+
+	private final DBproject _esql;
+	private final int _maxBatch;
+	private final long _lingerNanos;
+
+	//bounded multi-producer ring, each slot stamped with the position it may be used at next
+	private final int _mask;
+	private final AtomicReferenceArray<Request> _slots;
+	private final AtomicLongArray _stamps;
+	private final AtomicLong _tail = new AtomicLong();
+	//written by the writer thread only
+	private volatile long _head = 0;
+
+	private final Thread _writer;
+	private volatile boolean _running = true;
+	private volatile boolean _writerParked = false;
+
+	private final LongAdder _submitted = new LongAdder();
+	private final LongAdder _groups = new LongAdder();
+	private final LongAdder _fallbacks = new LongAdder();
+	private final LatencyHistogram _commitLatency = new LatencyHistogram();
+
+	public BookingQueue(DBproject esql){
+		this(esql, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_LINGER_MICROS);
+	}
+
+	/**
+	 * @param capacity the ring size, rounded up to a power of two
+	 * @param maxBatch the most bookings booked in one statement
+	 * @param lingerMicros how long to wait for a group to fill, 0 to book
+	 *        whatever has arrived right away
+	 */
+	public BookingQueue(DBproject esql, int capacity, int maxBatch, long lingerMicros){
+		if (capacity < 2 || maxBatch < 1 || lingerMicros < 0){
+			throw new IllegalArgumentException("bad booking queue settings: capacity=" + capacity + " batch=" + maxBatch + " linger=" + lingerMicros);
+		}
+		this._esql = esql;
+		this._maxBatch = maxBatch;
+		this._lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		this._mask = size - 1;
+		this._slots = new AtomicReferenceArray<Request>(size);
+		this._stamps = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i){
+			this._stamps.set(i, i);
+		}
+		this._writer = WorkerThreads.daemonFactory("booking-writer").newThread(this::drain);
+		this._writer.start();
+	}
+
+	/**
+	 * Method to queue a booking.  Blocks while the ring is full.
+	 *
+	 * @return a future completed with the stored reservation, or with the
+	 *         SQLException that refused it
+	 */
+	public CompletableFuture<Booking> submit(int rnum, int custID, int cnum){
+		Request r = new Request(rnum, custID, cnum);
+		if (!this._running){
+			r.future.completeExceptionally(new SQLException("booking queue is closed"));
+			return r.future;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ENQUEUE_TIMEOUT_MS);
+		while (!offer(r)){
+			if (System.nanoTime() > deadline){
+				r.future.completeExceptionally(new SQLException("booking queue full for " + ENQUEUE_TIMEOUT_MS + "ms"));
+				return r.future;
+			}
+			LockSupport.parkNanos(50000);
+		}//end while
+		this._submitted.increment();
+		if (this._writerParked){
+			LockSupport.unpark(this._writer);
+		}
+		return r.future;
+	}
+
+	//claims the next slot, false when the ring is full
+	private boolean offer(Request r){
+		while (true){
+			long pos = this._tail.get();
+			int i = (int) pos & this._mask;
+			long stamp = this._stamps.get(i);
+			if (stamp < pos){
+				return false;
+			}
+			if (stamp == pos && this._tail.compareAndSet(pos, pos + 1)){
+				this._slots.set(i, r);
+				//publishes the request to the writer
+				this._stamps.set(i, pos + 1);
+				return true;
+			}
+		}//end while
+	}
+
+	//takes the next request, null when none is published yet
+	private Request poll(){
+		int i = (int) this._head & this._mask;
+		if (this._stamps.get(i) != this._head + 1){
+			return null;
+		}
+		Request r = this._slots.get(i);
+		this._slots.set(i, null);
+		//frees the slot for the producer one lap ahead
+		this._stamps.set(i, this._head + this._mask + 1);
+		this._head++;
+		return r;
+	}
+
+	private void drain(){
+		List<Request> group = new ArrayList<Request>(this._maxBatch);
+		while (this._running || this._tail.get() != this._head){
+			Request r = poll();
+			if (r == null){
+				this._writerParked = true;
+				//re-check after announcing the park, a producer may have missed it
+				r = poll();
+				if (r == null){
+					LockSupport.parkNanos(1000000);
+					this._writerParked = false;
+					continue;
+				}
+				this._writerParked = false;
+			}//end if
+			group.add(r);
+			long lingerUntil = System.nanoTime() + this._lingerNanos;
+			while (group.size() < this._maxBatch){
+				r = poll();
+				if (r != null){
+					group.add(r);
+				}else if (System.nanoTime() < lingerUntil){
+					Thread.onSpinWait();
+				}else{
+					break;
+				}
+			}//end while
+			book(group);
+			group.clear();
+		}//end while
+	}
+
+	private void book(List<Request> group){
+		long start = System.nanoTime();
+		for (int attempt = 1; ; ++attempt){
+			try{
+				char[] status = bookGroup(group);
+				this._groups.increment();
+				this._commitLatency.record(System.nanoTime() - start);
+				for (int i = 0; i < group.size(); ++i){
+					Request r = group.get(i);
+					char s = status[i];
+					if (s == 0){
+						r.future.completeExceptionally(new SQLException("Booking returned no reservation"));
+						continue;
+					}
+					recordBooking(r.cnum, s);
+					r.future.complete(new Booking(r.rnum, s));
+				}//end for
+				return;
+			}catch (SQLException e){
+				if (attempt < BookingEngine.DEFAULT_MAX_ATTEMPTS && BookingEngine.isRetryable(e)){
+					BookingEngine.backoff(attempt);
+					continue;
+				}
+				if (group.size() == 1){
+					group.get(0).future.completeExceptionally(e);
+					return;
+				}
+				break;
+			}catch (RuntimeException e){
+				for (Request r : group){
+					r.future.completeExceptionally(e);
+				}
+				return;
+			}//end try
+		}//end for
+		//one bad booking fails the whole statement, book them one at a time
+		this._fallbacks.increment();
+		for (Request r : group){
+			try{
+				r.future.complete(new Booking(r.rnum, this._esql.getBookingEngine().book(r.rnum, r.custID, r.cnum)));
+			}catch (SQLException | RuntimeException e){
+				r.future.completeExceptionally(e);
+			}
+		}//end for
+	}
+
+	//the status of each request, by its position in the group
+	private char[] bookGroup(List<Request> group) throws SQLException {
+		return this._esql.withConnection("BookingQueue.group", conn -> {
+			Integer[] rnum = new Integer[group.size()], cust = new Integer[group.size()], cnum = new Integer[group.size()];
+			for (int i = 0; i < group.size(); ++i){
+				Request r = group.get(i);
+				rnum[i] = r.rnum;
+				cust[i] = r.custID;
+				cnum[i] = r.cnum;
+			}
+			Array a1 = conn.connection().createArrayOf("int4", rnum);
+			Array a2 = conn.connection().createArrayOf("int4", cust);
+			Array a3 = conn.connection().createArrayOf("int4", cnum);
+			PreparedStatement stmt = conn.prepare("BookingQueue.group", BOOK_GROUP_SQL);
+			stmt.setArray(1, a1);
+			stmt.setArray(2, a2);
+			stmt.setArray(3, a3);
+			char[] status = new char[group.size()];
+			//autocommit: the whole group is one transaction and one commit
+			ResultSet rs = stmt.executeQuery();
+			try{
+				while (rs.next()){
+					//ordinals count from 1
+					status[rs.getInt(1) - 1] = rs.getString(2).charAt(0);
+				}
+			}finally{
+				rs.close();
+			}
+			return status;
+		});
+	}
+
+	private void recordBooking(int cnum, char status){
+		SeatCache seats = this._esql.getSeatCache();
+		if (seats != null){
+			seats.recordBooking(cnum, status);
+		}
+		StatusCounts counts = this._esql.getStatusCounts();
+		if (counts != null){
+			counts.recordBooking(cnum, status);
+		}
+	}
+
+	/**
+	 * Method to stop taking bookings, book what is queued and stop the writer.
+	 */
+	public void close(){
+		this._running = false;
+		LockSupport.unpark(this._writer);
+		try{
+			this._writer.join(TimeUnit.SECONDS.toMillis(10));
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+		if (this._writer.isAlive()){
+			return;
+		}
+		//bookings that raced with the close, the writer is gone so this thread drains
+		Request r;
+		while ((r = poll()) != null){
+			r.future.completeExceptionally(new SQLException("booking queue is closed"));
+		}
+	}
+
+	public int getQueued(){
+		return (int) (this._tail.get() - this._head);
+	}
+
+	public double getMeanGroupSize(){
+		long groups = this._groups.sum();
+		return groups == 0 ? 0.0 : (this._submitted.sum() - getQueued()) / (double) groups;
+	}
+
+	@Override
+	public String toString(){
+		return String.format("booking queue: capacity=%d batch<=%d linger=%dus submitted=%d groups=%d mean-group=%.1f fallbacks=%d commit %s",
+			this._mask + 1, this._maxBatch, TimeUnit.NANOSECONDS.toMicros(this._lingerNanos), this._submitted.sum(),
+			this._groups.sum(), getMeanGroupSize(), this._fallbacks.sum(), this._commitLatency);
+	}
+}
@@ -0,0 +1,137 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multithreaded stress run of the booking engine against one hot cruise.
+ * Every client books the same cruise until the requested number of bookings
+ * is made, then the cruise is checked for overselling: num_sold must not
+ * exceed the ship's seats and must have grown by exactly the number of 'R'
+ * reservations handed out.  Exits with status 1 when a check fails.
+ *
+ * Usage: java BookingStressTest <dbname> <port> <user> <cnum> [clients] [bookings]
+ *
+ */
+
+public class BookingStressTest{
+	//bound on the customer ids sampled for the bookings
+	private static final int CUSTOMER_SAMPLE = 100000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4){
+			System.err.println("Usage: java BookingStressTest <dbname> <port> <user> <cnum> [clients] [bookings]");
+			return;
+		}
+		int cnum = Integer.parseInt(args[3]);
+		int clients = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+		int bookings = args.length > 5 ? Integer.parseInt(args[5]) : 5000;
+		Class.forName("org.postgresql.Driver");
+
+		DBproject esql = new DBproject(args[0], args[1], args[2], "", Math.min(clients, 64));
+		boolean ok;
+		try{
+			ok = run(esql, cnum, clients, bookings);
+		}finally{
+			esql.cleanup();
+		}
+		if (!ok){
+			System.exit(1);
+		}
+	}
+
+	private static boolean run(DBproject esql, int cnum, int clients, int bookings) throws Exception {
+		List<List<String>> before = esql.executeQueryAndReturnResult(
+			"SELECT S.seats, C.num_sold FROM Cruise C, CruiseInfo CI, Ship S WHERE C.cnum = " + cnum + " AND CI.cruise_id = C.cnum AND CI.ship_id = S.id;");
+		if (before.isEmpty()){
+			System.err.println("Cruise " + cnum + " has no ship assigned");
+			return false;
+		}
+		int seats = Integer.parseInt(before.get(0).get(0));
+		int soldBefore = Integer.parseInt(before.get(0).get(1));
+		//customer ids need not be dense, book with ids that exist
+		int[] sample = new int[CUSTOMER_SAMPLE];
+		int[] n = new int[1];
+		esql.executeQueryStreaming("SELECT id FROM Customer LIMIT " + CUSTOMER_SAMPLE + ";", DBproject.DEFAULT_FETCH_SIZE, row -> {
+			sample[n[0]++] = row.getInt(1);
+		});
+		if (n[0] == 0){
+			System.err.println("The database has no customers, load it first");
+			return false;
+		}
+		int[] customers = Arrays.copyOf(sample, n[0]);
+
+		BookingEngine engine = new BookingEngine(esql);
+		//the rnums this run handed out, from the allocator every client uses
+		Queue<Integer> rnums = new ConcurrentLinkedQueue<Integer>();
+		AtomicInteger remaining = new AtomicInteger(bookings);
+		LongAdder reserved = new LongAdder();
+		LongAdder waitlisted = new LongAdder();
+		LongAdder failed = new LongAdder();
+
+		ExecutorService pool = WorkerThreads.newExecutor("stress-client", clients);
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; ++c){
+			running.add(pool.submit(() -> {
+				while (remaining.getAndDecrement() > 0){
+					try{
+						int rnum = esql.getKeys().next(KeyAllocator.Key.RESERVATION);
+						rnums.add(rnum);
+						char status = engine.book(rnum, customers[ThreadLocalRandom.current().nextInt(customers.length)], cnum);
+						(status == 'R' ? reserved : waitlisted).increment();
+					}catch (SQLException e){
+						failed.increment();
+					}
+				}
+			}));
+		}//end for
+		for (Future<?> f : running){
+			f.get();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		pool.shutdown();
+
+		int soldAfter = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT num_sold FROM Cruise WHERE cnum = " + cnum + ";").get(0).get(0));
+		int reservedRows = esql.withConnection("BookingStressTest.reserved", conn -> {
+			PreparedStatement stmt = conn.prepare("BookingStressTest.reserved",
+				"SELECT COUNT(*) FROM Reservation WHERE cid = ? AND status = 'R' AND rnum = ANY(?);");
+			stmt.setInt(1, cnum);
+			stmt.setArray(2, conn.connection().createArrayOf("integer", rnums.toArray(new Integer[0])));
+			ResultSet rs = stmt.executeQuery();
+			try{
+				rs.next();
+				return rs.getInt(1);
+			}finally{
+				rs.close();
+			}
+		});
+
+		System.out.printf("clients=%d bookings=%d reserved=%d waitlisted=%d failed=%d in %.2fs (%.0f bookings/s)%n",
+			clients, bookings, reserved.sum(), waitlisted.sum(), failed.sum(), elapsed, bookings / elapsed);
+		System.out.printf("seats=%d num_sold before=%d after=%d, new R rows=%d%n", seats, soldBefore, soldAfter, reservedRows);
+
+		boolean ok = true;
+		if (soldAfter > seats){
+			System.err.println("FAIL: cruise oversold, num_sold " + soldAfter + " > seats " + seats);
+			ok = false;
+		}
+		if (soldAfter - soldBefore != reserved.sum() || reservedRows != reserved.sum()){
+			System.err.println("FAIL: seat counter drifted from the reservations handed out");
+			ok = false;
+		}
+		if (ok){
+			System.out.println("PASS: no overselling");
+		}
+		return ok;
+	}
+}
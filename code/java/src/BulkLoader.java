@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class loads the CSV files of the data directory from the client with
+ * COPY FROM STDIN, so the server needs no access to the files.  Tables
+ * without foreign keys are loaded in parallel first, then the tables that
+ * reference them, each on its own pooled connection.
+ *
+ */
+
+public class BulkLoader{
+	//bytes handed to the driver per COPY data message
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+	//largest region of a file mapped at once
+	private static final long MAP_CHUNK = 1L << 30;
+
+	/**
+	 * A table of the schema and the CSV file holding its rows.
+	 */
+	public static final class TableFile{
+		public final String table;
+		public final String file;
+		public final String[] columns;
+		//tables of a level only reference tables of lower levels
+		public final int level;
+		//moves the rows from the staging table when the table has columns the file lacks, null otherwise
+		public final String derive;
+
+		TableFile(String table, String file, int level, String... columns){
+			this(table, file, level, columns, null);
+		}
+
+		TableFile(String table, String file, int level, String[] columns, String derive){
+			this.table = table;
+			this.file = file;
+			this.level = level;
+			this.columns = columns;
+			this.derive = derive;
+		}
+
+		String stagingTable(){
+			return this.table.toLowerCase() + "_load";
+		}
+
+		String copySql(){
+			String target = this.derive == null ? this.table : stagingTable();
+			return "COPY " + target + " (" + String.join(", ", this.columns) + ") FROM STDIN WITH DELIMITER ','";
+		}
+	}
+
+	//every table of create.sql, in foreign key order
+	public static final TableFile[] TABLES = {
+		new TableFile("Customer", "customer.csv", 0, "id", "fname", "lname", "gtype", "dob", "address", "phone", "zipcode"),
+		new TableFile("Captain", "Captains.csv", 0, "id", "fullname", "nationality"),
+		new TableFile("Ship", "Ships.csv", 0, "id", "make", "model", "age", "seats"),
+		new TableFile("Technician", "technician.csv", 0, "id", "full_name"),
+		new TableFile("Cruise", "Cruises.csv", 0, "cnum", "cost", "num_sold", "num_stops", "actual_departure_date", "actual_arrival_date", "arrival_port", "departure_port"),
+		//the partition key is the departure of the cruise, an unknown cruise fails on its NOT NULL
+		new TableFile("Reservation", "reservation.csv", 1, new String[]{"rnum", "ccid", "cid", "status"},
+			"INSERT INTO Reservation (rnum, ccid, cid, status, departure_date)" +
+			" SELECT L.rnum, L.ccid, L.cid, L.status, C.actual_departure_date FROM reservation_load L LEFT JOIN Cruise C ON C.cnum = L.cid;"),
+		new TableFile("CruiseInfo", "Cruiseinfo.csv", 1, "ciid", "cruise_id", "captain_id", "ship_id"),
+		new TableFile("Repairs", "repairs.csv", 1, "rid", "repair_date", "repair_code", "captain_id", "ship_id", "technician_id"),
+		//after CruiseInfo, whose sailings the triggers of migration V8 derive from it
+		new TableFile("Schedule", "schedule.csv", 2, "id", "cruiseNum", "departure_time", "arrival_time"),
+	};
+
+	private final DBproject _esql;
+
+	public BulkLoader(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to load every table from the CSV files of a directory into empty
+	 * tables.  Prints the rows per second of each table.
+	 *
+	 * @param dataDir the directory holding the CSV files
+	 * @return the total number of rows loaded
+	 * @throws java.sql.SQLException when a COPY failed
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public long load(Path dataDir) throws SQLException, IOException {
+		long start = System.nanoTime();
+		long total = 0;
+		int maxLevel = 0;
+		for (TableFile t : TABLES){
+			maxLevel = Math.max(maxLevel, t.level);
+		}
+		for (int level = 0; level <= maxLevel; ++level){
+			List<Future<Long>> running = new ArrayList<Future<Long>>();
+			for (TableFile t : TABLES){
+				if (t.level == level){
+					Path file = dataDir.resolve(t.file);
+					running.add(this._esql.submit(conn -> copy(conn, t, file)));
+				}
+			}//end for
+			//the next level references these tables, so wait for all of them
+			for (Future<Long> f : running){
+				total += await(f);
+			}
+		}//end for
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Loaded %d rows in %.2fs (%.0f rows/s)%n", total, seconds, total / seconds);
+		return total;
+	}//end load
+
+	private static long copy(ConnectionPool.PooledConnection conn, TableFile t, Path file) throws SQLException {
+		CopyManager copy = conn.connection().unwrap(PGConnection.class).getCopyAPI();
+		long start = System.nanoTime();
+		long rows;
+		Statement stmt = conn.connection().createStatement();
+		try{
+			if (t.derive != null){
+				//copied into a temporary table of the file's columns, then moved with the derived ones
+				stmt.execute("CREATE TEMP TABLE " + t.stagingTable() + " AS SELECT " + String.join(", ", t.columns)
+					+ " FROM " + t.table + " WITH NO DATA;");
+			}
+			try (InputStream in = new MappedInputStream(file)){
+				rows = copy.copyIn(t.copySql(), in, COPY_BUFFER_SIZE);
+			}catch (IOException e){
+				throw new SQLException("Unable to read " + file + ": " + e.getMessage(), e);
+			}//end try
+			if (t.derive != null){
+				stmt.executeUpdate(t.derive);
+			}
+		}finally{
+			if (t.derive != null){
+				stmt.execute("DROP TABLE IF EXISTS " + t.stagingTable() + ";");
+			}
+			stmt.close();
+		}//end try
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-12s %10d rows %8.2fs %12.0f rows/s%n", t.table, rows, seconds, rows / Math.max(seconds, 1e-9));
+		return rows;
+	}
+
+	private static long await(Future<Long> f) throws SQLException, IOException {
+		try{
+			return f.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading", e);
+		}catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException){
+				throw (SQLException) cause;
+			}
+			throw new SQLException(cause.getMessage(), cause);
+		}//end try
+	}
+
+	/**
+	 * Reads a file through read-only memory mappings of up to MAP_CHUNK bytes,
+	 * so the file is paged in by the OS instead of copied through a heap
+	 * buffer.
+	 */
+	static final class MappedInputStream extends InputStream{
+		private final FileChannel _channel;
+		private final long _size;
+		private long _mapped = 0;
+		private MappedByteBuffer _buffer;
+
+		MappedInputStream(Path file) throws IOException {
+			this._channel = FileChannel.open(file, StandardOpenOption.READ);
+			this._size = Files.size(file);
+		}
+
+		private boolean ensure() throws IOException {
+			if (this._buffer != null && this._buffer.hasRemaining()){
+				return true;
+			}
+			if (this._mapped >= this._size){
+				return false;
+			}
+			long length = Math.min(MAP_CHUNK, this._size - this._mapped);
+			this._buffer = this._channel.map(FileChannel.MapMode.READ_ONLY, this._mapped, length);
+			this._mapped += length;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return ensure() ? this._buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0){
+				return 0;
+			}
+			if (!ensure()){
+				return -1;
+			}
+			int n = Math.min(len, this._buffer.remaining());
+			this._buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this._buffer = null;
+			this._channel.close();
+		}
+	}
+}
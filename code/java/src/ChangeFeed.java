@@ -0,0 +1,378 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps the in-process caches coherent with writes made by other
+ * processes.  The triggers of migration V6 send a notification on channel
+ * dbproject_changes for every statement that changes Cruise, Reservation,
+ * Ship or Repairs.  A background thread listens on a dedicated connection,
+ * collects the notifications of a short window, and hands the changed keys
+ * and the operations of each table to the listeners registered for it, once
+ * per window.
+ *
+ * Since migration V10 the triggers are only installed while the feed is
+ * switched on, see install, as a notifying transaction serializes with
+ * every other one when it commits.
+ *
+ * Notifications sent by the connections of this process's own pool are
+ * skipped, since the write paths here update the caches themselves.  When
+ * the listening connection is lost, notifications may have been missed,
+ * so every listener is told that every row changed once it is back.
+ *
+ */
+
+public class ChangeFeed{
+	public static final String CHANNEL = "dbproject_changes";
+	public static final long DEFAULT_WINDOW_MS = 20;
+	//how long one wait for notifications blocks, bounds how late close() is noticed
+	private static final int POLL_MS = 500;
+	private static final long RECONNECT_MS = 1000;
+	//more distinct keys than this in one window count as every row
+	private static final int MAX_KEYS = 1 << 16;
+
+	//the operations of a window, as a bit set
+	public static final int INSERT = 1, UPDATE = 2, DELETE = 4, TRUNCATE = 8;
+	//a payload without its operation, sent by the triggers of V6
+	public static final int ANY = INSERT | UPDATE | DELETE | TRUNCATE;
+
+	static final String INSTALLED_SQL = "SELECT change_feed_installed();";
+	static final String INSTALL_SQL = "SELECT change_feed_install();";
+	static final String REMOVE_SQL = "SELECT change_feed_remove();";
+
+	/**
+	 * The tables with notifications, and the tag of each in the payload.
+	 */
+	public enum Table{
+		CRUISE('C'), RESERVATION('R'), SHIP('S'), REPAIRS('P');
+
+		final char tag;
+
+		Table(char tag){
+			this.tag = tag;
+		}
+
+		static Table of(char tag){
+			for (Table t : values()){
+				if (t.tag == tag){
+					return t;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Receives the changes of a table, on the listener thread.
+	 */
+	public interface Listener{
+		/**
+		 * @param table the changed table
+		 * @param keys the distinct changed keys in ascending order, see the
+		 *        migration for the key of each table, or null when every
+		 *        row may have changed
+		 * @param ops the operations that changed them, INSERT, UPDATE,
+		 *        DELETE and TRUNCATE or'ed together
+		 */
+		void changed(Table table, int[] keys, int ops);
+	}
+
+	//the keys of one table collected during a window
+	private static final class Pending{
+		int[] keys = new int[64];
+		int size;
+		boolean all;
+		int ops;
+
+		void add(int key){
+			if (this.all){
+				return;
+			}
+			if (this.size == this.keys.length){
+				if (this.size >= MAX_KEYS){
+					this.all = true;
+					return;
+				}
+				this.keys = Arrays.copyOf(this.keys, this.size * 2);
+			}
+			this.keys[this.size++] = key;
+		}
+
+		boolean isEmpty(){
+			return this.size == 0 && !this.all;
+		}
+
+		//sorted without duplicates, null for every row
+		int[] drain(){
+			int[] distinct = null;
+			if (!this.all){
+				Arrays.sort(this.keys, 0, this.size);
+				int n = 0;
+				for (int i = 0; i < this.size; ++i){
+					if (n == 0 || this.keys[i] != this.keys[n - 1]){
+						this.keys[n++] = this.keys[i];
+					}
+				}//end for
+				distinct = Arrays.copyOf(this.keys, n);
+			}
+			this.size = 0;
+			this.all = false;
+			this.ops = 0;
+			return distinct;
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final long _windowMs;
+	private final List<List<Listener>> _listeners = new ArrayList<List<Listener>>();
+	private final Pending[] _pending = new Pending[Table.values().length];
+	private final Thread _thread;
+	private volatile boolean _running = true;
+
+	private final LongAdder _received = new LongAdder();
+	private final LongAdder _skipped = new LongAdder();
+	private final LongAdder _dispatched = new LongAdder();
+	private final LongAdder _reconnects = new LongAdder();
+
+	/**
+	 * @param pool the pool of this process, its connections' notifications
+	 *        are skipped and the listening connection is opened with its
+	 *        settings
+	 * @param windowMs how long notifications are collected before dispatch
+	 */
+	public ChangeFeed(ConnectionPool pool, long windowMs){
+		this._pool = pool;
+		this._windowMs = windowMs;
+		for (int i = 0; i < this._pending.length; ++i){
+			this._listeners.add(new CopyOnWriteArrayList<Listener>());
+			this._pending[i] = new Pending();
+		}
+		this._thread = WorkerThreads.daemonFactory("change-feed").newThread(this::listen);
+	}
+
+	/**
+	 * Method to register a listener for the changes of a table.
+	 */
+	public void register(Table table, Listener listener){
+		this._listeners.get(table.ordinal()).add(listener);
+	}
+
+	/**
+	 * Method to start listening.  Listeners registered later still receive
+	 * the following windows.
+	 */
+	public void start(){
+		this._thread.start();
+	}
+
+	private void listen(){
+		boolean missed = false;
+		while (this._running){
+			Connection conn = null;
+			try{
+				conn = this._pool.openUnpooled();
+				Statement stmt = conn.createStatement();
+				stmt.execute("LISTEN " + CHANNEL + ";");
+				stmt.close();
+				if (missed){
+					//changes made while no one listened are unknown
+					for (Pending p : this._pending){
+						p.all = true;
+						p.ops = ANY;
+					}
+					dispatch();
+					missed = false;
+				}
+				PGConnection pg = conn.unwrap(PGConnection.class);
+				while (this._running){
+					if (!collect(pg.getNotifications(POLL_MS))){
+						continue;
+					}
+					//the window starts with the first notification
+					long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this._windowMs);
+					long left;
+					while ((left = end - System.nanoTime()) > 0){
+						collect(pg.getNotifications((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(left))));
+					}
+					dispatch();
+				}//end while
+			}catch (SQLException e){
+				missed = true;
+				if (this._running){
+					System.err.println("change feed: " + e.getMessage() + ", reconnecting");
+					this._reconnects.increment();
+				}
+			}finally{
+				if (conn != null){
+					try{
+						conn.close();
+					}catch (SQLException e){
+						// ignored.
+					}//end try
+				}
+			}//end try
+			if (this._running){
+				try{
+					Thread.sleep(RECONNECT_MS);
+				}catch (InterruptedException e){
+					return;
+				}//end try
+			}
+		}//end while
+	}
+
+	//adds the keys of the notifications to the pending sets, false when there were none
+	private boolean collect(PGNotification[] notes){
+		if (notes == null || notes.length == 0){
+			return false;
+		}
+		for (PGNotification note : notes){
+			this._received.increment();
+			if (this._pool.isOwnBackend(note.getPID())){
+				this._skipped.increment();
+				continue;
+			}
+			parse(note.getParameter(), this._pending);
+		}//end for
+		return true;
+	}
+
+	/**
+	 * Adds the keys of one payload, "&lt;tag&gt;&lt;op&gt;:&lt;key&gt;,&lt;key&gt;..."
+	 * or "&lt;tag&gt;&lt;op&gt;:*", to the pending set of its table.  The
+	 * operation is I, U, D or T, and missing before migration V10.
+	 */
+	private static void parse(String payload, Pending[] pending){
+		int colon = payload == null ? -1 : payload.indexOf(':');
+		if (colon < 1 || colon > 2 || colon + 1 == payload.length()){
+			return;
+		}
+		Table table = Table.of(payload.charAt(0));
+		if (table == null){
+			return;
+		}
+		Pending p = pending[table.ordinal()];
+		p.ops |= colon == 1 ? ANY : op(payload.charAt(1));
+		if (payload.charAt(colon + 1) == '*'){
+			p.all = true;
+			return;
+		}
+		int key = 0;
+		boolean digits = false, negative = false;
+		for (int i = colon + 1; i <= payload.length(); ++i){
+			char c = i < payload.length() ? payload.charAt(i) : ',';
+			if (c == ','){
+				if (digits){
+					p.add(negative ? -key : key);
+				}
+				key = 0;
+				digits = negative = false;
+			}else if (c == '-'){
+				negative = true;
+			}else if (c >= '0' && c <= '9'){
+				key = key * 10 + (c - '0');
+				digits = true;
+			}else{
+				//not a key list, play safe
+				p.all = true;
+				return;
+			}
+		}//end for
+	}
+
+	private static int op(char c){
+		switch (c){
+			case 'I': return INSERT;
+			case 'U': return UPDATE;
+			case 'D': return DELETE;
+			case 'T': return TRUNCATE;
+			default: return ANY;
+		}
+	}
+
+	private void dispatch(){
+		for (Table table : Table.values()){
+			Pending p = this._pending[table.ordinal()];
+			if (p.isEmpty()){
+				continue;
+			}
+			int ops = p.ops;
+			int[] keys = p.drain();
+			for (Listener l : this._listeners.get(table.ordinal())){
+				try{
+					l.changed(table, keys, ops);
+				}catch (RuntimeException e){
+					System.err.println("change feed listener failed: " + e);
+				}//end try
+			}//end for
+			this._dispatched.increment();
+		}//end for
+	}
+
+	/**
+	 * Method to tell whether the triggers of the feed are installed.
+	 *
+	 * @return true when they are, and before migration V10, whose triggers
+	 *         are always installed
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public static boolean isInstalled(DBproject esql) throws SQLException {
+		try{
+			return esql.withConnection("ChangeFeed.installed", conn -> {
+				PreparedStatement stmt = conn.prepare("ChangeFeed.installed", INSTALLED_SQL);
+				ResultSet rs = stmt.executeQuery();
+				try{
+					rs.next();
+					return rs.getBoolean(1);
+				}finally{
+					rs.close();
+				}
+			});
+		}catch (SQLException e){
+			if ("42883".equals(e.getSQLState())){
+				return true;
+			}
+			throw e;
+		}//end try
+	}
+
+	/**
+	 * Method to switch the feed on or off for every process of the database,
+	 * by installing or removing its triggers.  Processes started meanwhile
+	 * listen once started again.
+	 *
+	 * @throws java.sql.SQLException when the function failed, i.e. before
+	 *         migration V10
+	 */
+	public static void install(DBproject esql, boolean on) throws SQLException {
+		String sql = on ? INSTALL_SQL : REMOVE_SQL;
+		esql.withConnection("ChangeFeed.install", conn -> {
+			conn.connection().createStatement().execute(sql);
+			return null;
+		});
+	}
+
+	/**
+	 * Method to stop listening.  The thread exits within POLL_MS.
+	 */
+	public void close(){
+		this._running = false;
+	}
+
+	@Override
+	public String toString(){
+		return String.format("change feed: received=%d own=%d dispatched=%d reconnects=%d", this._received.sum(),
+			this._skipped.sum(), this._dispatched.sum(), this._reconnects.sum());
+	}
+}
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class exports Cruise, Reservation, Repairs and Schedule into typed
+ * columnar files for offline reports, one file per table, read back with
+ * ColumnarFile.
+ *
+ * Each table is streamed through a read cursor into row groups of
+ * ROW_GROUP_ROWS rows, one primitive int vector per column: integers as
+ * they are, dates as epoch days (computed by the server, so no Date object
+ * is made per row), and status, repair and port codes as codes into a
+ * dictionary of the column, code 0 standing for NULL.  Every column chunk
+ * of a row group is then encoded on its own worker thread, frame of
+ * reference and bit packed: its minimum, and every value minus the minimum
+ * in just the bits the largest one needs.  Chunks are written in order
+ * while the cursor fills the next row groups.
+ *
+ * A file is
+ *   MAGIC, the column chunks, the footer, the footer length (int), MAGIC
+ * and the footer holds the table, the columns with their types and
+ * dictionaries, and the rows, offset and length of every chunk, so a
+ * reader goes straight to the columns it needs.  Everything is little
+ * endian.  A chunk is its minimum (int), its bit width (byte) and the
+ * packed values in longs, lowest bits first.
+ *
+ */
+
+public class ColumnarExport{
+	public static final int ROW_GROUP_ROWS = 1 << 16;
+	static final byte[] MAGIC = "DBPCOL1\n".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * How the values of a column are kept in its int vector.
+	 */
+	public enum Type{
+		//the value itself
+		INT,
+		//days since 1970-01-01
+		DATE,
+		//index into the dictionary of the column, 0 for NULL
+		DICT
+	}
+
+	record Column(String name, Type type){}
+
+	/**
+	 * One exported table and the query producing its columns, in order.
+	 */
+	static final class TableSpec{
+		final String table;
+		final String file;
+		final String sql;
+		final Column[] columns;
+
+		TableSpec(String table, String file, String sql, Column... columns){
+			this.table = table;
+			this.file = file;
+			this.sql = sql;
+			this.columns = columns;
+		}
+	}
+
+	//the INT and DATE columns are all NOT NULL
+	static final TableSpec[] TABLES = {
+		new TableSpec("Cruise", "cruise.col",
+			"SELECT cnum, cost, num_sold, num_stops, actual_departure_date - DATE '1970-01-01', actual_arrival_date - DATE '1970-01-01'," +
+			" arrival_port, departure_port FROM Cruise;",
+			new Column("cnum", Type.INT), new Column("cost", Type.INT), new Column("num_sold", Type.INT), new Column("num_stops", Type.INT),
+			new Column("actual_departure_date", Type.DATE), new Column("actual_arrival_date", Type.DATE),
+			new Column("arrival_port", Type.DICT), new Column("departure_port", Type.DICT)),
+		new TableSpec("Reservation", "reservation.col",
+			"SELECT rnum, ccid, cid, status, departure_date - DATE '1970-01-01' FROM Reservation;",
+			new Column("rnum", Type.INT), new Column("ccid", Type.INT), new Column("cid", Type.INT), new Column("status", Type.DICT),
+			new Column("departure_date", Type.DATE)),
+		new TableSpec("Repairs", "repairs.col",
+			"SELECT rid, repair_date - DATE '1970-01-01', repair_code, captain_id, ship_id, technician_id FROM Repairs;",
+			new Column("rid", Type.INT), new Column("repair_date", Type.DATE), new Column("repair_code", Type.DICT),
+			new Column("captain_id", Type.INT), new Column("ship_id", Type.INT), new Column("technician_id", Type.INT)),
+		new TableSpec("Schedule", "schedule.col",
+			"SELECT id, cruiseNum, departure_time - DATE '1970-01-01', arrival_time - DATE '1970-01-01' FROM Schedule;",
+			new Column("id", Type.INT), new Column("cruiseNum", Type.INT), new Column("departure_time", Type.DATE),
+			new Column("arrival_time", Type.DATE)),
+	};
+
+	//the values of one string column seen so far, code i at entries[i]
+	private static final class Dictionary{
+		final Map<String, Integer> codes = new HashMap<String, Integer>();
+		final List<String> entries = new ArrayList<String>();
+
+		Dictionary(){
+			this.entries.add(null);
+		}
+
+		int code(String value){
+			if (value == null){
+				return 0;
+			}
+			//CHAR columns come blank padded
+			String v = value.trim();
+			Integer code = this.codes.get(v);
+			if (code == null){
+				code = this.entries.size();
+				this.codes.put(v, code);
+				this.entries.add(v);
+			}
+			return code;
+		}
+	}
+
+	//a row group handed to the encoders, its chunks in column order
+	private static final class Group{
+		final int rows;
+		final List<Future<ByteBuffer>> chunks = new ArrayList<Future<ByteBuffer>>();
+
+		Group(int rows){
+			this.rows = rows;
+		}
+	}
+
+	private final DBproject _esql;
+	private final int _threads;
+
+	/**
+	 * @param threads the number of encoding threads
+	 */
+	public ColumnarExport(DBproject esql, int threads){
+		this._esql = esql;
+		this._threads = threads;
+	}
+
+	/**
+	 * Method to export every table into a directory.
+	 *
+	 * @param outDir the directory to write, created if missing
+	 * @throws java.sql.SQLException when a table could not be read
+	 * @throws java.io.IOException when a file could not be written
+	 */
+	public void export(Path outDir) throws SQLException, IOException {
+		Files.createDirectories(outDir);
+		ExecutorService pool = Executors.newFixedThreadPool(this._threads, WorkerThreads.daemonFactory("columnar-encode"));
+		try{
+			for (TableSpec spec : TABLES){
+				long start = System.nanoTime();
+				long[] rowsAndBytes = exportTable(pool, spec, outDir.resolve(spec.file));
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("%-16s %12d rows %8.1f MB %7.2fs%n", spec.file, rowsAndBytes[0], rowsAndBytes[1] / 1e6, seconds);
+			}//end for
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	private long[] exportTable(ExecutorService pool, TableSpec spec, Path file) throws SQLException, IOException {
+		int columns = spec.columns.length;
+		Dictionary[] dictionaries = new Dictionary[columns];
+		for (int c = 0; c < columns; ++c){
+			if (spec.columns[c].type() == Type.DICT){
+				dictionaries[c] = new Dictionary();
+			}
+		}
+		//bounded window of encoded row groups, written strictly in order
+		ArrayDeque<Group> window = new ArrayDeque<Group>();
+		List<Integer> groupRows = new ArrayList<Integer>();
+		List<long[]> offsets = new ArrayList<long[]>();
+		List<int[]> lengths = new ArrayList<int[]>();
+		long rows = 0;
+		long[] position = {0};
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				RowCursor cursor = this._esql.openReadCursor("ColumnarExport." + spec.table, spec.sql, DBproject.DEFAULT_FETCH_SIZE)){
+			write(out, ByteBuffer.wrap(MAGIC), position);
+			ResultRow row = cursor.row();
+			int[][] vectors = new int[columns][ROW_GROUP_ROWS];
+			int n = 0;
+			boolean more = true;
+			while (more){
+				more = cursor.fetch();
+				if (more){
+					row.advance();
+					for (int c = 0; c < columns; ++c){
+						vectors[c][n] = dictionaries[c] != null ? dictionaries[c].code(row.getString(c + 1)) : row.getInt(c + 1);
+					}
+					n++;
+				}
+				if (n == ROW_GROUP_ROWS || (!more && n > 0)){
+					Group group = new Group(n);
+					for (int c = 0; c < columns; ++c){
+						int[] vector = vectors[c];
+						int size = n;
+						group.chunks.add(pool.submit(() -> encode(vector, size)));
+					}
+					window.add(group);
+					rows += n;
+					//the encoders own the submitted vectors
+					vectors = new int[columns][ROW_GROUP_ROWS];
+					n = 0;
+				}//end if
+				while (!window.isEmpty() && (window.size() > this._threads || !more)){
+					Group done = window.poll();
+					long[] offset = new long[columns];
+					int[] length = new int[columns];
+					for (int c = 0; c < columns; ++c){
+						ByteBuffer chunk = await(done.chunks.get(c));
+						offset[c] = position[0];
+						length[c] = chunk.remaining();
+						write(out, chunk, position);
+					}
+					groupRows.add(done.rows);
+					offsets.add(offset);
+					lengths.add(length);
+				}//end while
+			}//end while
+			ByteBuffer footer = footer(spec, dictionaries, groupRows, offsets, lengths);
+			int footerLength = footer.remaining();
+			write(out, footer, position);
+			ByteBuffer tail = ByteBuffer.allocate(4 + MAGIC.length).order(ByteOrder.LITTLE_ENDIAN);
+			tail.putInt(footerLength).put(MAGIC).flip();
+			write(out, tail, position);
+		}
+		return new long[]{rows, position[0]};
+	}
+
+	private static void write(FileChannel out, ByteBuffer buffer, long[] position) throws IOException {
+		while (buffer.hasRemaining()){
+			position[0] += out.write(buffer);
+		}
+	}
+
+	/**
+	 * Method to encode a column chunk: its minimum, the bit width of the
+	 * largest value minus the minimum, and every value minus the minimum in
+	 * that many bits.
+	 *
+	 * @param values the vector, only the first n are encoded
+	 * @return the chunk, ready to be written
+	 */
+	static ByteBuffer encode(int[] values, int n){
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (int i = 0; i < n; ++i){
+			min = Math.min(min, values[i]);
+			max = Math.max(max, values[i]);
+		}
+		if (n == 0){
+			min = max = 0;
+		}
+		int width = 64 - Long.numberOfLeadingZeros((long) max - min);
+		int words = (int) (((long) n * width + 63) >>> 6);
+		ByteBuffer out = ByteBuffer.allocate(5 + words * 8).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(min).put((byte) width);
+		if (width > 0){
+			long word = 0;
+			int used = 0;
+			for (int i = 0; i < n; ++i){
+				long x = (long) values[i] - min;
+				word |= x << used;
+				used += width;
+				if (used >= 64){
+					out.putLong(word);
+					used -= 64;
+					//the high bits of x that did not fit
+					word = used == 0 ? 0 : x >>> (width - used);
+				}
+			}//end for
+			if (used > 0){
+				out.putLong(word);
+			}
+		}//end if
+		out.flip();
+		return out;
+	}
+
+	private static ByteBuffer footer(TableSpec spec, Dictionary[] dictionaries, List<Integer> groupRows, List<long[]> offsets,
+			List<int[]> lengths){
+		List<byte[]> strings = new ArrayList<byte[]>();
+		strings.add(spec.table.getBytes(StandardCharsets.UTF_8));
+		//the column and row group counts
+		int size = 4 + 4;
+		for (int c = 0; c < spec.columns.length; ++c){
+			strings.add(spec.columns[c].name().getBytes(StandardCharsets.UTF_8));
+			//the type and the dictionary size
+			size += 1 + 4;
+			if (dictionaries[c] != null){
+				for (String entry : dictionaries[c].entries.subList(1, dictionaries[c].entries.size())){
+					strings.add(entry.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+		}//end for
+		for (byte[] s : strings){
+			size += 4 + s.length;
+		}
+		size += groupRows.size() * (4 + spec.columns.length * (8 + 4));
+		ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		int s = 0;
+		putString(out, strings.get(s++));
+		out.putInt(spec.columns.length);
+		for (int c = 0; c < spec.columns.length; ++c){
+			putString(out, strings.get(s++));
+			out.put((byte) spec.columns[c].type().ordinal());
+			int entries = dictionaries[c] == null ? 0 : dictionaries[c].entries.size() - 1;
+			out.putInt(entries);
+			for (int e = 0; e < entries; ++e){
+				putString(out, strings.get(s++));
+			}
+		}//end for
+		out.putInt(groupRows.size());
+		for (int g = 0; g < groupRows.size(); ++g){
+			out.putInt(groupRows.get(g));
+			for (int c = 0; c < spec.columns.length; ++c){
+				out.putLong(offsets.get(g)[c]).putInt(lengths.get(g)[c]);
+			}
+		}//end for
+		out.flip();
+		return out;
+	}
+
+	private static void putString(ByteBuffer out, byte[] s){
+		out.putInt(s.length).put(s);
+	}
+
+	private static ByteBuffer await(Future<ByteBuffer> f) throws IOException {
+		try{
+			return f.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		}catch (ExecutionException e){
+			throw new IOException(e.getCause());
+		}
+	}
+}
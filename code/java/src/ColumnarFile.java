@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class reads a file written by ColumnarExport.  The footer is read on
+ * open; a column chunk is read with one positional read and unpacked into
+ * an int vector, so a report touches only the columns it uses and never
+ * parses text.  Reads may run from any number of threads at once.
+ *
+ * Usage: java ColumnarFile &lt;file&gt;...
+ * scans every column of the files and prints the read rate.
+ *
+ */
+
+public final class ColumnarFile implements AutoCloseable{
+	private final FileChannel _channel;
+	private final String _table;
+	private final String[] _names;
+	private final ColumnarExport.Type[] _types;
+	//per column, null unless DICT; entry 0 is NULL
+	private final String[][] _dictionaries;
+	private final int[] _groupRows;
+	private final long[][] _offsets;
+	private final int[][] _lengths;
+	private final long _rows;
+
+	private ColumnarFile(FileChannel channel) throws IOException {
+		this._channel = channel;
+		int tailSize = 4 + ColumnarExport.MAGIC.length;
+		long size = channel.size();
+		if (size < ColumnarExport.MAGIC.length + tailSize){
+			throw new IOException("not a columnar file, too short");
+		}
+		ByteBuffer tail = read(size - tailSize, tailSize);
+		int footerLength = tail.getInt();
+		checkMagic(tail);
+		checkMagic(read(0, ColumnarExport.MAGIC.length));
+		ByteBuffer f = read(size - tailSize - footerLength, footerLength);
+		this._table = getString(f);
+		int columns = f.getInt();
+		this._names = new String[columns];
+		this._types = new ColumnarExport.Type[columns];
+		this._dictionaries = new String[columns][];
+		for (int c = 0; c < columns; ++c){
+			this._names[c] = getString(f);
+			this._types[c] = ColumnarExport.Type.values()[f.get()];
+			int entries = f.getInt();
+			if (this._types[c] == ColumnarExport.Type.DICT){
+				String[] dictionary = new String[entries + 1];
+				for (int e = 1; e <= entries; ++e){
+					dictionary[e] = getString(f);
+				}
+				this._dictionaries[c] = dictionary;
+			}
+		}//end for
+		int groups = f.getInt();
+		this._groupRows = new int[groups];
+		this._offsets = new long[groups][columns];
+		this._lengths = new int[groups][columns];
+		long rows = 0;
+		for (int g = 0; g < groups; ++g){
+			this._groupRows[g] = f.getInt();
+			rows += this._groupRows[g];
+			for (int c = 0; c < columns; ++c){
+				this._offsets[g][c] = f.getLong();
+				this._lengths[g][c] = f.getInt();
+			}
+		}//end for
+		this._rows = rows;
+	}
+
+	/**
+	 * Method to open a file and read its footer.
+	 *
+	 * @throws java.io.IOException when the file could not be read or is not
+	 *         a columnar file
+	 */
+	public static ColumnarFile open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try{
+			return new ColumnarFile(channel);
+		}catch (IOException | RuntimeException e){
+			channel.close();
+			throw e;
+		}//end try
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()){
+			if (this._channel.read(buffer, position + buffer.position()) < 0){
+				throw new IOException("columnar file truncated");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void checkMagic(ByteBuffer buffer) throws IOException {
+		byte[] magic = new byte[ColumnarExport.MAGIC.length];
+		buffer.get(magic);
+		if (!Arrays.equals(magic, ColumnarExport.MAGIC)){
+			throw new IOException("not a columnar file, bad magic");
+		}
+	}
+
+	private static String getString(ByteBuffer buffer){
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public String table(){
+		return this._table;
+	}
+
+	public int columnCount(){
+		return this._names.length;
+	}
+
+	public String columnName(int column){
+		return this._names[column];
+	}
+
+	public ColumnarExport.Type columnType(int column){
+		return this._types[column];
+	}
+
+	/**
+	 * @return the position of a column, case ignored
+	 * @throws IllegalArgumentException when the table has no such column
+	 */
+	public int column(String name){
+		for (int c = 0; c < this._names.length; ++c){
+			if (this._names[c].equalsIgnoreCase(name)){
+				return c;
+			}
+		}
+		throw new IllegalArgumentException(this._table + " has no column " + name);
+	}
+
+	/**
+	 * @return the values of a DICT column by code, entry 0 being NULL, or
+	 *         null for other columns
+	 */
+	public String[] dictionary(int column){
+		return this._dictionaries[column];
+	}
+
+	public int rowGroups(){
+		return this._groupRows.length;
+	}
+
+	public int rows(int group){
+		return this._groupRows[group];
+	}
+
+	public long rows(){
+		return this._rows;
+	}
+
+	/**
+	 * Method to read the chunk of one column in one row group.
+	 *
+	 * @param into a vector to reuse, or null; a new one is made when it is
+	 *        too short
+	 * @return the vector holding the rows(group) values of the chunk
+	 * @throws java.io.IOException when the chunk could not be read
+	 */
+	public int[] read(int group, int column, int[] into) throws IOException {
+		int n = this._groupRows[group];
+		int[] values = into != null && into.length >= n ? into : new int[n];
+		decode(read(this._offsets[group][column], this._lengths[group][column]), n, values);
+		return values;
+	}
+
+	/**
+	 * Method to unpack a chunk written by ColumnarExport.encode.
+	 */
+	static void decode(ByteBuffer in, int n, int[] out){
+		int min = in.getInt();
+		int width = in.get();
+		if (width == 0){
+			Arrays.fill(out, 0, n, min);
+			return;
+		}
+		long mask = (1L << width) - 1;
+		long word = n > 0 ? in.getLong() : 0;
+		int used = 0;
+		for (int i = 0; i < n; ++i){
+			long x = word >>> used;
+			used += width;
+			if (used >= 64){
+				used -= 64;
+				if (in.remaining() >= 8){
+					word = in.getLong();
+					//the high bits of the value start the next word
+					x |= word << (width - used);
+				}
+			}//end if
+			out[i] = (int) ((x & mask) + min);
+		}//end for
+	}
+
+	@Override
+	public void close() throws IOException {
+		this._channel.close();
+	}
+
+	@Override
+	public String toString(){
+		return String.format("%s: %d rows, %d columns, %d row groups", this._table, this._rows, this._names.length, this._groupRows.length);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1){
+			System.err.println("Usage: java ColumnarFile <file>...");
+			return;
+		}
+		for (String name : args){
+			try (ColumnarFile file = open(Paths.get(name))){
+				long start = System.nanoTime();
+				long checksum = 0;
+				int[] vector = null;
+				for (int g = 0; g < file.rowGroups(); ++g){
+					for (int c = 0; c < file.columnCount(); ++c){
+						vector = file.read(g, c, vector);
+						for (int i = 0; i < file.rows(g); ++i){
+							checksum += vector[i];
+						}
+					}
+				}//end for
+				double seconds = (System.nanoTime() - start) / 1e9;
+				long values = file.rows() * file.columnCount();
+				System.out.printf("%s%n  %d values in %.3fs, %.1f M values/s, %.1f MB/s of int vectors (checksum %d)%n", file, values, seconds,
+					values / seconds / 1e6, values * 4 / seconds / 1e6, checksum);
+			}
+		}//end for
+	}
+}
@@ -0,0 +1,347 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class is a small bounded pool of physical PostgreSQL connections.
+ * Idle connections are validated before they are handed out again, closed
+ * after sitting idle for too long, and retired once they reach their maximum
+ * lifetime.  Each pooled connection carries its own statement cache.
+ *
+ */
+
+public class ConnectionPool{
+	public static final int DEFAULT_MAX_SIZE = 8;
+	public static final long DEFAULT_ACQUIRE_TIMEOUT_MS = 30000;
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+	public static final long DEFAULT_MAX_LIFETIME_MS = 30 * 60 * 1000;
+	//idle connections younger than this are handed out without a round trip
+	public static final long VALIDATE_AFTER_IDLE_MS = 1000;
+	private static final int VALIDATION_TIMEOUT_SEC = 5;
+
+	private final String _url;
+	private final Properties _props;
+	private final int _maxSize;
+	private final long _acquireTimeoutMs;
+	private final long _idleTimeoutMs;
+	private final long _maxLifetimeMs;
+
+	//limits the number of connections handed out at once
+	private final Semaphore _permits;
+	//most recently returned connection on top, guarded by itself
+	private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private final ScheduledExecutorService _housekeeper;
+	private final AtomicInteger _open = new AtomicInteger();
+	private final AtomicLong _created = new AtomicLong();
+	private final AtomicLong _retired = new AtomicLong();
+	private final AtomicLong _acquired = new AtomicLong();
+	//statement cache counters of every connection, borrowed, idle or retired
+	private final StatementCache.Totals _statementTotals = new StatementCache.Totals();
+	//server process ids of the open connections, to recognise their notifications
+	private final Set<Integer> _backends = ConcurrentHashMap.newKeySet();
+	private volatile boolean _closed = false;
+
+	/**
+	 * A physical connection owned by the pool together with the prepared
+	 * statements cached on it.
+	 */
+	public static final class PooledConnection{
+		private final Connection _connection;
+		private final StatementCache _statements;
+		private final long _createdAt;
+		private final int _backend;
+		private long _lastReturnedAt;
+		private boolean _broken = false;
+
+		PooledConnection(Connection connection, int statementCacheSize, StatementCache.Totals totals) throws SQLException {
+			this._connection = connection;
+			this._backend = connection.unwrap(PGConnection.class).getBackendPID();
+			this._statements = new StatementCache(connection, statementCacheSize, totals);
+			this._createdAt = System.currentTimeMillis();
+			this._lastReturnedAt = this._createdAt;
+		}
+
+		public Connection connection(){
+			return this._connection;
+		}
+
+		public StatementCache statements(){
+			return this._statements;
+		}
+
+		/**
+		 * Method to fetch the cached prepared statement of an operation on this
+		 * connection.
+		 *
+		 * @param key the logical operation name
+		 * @param sql the parameterized SQL text
+		 * @return the prepared statement, ready for its parameters
+		 * @throws java.sql.SQLException when the statement could not be prepared
+		 */
+		public PreparedStatement prepare(String key, String sql) throws SQLException {
+			return this._statements.prepare(key, sql);
+		}
+
+		/**
+		 * Marks the connection as unusable so the pool closes it instead of
+		 * handing it out again.
+		 */
+		public void markBroken(){
+			this._broken = true;
+		}
+	}
+
+	public ConnectionPool(String url, String user, String passwd, int maxSize) {
+		this(url, user, passwd, maxSize, DEFAULT_ACQUIRE_TIMEOUT_MS, DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_MAX_LIFETIME_MS);
+	}
+
+	public ConnectionPool(String url, String user, String passwd, int maxSize,
+			long acquireTimeoutMs, long idleTimeoutMs, long maxLifetimeMs) {
+		if (maxSize < 1){
+			throw new IllegalArgumentException("pool size must be positive: " + maxSize);
+		}
+		this._url = url;
+		this._props = new Properties();
+		this._props.setProperty("user", user);
+		this._props.setProperty("password", passwd);
+		//lets the driver send a JDBC batch of INSERTs as multi-row statements
+		this._props.setProperty("reWriteBatchedInserts", "true");
+		this._maxSize = maxSize;
+		this._acquireTimeoutMs = acquireTimeoutMs;
+		this._idleTimeoutMs = idleTimeoutMs;
+		this._maxLifetimeMs = maxLifetimeMs;
+		this._permits = new Semaphore(maxSize, true);
+
+		this._housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "pool-housekeeper");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000, Math.min(idleTimeoutMs, maxLifetimeMs) / 4);
+		this._housekeeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to borrow a connection, waiting up to the acquire timeout when
+	 * every connection is in use.  The caller must hand it back with release.
+	 *
+	 * @return a validated connection in autocommit mode
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	public PooledConnection acquire() throws SQLException {
+		if (this._closed){
+			throw new SQLException("Connection pool is closed", "08003");
+		}
+		try{
+			if (!this._permits.tryAcquire(this._acquireTimeoutMs, TimeUnit.MILLISECONDS)){
+				throw new SQLException("Timed out waiting for a pooled connection", "08001");
+			}
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a pooled connection", "08001", e);
+		}//end try
+
+		try{
+			PooledConnection pc;
+			while ((pc = pollIdle()) != null){
+				if (isUsable(pc)){
+					this._acquired.incrementAndGet();
+					return pc;
+				}
+				retire(pc);
+			}//end while
+			pc = open();
+			this._acquired.incrementAndGet();
+			return pc;
+		}catch (SQLException | RuntimeException e){
+			this._permits.release();
+			throw e;
+		}//end try
+	}//end acquire
+
+	/**
+	 * Method to hand a borrowed connection back to the pool.  An open
+	 * transaction is rolled back and autocommit is restored.
+	 *
+	 * @param pc the connection returned by acquire
+	 */
+	public void release(PooledConnection pc){
+		if (pc == null){
+			return;
+		}
+		try{
+			long now = System.currentTimeMillis();
+			if (pc._broken || this._closed || now - pc._createdAt >= this._maxLifetimeMs){
+				retire(pc);
+				return;
+			}
+			try{
+				if (!pc._connection.getAutoCommit()){
+					pc._connection.rollback();
+					pc._connection.setAutoCommit(true);
+				}//end if
+			}catch (SQLException e){
+				retire(pc);
+				return;
+			}//end try
+			pc._lastReturnedAt = now;
+			synchronized (this._idle){
+				this._idle.push(pc);
+			}
+		}finally{
+			this._permits.release();
+		}//end try
+	}//end release
+
+	private PooledConnection pollIdle(){
+		synchronized (this._idle){
+			return this._idle.poll();
+		}
+	}
+
+	private boolean isUsable(PooledConnection pc){
+		long now = System.currentTimeMillis();
+		if (now - pc._createdAt >= this._maxLifetimeMs || now - pc._lastReturnedAt >= this._idleTimeoutMs){
+			return false;
+		}
+		if (now - pc._lastReturnedAt < VALIDATE_AFTER_IDLE_MS){
+			return true;
+		}
+		try{
+			return pc._connection.isValid(VALIDATION_TIMEOUT_SEC);
+		}catch (SQLException e){
+			return false;
+		}//end try
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection conn = DriverManager.getConnection(this._url, this._props);
+		PooledConnection pc;
+		try{
+			pc = new PooledConnection(conn, StatementCache.DEFAULT_CAPACITY, this._statementTotals);
+		}catch (SQLException e){
+			conn.close();
+			throw e;
+		}//end try
+		this._open.incrementAndGet();
+		this._created.incrementAndGet();
+		this._backends.add(pc._backend);
+		return pc;
+	}
+
+	/**
+	 * Method to open a connection outside the pool with the pool's settings,
+	 * for a session that must outlive any borrowing, i.e. a LISTEN.  The
+	 * caller closes it.
+	 *
+	 * @throws java.sql.SQLException when the connection failed
+	 */
+	public Connection openUnpooled() throws SQLException {
+		return DriverManager.getConnection(this._url, this._props);
+	}
+
+	/**
+	 * @param pid a server process id, i.e. the sender of a notification
+	 * @return true when the process serves one of the open connections
+	 */
+	public boolean isOwnBackend(int pid){
+		return this._backends.contains(pid);
+	}
+
+	private void retire(PooledConnection pc){
+		pc._statements.close();
+		try{
+			pc._connection.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+		this._backends.remove(pc._backend);
+		this._open.decrementAndGet();
+		this._retired.incrementAndGet();
+	}
+
+	/**
+	 * Closes idle connections that passed the idle timeout or their maximum
+	 * lifetime.  Runs periodically on the housekeeper thread.
+	 */
+	void evictIdle(){
+		long now = System.currentTimeMillis();
+		ArrayDeque<PooledConnection> expired = new ArrayDeque<PooledConnection>();
+		synchronized (this._idle){
+			this._idle.removeIf(pc -> {
+				boolean stale = now - pc._lastReturnedAt >= this._idleTimeoutMs
+					|| now - pc._createdAt >= this._maxLifetimeMs;
+				if (stale){
+					expired.add(pc);
+				}
+				return stale;
+			});
+		}
+		for (PooledConnection pc : expired){
+			retire(pc);
+		}//end for
+	}//end evictIdle
+
+	public int getMaxSize(){
+		return this._maxSize;
+	}
+
+	public int getOpenCount(){
+		return this._open.get();
+	}
+
+	public int getIdleCount(){
+		synchronized (this._idle){
+			return this._idle.size();
+		}
+	}
+
+	public String getUrl(){
+		return this._url;
+	}
+
+	/**
+	 * @return the statement cache counters summed over every connection the
+	 *         pool opened, borrowed, idle and retired ones alike
+	 */
+	public StatementCache.Totals getStatementTotals(){
+		return this._statementTotals;
+	}
+
+	public String statementCacheStats(){
+		return "statement cache (all connections): " + this._statementTotals;
+	}
+
+	/**
+	 * Method to close every idle connection and refuse new acquisitions.
+	 * Connections still borrowed are closed when they are released.
+	 */
+	public void close(){
+		this._closed = true;
+		this._housekeeper.shutdownNow();
+		PooledConnection pc;
+		while ((pc = pollIdle()) != null){
+			retire(pc);
+		}//end while
+	}
+
+	@Override
+	public String toString(){
+		return String.format("pool %s: open=%d idle=%d max=%d created=%d retired=%d acquired=%d",
+			this._url, getOpenCount(), getIdleCount(), this._maxSize,
+			this._created.get(), this._retired.get(), this._acquired.get());
+	}
+}
@@ -0,0 +1,447 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class answers "cruises from port X to port Y departing between two
+ * days with at least N free seats", a page at a time.  Pages are keyed by
+ * the (departure day, cnum) of the last hit, never by an offset, so the
+ * tenth page costs what the first does.
+ *
+ * Every cruise with a ship assigned is held in memory as parallel int
+ * arrays sorted by departure day and cnum, with a second ordering by
+ * departure port, day and cnum.  Port codes are packed into an int in base
+ * 37 (blank, A-Z, 0-9), so a search is a binary search and a scan of ints.
+ * Ports match exactly as the CHAR(5) columns compare, i.e. case counts and
+ * trailing blanks do not, whichever path answers; a search for a port that
+ * does not pack runs against the database.  Free seats come from the
+ * SeatCache, which follows bookings.
+ *
+ * The index is loaded on first use and reloaded in the background once it
+ * is older than its time-to-live or after a cruise was added.  Until it is
+ * loaded, searches run against the database, using the indexes of migration
+ * V4.
+ *
+ */
+
+public class CruiseSearch{
+	public static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+	public static final int MAX_PAGE_SIZE = 1000;
+	//packs a port code that is not A-Z and 0-9 followed by blanks
+	static final int UNENCODABLE = -1;
+
+	static final String LOAD_SQL =
+		"SELECT C.cnum, C.actual_departure_date, C.departure_port, C.arrival_port FROM Cruise C" +
+		" WHERE EXISTS (SELECT 1 FROM CruiseInfo CI WHERE CI.cruise_id = C.cnum) ORDER BY C.actual_departure_date, C.cnum;";
+	//search in the database; searchDatabase fills in the port conditions
+	static final String SEARCH_SQL =
+		"SELECT C.cnum, C.actual_departure_date, C.departure_port, C.arrival_port, S.seats - C.num_sold" +
+		" FROM Cruise C, CruiseInfo CI, Ship S WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id%s" +
+		" AND C.actual_departure_date BETWEEN ? AND ? AND (C.actual_departure_date, C.cnum) > (?, ?)" +
+		" AND S.seats - C.num_sold >= ? ORDER BY C.actual_departure_date, C.cnum LIMIT ?;";
+
+	/**
+	 * What to search for.  A null port matches any port.
+	 */
+	public record Query(String fromPort, String toPort, LocalDate first, LocalDate last, int minSeats){
+		public Query{
+			if (first == null || last == null){
+				throw new IllegalArgumentException("both ends of the departure window are required");
+			}
+			if (last.isBefore(first)){
+				throw new IllegalArgumentException("departure window ends before it starts: " + first + " to " + last);
+			}
+			fromPort = blankToNull(fromPort);
+			toPort = blankToNull(toPort);
+		}
+	}
+
+	public record Hit(int cnum, LocalDate departure, String fromPort, String toPort, int freeSeats){}
+
+	/**
+	 * The position after a hit, where the next page starts.
+	 */
+	public record After(LocalDate departure, int cnum){
+		public static final After START = new After(LocalDate.MIN, Integer.MIN_VALUE);
+
+		/**
+		 * @param token the toString of an After, or null or blank for the start
+		 */
+		public static After parse(String token){
+			if (token == null || token.isBlank()){
+				return START;
+			}
+			int colon = token.lastIndexOf(':');
+			if (colon < 0){
+				throw new IllegalArgumentException("malformed page token: " + token);
+			}
+			return new After(LocalDate.parse(token.substring(0, colon).trim()), Integer.parseInt(token.substring(colon + 1).trim()));
+		}
+
+		@Override
+		public String toString(){
+			return this.departure + ":" + this.cnum;
+		}
+	}
+
+	/**
+	 * @param next where the following page starts, null after the last page
+	 */
+	public record Page(List<Hit> hits, After next){}
+
+	//immutable, replaced as a whole on reload
+	private static final class Snapshot{
+		final int size;
+		//sorted by (day, cnum), the order of LOAD_SQL
+		final int[] day, cnum, from, to;
+		//positions into the arrays above, sorted by (from, day, cnum)
+		final int[] byFrom;
+		//the ports packed as UNENCODABLE, by position, rare
+		final Map<Integer, String> oddFrom, oddTo;
+		final long loadedAt = System.currentTimeMillis();
+
+		Snapshot(int size, int[] day, int[] cnum, int[] from, int[] to, Map<Integer, String> oddFrom, Map<Integer, String> oddTo){
+			this.size = size;
+			this.day = day;
+			this.cnum = cnum;
+			this.from = from;
+			this.to = to;
+			this.oddFrom = oddFrom;
+			this.oddTo = oddTo;
+			this.byFrom = sortByFrom(size, from);
+		}
+
+		String fromPort(int i){
+			return this.from[i] == UNENCODABLE ? this.oddFrom.get(i) : decodePort(this.from[i]);
+		}
+
+		String toPort(int i){
+			return this.to[i] == UNENCODABLE ? this.oddTo.get(i) : decodePort(this.to[i]);
+		}
+	}
+
+	private final DBproject _esql;
+	private final long _ttlMs;
+	private volatile Snapshot _snapshot = null;
+	private volatile boolean _stale = false;
+	private final AtomicBoolean _refreshing = new AtomicBoolean();
+	private final LongAdder _memorySearches = new LongAdder();
+	private final LongAdder _databaseSearches = new LongAdder();
+	private final LongAdder _loads = new LongAdder();
+
+	public CruiseSearch(DBproject esql){
+		this(esql, DEFAULT_TTL_MS);
+	}
+
+	public CruiseSearch(DBproject esql, long ttlMs){
+		this._esql = esql;
+		this._ttlMs = ttlMs;
+	}
+
+	/**
+	 * Method to pack a port code into an int.  Trailing blanks are ignored,
+	 * as CHAR(5) compares, and case is not, as the database compares.
+	 *
+	 * @return the packed code, or UNENCODABLE
+	 */
+	static int encodePort(String port){
+		String p = port.stripTrailing();
+		if (p.isEmpty() || p.length() > 5){
+			return UNENCODABLE;
+		}
+		int code = 0;
+		for (int i = 0; i < 5; ++i){
+			int digit = 0;
+			if (i < p.length()){
+				char c = p.charAt(i);
+				if (c >= 'A' && c <= 'Z'){
+					digit = 1 + c - 'A';
+				}else if (c >= '0' && c <= '9'){
+					digit = 27 + c - '0';
+				}else{
+					return UNENCODABLE;
+				}
+			}//end if
+			code = code * 37 + digit;
+		}//end for
+		return code;
+	}
+
+	static String decodePort(int code){
+		char[] chars = new char[5];
+		int n = 0;
+		for (int div = 37 * 37 * 37 * 37; div > 0; div /= 37){
+			int digit = code / div % 37;
+			if (digit > 0){
+				chars[n++] = (char) (digit <= 26 ? 'A' + digit - 1 : '0' + digit - 27);
+			}
+		}
+		return new String(chars, 0, n);
+	}
+
+	private static String blankToNull(String s){
+		return s == null || s.isBlank() ? null : s.trim();
+	}
+
+	/**
+	 * Method to load the index from the database, replacing the current one.
+	 *
+	 * @return the number of cruises indexed
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int load() throws SQLException {
+		//a cruise added while loading marks the new index stale again
+		this._stale = false;
+		int n = 0;
+		int[] day = new int[1024], cnum = new int[1024], from = new int[1024], to = new int[1024];
+		Map<Integer, String> oddFrom = new HashMap<Integer, String>(), oddTo = new HashMap<Integer, String>();
+		try (RowCursor cursor = this._esql.openReadCursor("CruiseSearch.load", LOAD_SQL, DBproject.DEFAULT_FETCH_SIZE)){
+			ResultRow row = cursor.row();
+			while (cursor.fetch()){
+				row.advance();
+				if (n == day.length){
+					day = Arrays.copyOf(day, n * 2);
+					cnum = Arrays.copyOf(cnum, n * 2);
+					from = Arrays.copyOf(from, n * 2);
+					to = Arrays.copyOf(to, n * 2);
+				}
+				cnum[n] = row.getInt(1);
+				day[n] = (int) row.getDate(2).toLocalDate().toEpochDay();
+				from[n] = encode(row.getString(3), n, oddFrom);
+				to[n] = encode(row.getString(4), n, oddTo);
+				n++;
+			}//end while
+		}
+		this._snapshot = new Snapshot(n, day, cnum, from, to, oddFrom, oddTo);
+		this._loads.increment();
+		return n;
+	}
+
+	//packs a port, keeping the ones that do not pack aside so hits still show them
+	private static int encode(String port, int i, Map<Integer, String> odd){
+		int code = encodePort(port);
+		if (code == UNENCODABLE){
+			odd.put(i, port.stripTrailing());
+		}
+		return code;
+	}
+
+	/**
+	 * Method to mark the index stale, i.e. after a cruise was added, so it is
+	 * reloaded in the background.
+	 */
+	public void invalidate(){
+		this._stale = true;
+	}
+
+	/**
+	 * Method to find a page of cruises.
+	 *
+	 * @param q what to search for
+	 * @param after where the page starts, After.START for the first page
+	 * @param limit the largest number of hits on the page
+	 * @return the hits in (departure day, cnum) order and the next page
+	 * @throws java.sql.SQLException when the database had to be searched and
+	 *         the query failed
+	 */
+	public Page search(Query q, After after, int limit) throws SQLException {
+		if (limit < 1 || limit > MAX_PAGE_SIZE){
+			throw new IllegalArgumentException("page size must be between 1 and " + MAX_PAGE_SIZE + ": " + limit);
+		}
+		Snapshot s = this._snapshot;
+		if (s == null || this._stale || System.currentTimeMillis() - s.loadedAt >= this._ttlMs){
+			refresh();
+		}
+		//the index holds no port a query port that does not pack could equal
+		if (s == null || (q.fromPort() != null && encodePort(q.fromPort()) == UNENCODABLE)
+				|| (q.toPort() != null && encodePort(q.toPort()) == UNENCODABLE)){
+			this._databaseSearches.increment();
+			return searchDatabase(q, after, limit);
+		}
+		this._memorySearches.increment();
+		return searchMemory(s, q, after, limit);
+	}
+
+	private void refresh(){
+		if (!this._refreshing.compareAndSet(false, true)){
+			return;
+		}
+		try{
+			//load borrows its own connection, so it must not run inside one; a
+			//rejected or interrupted submit completes the future without running it
+			this._esql.getAsync().supply(this::load).whenComplete((n, e) -> this._refreshing.set(false));
+		}catch (RuntimeException e){
+			this._refreshing.set(false);
+			throw e;
+		}//end try
+	}
+
+	private Page searchMemory(Snapshot s, Query q, After after, int limit) throws SQLException {
+		int first = (int) q.first().toEpochDay(), last = (int) q.last().toEpochDay();
+		int afterDay = after == After.START ? Integer.MIN_VALUE : (int) after.departure().toEpochDay();
+		int afterCnum = after.cnum();
+		//skip straight to the later of the window start and the page start
+		int startDay = first, startCnum = Integer.MIN_VALUE;
+		if (afterDay >= first){
+			startDay = afterDay;
+			startCnum = afterCnum;
+		}
+		//search() sends ports that do not pack to the database
+		int from = q.fromPort() == null ? 0 : encodePort(q.fromPort());
+		int to = q.toPort() == null ? 0 : encodePort(q.toPort());
+		SeatCache seats = this._esql.getSeatCache();
+		List<Hit> hits = new ArrayList<Hit>(Math.min(limit, 64));
+		boolean more = false;
+		if (q.fromPort() != null){
+			int[] order = s.byFrom;
+			for (int k = lowerBoundByFrom(s, from, startDay, startCnum); k < s.size; ++k){
+				int i = order[k];
+				if (s.from[i] != from || s.day[i] > last){
+					break;
+				}
+				if (matches(s, i, to, afterDay, afterCnum) && add(s, i, q.minSeats(), seats, hits, limit)){
+					more = true;
+					break;
+				}
+			}//end for
+		}else{
+			for (int i = lowerBoundByDay(s, startDay, startCnum); i < s.size && s.day[i] <= last; ++i){
+				if (matches(s, i, to, afterDay, afterCnum) && add(s, i, q.minSeats(), seats, hits, limit)){
+					more = true;
+					break;
+				}
+			}
+		}//end if
+		return page(hits, limit, more);
+	}
+
+	//true when the destination matches and the cruise comes after the page start
+	private static boolean matches(Snapshot s, int i, int to, int afterDay, int afterCnum){
+		if (to != 0 && s.to[i] != to){
+			return false;
+		}
+		return s.day[i] > afterDay || (s.day[i] == afterDay && s.cnum[i] > afterCnum);
+	}
+
+	//adds a hit with enough free seats, returns true once the page is full and one more hit was seen
+	private static boolean add(Snapshot s, int i, int minSeats, SeatCache seats, List<Hit> hits, int limit) throws SQLException {
+		int free = seats.availableSeats(s.cnum[i], s.day[i]);
+		if (free == SeatCache.UNKNOWN || free == SeatCache.NO_SAILING || free < minSeats){
+			return false;
+		}
+		if (hits.size() == limit){
+			return true;
+		}
+		hits.add(new Hit(s.cnum[i], LocalDate.ofEpochDay(s.day[i]), s.fromPort(i), s.toPort(i), free));
+		return false;
+	}
+
+	private static Page page(List<Hit> hits, int limit, boolean more){
+		if (!more || hits.isEmpty()){
+			return new Page(hits, null);
+		}
+		Hit last = hits.get(hits.size() - 1);
+		return new Page(hits, new After(last.departure(), last.cnum()));
+	}
+
+	private Page searchDatabase(Query q, After after, int limit) throws SQLException {
+		StringBuilder ports = new StringBuilder();
+		List<Object> params = new ArrayList<Object>();
+		String key = "CruiseSearch.window";
+		if (q.fromPort() != null){
+			ports.append(" AND C.departure_port = ?");
+			params.add(q.fromPort());
+			key = "CruiseSearch.from";
+		}
+		if (q.toPort() != null){
+			ports.append(" AND C.arrival_port = ?");
+			params.add(q.toPort());
+			key = q.fromPort() != null ? "CruiseSearch.route" : "CruiseSearch.to";
+		}
+		LocalDate afterDay = after == After.START ? q.first().minusDays(1) : after.departure();
+		params.add(java.sql.Date.valueOf(q.first()));
+		params.add(java.sql.Date.valueOf(q.last()));
+		params.add(java.sql.Date.valueOf(afterDay));
+		params.add(after.cnum());
+		params.add(q.minSeats());
+		//one row past the page tells whether there is a next page
+		params.add(limit + 1);
+		List<Hit> hits = new ArrayList<Hit>(Math.min(limit, 64));
+		boolean more = false;
+		try (RowCursor cursor = this._esql.openReadCursor(key, String.format(SEARCH_SQL, ports), limit + 1, params.toArray())){
+			ResultRow row = cursor.row();
+			while (cursor.fetch()){
+				row.advance();
+				if (hits.size() == limit){
+					more = true;
+					break;
+				}
+				hits.add(new Hit(row.getInt(1), row.getDate(2).toLocalDate(), row.getString(3).stripTrailing(), row.getString(4).stripTrailing(), row.getInt(5)));
+			}//end while
+		}
+		return page(hits, limit, more);
+	}
+
+	//first position in day order at or after (day, cnum)
+	private static int lowerBoundByDay(Snapshot s, int day, int cnum){
+		int lo = 0, hi = s.size;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if (s.day[mid] < day || (s.day[mid] == day && s.cnum[mid] < cnum)){
+				lo = mid + 1;
+			}else{
+				hi = mid;
+			}
+		}//end while
+		return lo;
+	}
+
+	//first position in port order at or after (from, day, cnum)
+	private static int lowerBoundByFrom(Snapshot s, int from, int day, int cnum){
+		int lo = 0, hi = s.size;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			int i = s.byFrom[mid];
+			if (s.from[i] < from || (s.from[i] == from && (s.day[i] < day || (s.day[i] == day && s.cnum[i] < cnum)))){
+				lo = mid + 1;
+			}else{
+				hi = mid;
+			}
+		}//end while
+		return lo;
+	}
+
+	//positions in day order, stably re-sorted by port, so each port keeps (day, cnum) order
+	private static int[] sortByFrom(int n, int[] from){
+		long[] keys = new long[n];
+		for (int i = 0; i < n; ++i){
+			//UNENCODABLE sorts first and is never searched for
+			keys[i] = ((long) from[i] << 32) | i;
+		}
+		Arrays.parallelSort(keys);
+		int[] order = new int[n];
+		for (int k = 0; k < n; ++k){
+			order[k] = (int) keys[k];
+		}
+		return order;
+	}
+
+	public int getSize(){
+		Snapshot s = this._snapshot;
+		return s == null ? 0 : s.size;
+	}
+
+	@Override
+	public String toString(){
+		Snapshot s = this._snapshot;
+		return String.format("cruise search: cruises=%d age=%s memory=%d database=%d loads=%d", getSize(),
+			s == null ? "not loaded" : (System.currentTimeMillis() - s.loadedAt) / 1000 + "s",
+			this._memorySearches.sum(), this._databaseSearches.sum(), this._loads.sum());
+	}
+}
@@ -0,0 +1,339 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is the headless API of the seven menu operations.  Each one is
+ * a typed method that validates its inputs the way the menu prompts do and
+ * throws IllegalArgumentException for bad input, so the menu, BatchRunner
+ * and HttpFrontEnd share one implementation.  Every method may be called
+ * from any number of threads at once, and is timed as an operation named
+ * after its menu action.
+ *
+ * The insert methods come in two forms: one takes the key of the new row,
+ * the other takes it from KeyAllocator and returns it.  A key given by the
+ * caller is claimed from KeyAllocator first, so it is never handed out
+ * later.
+ *
+ * With a WorkloadRecorder set, every operation but searchCruises and
+ * existingReservations is also written to the recorder as the BatchRunner
+ * command that repeats it, without its key, for LoadGenerator to replay.
+ *
+ */
+
+public class CruiseService{
+	static final String ADD_SHIP_SQL = "INSERT INTO Ship (id, make, model, age, seats) VALUES (?, ?, ?, ?, ?);";
+	static final String ADD_CAPTAIN_SQL = "INSERT INTO Captain (id, fullname, nationality) VALUES (?, ?, ?);";
+	static final String ADD_CRUISE_SQL = "INSERT INTO Cruise (cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port) VALUES (?, ?, ?, ?, CAST(? AS DATE), CAST(? AS DATE), ?, ?);";
+	static final String ADD_SCHEDULE_SQL = "INSERT INTO Schedule (id, cruiseNum, departure_time, arrival_time) VALUES (?, ?, CAST(? AS DATE), CAST(? AS DATE));";
+	static final String ADD_CRUISE_INFO_SQL = "INSERT INTO CruiseInfo (ciid, cruise_id, captain_id, ship_id) VALUES (?, ?, ?, ?);";
+	//the departure of the cruise selects the one Reservation partition to read
+	static final String BOOKING_STATUS_SQL = "SELECT R.status FROM Reservation R, Customer C WHERE C.id = ? AND C.id = R.ccid AND R.cid = ?" +
+		" AND R.departure_date = (SELECT actual_departure_date FROM Cruise WHERE cnum = ?);";
+	//option 6 before migration V2
+	static final String REPAIRS_PER_SHIP_SCAN_SQL =
+		"SELECT S.id, count(R.rid) FROM Repairs R, Ship S WHERE R.ship_id = S.id GROUP BY S.id ORDER BY count DESC, S.id LIMIT ?;";
+
+	public record ShipRepairs(int shipId, long repairs){}
+
+	private final DBproject _esql;
+	private final Metrics _metrics;
+	private volatile WorkloadRecorder _recorder;
+
+	public CruiseService(DBproject esql){
+		this._esql = esql;
+		this._metrics = esql.getMetrics();
+	}
+
+	public DBproject getDatabase(){
+		return this._esql;
+	}
+
+	/**
+	 * Method to record the operations from now on, or to stop with null.
+	 */
+	public void setRecorder(WorkloadRecorder recorder){
+		this._recorder = recorder;
+	}
+
+	public WorkloadRecorder getRecorder(){
+		return this._recorder;
+	}
+
+	//times a call as the named operation and records it, failed or not, as the command
+	private <T> T operation(String name, Metrics.Call<T> call, Object... command) throws SQLException {
+		WorkloadRecorder recorder = this._recorder;
+		long start = System.nanoTime();
+		try{
+			return this._metrics.operation(name).time(call);
+		}finally{
+			if (recorder != null){
+				recorder.record(start, System.nanoTime() - start, command);
+			}
+		}//end try
+	}
+
+	static String checkLength(String name, String value, int max){
+		if (value == null){
+			throw new IllegalArgumentException(name + " is required");
+		}
+		if (value.length() > max){
+			throw new IllegalArgumentException(name + " is longer than " + max + " characters");
+		}
+		return value;
+	}
+
+	static char checkStatus(char status){
+		if (status != 'W' && status != 'C' && status != 'R'){
+			throw new IllegalArgumentException("status must be W, C or R: " + status);
+		}
+		return status;
+	}
+
+	public void addShip(int id, String make, String model, int age, int seats) throws SQLException {
+		checkLength("make", make, 32);
+		checkLength("model", model, 64);
+		claimKey(KeyAllocator.Key.SHIP, id);
+		operation("AddShip", () -> this._esql.executeUpdate("AddShip", ADD_SHIP_SQL, id, make, model, age, seats),
+			"add-ship", make, model, age, seats);
+	}
+
+	/**
+	 * Method to add a ship under the next ship id.
+	 *
+	 * @return the id of the new ship
+	 */
+	public int addShip(String make, String model, int age, int seats) throws SQLException {
+		int id = nextKey(KeyAllocator.Key.SHIP);
+		addShip(id, make, model, age, seats);
+		return id;
+	}
+
+	public void addCaptain(int id, String fullname, String nationality) throws SQLException {
+		checkLength("full name", fullname, 128);
+		checkLength("nationality", nationality, 24);
+		claimKey(KeyAllocator.Key.CAPTAIN, id);
+		operation("AddCaptain", () -> this._esql.executeUpdate("AddCaptain", ADD_CAPTAIN_SQL, id, fullname, nationality),
+			"add-captain", fullname, nationality);
+	}
+
+	/**
+	 * Method to add a captain under the next captain id.
+	 *
+	 * @return the id of the new captain
+	 */
+	public int addCaptain(String fullname, String nationality) throws SQLException {
+		int id = nextKey(KeyAllocator.Key.CAPTAIN);
+		addCaptain(id, fullname, nationality);
+		return id;
+	}
+
+	/**
+	 * Method to add a cruise.
+	 *
+	 * @param departure the departure as YYYY-MM-DD hh:mm
+	 * @param arrival the arrival as YYYY-MM-DD hh:mm
+	 * @throws java.sql.SQLException when the insert failed, i.e. a duplicate
+	 *         cruise number or an invalid date
+	 */
+	public void addCruise(int cnum, int cost, int numSold, int numStops, String departure, String arrival,
+			String arrivalPort, String departurePort) throws SQLException {
+		checkLength("departure date", departure, 16);
+		checkLength("arrival date", arrival, 16);
+		checkLength("arrival port", arrivalPort, 5);
+		checkLength("departure port", departurePort, 5);
+		claimKey(KeyAllocator.Key.CRUISE, cnum);
+		operation("AddCruise", () ->
+			this._esql.executeUpdate("AddCruise", ADD_CRUISE_SQL, cnum, cost, numSold, numStops, departure, arrival, arrivalPort, departurePort),
+			"add-cruise", cost, numSold, numStops, departure, arrival, arrivalPort, departurePort);
+		this._esql.getSeatCache().invalidate(cnum);
+		this._esql.getCruiseSearch().invalidate();
+	}
+
+	/**
+	 * Method to add a cruise under the next cruise number.
+	 *
+	 * @return the number of the new cruise
+	 */
+	public int addCruise(int cost, int numSold, int numStops, String departure, String arrival,
+			String arrivalPort, String departurePort) throws SQLException {
+		int cnum = nextKey(KeyAllocator.Key.CRUISE);
+		addCruise(cnum, cost, numSold, numStops, departure, arrival, arrivalPort, departurePort);
+		return cnum;
+	}
+
+	/**
+	 * Method to add a cruise with its captain and ship, and its sailing in
+	 * Schedule, in one transaction.  The assignment is refused when the
+	 * captain or the ship is on another sailing on any of its days, see
+	 * ScheduleConflicts.  The CruiseInfo and Schedule keys come from
+	 * KeyAllocator.
+	 *
+	 * @param departure the departure as YYYY-MM-DD hh:mm
+	 * @param arrival the arrival as YYYY-MM-DD hh:mm
+	 * @throws ScheduleConflicts.Conflicting when the captain or the ship is
+	 *         on an overlapping sailing
+	 * @throws java.sql.SQLException when an insert failed, i.e. a duplicate
+	 *         cruise number or an unknown captain or ship
+	 */
+	public void addCruise(int cnum, int cost, int numSold, int numStops, String departure, String arrival,
+			String arrivalPort, String departurePort, int captainId, int shipId) throws SQLException {
+		checkLength("departure date", departure, 16);
+		checkLength("arrival date", arrival, 16);
+		checkLength("arrival port", arrivalPort, 5);
+		checkLength("departure port", departurePort, 5);
+		claimKey(KeyAllocator.Key.CRUISE, cnum);
+		ScheduleConflicts.Sailing sailing = new ScheduleConflicts.Sailing(nextKey(KeyAllocator.Key.CRUISE_INFO), cnum, shipId, captainId,
+			day(departure), day(arrival));
+		int scheduleId = nextKey(KeyAllocator.Key.SCHEDULE);
+		//recorded as a plain add-cruise, BatchRunner has no assignment
+		operation("AddCruise", () -> this._esql.getScheduleConflicts().assign(sailing, conn -> {
+			conn.connection().setAutoCommit(false);
+			DBproject.bind(conn.prepare("AddCruise", ADD_CRUISE_SQL), cnum, cost, numSold, numStops, departure, arrival, arrivalPort, departurePort).executeUpdate();
+			DBproject.bind(conn.prepare("AddCruise.schedule", ADD_SCHEDULE_SQL), scheduleId, cnum, departure, arrival).executeUpdate();
+			DBproject.bind(conn.prepare("AddCruise.assign", ADD_CRUISE_INFO_SQL), sailing.ciid(), cnum, captainId, shipId).executeUpdate();
+			conn.connection().commit();
+			return null;
+		}), "add-cruise", cost, numSold, numStops, departure, arrival, arrivalPort, departurePort);
+		this._esql.getSeatCache().invalidate(cnum);
+		this._esql.getCruiseSearch().invalidate();
+	}
+
+	/**
+	 * Method to add a cruise with its captain and ship under the next cruise
+	 * number.
+	 *
+	 * @return the number of the new cruise
+	 */
+	public int addCruise(int cost, int numSold, int numStops, String departure, String arrival,
+			String arrivalPort, String departurePort, int captainId, int shipId) throws SQLException {
+		int cnum = nextKey(KeyAllocator.Key.CRUISE);
+		addCruise(cnum, cost, numSold, numStops, departure, arrival, arrivalPort, departurePort, captainId, shipId);
+		return cnum;
+	}
+
+	//the day of a YYYY-MM-DD hh:mm date, what the DATE columns keep of it
+	static LocalDate day(String date){
+		String d = date.trim();
+		int space = d.indexOf(' ');
+		return LocalDate.parse(space < 0 ? d : d.substring(0, space));
+	}
+
+	/**
+	 * Method to count a customer's existing reservations on a cruise, the
+	 * check option 4 shows before booking.
+	 */
+	public int existingReservations(int custID, int cnum) throws SQLException {
+		return this._metrics.operation("ExistingReservations").time(() -> this._esql.executeQuery("BookCruise.status", BOOKING_STATUS_SQL, custID, cnum, cnum));
+	}
+
+	/**
+	 * Method to book a cruise, see BookingEngine, or BookingQueue when the
+	 * queue is enabled.
+	 *
+	 * @return 'R' when a seat was reserved, 'W' when the customer was waitlisted
+	 */
+	public char bookCruise(int rnum, int custID, int cnum) throws SQLException {
+		claimKey(KeyAllocator.Key.RESERVATION, rnum);
+		return operation("BookCruise", () -> {
+			BookingQueue queue = this._esql.getBookingQueue();
+			if (queue != null){
+				return AsyncQueries.await(queue.submit(rnum, custID, cnum)).status();
+			}
+			return this._esql.getBookingEngine().book(rnum, custID, cnum);
+		}, "book", custID, cnum);
+	}
+
+	/**
+	 * Method to book a cruise under the next reservation number.
+	 *
+	 * @return the reservation number and the status it was stored with
+	 */
+	public BookingQueue.Booking bookCruise(int custID, int cnum) throws SQLException {
+		int rnum = nextKey(KeyAllocator.Key.RESERVATION);
+		return new BookingQueue.Booking(rnum, bookCruise(rnum, custID, cnum));
+	}
+
+	/**
+	 * Method to take the key of a new row.
+	 *
+	 * @throws java.sql.SQLException when no key could be reserved, SQLState
+	 *         42P01 before migration V5
+	 */
+	public int nextKey(KeyAllocator.Key key) throws SQLException {
+		return this._esql.getKeys().next(key);
+	}
+
+	/**
+	 * Method to claim a key the caller chose, see KeyAllocator.claim.  Keys
+	 * taken from nextKey cost nothing here.
+	 *
+	 * @throws java.sql.SQLException when the key sequence could not be moved
+	 *         past the key
+	 */
+	public void claimKey(KeyAllocator.Key key, int id) throws SQLException {
+		this._esql.getKeys().claim(key, id);
+	}
+
+	/**
+	 * Method to read the free seats of a cruise departing on a given day.
+	 *
+	 * @return the free seats, SeatCache.NO_SAILING when the cruise departs on
+	 *         another day, or SeatCache.UNKNOWN when it has no ship assigned
+	 */
+	public int availableSeats(int cnum, LocalDate day) throws SQLException {
+		return operation("ListNumberOfAvailableSeats", () -> this._esql.getSeatCache().availableSeats(cnum, (int) day.toEpochDay()),
+			"seats", cnum, day);
+	}
+
+	/**
+	 * Method to list the ships with the most repairs.
+	 *
+	 * @param top the number of ships to return, Integer.MAX_VALUE for all
+	 * @return the ships in descending order of repairs
+	 */
+	public List<ShipRepairs> repairsPerShip(int top) throws SQLException {
+		if (top < 1){
+			throw new IllegalArgumentException("number of ships must be positive: " + top);
+		}
+		Object[] command = top == Integer.MAX_VALUE ? new Object[]{"repairs"} : new Object[]{"repairs", top};
+		return operation("ListsTotalNumberOfRepairsPerShip", () -> {
+			try{
+				return readRepairs("ListsTotalNumberOfRepairsPerShip", DBproject.REPAIRS_PER_SHIP_SQL, top);
+			}catch (SQLException e){
+				if (!"42P01".equals(e.getSQLState())){
+					throw e;
+				}
+				return readRepairs("ListsTotalNumberOfRepairsPerShip.scan", REPAIRS_PER_SHIP_SCAN_SQL, top);
+			}//end try
+		}, command);
+	}
+
+	private List<ShipRepairs> readRepairs(String key, String sql, int top) throws SQLException {
+		List<ShipRepairs> ships = new ArrayList<ShipRepairs>();
+		try (RowCursor cursor = this._esql.openReadCursor(key, sql, DBproject.DEFAULT_FETCH_SIZE, top)){
+			while (cursor.fetch()){
+				cursor.row().advance();
+				ships.add(new ShipRepairs(cursor.row().getInt(1), cursor.row().getLong(2)));
+			}
+		}
+		return ships;
+	}
+
+	/**
+	 * Method to find cruises by route and departure window, see CruiseSearch.
+	 *
+	 * @param after where the page starts, CruiseSearch.After.START for the first
+	 * @param limit the largest number of cruises on the page
+	 */
+	public CruiseSearch.Page searchCruises(CruiseSearch.Query query, CruiseSearch.After after, int limit) throws SQLException {
+		return this._metrics.operation("SearchCruises").time(() -> this._esql.getCruiseSearch().search(query, after, limit));
+	}
+
+	public long passengersWithStatus(int cnum, char status) throws SQLException {
+		checkStatus(status);
+		return operation("FindPassengersCountWithStatus", () -> this._esql.getStatusCounts().count(cnum, status),
+			"passengers", cnum, status);
+	}
+}
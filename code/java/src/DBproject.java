@@ -11,9 +11,8 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,8 +20,22 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.ArrayList;
+import java.time.LocalDate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,19 +44,109 @@ import java.util.ArrayList;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections shared by every caller
+	private ConnectionPool _pool = null;
+	//sends reads to the replicas and writes to the primary pool
+	private ReplicaRouter _router = null;
+	//runs submitted database work concurrently
+	private ExecutorService _workers = null;
+	//seat-checked reservation path used by BookCruise
+	private BookingEngine _booking = null;
+	//free seats per cruise, answers ListNumberOfAvailableSeats
+	private SeatCache _seats = null;
+	//W, C and R reservations per cruise, answers FindPassengersCountWithStatus
+	private StatusCounts _statusCounts = null;
+	//bulk insert path for ships, captains, cruises and reservations
+	private BatchInserter _batch = null;
+	//typed API of the menu operations, shared with the batch and HTTP front ends
+	private CruiseService _service = null;
+	//group-commit booking path, only when enabled
+	private volatile BookingQueue _bookingQueue = null;
+	//cruises by route and departure window
+	private CruiseSearch _search = null;
+	//CompletableFuture versions of the execute methods
+	private AsyncQueries _async = null;
+	//block-allocated keys of new rows
+	private KeyAllocator _keys = null;
+	//invalidates the caches on writes of other processes, only when enabled
+	private ChangeFeed _feed = null;
+	//sailings per ship and captain, checks new assignments
+	private ScheduleConflicts _conflicts = null;
+	//latency, rows and errors per operation and statement
+	private final Metrics _metrics = new Metrics ();
+	//rewrites the Prometheus metrics file, when one was asked for
+	private ScheduledExecutorService _metricsExport = null;
+	private Path _metricsFile = null;
+	//where printed reports go and in which format
+	private volatile ReportOutput _report = ReportOutput.console (ResultRenderer.Format.TSV);
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
+	/**
+	 * A unit of database work run on a borrowed connection.
+	 */
+	public interface SqlWork<T> {
+		T run (ConnectionPool.PooledConnection conn) throws SQLException;
+	}
+
+	/**
+	 * Receives the rows of a streamed query one at a time.
+	 */
+	public interface RowHandler {
+		void row (ResultRow row) throws SQLException;
+	}
+
+	//rows fetched per round trip by the streaming queries
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+	//hits per page of menu option 13
+	static final int SEARCH_PAGE_SIZE = 20;
+	//how often the --metrics-file is rewritten
+	static final long METRICS_EXPORT_MS = 10 * 1000;
+	//statement key of the work and queries run without one
+	static final String ADHOC_KEY = "adhoc";
+	//option 6, top N ships by number of repairs
+	static final String REPAIRS_PER_SHIP_SQL =
+		"SELECT ship_id AS id, repairs AS count FROM ShipRepairCount WHERE repairs > 0 ORDER BY repairs DESC, ship_id LIMIT ?;";
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this(dbname, dbport, user, passwd, ConnectionPool.DEFAULT_MAX_SIZE);
+	}
+
+	public DBproject(String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
+		this(dbname, dbport, user, passwd, poolSize, new ArrayList<String>());
+	}
+
+	/**
+	 * @param replicas read replicas, each a JDBC URL or a host:port serving
+	 *        the same database name
+	 */
+	public DBproject(String dbname, String dbport, String user, String passwd, int poolSize, List<String> replicas) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// obtain a physical connection up front so a bad URL fails here
+			this._pool = new ConnectionPool(url, user, passwd, poolSize);
+			this._pool.release(this._pool.acquire());
+			List<ConnectionPool> replicaPools = new ArrayList<ConnectionPool>();
+			for (String replica : replicas) {
+				String replicaUrl = replica.startsWith("jdbc:") ? replica : "jdbc:postgresql://" + replica + "/" + dbname;
+				System.out.println ("Replica URL: " + replicaUrl);
+				replicaPools.add(new ConnectionPool(replicaUrl, user, passwd, poolSize));
+			}
+			this._router = new ReplicaRouter(this._pool, replicaPools);
+			this._workers = WorkerThreads.newExecutor("dbproject-worker", poolSize);
+			this._booking = new BookingEngine(this);
+			this._seats = new SeatCache(this);
+			this._statusCounts = new StatusCounts(this);
+			this._batch = new BatchInserter(this);
+			this._search = new CruiseSearch(this);
+			this._service = new CruiseService(this);
+			this._async = new AsyncQueries(this, poolSize * 4);
+			this._keys = new KeyAllocator(this);
+			this._conflicts = new ScheduleConflicts(this);
+			warmCaches();
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -51,6 +154,276 @@ public class DBproject{
 	        System.exit(-1);
 		}
 	}
+
+	/**
+	 * Method to run a unit of work on a pooled connection.  The connection is
+	 * borrowed for the duration of the call and returned afterwards, so this
+	 * method may be called from any number of threads at once.
+	 *
+	 * @param work the database work to run
+	 * @return the result of the work
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	public <T> T withConnection (SqlWork<T> work) throws SQLException {
+		return withConnection (ADHOC_KEY, work);
+	}//end withConnection
+
+	/**
+	 * Method to run a unit of work on a pooled connection, timed under a
+	 * statement key.
+	 *
+	 * @param key the statement key the work is recorded under
+	 * @param work the database work to run
+	 * @return the result of the work
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	public <T> T withConnection (String key, SqlWork<T> work) throws SQLException {
+		return withConnection (this._router.primary (), this._metrics.statement (key), work);
+	}
+
+	/**
+	 * Method to run read-only work on a replica chosen by the router, or on
+	 * the primary when no replica is within the lag limit.  Work that fails
+	 * because the replica cannot be reached is retried on the primary.
+	 *
+	 * @param work the read-only database work to run
+	 * @return the result of the work
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	public <T> T withReadConnection (SqlWork<T> work) throws SQLException {
+		return withReadConnection (ADHOC_KEY, work);
+	}//end withReadConnection
+
+	/**
+	 * Method to run read-only work on the read route, timed under a
+	 * statement key.
+	 *
+	 * @param key the statement key the work is recorded under
+	 * @param work the read-only database work to run
+	 * @return the result of the work
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	public <T> T withReadConnection (String key, SqlWork<T> work) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement (key);
+		ReplicaRouter.Route route = this._router.read ();
+		if (route == this._router.primary ()){
+			return withConnection (route, timer, work);
+		}
+		try{
+			return withConnection (route, timer, work);
+		}catch (SQLException e){
+			if (!isConnectionFailure (e)){
+				throw e;
+			}
+			route.markUnreachable ();
+			return withConnection (this._router.primary (), timer, work);
+		}//end try
+	}
+
+	private <T> T withConnection (ReplicaRouter.Route route, Metrics.Timer timer, SqlWork<T> work) throws SQLException {
+		long start = route.begin ();
+		long acquired = timer.start ();
+		ConnectionPool.PooledConnection conn = null;
+		try{
+			conn = route.pool ().acquire ();
+			long executed = timer.record (Metrics.Phase.ACQUIRE, acquired);
+			T result = work.run (conn);
+			timer.record (Metrics.Phase.EXECUTE, executed);
+			return result;
+		}catch (SQLException e){
+			timer.error (e);
+			if (conn != null && isConnectionFailure (e)){
+				conn.markBroken ();
+			}
+			throw e;
+		}finally{
+			route.pool ().release (conn);
+			route.finish (start);
+			timer.record (Metrics.Phase.TOTAL, acquired);
+		}
+	}
+
+	/**
+	 * Method to run a unit of work asynchronously on the worker executor.
+	 *
+	 * @param work the database work to run
+	 * @return a future holding the result of the work
+	 */
+	public <T> Future<T> submit (SqlWork<T> work) {
+		return this._workers.submit (() -> withConnection (work));
+	}
+
+	/**
+	 * Method to run read-only work asynchronously on the read route.
+	 *
+	 * @param work the read-only database work to run
+	 * @return a future holding the result of the work
+	 */
+	public <T> Future<T> submitRead (SqlWork<T> work) {
+		return submitRead (ADHOC_KEY, work);
+	}
+
+	/**
+	 * Method to run read-only work asynchronously on the read route, timed
+	 * under a statement key.
+	 *
+	 * @param key the statement key the work is recorded under
+	 * @param work the read-only database work to run
+	 * @return a future holding the result of the work
+	 */
+	public <T> Future<T> submitRead (String key, SqlWork<T> work) {
+		return this._workers.submit (() -> withReadConnection (key, work));
+	}
+
+	/**
+	 * @return true when the error means the connection itself is unusable
+	 */
+	static boolean isConnectionFailure (SQLException e) {
+		String state = e.getSQLState ();
+		return state != null && state.startsWith ("08");
+	}
+
+	public ConnectionPool getPool () {
+		return this._pool;
+	}
+
+	public ReplicaRouter getRouter () {
+		return this._router;
+	}
+
+	public BookingEngine getBookingEngine () {
+		return this._booking;
+	}
+
+	public SeatCache getSeatCache () {
+		return this._seats;
+	}
+
+	public StatusCounts getStatusCounts () {
+		return this._statusCounts;
+	}
+
+	/**
+	 * @return the booking queue, null unless enableBookingQueue was called
+	 */
+	public BookingQueue getBookingQueue () {
+		return this._bookingQueue;
+	}
+
+	/**
+	 * Method to send later bookings through a group-commit queue instead of
+	 * one autocommit statement each.
+	 *
+	 * @param maxBatch the most bookings committed together
+	 * @param lingerMicros how long a group waits to fill
+	 */
+	public synchronized void enableBookingQueue (int maxBatch, long lingerMicros) {
+		if (this._bookingQueue == null){
+			this._bookingQueue = new BookingQueue (this, BookingQueue.DEFAULT_CAPACITY, maxBatch, lingerMicros);
+		}
+	}
+
+	/**
+	 * Method to keep the caches coherent with the writes of other processes
+	 * through the notifications of migrations V6 and V10, see ChangeFeed.
+	 * Nothing is sent, so nothing is listened to, unless the feed was
+	 * switched on with --change-feed on.
+	 *
+	 * @param windowMs how long changes are collected before the caches are
+	 *        invalidated
+	 * @return true when the feed is listened to
+	 * @throws java.sql.SQLException when whether the feed is on is unknown
+	 */
+	public synchronized boolean enableChangeFeed (long windowMs) throws SQLException {
+		if (this._feed != null){
+			return true;
+		}
+		if (!ChangeFeed.isInstalled (this)){
+			return false;
+		}
+		ChangeFeed feed = new ChangeFeed (this._pool, windowMs);
+		//an update of Cruise is only sent for its ports and dates, which the search reads
+		feed.register (ChangeFeed.Table.CRUISE, (table, cnums, ops) -> {
+			invalidateSeats (cnums);
+			this._search.invalidate ();
+		});
+		//a booking writes num_sold with its reservation, so seats follow Reservation
+		feed.register (ChangeFeed.Table.RESERVATION, (table, cnums, ops) -> {
+			invalidateSeats (cnums);
+			if (cnums == null){
+				this._statusCounts.invalidateAll ();
+			}else{
+				this._statusCounts.invalidate (cnums);
+			}//end if
+		});
+		//seats are cached per cruise, not per ship, so a ship change drops them all
+		feed.register (ChangeFeed.Table.SHIP, (table, ids, ops) -> this._seats.invalidateAll ());
+		feed.start ();
+		this._feed = feed;
+		return true;
+	}
+
+	private void invalidateSeats (int[] cnums) {
+		if (cnums == null){
+			this._seats.invalidateAll ();
+		}else{
+			for (int cnum : cnums){
+				this._seats.invalidate (cnum);
+			}
+		}//end if
+	}
+
+	/**
+	 * @return the change feed, null unless enableChangeFeed was called
+	 */
+	public ChangeFeed getChangeFeed () {
+		return this._feed;
+	}
+
+	public CruiseSearch getCruiseSearch () {
+		return this._search;
+	}
+
+	public CruiseService getService () {
+		return this._service;
+	}
+
+	public AsyncQueries getAsync () {
+		return this._async;
+	}
+
+	public KeyAllocator getKeys () {
+		return this._keys;
+	}
+
+	public ScheduleConflicts getScheduleConflicts () {
+		return this._conflicts;
+	}
+
+	public BatchInserter getBatchInserter () {
+		return this._batch;
+	}
+
+	public Metrics getMetrics () {
+		return this._metrics;
+	}
+
+	/**
+	 * Method to load the in-process caches from the database.  A failure
+	 * leaves the caches cold, they then load entries on demand.
+	 */
+	private void warmCaches () {
+		try{
+			this._seats.warm ();
+		}catch (SQLException e){
+			System.err.println("Warning - seat cache not warmed: " + e.getMessage());
+		}//end try
+		try{
+			this._statusCounts.warm ();
+		}catch (SQLException e){
+			System.err.println("Warning - status counts not warmed: " + e.getMessage());
+		}//end try
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
@@ -60,57 +433,203 @@ public class DBproject{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		withConnection (conn -> {
+			// creates a statement object
+			Statement stmt = conn.connection ().createStatement ();
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+			// issues the update instruction
+			stmt.executeUpdate (sql);
 
-		// close the instruction
-	    stmt.close ();
+			// close the instruction
+			stmt.close ();
+			return null;
+		});
 	}//end executeUpdate
 
+	/**
+	 * Method to execute a cached prepared update for a menu operation.
+	 *
+	 * @param key the logical operation name
+	 * @param sql the parameterized SQL text
+	 * @param params the values bound to the parameters, in order
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int executeUpdate (String key, String sql, Object... params) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement (key);
+		return withConnection (this._router.primary (), timer, conn -> {
+			int rowCount = executeUpdate (bind (conn.prepare (key, sql), params));
+			timer.rows (rowCount);
+			return rowCount;
+		});
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * the report output, standard out unless changed with option 10.
 	 * 
 	 * @param query the input query string
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		//rows are streamed from the server and rendered as they arrive
+		try (RowCursor cursor = openCursor (query, DEFAULT_FETCH_SIZE)){
+			return printResult (cursor, this._report);
+		}
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to execute a cached prepared query for a menu operation and
+	 * output the results to standard out.
+	 *
+	 * @param key the logical operation name
+	 * @param sql the parameterized SQL text
+	 * @param params the values bound to the parameters, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String key, String sql, Object... params) throws SQLException {
+		try (RowCursor cursor = openCursor (key, sql, DEFAULT_FETCH_SIZE, params)){
+			return printResult (cursor, this._report);
+		}
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to execute a read-only cached prepared query on the read route
+	 * and print its results.  The time to the last printed row is recorded
+	 * in the latency of the route that served it.
+	 *
+	 * @param key the logical operation name
+	 * @param sql the parameterized SQL text
+	 * @param params the values bound to the parameters, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeReadQueryAndPrintResult (String key, String sql, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		try (RowCursor cursor = openReadCursor (key, sql, DEFAULT_FETCH_SIZE, params)){
+			int rowCount = printResult (cursor, this._report);
+			this._router.routeOf (cursor.pool ()).latency ().record (System.nanoTime () - start);
+			return rowCount;
+		}
+	}
+
+	/**
+	 * Method to execute a prepared query (i.e. SELECT) and output the results
+	 * to the report output.  The statement is left open so it can be reused.
+	 *
+	 * @param stmt the prepared query with its parameters set
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (PreparedStatement stmt) throws SQLException {
+		ResultSet rs = stmt.executeQuery ();
+		try{
+			return printResult (rs);
+		}finally{
+			rs.close ();
+		}
+	}
+
+	private int printResult (ResultSet rs) throws SQLException {
+		return printResult (rs, this._report);
+	}
+
+	/**
+	 * Renders a result set to a report output in the output's format.  The
+	 * rows are written through the output's buffer and flushed once at the
+	 * end of the report.
+	 */
+	private static int printResult (ResultSet rs, ReportOutput out) throws SQLException {
+		ResultRow row = new ResultRow (rs);
+		synchronized (out){
+			//anything the menu printed must come out before the report
+			System.out.flush ();
+			ResultRenderer renderer = out.renderer ();
+			try{
+				//iterates through the result set and output them.
+				while (rs.next()){
+					row.advance ();
+					renderer.row (row);
+				}//end while
+				out.flush ();
+			}catch (IOException e){
+				throw new SQLException ("Unable to write report to " + out, e);
+			}//end try
+			return (int) renderer.rowCount ();
+		}
+	}
+
+	/**
+	 * Renders the rows of a cursor like printResult, timing the fetch and
+	 * render phases on the cursor's statement.  The cursor is left open.
+	 */
+	private static int printResult (RowCursor cursor, ReportOutput out) throws SQLException {
+		ResultRow row = cursor.row ();
+		boolean timed = cursor.timed ();
+		synchronized (out){
+			//anything the menu printed must come out before the report
+			System.out.flush ();
+			ResultRenderer renderer = out.renderer ();
+			try{
+				while (cursor.step ()){
+					row.advance ();
+					long start = timed ? System.nanoTime () : 0;
+					renderer.row (row);
+					if (timed){
+						cursor.rendered (System.nanoTime () - start);
+					}
+				}//end while
+				long start = timed ? System.nanoTime () : 0;
+				out.flush ();
+				if (timed){
+					cursor.rendered (System.nanoTime () - start);
+				}
+			}catch (IOException e){
+				throw new SQLException ("Unable to write report to " + out, e);
+			}//end try
+			return (int) renderer.rowCount ();
+		}
+	}
+
+	/**
+	 * Method to stream a query straight into a report file.  Rows are fetched
+	 * in batches and written as they arrive, so reports of any size can be
+	 * saved at disk speed.
+	 *
+	 * @param query the input query string
+	 * @param format the report format
+	 * @param file the file to write, replaced if it exists
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to execute the query
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public long executeQueryAndWriteResult (String query, ResultRenderer.Format format, Path file) throws SQLException, IOException {
+		try (ReportOutput out = ReportOutput.file (file, format);
+				RowCursor cursor = openCursor (query, DEFAULT_FETCH_SIZE)){
+			return printResult (cursor, out);
+		}
+	}
+
+	/**
+	 * Method to send the output of later printed reports to a new destination.
+	 *
+	 * @param output the new report output
+	 */
+	public void setReportOutput (ReportOutput output) {
+		ReportOutput old = this._report;
+		this._report = output;
+		try{
+			old.close ();
+		}catch (IOException e){
+			System.err.println ("Warning - could not close " + old + ": " + e.getMessage ());
+		}//end try
+	}
+
+	public ReportOutput getReportOutput () {
+		return this._report;
 	}
 	
 	/**
@@ -123,8 +642,24 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+		return withConnection (conn -> executeQueryAndReturnResult (conn, query));
+	}
+
+	/**
+	 * Method to execute a read-only query on the read route and return its
+	 * results as a list of records.
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeReadQueryAndReturnResult (String query) throws SQLException {
+		return withReadConnection (conn -> executeQueryAndReturnResult (conn, query));
+	}
+
+	private List<List<String>> executeQueryAndReturnResult (ConnectionPool.PooledConnection conn, String query) throws SQLException { 
 		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
+		Statement stmt = conn.connection ().createStatement (); 
 		
 		//issues the query instruction 
 		ResultSet rs = stmt.executeQuery (query); 
@@ -149,6 +684,149 @@ public class DBproject{
 		stmt.close (); 
 		return result; 
 	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+	 * the results to a callback one row at a time.  The rows are fetched from
+	 * the server in batches of fetchSize inside a transaction, so the heap
+	 * use does not grow with the size of the result.
+	 *
+	 * @param query the input query string
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param handler called once per row with the shared row view
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryStreaming (String query, int fetchSize, RowHandler handler) throws SQLException {
+		return drain (openCursor (query, fetchSize), handler);
+	}
+
+	/**
+	 * Method to execute a cached prepared query and hand the results to a
+	 * callback one row at a time.
+	 *
+	 * @param key the logical operation name
+	 * @param sql the parameterized SQL text
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param handler called once per row with the shared row view
+	 * @param params the values bound to the parameters, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryStreaming (String key, String sql, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		return drain (openCursor (key, sql, fetchSize, params), handler);
+	}
+
+	private static long drain (RowCursor cursor, RowHandler handler) throws SQLException {
+		try (RowCursor c = cursor){
+			long rowCount = 0;
+			while (c.fetch ()){
+				c.row ().advance ();
+				handler.row (c.row ());
+				++rowCount;
+			}//end while
+			return rowCount;
+		}
+	}
+
+	/**
+	 * Method to open a streaming cursor over a query.  The cursor holds a
+	 * pooled connection until it is closed.
+	 *
+	 * @param query the input query string
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @return an open cursor positioned before the first row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public RowCursor openCursor (String query, int fetchSize) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement (ADHOC_KEY);
+		long acquired = timer.start ();
+		ConnectionPool.PooledConnection conn = null;
+		try{
+			conn = this._pool.acquire ();
+			long executed = timer.record (Metrics.Phase.ACQUIRE, acquired);
+			//the driver only uses a server-side cursor outside autocommit
+			conn.connection ().setAutoCommit (false);
+			Statement stmt = conn.connection ().createStatement (ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize (fetchSize);
+			ResultSet rs = stmt.executeQuery (query);
+			timer.record (Metrics.Phase.EXECUTE, executed);
+			return new RowCursor (this._pool, conn, stmt, true, rs, timer, acquired);
+		}catch (SQLException | RuntimeException e){
+			failCursor (this._pool, conn, timer, acquired, e);
+			throw e;
+		}//end try
+	}
+
+	/**
+	 * Method to open a streaming cursor over a cached prepared query.
+	 *
+	 * @param key the logical operation name
+	 * @param sql the parameterized SQL text
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param params the values bound to the parameters, in order
+	 * @return an open cursor positioned before the first row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public RowCursor openCursor (String key, String sql, int fetchSize, Object... params) throws SQLException {
+		return openCursor (this._pool, this._metrics.statement (key), key, sql, fetchSize, params);
+	}
+
+	/**
+	 * Method to open a streaming cursor over a read-only cached prepared
+	 * query on a replica chosen by the router.  An unreachable replica falls
+	 * back to the primary.
+	 *
+	 * @param key the logical operation name
+	 * @param sql the parameterized SQL text
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param params the values bound to the parameters, in order
+	 * @return an open cursor positioned before the first row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public RowCursor openReadCursor (String key, String sql, int fetchSize, Object... params) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement (key);
+		ReplicaRouter.Route route = this._router.read ();
+		try{
+			return openCursor (route.pool (), timer, key, sql, fetchSize, params);
+		}catch (SQLException e){
+			if (route == this._router.primary () || !isConnectionFailure (e)){
+				throw e;
+			}
+			route.markUnreachable ();
+			return openCursor (this._pool, timer, key, sql, fetchSize, params);
+		}//end try
+	}
+
+	private static RowCursor openCursor (ConnectionPool pool, Metrics.Timer timer, String key, String sql, int fetchSize, Object... params) throws SQLException {
+		long acquired = timer.start ();
+		ConnectionPool.PooledConnection conn = null;
+		try{
+			conn = pool.acquire ();
+			long executed = timer.record (Metrics.Phase.ACQUIRE, acquired);
+			conn.connection ().setAutoCommit (false);
+			PreparedStatement stmt = bind (conn.prepare (key, sql), params);
+			stmt.setFetchSize (fetchSize);
+			ResultSet rs = stmt.executeQuery ();
+			timer.record (Metrics.Phase.EXECUTE, executed);
+			return new RowCursor (pool, conn, stmt, false, rs, timer, acquired);
+		}catch (SQLException | RuntimeException e){
+			failCursor (pool, conn, timer, acquired, e);
+			throw e;
+		}//end try
+	}
+
+	//hands back the connection of a cursor that could not be opened
+	private static void failCursor (ConnectionPool pool, ConnectionPool.PooledConnection conn, Metrics.Timer timer, long acquired, Exception e) {
+		if (e instanceof SQLException){
+			timer.error ((SQLException) e);
+			if (conn != null && isConnectionFailure ((SQLException) e)){
+				conn.markBroken ();
+			}
+		}//end if
+		pool.release (conn);
+		timer.record (Metrics.Phase.TOTAL, acquired);
+	}
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -159,22 +837,82 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		return withConnection (conn -> {
+			//creates a statement object
+			Statement stmt = conn.connection ().createStatement ();
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
 
-		int rowCount = 0;
+			int rowCount = 0;
 
-		//iterates through the result set and count nuber of results.
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			stmt.close ();
+			return rowCount;
+		});
+	}
+
+	/**
+	 * Method to execute a cached prepared query for a menu operation and
+	 * return the number of results.
+	 *
+	 * @param key the logical operation name
+	 * @param sql the parameterized SQL text
+	 * @param params the values bound to the parameters, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String key, String sql, Object... params) throws SQLException {
+		Metrics.Timer timer = this._metrics.statement (key);
+		return withConnection (this._router.primary (), timer, conn -> {
+			int rowCount = executeQuery (bind (conn.prepare (key, sql), params));
+			timer.rows (rowCount);
+			return rowCount;
+		});
+	}
+
+	/**
+	 * Method to execute a prepared query (i.e. SELECT) and return the number
+	 * of results.  The statement is left open so it can be reused.
+	 *
+	 * @param stmt the prepared query with its parameters set
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (PreparedStatement stmt) throws SQLException {
+		ResultSet rs = stmt.executeQuery ();
+		int rowCount = 0;
 		if(rs.next()){
 			rowCount++;
-		}//end while
-		stmt.close ();
+		}
+		rs.close ();
 		return rowCount;
 	}
-	
+
+	/**
+	 * Method to execute a prepared update (i.e. INSERT).  The statement is
+	 * left open so it can be reused.
+	 *
+	 * @param stmt the prepared update with its parameters set
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int executeUpdate (PreparedStatement stmt) throws SQLException {
+		return stmt.executeUpdate ();
+	}
+
+	/**
+	 * Binds the given values to the parameters of a prepared statement.
+	 */
+	static PreparedStatement bind (PreparedStatement stmt, Object... params) throws SQLException {
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject (i + 1, params[i]);
+		return stmt;
+	}
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
@@ -186,23 +924,102 @@ public class DBproject{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		return withConnection (conn -> {
+			Statement stmt = conn.connection ().createStatement ();
+			
+			ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+			int value = rs.next() ? rs.getInt(1) : -1;
+			stmt.close ();
+			return value;
+		});
+	}
+
+	/**
+	 * Method to print the connection pool and cache counters.
+	 */
+	public void printStatistics(){
+		System.out.println(this._pool);
+		System.out.println(this._pool.statementCacheStats());
+		System.out.println(this._router);
+		System.out.println(this._async);
+		System.out.println(this._keys);
+		if (this._feed != null){
+			System.out.println(this._feed);
+		}
+		if (this._bookingQueue != null){
+			System.out.println(this._bookingQueue);
+		}
+		System.out.println(this._seats);
+		System.out.println(this._statusCounts);
+		System.out.println(this._search);
+		System.out.println(this._conflicts);
+	}
+
+	/**
+	 * Method to keep a Prometheus text file of the metrics up to date,
+	 * rewriting it periodically and once more on cleanup.
+	 *
+	 * @param file the file to rewrite
+	 * @param periodMs the time between rewrites
+	 */
+	public synchronized void exportMetrics (Path file, long periodMs) {
+		if (this._metricsExport == null){
+			this._metricsExport = Executors.newSingleThreadScheduledExecutor (WorkerThreads.daemonFactory ("metrics-export"));
+		}
+		this._metricsFile = file;
+		this._metricsExport.scheduleWithFixedDelay (this::writeMetricsFile, 0, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void writeMetricsFile () {
+		try{
+			this._metrics.writePrometheus (this._metricsFile);
+		}catch (IOException e){
+			System.err.println ("Warning - could not write metrics to " + this._metricsFile + ": " + e.getMessage ());
+		}//end try
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to stop the workers and close the pooled connections.
 	 */
 	public void cleanup(){
+		if (this._feed != null){
+			this._feed.close ();
+		}//end if
+		if (this._bookingQueue != null){
+			this._bookingQueue.close ();
+		}//end if
+		if (this._async != null){
+			this._async.close ();
+		}//end if
+		if (this._metricsExport != null){
+			this._metricsExport.shutdownNow ();
+			writeMetricsFile ();
+		}//end if
+		if (this._workers != null){
+			this._workers.shutdown ();
+			try{
+				this._workers.awaitTermination (10, TimeUnit.SECONDS);
+			}catch (InterruptedException e){
+				Thread.currentThread ().interrupt ();
+			}//end try
+		}//end if
+		if (this._router != null){
+			this._router.close ();
+		}//end if
+		if (this._service != null && this._service.getRecorder () != null){
+			try{
+				this._service.getRecorder ().close ();
+			}catch (IOException e){
+				System.err.println ("Warning - could not finish the workload log: " + e.getMessage ());
+			}//end try
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
+			this._report.close ();
+		}catch (IOException e){
+			// ignored.
 		}//end try
 	}//end cleanup
 
@@ -212,10 +1029,16 @@ public class DBproject{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
-		            " <dbname> <port> <user>");
+		             " <dbname> <port> <user> [--pool <size>] [--load <data dir>] [--migrate <migrations dir>]" +
+					" [--replica <host:port|jdbc url>]... [--read-policy round-robin|least-loaded] [--max-lag <ms>]" +
+					" [--batch <command file|->] [--batch-threads <n>] [--serve <http port>]" +
+					" [--metrics-file <path>] [--no-metrics] [--booking-queue] [--queue-batch <n>] [--queue-linger <us>]" +
+					" [--change-feed on|off] [--no-change-feed] [--feed-window <ms>]" +
+					" [--partition-ahead <months>] [--archive-before <YYYY-MM-DD>] [--drop-archived] [--conflicts]" +
+					" [--export-columnar <dir>] [--record <workload log>]");
 			return;
 		}//end if
 		
@@ -237,8 +1060,151 @@ public class DBproject{
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
+			int poolSize = ConnectionPool.DEFAULT_MAX_SIZE;
+			String loadDir = null;
+			String migrateDir = null;
+			List<String> replicas = new ArrayList<String>();
+			ReplicaRouter.Policy readPolicy = ReplicaRouter.Policy.ROUND_ROBIN;
+			long maxLagMs = ReplicaRouter.DEFAULT_MAX_LAG_MS;
+			String batchFile = null;
+			int batchThreads = 1;
+			int servePort = -1;
+			String metricsFile = null;
+			boolean metrics = true;
+			boolean bookingQueue = false;
+			int queueBatch = BookingQueue.DEFAULT_MAX_BATCH;
+			long queueLinger = BookingQueue.DEFAULT_LINGER_MICROS;
+			boolean changeFeed = true;
+			long feedWindow = ChangeFeed.DEFAULT_WINDOW_MS;
+			Boolean installFeed = null;
+			int partitionAhead = -1;
+			LocalDate archiveBefore = null;
+			boolean dropArchived = false;
+			boolean conflicts = false;
+			String exportDir = null;
+			String recordFile = null;
+			for (int i = 3; i < args.length; ++i) {
+				if (args[i].equals("--pool") && i + 1 < args.length) {
+					poolSize = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--load") && i + 1 < args.length) {
+					loadDir = args[++i];
+				} else if (args[i].equals("--migrate") && i + 1 < args.length) {
+					migrateDir = args[++i];
+				} else if (args[i].equals("--replica") && i + 1 < args.length) {
+					replicas.add(args[++i]);
+				} else if (args[i].equals("--read-policy") && i + 1 < args.length) {
+					readPolicy = ReplicaRouter.Policy.parse(args[++i]);
+				} else if (args[i].equals("--max-lag") && i + 1 < args.length) {
+					maxLagMs = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--batch") && i + 1 < args.length) {
+					batchFile = args[++i];
+				} else if (args[i].equals("--batch-threads") && i + 1 < args.length) {
+					batchThreads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--serve") && i + 1 < args.length) {
+					servePort = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--metrics-file") && i + 1 < args.length) {
+					metricsFile = args[++i];
+				} else if (args[i].equals("--no-metrics")) {
+					metrics = false;
+				} else if (args[i].equals("--booking-queue")) {
+					bookingQueue = true;
+				} else if (args[i].equals("--queue-batch") && i + 1 < args.length) {
+					queueBatch = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--queue-linger") && i + 1 < args.length) {
+					queueLinger = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--change-feed") && i + 1 < args.length) {
+					installFeed = Boolean.valueOf(args[++i].equals("on"));
+				} else if (args[i].equals("--no-change-feed")) {
+					changeFeed = false;
+				} else if (args[i].equals("--feed-window") && i + 1 < args.length) {
+					feedWindow = Long.parseLong(args[++i]);
+				} else if (args[i].equals("--partition-ahead") && i + 1 < args.length) {
+					partitionAhead = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--archive-before") && i + 1 < args.length) {
+					archiveBefore = LocalDate.parse(args[++i]);
+				} else if (args[i].equals("--drop-archived")) {
+					dropArchived = true;
+				} else if (args[i].equals("--conflicts")) {
+					conflicts = true;
+				} else if (args[i].equals("--export-columnar") && i + 1 < args.length) {
+					exportDir = args[++i];
+				} else if (args[i].equals("--record") && i + 1 < args.length) {
+					recordFile = args[++i];
+				} else {
+					System.err.println("Unknown option: " + args[i]);
+					return;
+				}
+			}
 			
-			esql = new DBproject (dbname, dbport, user, "");
+			esql = new DBproject (dbname, dbport, user, "", poolSize, replicas);
+			esql.getRouter().setPolicy(readPolicy);
+			esql.getRouter().setMaxLagMillis(maxLagMs);
+			esql.getMetrics().setEnabled(metrics);
+			if (metricsFile != null) {
+				esql.exportMetrics(Paths.get(metricsFile), METRICS_EXPORT_MS);
+			}
+			if (bookingQueue) {
+				esql.enableBookingQueue(queueBatch, queueLinger);
+			}
+			if (recordFile != null) {
+				//every operation of the session, for LoadGenerator --replay
+				esql.getService().setRecorder(new WorkloadRecorder(Paths.get(recordFile)));
+			}
+
+			if (loadDir != null || migrateDir != null || partitionAhead >= 0 || archiveBefore != null || conflicts || exportDir != null || installFeed != null) {
+				//bulk import, schema migration, partition maintenance, conflict report, export and change feed mode, no menu
+				if (loadDir != null) {
+					new BulkLoader(esql).load(Paths.get(loadDir));
+				}
+				if (migrateDir != null) {
+					new SchemaMigrator(esql).migrate(Paths.get(migrateDir));
+				}
+				if (partitionAhead >= 0 || archiveBefore != null) {
+					PartitionManager partitions = new PartitionManager(esql);
+					if (partitionAhead >= 0) {
+						System.out.println("Created " + partitions.ensureAhead(partitionAhead) + " partitions");
+					}
+					if (archiveBefore != null) {
+						System.out.println((dropArchived ? "Dropped " : "Archived ") + partitions.archiveBefore(archiveBefore, dropArchived) + " partitions");
+					}
+					partitions.print();
+				}
+				if (conflicts) {
+					//the constraints of migration V8 go on once nothing overlaps any more
+					if (PrintScheduleConflicts(esql) == 0) {
+						System.out.println("Added " + esql.getScheduleConflicts().enforce() + " exclusion constraints");
+					}
+				}
+				if (exportDir != null) {
+					//typed column files for offline reports, read with ColumnarFile
+					new ColumnarExport(esql, Runtime.getRuntime().availableProcessors()).export(Paths.get(exportDir));
+				}
+				if (installFeed != null) {
+					//the triggers of migration V10, for every process of the database
+					ChangeFeed.install(esql, installFeed.booleanValue());
+					System.out.println("Change feed " + (installFeed.booleanValue() ? "on" : "off"));
+				}
+				return;
+			}
+			if (changeFeed) {
+				//other processes may write to the same database, if the feed is on
+				esql.enableChangeFeed(feedWindow);
+			}
+			if (batchFile != null) {
+				//scripted mode, commands from a file or stdin, results to stdout
+				BufferedReader commands = batchFile.equals("-") ? in : new BufferedReader(new FileReader(batchFile), 1 << 16);
+				Writer results = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+				new BatchRunner(esql.getService(), batchThreads).run(commands, results);
+				return;
+			}
+			if (servePort >= 0) {
+				//HTTP service mode, runs until the process is stopped
+				HttpFrontEnd http = new HttpFrontEnd(esql.getService(), servePort, poolSize * 4);
+				http.start();
+				Runtime.getRuntime().addShutdownHook(new Thread(http::stop));
+				Thread.currentThread().join();
+				return;
+			}
 			
 			boolean keepon = true;
 			while(keepon){
@@ -252,6 +1218,12 @@ public class DBproject{
 				System.out.println("6. List total number of repairs per Ship in descending order");
 				System.out.println("7. Find total number of passengers with a given status");
 				System.out.println("8. < EXIT");
+				System.out.println("9. Show statistics");
+				System.out.println("10. Set report output format");
+				System.out.println("11. Show reservation status histogram");
+				System.out.println("12. Show operation metrics");
+				System.out.println("13. Search cruises by port and departure window");
+				System.out.println("14. Find captains and ships on overlapping sailings");
 				
 				switch (readChoice()){
 					case 1: AddShip(esql); break;
@@ -262,6 +1234,12 @@ public class DBproject{
 					case 6: ListsTotalNumberOfRepairsPerShip(esql); break;
 					case 7: FindPassengersCountWithStatus(esql); break;
 					case 8: keepon = false; break;
+					case 9: esql.printStatistics(); break;
+					case 10: SetReportOutput(esql); break;
+					case 11: ShowStatusHistogram(esql); break;
+					case 12: esql.getMetrics().print(System.out); break;
+					case 13: SearchCruises(esql); break;
+					case 14: ShowScheduleConflicts(esql); break;
 				}
 			}
 		}catch(Exception e){
@@ -279,6 +1257,42 @@ public class DBproject{
 		}
 	}
 
+	/**
+	 * @return the reason of a failed menu action, with its SQLState when the
+	 *         database refused it
+	 */
+	static String describe(Exception e) {
+		if (e instanceof SQLException && ((SQLException) e).getSQLState() != null) {
+			return " [" + ((SQLException) e).getSQLState() + "]: " + e.getMessage();
+		}
+		return e.getMessage() == null ? "" : ": " + e.getMessage();
+	}
+
+	/**
+	 * Method to take the key of a new row from the key allocator.  On a
+	 * schema without the key sequences of migration V5 the user types it in.
+	 *
+	 * @param name the name of the key in the prompt
+	 * @throws java.sql.SQLException when the key could not be allocated
+	 */
+	static int readKey(DBproject esql, KeyAllocator.Key key, String name) throws SQLException {
+		try {
+			return esql.getService().nextKey(key);
+		} catch (SQLException e) {
+			if (!"42P01".equals(e.getSQLState())) {
+				throw e;
+			}
+		}
+		do {
+			System.out.print("Enter " + name + ": ");
+			try {
+				return Integer.parseInt(in.readLine());
+			} catch (Exception e) {
+				System.out.println("Invalid " + name + ", please try again");
+			}
+		} while (true);
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -297,17 +1311,7 @@ public class DBproject{
 
 	public static void AddShip(DBproject esql) {//1
 		try{
-			int idInput;
-			do {
-				System.out.print("Enter ID: ");
-				try{
-					idInput = Integer.parseInt(in.readLine());
-					break;
-				} catch(Exception e){
-					System.out.println("Invalid ID, please try again");
-					continue;
-				}
-			} while (true);
+			int idInput = readKey(esql, KeyAllocator.Key.SHIP, "ID");
 			String makeInput;
 			do {
                                 System.out.print("Enter make: ");
@@ -358,18 +1362,16 @@ public class DBproject{
                                         continue;
                                 }
                         } while (true);
-			String query = "INSERT INTO Ship (id, make, model, age, seats) VALUES (" + idInput + ", \'" + makeInput + "\', \'" + modelInput + "\', " + ageInput + ", " + seatInput + ");";
-			//System.out.println(query);
-			esql.executeUpdate(query);
+			esql.getService().addShip(idInput, makeInput, modelInput, ageInput, seatInput);
+			System.out.println("Ship " + idInput + " added");
 		} catch (Exception e) {
-			System.err.println("Error, Ship was not added");
+			System.err.println("Error, Ship was not added" + describe(e));
 		}
 	}
 
 	public static void AddCaptain(DBproject esql) {//2
 		try {
-		int idInput;
-		do {                                                                                                                                                                                        System.out.print("Enter ID: ");                                                                                                                                                     try{                                                                                                                                                                                        idInput = Integer.parseInt(in.readLine());                                                                                                                                          break;                                                                                                                                                                      } catch(Exception e){                                                                                                                                                                       System.out.println("Invalid ID, please try again");                                                                                                                                 continue;                                                                                                                                                                   }                                                                                                                                                                           } while (true);
+		int idInput = readKey(esql, KeyAllocator.Key.CAPTAIN, "ID");
 		String nameInput;
 		do {
 			System.out.println("Enter full name: ");
@@ -398,27 +1400,16 @@ public class DBproject{
 				continue;
                        	}
                 } while (true);
-		String query = "INSERT INTO Captain (id, fullname, nationality) VALUES ('" + idInput + "', \'" + nameInput + "\', \'" + nationInput + "\');";
-		//System.out.println(query);
-		esql.executeUpdate(query);
+		esql.getService().addCaptain(idInput, nameInput, nationInput);
+		System.out.println("Captain " + idInput + " added");
 		} catch (Exception e) {
-			System.err.println("Error, Captain could not be added");
+			System.err.println("Error, Captain could not be added" + describe(e));
 		}
 	}
 
 	public static void AddCruise(DBproject esql) {//3
 		try {
-			int cnumInput;
-			do {
-                                System.out.print("Enter cnum: ");
-                                try{
-                                        cnumInput = Integer.parseInt(in.readLine());
-                                        break;
-                                } catch(Exception e){
-                                        System.out.println("Invalid cnum, please try again");
-                                        continue;
-                                }
-                        } while (true);
+			int cnumInput = readKey(esql, KeyAllocator.Key.CRUISE, "cnum");
 			
 			int costInput;
 			do {
@@ -512,11 +1503,45 @@ public class DBproject{
                                         continue;
                                 }
                         } while (true);
-			String query = "INSERT INTO Cruise (cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port) VALUES (" + cnumInput + ", " + costInput + ", " + num_sold + ", " + num_stops + ", \'" + date1 + "\', \'" + date2 + "', \'" + port1 + "\', \'" + port2 + "\');";
-			//System.out.println(query);
-			esql.executeUpdate(query); 
+			//both or neither, a cruise is assigned its captain and ship together
+			Integer captainInput = null, shipInput = null;
+			do {
+				System.out.print("Enter captain id (blank to assign none): ");
+				try {
+					String line = in.readLine().trim();
+					if (!line.isEmpty()) {
+						captainInput = Integer.parseInt(line);
+					}
+					break;
+				} catch (Exception e) {
+					System.out.println("Invalid captain id, please try again");
+					continue;
+				}
+			} while (true);
+			while (captainInput != null) {
+				System.out.print("Enter ship id: ");
+				try {
+					shipInput = Integer.parseInt(in.readLine().trim());
+					break;
+				} catch (Exception e) {
+					System.out.println("Invalid ship id, please try again");
+					continue;
+				}
+			}
+			if (captainInput == null) {
+				esql.getService().addCruise(cnumInput, costInput, num_sold, num_stops, date1, date2, port1, port2);
+				System.out.println("Cruise " + cnumInput + " added");
+			} else {
+				esql.getService().addCruise(cnumInput, costInput, num_sold, num_stops, date1, date2, port1, port2, captainInput, shipInput);
+				System.out.println("Cruise " + cnumInput + " added with captain " + captainInput + " and ship " + shipInput);
+			}
+		} catch (ScheduleConflicts.Conflicting e) {
+			System.err.println("Error, cannot add Cruise. The captain or the ship is on another sailing:");
+			for (ScheduleConflicts.Conflict c : e.getConflicts()) {
+				System.err.println("  " + c);
+			}
 		} catch (Exception e) {
-			System.err.println("Error, cannot add Cruise. Check to see if actual arrival and departure date are valid.");
+			System.err.println("Error, cannot add Cruise. Check to see if actual arrival and departure date are valid." + describe(e));
 		}
 	}
 
@@ -547,43 +1572,19 @@ public class DBproject{
                                         continue;
                                 }
                         } while (true);
-			String query = "SELECT R.status FROM Reservation R, Customer C WHERE C.id = " + custID + " AND C.id = R.ccid AND R.cid = " + cnumInput + ";";
-			//System.out.println(query);
-			int rowCount = esql.executeQuery(query);
+			//the check runs while the reservation number is allocated (or typed, before migration V5)
+			int cust = custID, cnum = cnumInput;
+			CompletableFuture<Integer> existing = esql.getAsync().supply(() -> esql.getService().existingReservations(cust, cnum));
+			//add reservation to database with appropriate status
+			int rnumInput = readKey(esql, KeyAllocator.Key.RESERVATION, "rnumInput");
+			int rowCount = AsyncQueries.await(existing);
 			System.out.println("If rows = 0, then reservation does not exist.");
 			System.out.println("rows: " + rowCount);
-			//add reservation to database with appropriate status
-			int rnumInput;
-			do {
-                                System.out.print("Enter rnumInput: ");
-                                try{
-                                        rnumInput = Integer.parseInt(in.readLine());
-                                        break;
-                                } catch(Exception e){
-                                        System.out.println("Invalid rnumInput, please try again");
-                                        continue;
-                                }
-                        } while (true);
-			String statusInput;
-                         do {
-                                System.out.print("Enter status: ");
-                                try {
-                                        statusInput = in.readLine();
-                                        if(statusInput.length() > 1 || (statusInput != "W" && statusInput != "R" && statusInput != "C")){
-                                                throw new RuntimeException("Input is too long, please try again");
-
-                                        }
-                                        break;
-                                } catch (Exception e) {
-                                        System.out.println("Error, please try again");
-                                        continue;
-                                }
-                        } while (true);
-			String query2 =  "INSERT INTO Reservation (rnum, ccid, cid, status) VALUES (" + rnumInput + ", " + custID + ", " + cnumInput + ", '" + statusInput +				 "');";
-			//System.out.println(query2);
-			esql.executeUpdate(query2);
+			//the engine assigns 'R' when a seat is free and 'W' otherwise
+			char status = esql.getService().bookCruise(rnumInput, custID, cnumInput);
+			System.out.println("Reservation " + rnumInput + " added with status " + status);
 		} catch (Exception e) {
-			System.err.println("Error, cannot book cruise");
+			System.err.println("Error, cannot book cruise" + describe(e));
 		}
 	}
 
@@ -623,21 +1624,53 @@ public class DBproject{
 			//String query2 = "SELECT C.num_sold FROM Cruise C, CruiseInfo C2 WHERE C.num_sold > 0 AND C2.cruise_id = C.cnum AND C.cnum = " + cnumInput + ";";
 			//System.out.println(query2);
 			//esql.executeQueryAndPrintResult(query2);
-			String queryFinal = "SELECT (SELECT S.seats FROM Ship S, Cruise C, CruiseInfo C2 WHERE C.cnum = " + cnumInput + "  AND C.actual_departure_date = \'" + dateInput + "\' AND C2.cruise_id = C.cnum AND C2.ship_id = S.id) - (SELECT C.num_sold FROM Cruise C, CruiseInfo C2 WHERE C.num_sold > 0 AND C2.cruise_id = C.cnum AND C.cnum = " + cnumInput + ");";
-			//System.out.println(queryFinal);
-			esql.executeQueryAndPrintResult(queryFinal);
+			//answered from the seat cache, only uncached cruises reach the database
+			int seats = esql.getService().availableSeats(cnumInput, LocalDate.parse(dateInput.trim().substring(0, 10)));
+			if (seats == SeatCache.UNKNOWN) {
+				System.out.println("Cruise " + cnumInput + " has no ship assigned");
+			} else if (seats == SeatCache.NO_SAILING) {
+				System.out.println("Cruise " + cnumInput + " does not depart on " + dateInput);
+			} else {
+				System.out.println("Available seats: " + seats);
+			}
 		} catch (Exception e) {
-			System.err.println("Error, could not list number of available seats");
+			System.err.println("Error, could not list number of available seats" + describe(e));
 		}
 	}
 
 	public static void ListsTotalNumberOfRepairsPerShip(DBproject esql) {//6
 		// Count number of repairs per Ships and list them in descending order
 		try {
-			String query = "SELECT S.id, count(R.rid) FROM Repairs R, Ship S WHERE R.ship_id = S.id GROUP BY S.id ORDER BY count DESC;";
-			esql.executeQueryAndPrintResult(query); 
+			int topInput;
+			do {
+				System.out.print("Enter number of ships to list (blank for all): ");
+				try {
+					String line = in.readLine().trim();
+					topInput = line.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(line);
+					if (topInput < 1) {
+						throw new RuntimeException("Input is invalid, please try again");
+					}
+					break;
+				} catch (Exception e) {
+					System.out.println("Invalid number, please try again");
+					continue;
+				}
+			} while (true);
+			int top = topInput;
+			//read in rank order from the trigger-maintained summary (migration V2)
+			esql.getMetrics().operation("ListsTotalNumberOfRepairsPerShip").time(() -> {
+				try {
+					return esql.executeReadQueryAndPrintResult("ListsTotalNumberOfRepairsPerShip", REPAIRS_PER_SHIP_SQL, top);
+				} catch (SQLException e) {
+					if (!"42P01".equals(e.getSQLState())) {
+						throw e;
+					}
+					//summary table missing, schema not migrated yet
+					return esql.executeReadQueryAndPrintResult("ListsTotalNumberOfRepairsPerShip.scan", CruiseService.REPAIRS_PER_SHIP_SCAN_SQL, top);
+				}
+			});
 		} catch (Exception e) {
-			System.err.println("Error, could not list total number of repairs per ship");
+			System.err.println("Error, could not list total number of repairs per ship" + describe(e));
 		}
 	}
 
@@ -671,13 +1704,136 @@ public class DBproject{
                                         continue;
                                 }
                         } while (true);
-			String query2 = "SELECT COUNT(*) FROM Reservation WHERE status = \'" + statusInput + "\' AND cid = " + cnumInput + ";";
-			//System.out.println(query2);
 			//String query2 = "SELECT C.cust_id, count (*) FROM Customer C, Reservation R WHERE C2.cnum = " + input2 + " AND R.status = " + input + " AND R.ccid = C.id;";
-			esql.executeQueryAndPrintResult(query2);
+			//answered from the status counters, backed by the CruiseStatusCount summary (migration V3)
+			long count = esql.getService().passengersWithStatus(cnumInput, statusInput.charAt(0));
+			System.out.println("Passengers with status " + statusInput + " on cruise " + cnumInput + ": " + count);
 			//System.out.println("Rows: " + rowCount);
 		} catch (Exception e) {
-			System.err.println("Error, could not find passengers with the given status");
+			System.err.println("Error, could not find passengers with the given status" + describe(e));
+		}
+	}
+
+	public static void ShowStatusHistogram(DBproject esql) {//11
+		// W, C and R reservations over all cruises, then per cruise through the report output
+		try {
+			long[] totals = esql.getStatusCounts().totals();
+			System.out.println("All cruises: W=" + totals[0] + " C=" + totals[1] + " R=" + totals[2]);
+			try {
+				esql.executeReadQueryAndPrintResult("ShowStatusHistogram", "SELECT cruise_id AS cnum, waitlisted AS w, completed AS c, reserved AS r FROM CruiseStatusCount ORDER BY cruise_id;");
+			} catch (SQLException e) {
+				if (!"42P01".equals(e.getSQLState())) {
+					throw e;
+				}
+				//summary table missing, schema not migrated yet
+				esql.executeReadQueryAndPrintResult("ShowStatusHistogram.scan", "SELECT cid AS cnum, count(*) FILTER (WHERE status = 'W') AS w, count(*) FILTER (WHERE status = 'C') AS c, count(*) FILTER (WHERE status = 'R') AS r FROM Reservation GROUP BY cid ORDER BY cid;");
+			}
+		} catch (Exception e) {
+			System.err.println("Error, could not show the status histogram" + describe(e));
+		}
+	}
+
+	public static void SearchCruises(DBproject esql) {//13
+		// Cruises between two ports departing in a window with enough free seats, a page at a time
+		try {
+			System.out.print("Enter departure port (blank for any): ");
+			String from = in.readLine();
+			System.out.print("Enter arrival port (blank for any): ");
+			String to = in.readLine();
+			LocalDate first, last;
+			do {
+				System.out.print("Enter first and last departure date (YYYY-MM-DD YYYY-MM-DD): ");
+				try {
+					String[] days = in.readLine().trim().split("\\s+");
+					first = LocalDate.parse(days[0]);
+					last = LocalDate.parse(days.length > 1 ? days[1] : days[0]);
+					break;
+				} catch (Exception e) {
+					System.out.println("Invalid dates, please try again");
+					continue;
+				}
+			} while (true);
+			int minSeats;
+			do {
+				System.out.print("Enter minimum free seats: ");
+				try {
+					minSeats = Integer.parseInt(in.readLine().trim());
+					break;
+				} catch (Exception e) {
+					System.out.println("Invalid number, please try again");
+					continue;
+				}
+			} while (true);
+			CruiseSearch.Query query = new CruiseSearch.Query(from, to, first, last, minSeats);
+			CruiseSearch.After after = CruiseSearch.After.START;
+			while (true) {
+				CruiseSearch.Page page = esql.getService().searchCruises(query, after, SEARCH_PAGE_SIZE);
+				for (CruiseSearch.Hit hit : page.hits()) {
+					System.out.println(hit.cnum() + "\t" + hit.departure() + "\t" + hit.fromPort() + " -> " + hit.toPort() + "\t" + hit.freeSeats() + " free");
+				}
+				if (page.next() == null) {
+					break;
+				}
+				System.out.print("Show more? (y/n): ");
+				if (!in.readLine().trim().equalsIgnoreCase("y")) {
+					break;
+				}
+				after = page.next();
+			}
+		} catch (Exception e) {
+			System.err.println("Error, could not search cruises" + describe(e));
+		}
+	}
+
+	public static void ShowScheduleConflicts(DBproject esql) {//14
+		// List every pair of sailings of one captain or ship on overlapping days
+		try {
+			PrintScheduleConflicts(esql);
+		} catch (Exception e) {
+			System.err.println("Error, could not list the conflicts" + describe(e));
+		}
+	}
+
+	/**
+	 * Method to print the report of ScheduleConflicts.
+	 *
+	 * @return the number of conflicts printed
+	 * @throws java.sql.SQLException when the sailings could not be read
+	 */
+	static int PrintScheduleConflicts(DBproject esql) throws SQLException {
+		long start = System.nanoTime();
+		List<ScheduleConflicts.Conflict> found = esql.getScheduleConflicts().report();
+		for (ScheduleConflicts.Conflict c : found) {
+			System.out.println(c);
+		}
+		System.out.printf("%d conflicts (%.1f ms)%n", found.size(), (System.nanoTime() - start) / 1e6);
+		return found.size();
+	}
+
+	public static void SetReportOutput(DBproject esql) {//10
+		// Choose the format of printed reports and whether they go to the screen or a file
+		try {
+			ResultRenderer.Format format;
+			do {
+				System.out.print("Enter format (TSV, CSV, TABLE, JSONL): ");
+				try {
+					format = ResultRenderer.Format.valueOf(in.readLine().trim().toUpperCase());
+					break;
+				} catch (Exception e) {
+					System.out.println("Invalid format, please try again");
+					continue;
+				}
+			} while (true);
+			System.out.print("Enter output file (blank for screen): ");
+			String file = in.readLine().trim();
+			if (file.isEmpty()) {
+				esql.setReportOutput(ReportOutput.console(format));
+			} else {
+				esql.setReportOutput(ReportOutput.file(Paths.get(file), format));
+			}
+			System.out.println("Reports now go as " + esql.getReportOutput());
+		} catch (Exception e) {
+			System.err.println("Error, could not change the report output" + describe(e));
 		}
 	}
 }
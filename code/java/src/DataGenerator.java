@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Writes the nine CSV files of code/data at a chosen scale factor, in the
+ * layout BulkLoader and create.sql expect.  Scale 1 matches the shipped data
+ * set (67 ships, 250 customers, 2,000 cruises, 10,000 reservations); scale
+ * 10,000 gives 100M reservations.
+ *
+ * Every value is a pure function of the seed, the table and the row id, so
+ * the output is identical for the same seed no matter how many threads
+ * write it, and rows that must agree (a cruise and its schedule) are
+ * computed from the same inputs.  The one exception is a cruise's sold
+ * seats: before writing, a pass over the reservations counts the 'R' rows
+ * of every cruise, num_sold is that count, and on a cruise with more of
+ * them than its ship has seats the ones past the last seat, in rnum order,
+ * are written as 'W'.  Each table is cut into chunks that are rendered in
+ * parallel and written in order through a FileChannel.
+ *
+ * Bookings are skewed: a fifth of all reservations go to a few hot cruises,
+ * and ports are picked with a quadratic bias towards the busy ones.
+ *
+ * Usage: java DataGenerator <outDir> [scale] [seed] [threads]
+ *
+ */
+
+public class DataGenerator{
+	static final int BASE_SHIPS = 67;
+	static final int BASE_CAPTAINS = 250;
+	static final int BASE_CUSTOMERS = 250;
+	static final int BASE_TECHNICIANS = 250;
+	static final int BASE_CRUISES = 2000;
+	static final int BASE_RESERVATIONS = 10000;
+	static final int BASE_REPAIRS = 550;
+
+	private static final int CHUNK_ROWS = 1 << 16;
+	//cruises depart between 2014-01-01 and the end of 2016
+	private static final int FIRST_DAY = (int) LocalDate.of(2014, 1, 1).toEpochDay();
+	private static final int SAILING_DAYS = 3 * 365;
+	private static final int FIRST_REPAIR_DAY = (int) LocalDate.of(2013, 1, 1).toEpochDay();
+	private static final int REPAIR_DAYS = 4 * 365;
+	//share of reservations that go to the hot cruises
+	private static final double HOT_SHARE = 0.2;
+
+	private static final String[] FIRST = {"Armand", "Alberto", "Wyatt", "Maria", "Chen", "Aisha", "Lars", "Priya", "Diego", "Yuki",
+		"Fatima", "Olga", "Kwame", "Sofia", "Liam", "Noor", "Mateo", "Ingrid", "Ravi", "Zoe"};
+	private static final String[] LAST = {"Enderle", "Scarlett", "Ruoff", "Garcia", "Wang", "Okafor", "Nilsson", "Patel", "Rossi", "Tanaka",
+		"Haddad", "Ivanova", "Mensah", "Silva", "Murphy", "Khan", "Lopez", "Berg", "Iyer", "Dubois"};
+	private static final String[] COUNTRY = {"Australia", "Morocco", "India", "Belgium", "South Africa", "Mexico", "Croatia", "Japan",
+		"Norway", "Brazil", "Canada", "Kenya", "Italy", "Chile", "Greece"};
+	private static final String[] STREET = {"Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Oak Lane", "Harbor Road", "Elm Street",
+		"Sunset Blvd.", "Mill Road"};
+	private static final String[] CITY = {"Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Tacoma", "Savannah", "Duluth", "Fresno"};
+	private static final String[][] SHIP_MODELS = {{"Airbus", "A300"}, {"Airbus", "A310"}, {"Boeing", "747"}, {"Boeing", "777"},
+		{"Bombadier", "CRJ900"}, {"Comac", "C919"}, {"Carnival", "Vista"}, {"Royal", "Oasis"}, {"Fincantieri", "Coral"}};
+	private static final String[] STATUS = {"W", "C", "R"};
+	private static final String[] REPAIR_CODE = {"MJ", "MN", "SV"};
+
+	final long seed;
+	final long ships, captains, customers, technicians, cruises, reservations, repairs;
+	final long hotCruises;
+	final int ports;
+	//'R' reservations per cruise, at most the seats of its ship; set by countBookings
+	private int[] _sold;
+	//cruises with more 'R' reservations than seats, and the rnum of the one taking the last seat
+	private final BitSet _oversold = new BitSet();
+	private final Map<Integer, Long> _lastSeat = new HashMap<Integer, Long>();
+
+	public DataGenerator(double scale, long seed){
+		if (scale <= 0){
+			throw new IllegalArgumentException("scale must be positive: " + scale);
+		}
+		this.seed = seed;
+		this.ships = scaled(BASE_SHIPS, scale);
+		this.captains = scaled(BASE_CAPTAINS, scale);
+		this.customers = scaled(BASE_CUSTOMERS, scale);
+		this.technicians = scaled(BASE_TECHNICIANS, scale);
+		this.cruises = scaled(BASE_CRUISES, scale);
+		this.reservations = scaled(BASE_RESERVATIONS, scale);
+		this.repairs = scaled(BASE_REPAIRS, scale);
+		if (this.reservations > Integer.MAX_VALUE || this.cruises > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("scale too large for INTEGER keys: " + scale);
+		}
+		this.hotCruises = Math.max(5, this.cruises / 10000);
+		this.ports = (int) Math.max(50, Math.min(26L * 26 * 26, this.cruises / 100));
+	}
+
+	private static long scaled(int base, double scale){
+		return Math.max(1, Math.round(base * scale));
+	}
+
+	/**
+	 * Renders the rows [from, to) of one table into a buffer.
+	 */
+	interface RowWriter {
+		void write(DataGenerator g, long id, StringBuilder out);
+	}
+
+	private static final class TableJob{
+		final String file;
+		final long rows;
+		final RowWriter writer;
+
+		TableJob(String file, long rows, RowWriter writer){
+			this.file = file;
+			this.rows = rows;
+			this.writer = writer;
+		}
+	}
+
+	TableJob[] jobs(){
+		return new TableJob[]{
+			new TableJob("customer.csv", this.customers, DataGenerator::customer),
+			new TableJob("Captains.csv", this.captains, DataGenerator::captain),
+			new TableJob("Ships.csv", this.ships, DataGenerator::ship),
+			new TableJob("technician.csv", this.technicians, DataGenerator::technician),
+			new TableJob("Cruises.csv", this.cruises, DataGenerator::cruise),
+			new TableJob("reservation.csv", this.reservations, DataGenerator::reservation),
+			new TableJob("Cruiseinfo.csv", this.cruises, DataGenerator::cruiseInfo),
+			new TableJob("repairs.csv", this.repairs, DataGenerator::repair),
+			new TableJob("schedule.csv", this.cruises, DataGenerator::schedule),
+		};
+	}
+
+	/**
+	 * Method to write every table into a directory.
+	 *
+	 * @param outDir the directory to write, created if missing
+	 * @param threads the number of rendering threads
+	 * @throws java.io.IOException when a file could not be written
+	 */
+	public void generate(Path outDir, int threads) throws IOException {
+		Files.createDirectories(outDir);
+		ExecutorService pool = Executors.newFixedThreadPool(threads, WorkerThreads.daemonFactory("datagen"));
+		try{
+			long counting = System.nanoTime();
+			countBookings(pool);
+			System.out.printf("%-16s %12d oversold cruises capped %10.2fs%n", "bookings", this._oversold.cardinality(), (System.nanoTime() - counting) / 1e9);
+			for (TableJob job : jobs()){
+				long start = System.nanoTime();
+				long bytes = writeTable(pool, threads, outDir.resolve(job.file), job);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("%-16s %12d rows %8.1f MB %7.2fs%n", job.file, job.rows, bytes / 1e6, seconds);
+			}//end for
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Method to count the 'R' reservations of every cruise, in parallel
+	 * chunks, and to find on each oversold cruise the reservation that takes
+	 * its last seat, in one sequential pass over the reservations.
+	 *
+	 * @throws java.io.IOException when a counting task failed
+	 */
+	void countBookings(ExecutorService pool) throws IOException {
+		AtomicIntegerArray reserved = new AtomicIntegerArray((int) this.cruises);
+		List<Future<Void>> counting = new ArrayList<Future<Void>>();
+		for (long from = 0; from < this.reservations; from += CHUNK_ROWS){
+			long first = from, last = Math.min(this.reservations, from + CHUNK_ROWS);
+			counting.add(pool.submit(() -> {
+				for (long id = first; id < last; ++id){
+					if (reservedStatus(id)){
+						reserved.incrementAndGet((int) cruiseOfReservation(id));
+					}
+				}
+				return null;
+			}));
+		}//end for
+		for (Future<Void> f : counting){
+			await(f);
+		}
+		this._sold = new int[(int) this.cruises];
+		for (int c = 0; c < this._sold.length; ++c){
+			int seats = shipSeats(shipOf(c));
+			this._sold[c] = Math.min(reserved.get(c), seats);
+			if (reserved.get(c) > seats){
+				this._oversold.set(c);
+			}
+		}//end for
+		if (this._oversold.isEmpty()){
+			return;
+		}
+		//the oversold cruises are few, the hot ones, so their ranks fit a small map
+		Map<Integer, int[]> taken = new HashMap<Integer, int[]>();
+		for (long id = 0; id < this.reservations; ++id){
+			if (!reservedStatus(id)){
+				continue;
+			}
+			int c = (int) cruiseOfReservation(id);
+			if (this._oversold.get(c) && ++taken.computeIfAbsent(c, k -> new int[1])[0] == this._sold[c]){
+				this._lastSeat.put(c, id);
+			}
+		}//end for
+	}
+
+	//the status drawn for a reservation before the seat cap
+	private boolean reservedStatus(long rnum){
+		return uniform(RESERVATION, rnum, 5, STATUS.length) == 2;
+	}
+
+	//the status a reservation is written with, 'R' turned into 'W' past the last seat
+	String status(long rnum, long cruise){
+		String status = pick(STATUS, RESERVATION, rnum, 5);
+		if (status.equals("R") && this._oversold.get((int) cruise) && rnum > this._lastSeat.get((int) cruise)){
+			return "W";
+		}
+		return status;
+	}
+
+	private long writeTable(ExecutorService pool, int threads, Path file, TableJob job) throws IOException {
+		long chunks = (job.rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+		//bounded window of rendered chunks, written strictly in order
+		ArrayDeque<Future<ByteBuffer>> window = new ArrayDeque<Future<ByteBuffer>>();
+		long next = 0, bytes = 0;
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			while (next < chunks || !window.isEmpty()){
+				while (next < chunks && window.size() < threads * 2){
+					long from = next * CHUNK_ROWS, to = Math.min(job.rows, from + CHUNK_ROWS);
+					window.add(pool.submit(() -> render(job.writer, from, to)));
+					next++;
+				}
+				ByteBuffer chunk = await(window.poll());
+				while (chunk.hasRemaining()){
+					bytes += out.write(chunk);
+				}
+			}//end while
+		}
+		return bytes;
+	}
+
+	private ByteBuffer render(RowWriter writer, long from, long to){
+		StringBuilder sb = new StringBuilder((int) (to - from) * 48);
+		for (long id = from; id < to; ++id){
+			writer.write(this, id, sb);
+			sb.append('\n');
+		}
+		return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static <T> T await(Future<T> f) throws IOException {
+		try{
+			return f.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		}catch (ExecutionException e){
+			throw new IOException(e.getCause());
+		}
+	}
+
+	// --- value functions, each a pure function of (seed, table, id, field) ---
+
+	private static final long CUSTOMER = 1, CAPTAIN = 2, SHIP = 3, TECHNICIAN = 4, CRUISE = 5,
+		RESERVATION = 6, CRUISEINFO = 7, REPAIR = 8;
+
+	//SplitMix64 finalizer over the seed and the coordinates of a value
+	long hash(long table, long id, int field){
+		long z = this.seed + table * 0x9E3779B97F4A7C15L + id * 0xBF58476D1CE4E5B9L + field * 0x94D049BB133111EBL;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	long uniform(long table, long id, int field, long bound){
+		return Long.remainderUnsigned(hash(table, id, field), bound);
+	}
+
+	double unit(long table, long id, int field){
+		return (hash(table, id, field) >>> 11) * 0x1.0p-53;
+	}
+
+	private <T> T pick(T[] values, long table, long id, int field){
+		return values[(int) uniform(table, id, field, values.length)];
+	}
+
+	int shipSeats(long ship){
+		return 100 + (int) uniform(SHIP, ship, 5, 400);
+	}
+
+	long shipOf(long cruise){
+		return uniform(CRUISEINFO, cruise, 1, this.ships);
+	}
+
+	int departMinute(long cruise){
+		return (int) uniform(CRUISE, cruise, 5, SAILING_DAYS * 1440L);
+	}
+
+	int durationMinutes(long cruise){
+		return 4 * 60 + (int) uniform(CRUISE, cruise, 6, 14 * 24 * 60);
+	}
+
+	String port(long cruise, int field){
+		//quadratic bias: low port numbers are the busy ones
+		double u = unit(CRUISE, cruise, field);
+		int p = (int) (u * u * this.ports);
+		char[] code = new char[5];
+		long h = hash(0, p, 99);
+		for (int i = 0; i < 5; ++i){
+			code[i] = (char) ('A' + Long.remainderUnsigned(h >>> (i * 12), 26));
+		}
+		return new String(code);
+	}
+
+	long cruiseOfReservation(long rnum){
+		if (unit(RESERVATION, rnum, 1) < HOT_SHARE){
+			//hot cruises are spread over the key space
+			long hot = uniform(RESERVATION, rnum, 2, this.hotCruises);
+			return hot * (this.cruises / this.hotCruises);
+		}
+		return uniform(RESERVATION, rnum, 3, this.cruises);
+	}
+
+	private static void timestamp(int dayOffset, int minuteOfDay, StringBuilder out){
+		out.append(LocalDate.ofEpochDay(FIRST_DAY + dayOffset));
+		out.append(' ');
+		int h = minuteOfDay / 60, m = minuteOfDay % 60;
+		out.append(h < 10 ? "0" : "").append(h).append(':').append(m < 10 ? "0" : "").append(m);
+	}
+
+	private static void timestamp(int minute, StringBuilder out){
+		timestamp(minute / 1440, minute % 1440, out);
+	}
+
+	static void customer(DataGenerator g, long id, StringBuilder out){
+		LocalDate dob = LocalDate.ofEpochDay(-7300 + g.uniform(CUSTOMER, id, 4, 18000));
+		out.append(id).append(',')
+			.append(g.pick(FIRST, CUSTOMER, id, 1)).append(',')
+			.append(g.pick(LAST, CUSTOMER, id, 2)).append(',')
+			.append(g.uniform(CUSTOMER, id, 3, 2) == 0 ? 'M' : 'F').append(',')
+			.append(dob.getMonthValue()).append('/').append(dob.getDayOfMonth()).append('/').append(dob.getYear()).append(',')
+			.append(1000 + g.uniform(CUSTOMER, id, 5, 9000)).append(' ').append(g.pick(STREET, CUSTOMER, id, 6))
+			.append(' ').append(g.pick(CITY, CUSTOMER, id, 7)).append(',')
+			.append(2000000000L + g.uniform(CUSTOMER, id, 8, 7999999999L)).append(',')
+			.append(10000 + g.uniform(CUSTOMER, id, 9, 89999));
+	}
+
+	static void captain(DataGenerator g, long id, StringBuilder out){
+		out.append(id).append(',')
+			.append(g.pick(FIRST, CAPTAIN, id, 1)).append(' ').append(g.pick(LAST, CAPTAIN, id, 2)).append(',')
+			.append(g.pick(COUNTRY, CAPTAIN, id, 3));
+	}
+
+	static void ship(DataGenerator g, long id, StringBuilder out){
+		String[] model = g.pick(SHIP_MODELS, SHIP, id, 1);
+		out.append(id).append(',').append(model[0]).append(',').append(model[0]).append(model[1]).append(',')
+			.append(g.uniform(SHIP, id, 3, 40)).append(',')
+			.append(g.shipSeats(id));
+	}
+
+	static void technician(DataGenerator g, long id, StringBuilder out){
+		out.append(id).append(',')
+			.append(g.pick(FIRST, TECHNICIAN, id, 1)).append(' ').append(g.pick(LAST, TECHNICIAN, id, 2));
+	}
+
+	static void cruise(DataGenerator g, long id, StringBuilder out){
+		int depart = g.departMinute(id);
+		out.append(id).append(',')
+			.append(150 + g.uniform(CRUISE, id, 1, 601)).append(',')
+			//the 'R' reservations, never more than the assigned ship holds
+			.append(g._sold[(int) id]).append(',')
+			.append(1 + g.uniform(CRUISE, id, 3, 3)).append(',');
+		timestamp(depart, out);
+		out.append(',');
+		timestamp(depart + g.durationMinutes(id), out);
+		out.append(',').append(g.port(id, 7)).append(',').append(g.port(id, 8));
+	}
+
+	static void reservation(DataGenerator g, long id, StringBuilder out){
+		long cruise = g.cruiseOfReservation(id);
+		out.append(id).append(',')
+			.append(g.uniform(RESERVATION, id, 4, g.customers)).append(',')
+			.append(cruise).append(',')
+			.append(g.status(id, cruise));
+	}
+
+	static void cruiseInfo(DataGenerator g, long id, StringBuilder out){
+		out.append(id).append(',').append(id).append(',')
+			.append(g.uniform(CRUISEINFO, id, 2, g.captains)).append(',')
+			.append(g.shipOf(id));
+	}
+
+	static void repair(DataGenerator g, long id, StringBuilder out){
+		out.append(id).append(',')
+			.append(LocalDate.ofEpochDay(FIRST_REPAIR_DAY + g.uniform(REPAIR, id, 1, REPAIR_DAYS))).append(',')
+			.append(g.pick(REPAIR_CODE, REPAIR, id, 2)).append(',')
+			.append(g.uniform(REPAIR, id, 3, g.captains)).append(',')
+			.append(g.uniform(REPAIR, id, 4, g.ships)).append(',')
+			.append(g.uniform(REPAIR, id, 5, g.technicians));
+	}
+
+	static void schedule(DataGenerator g, long id, StringBuilder out){
+		//one sailing per cruise, on the cruise's own dates
+		int depart = g.departMinute(id);
+		out.append(id).append(',').append(id).append(',');
+		timestamp(depart, out);
+		out.append(',');
+		timestamp(depart + g.durationMinutes(id), out);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1){
+			System.err.println("Usage: java DataGenerator <outDir> [scale] [seed] [threads]");
+			return;
+		}
+		double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 166L;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		DataGenerator g = new DataGenerator(scale, seed);
+		System.out.printf("scale=%s seed=%d threads=%d: %d cruises, %d reservations, %d hot cruises, %d ports%n",
+			args.length > 1 ? args[1] : "1", seed, threads, g.cruises, g.reservations, g.hotCruises, g.ports);
+		long start = System.nanoTime();
+		g.generate(Paths.get(args[0]), threads);
+		System.out.printf("done in %.2fs%n", (System.nanoTime() - start) / 1e9);
+	}
+}
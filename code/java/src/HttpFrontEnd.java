@@ -0,0 +1,381 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An embedded HTTP/JSON front end for CruiseService.  Requests are handled
+ * on the worker executor, one virtual thread per request where the JVM has
+ * them, so concurrent clients only wait for pooled connections.
+ *
+ *   POST /ships         {"id", "make", "model", "age", "seats"}  -&gt; {"id"}
+ *   POST /captains      {"id", "fullname", "nationality"}       -&gt; {"id"}
+ *   POST /cruises       {"cnum", "cost", "sold", "stops", "departure", "arrival", "arrivalPort", "departurePort",
+ *                        "captain", "ship"}             -&gt; {"cnum"}
+ *   POST /reservations  {"rnum", "customer", "cnum"}        -&gt; {"rnum", "status": "R"}
+ *   GET  /cruises/&lt;cnum&gt;/seats?date=YYYY-MM-DD           -&gt; {"cnum", "available"}
+ *   GET  /cruises/&lt;cnum&gt;/passengers?status=W|C|R        -&gt; {"cnum", "status", "count"}
+ *   GET  /seats?date=YYYY-MM-DD&amp;cruises=1,2,3           -&gt; [{"cnum", "available"}, ...]
+ *   GET  /cruises/search?from=X&amp;to=Y&amp;first=D1&amp;last=D2&amp;seats=N&amp;limit=20&amp;after=token
+ *                                                        -&gt; {"cruises": [...], "next": token or null}
+ *   GET  /ships/repairs?top=N                            -&gt; [{"ship", "repairs"}, ...]
+ *   GET  /schedule/conflicts                             -&gt; [{"resource", "id", "cnum", "other"}, ...]
+ *   GET  /metrics                                        -&gt; Metrics in the Prometheus text format
+ *
+ * The key of a POST (id, cnum or rnum) may be left out, and the row is then
+ * added under the next key from KeyAllocator; a given key is claimed from it.  A cruise is assigned its captain and ship only when both are given.
+ * Bad input answers 400, a missing resource 404, a duplicate key or a captain or ship already on an overlapping
+ * sailing 409 and any other database error 500, each with {"error": message}.
+ *
+ */
+
+public class HttpFrontEnd{
+	private final CruiseService _service;
+	private final HttpServer _server;
+	private final ExecutorService _workers;
+
+	/**
+	 * Thrown for a request that names nothing this front end serves.
+	 */
+	static final class NotFound extends RuntimeException{
+		private static final long serialVersionUID = 1L;
+
+		NotFound(String message){
+			super(message);
+		}
+	}
+
+	public HttpFrontEnd(CruiseService service, int port, int fallbackThreads) throws IOException {
+		this._service = service;
+		this._server = HttpServer.create(new InetSocketAddress(port), 0);
+		this._workers = WorkerThreads.newExecutor("http", fallbackThreads);
+		this._server.setExecutor(this._workers);
+		this._server.createContext("/", this::handle);
+	}
+
+	public void start(){
+		this._server.start();
+		System.out.println("Serving on port " + this._server.getAddress().getPort()
+			+ (WorkerThreads.hasVirtualThreads() ? " (virtual threads)" : " (platform threads)"));
+	}
+
+	public void stop(){
+		this._server.stop(1);
+		this._workers.shutdownNow();
+	}
+
+	private void handle(HttpExchange ex) throws IOException {
+		if (ex.getRequestMethod().equals("GET") && ex.getRequestURI().getPath().equals("/metrics")){
+			StringWriter text = new StringWriter();
+			this._service.getDatabase().getMetrics().writePrometheus(text);
+			send(ex, 200, "text/plain; version=0.0.4", text.toString());
+			return;
+		}
+		int code = 200;
+		String body;
+		try{
+			body = route(ex.getRequestMethod(), ex.getRequestURI().getPath(), query(ex.getRequestURI().getRawQuery()), ex);
+		}catch (NotFound e){
+			code = 404;
+			body = error(e.getMessage());
+		}catch (ScheduleConflicts.Conflicting e){
+			code = 409;
+			body = error(e.getMessage());
+		}catch (IllegalArgumentException | DateTimeParseException e){
+			code = 400;
+			body = error(e.getMessage());
+		}catch (SQLException e){
+			//unique or exclusion violation, or the referenced customer or cruise does not exist
+			code = "23505".equals(e.getSQLState()) || "23P01".equals(e.getSQLState()) ? 409 : "23503".equals(e.getSQLState()) ? 400 : 500;
+			body = error(e.getMessage());
+		}catch (RuntimeException e){
+			code = 500;
+			body = error(String.valueOf(e));
+		}//end try
+		send(ex, code, "application/json", body);
+	}
+
+	private static void send(HttpExchange ex, int code, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", contentType);
+		ex.sendResponseHeaders(code, bytes.length);
+		try (OutputStream out = ex.getResponseBody()){
+			out.write(bytes);
+		}
+	}
+
+	private String route(String method, String path, Map<String, String> query, HttpExchange ex) throws SQLException, IOException {
+		String[] parts = path.replaceAll("^/+|/+$", "").split("/");
+		if (method.equals("POST") && parts.length == 1){
+			Map<String, String> f = parseObject(readBody(ex));
+			switch (parts[0]){
+				case "ships":{
+					int id = key(f, "id", KeyAllocator.Key.SHIP);
+					this._service.addShip(id, string(f, "make"), string(f, "model"), integer(f, "age"), integer(f, "seats"));
+					return "{\"id\":" + id + "}";
+				}
+				case "captains":{
+					int id = key(f, "id", KeyAllocator.Key.CAPTAIN);
+					this._service.addCaptain(id, string(f, "fullname"), string(f, "nationality"));
+					return "{\"id\":" + id + "}";
+				}
+				case "cruises":{
+					int cnum = key(f, "cnum", KeyAllocator.Key.CRUISE);
+					if (f.containsKey("captain") || f.containsKey("ship")){
+						this._service.addCruise(cnum, integer(f, "cost"), integer(f, "sold"), integer(f, "stops"), string(f, "departure"),
+							string(f, "arrival"), string(f, "arrivalPort"), string(f, "departurePort"), integer(f, "captain"), integer(f, "ship"));
+					}else{
+						this._service.addCruise(cnum, integer(f, "cost"), integer(f, "sold"), integer(f, "stops"),
+							string(f, "departure"), string(f, "arrival"), string(f, "arrivalPort"), string(f, "departurePort"));
+					}
+					return "{\"cnum\":" + cnum + "}";
+				}
+				case "reservations":{
+					int rnum = key(f, "rnum", KeyAllocator.Key.RESERVATION);
+					char status = this._service.bookCruise(rnum, integer(f, "customer"), integer(f, "cnum"));
+					return "{\"rnum\":" + rnum + ",\"status\":\"" + status + "\"}";
+				}
+				default:
+					break;
+			}
+		}else if (method.equals("GET") && parts.length == 3 && parts[0].equals("cruises")){
+			int cnum = Integer.parseInt(parts[1]);
+			if (parts[2].equals("seats")){
+				int seats = this._service.availableSeats(cnum, LocalDate.parse(string(query, "date")));
+				if (seats == SeatCache.UNKNOWN){
+					throw new NotFound("cruise " + cnum + " has no ship assigned");
+				}
+				if (seats == SeatCache.NO_SAILING){
+					throw new NotFound("cruise " + cnum + " does not depart on " + query.get("date"));
+				}
+				return "{\"cnum\":" + cnum + ",\"available\":" + seats + "}";
+			}
+			if (parts[2].equals("passengers")){
+				String status = string(query, "status");
+				if (status.length() != 1){
+					throw new IllegalArgumentException("status must be W, C or R: " + status);
+				}
+				long count = this._service.passengersWithStatus(cnum, status.charAt(0));
+				return "{\"cnum\":" + cnum + ",\"status\":\"" + status + "\",\"count\":" + count + "}";
+			}
+		}else if (method.equals("GET") && path.equals("/cruises/search")){
+			CruiseSearch.Query q = new CruiseSearch.Query(query.get("from"), query.get("to"), LocalDate.parse(string(query, "first")),
+				LocalDate.parse(string(query, "last")), query.containsKey("seats") ? Integer.parseInt(query.get("seats")) : 1);
+			int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 20;
+			CruiseSearch.Page page = this._service.searchCruises(q, CruiseSearch.After.parse(query.get("after")), limit);
+			StringBuilder sb = new StringBuilder("{\"cruises\":[");
+			for (CruiseSearch.Hit h : page.hits()){
+				sb.append(sb.charAt(sb.length() - 1) == '[' ? "" : ",").append("{\"cnum\":").append(h.cnum())
+					.append(",\"departure\":\"").append(h.departure()).append("\",\"from\":");
+				ResultRenderer.quote(h.fromPort(), sb);
+				sb.append(",\"to\":");
+				ResultRenderer.quote(h.toPort(), sb);
+				sb.append(",\"available\":").append(h.freeSeats()).append('}');
+			}
+			sb.append("],\"next\":");
+			if (page.next() == null){
+				sb.append("null");
+			}else{
+				ResultRenderer.quote(page.next().toString(), sb);
+			}
+			return sb.append('}').toString();
+		}else if (method.equals("GET") && path.equals("/seats")){
+			//one lookup per cruise, run concurrently
+			List<Integer> cnums = new ArrayList<Integer>();
+			for (String cnum : string(query, "cruises").split(",")){
+				cnums.add(Integer.parseInt(cnum.trim()));
+			}
+			List<Integer> seats = AsyncQueries.await(this._service.getDatabase().getAsync().availableSeats(cnums, LocalDate.parse(string(query, "date"))));
+			StringBuilder sb = new StringBuilder("[");
+			for (int i = 0; i < cnums.size(); ++i){
+				int n = seats.get(i);
+				sb.append(i == 0 ? "" : ",").append("{\"cnum\":").append(cnums.get(i)).append(",\"available\":")
+					.append(n == SeatCache.UNKNOWN || n == SeatCache.NO_SAILING ? "null" : String.valueOf(n)).append('}');
+			}
+			return sb.append(']').toString();
+		}else if (method.equals("GET") && path.equals("/ships/repairs")){
+			int top = query.containsKey("top") ? Integer.parseInt(query.get("top")) : Integer.MAX_VALUE;
+			StringBuilder sb = new StringBuilder("[");
+			for (CruiseService.ShipRepairs r : this._service.repairsPerShip(top)){
+				sb.append(sb.length() == 1 ? "" : ",").append("{\"ship\":").append(r.shipId()).append(",\"repairs\":").append(r.repairs()).append('}');
+			}
+			return sb.append(']').toString();
+		}else if (method.equals("GET") && path.equals("/schedule/conflicts")){
+			StringBuilder sb = new StringBuilder("[");
+			for (ScheduleConflicts.Conflict c : this._service.getDatabase().getScheduleConflicts().report()){
+				sb.append(sb.length() == 1 ? "" : ",").append("{\"resource\":\"").append(c.resource().name().toLowerCase())
+					.append("\",\"id\":").append(c.id()).append(",\"cnum\":").append(c.first().cnum())
+					.append(",\"other\":").append(c.second().cnum()).append('}');
+			}
+			return sb.append(']').toString();
+		}//end if
+		throw new NotFound("no route for " + method + " " + path);
+	}
+
+	private static String error(String message){
+		StringBuilder sb = new StringBuilder("{\"error\":");
+		ResultRenderer.quote(message == null ? "" : message, sb);
+		return sb.append('}').toString();
+	}
+
+	private static String readBody(HttpExchange ex) throws IOException {
+		try (InputStream in = ex.getRequestBody()){
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static Map<String, String> query(String raw){
+		Map<String, String> params = new HashMap<String, String>();
+		if (raw == null){
+			return params;
+		}
+		for (String pair : raw.split("&")){
+			int eq = pair.indexOf('=');
+			if (eq > 0){
+				params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+					URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+			}
+		}
+		return params;
+	}
+
+	private static String string(Map<String, String> fields, String name){
+		String value = fields.get(name);
+		if (value == null){
+			throw new IllegalArgumentException("missing field " + name);
+		}
+		return value;
+	}
+
+	//the key given in the request, or the next key when it was left out
+	private int key(Map<String, String> fields, String name, KeyAllocator.Key key) throws SQLException {
+		return fields.containsKey(name) ? integer(fields, name) : this._service.nextKey(key);
+	}
+
+	private static int integer(Map<String, String> fields, String name){
+		try{
+			return Integer.parseInt(string(fields, name));
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException("field " + name + " is not an integer");
+		}
+	}
+
+	/**
+	 * Method to parse a flat JSON object of string, number, boolean and null
+	 * members into their text values; nested values are rejected.
+	 *
+	 * @param json the request body
+	 * @return the members by name, null members left out
+	 */
+	static Map<String, String> parseObject(String json){
+		Map<String, String> fields = new HashMap<String, String>();
+		int[] pos = {skip(json, 0)};
+		expect(json, pos, '{');
+		if (peek(json, pos) == '}'){
+			pos[0]++;
+			return fields;
+		}
+		while (true){
+			String name = parseString(json, pos);
+			expect(json, pos, ':');
+			String value;
+			char c = peek(json, pos);
+			if (c == '"'){
+				value = parseString(json, pos);
+			}else{
+				int start = pos[0];
+				while (pos[0] < json.length() && ",} \t\r\n".indexOf(json.charAt(pos[0])) < 0){
+					pos[0]++;
+				}
+				value = json.substring(start, pos[0]);
+				if (value.isEmpty() || value.startsWith("{") || value.startsWith("[")){
+					throw new IllegalArgumentException("unsupported value for " + name);
+				}
+				if (value.equals("null")){
+					value = null;
+				}
+			}
+			if (value != null){
+				fields.put(name, value);
+			}
+			c = peek(json, pos);
+			pos[0]++;
+			if (c == '}'){
+				return fields;
+			}
+			if (c != ','){
+				throw new IllegalArgumentException("malformed JSON at offset " + (pos[0] - 1));
+			}
+		}//end while
+	}
+
+	private static int skip(String s, int i){
+		while (i < s.length() && Character.isWhitespace(s.charAt(i))){
+			i++;
+		}
+		return i;
+	}
+
+	private static char peek(String s, int[] pos){
+		pos[0] = skip(s, pos[0]);
+		if (pos[0] >= s.length()){
+			throw new IllegalArgumentException("unexpected end of JSON");
+		}
+		return s.charAt(pos[0]);
+	}
+
+	private static void expect(String s, int[] pos, char c){
+		if (peek(s, pos) != c){
+			throw new IllegalArgumentException("expected '" + c + "' at offset " + pos[0]);
+		}
+		pos[0]++;
+	}
+
+	private static String parseString(String s, int[] pos){
+		expect(s, pos, '"');
+		StringBuilder sb = new StringBuilder();
+		while (pos[0] < s.length()){
+			char c = s.charAt(pos[0]++);
+			if (c == '"'){
+				return sb.toString();
+			}
+			if (c != '\\'){
+				sb.append(c);
+				continue;
+			}
+			if (pos[0] >= s.length()){
+				break;
+			}
+			char e = s.charAt(pos[0]++);
+			switch (e){
+				case 'n': sb.append('\n'); break;
+				case 't': sb.append('\t'); break;
+				case 'r': sb.append('\r'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if (pos[0] + 4 > s.length()){
+						throw new IllegalArgumentException("bad escape in JSON string");
+					}
+					sb.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16));
+					pos[0] += 4;
+					break;
+				default: sb.append(e);
+			}
+		}//end while
+		throw new IllegalArgumentException("unterminated JSON string");
+	}
+}
@@ -0,0 +1,203 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class hands out primary keys for new rows from the sequences of
+ * migration V5.  A single nextval reserves a block of BLOCK_SIZE keys, since
+ * each sequence increments by that much.  The keys of the block are then
+ * handed out from memory, so only one insert in BLOCK_SIZE pays for a round
+ * trip.
+ *
+ * Taking a key is a single getAndIncrement on the current block of its
+ * table, so any number of threads may take keys at once, whatever
+ * connection their inserts run on.  The thread that finds a block used up
+ * fetches the next one while the others wait for it.  Keys are unique
+ * across every client of the database, but are neither gapless nor
+ * ordered between clients, and the unused part of a block is lost when the
+ * process exits.
+ *
+ * A key the caller chose itself goes through claim first, which moves the
+ * sequence past it, so no block reserved later holds it.
+ *
+ * Before migration V5 the sequences do not exist and next fails with
+ * SQLState 42P01.
+ *
+ */
+
+public class KeyAllocator{
+	//must equal the INCREMENT BY of the sequences in V5
+	public static final int BLOCK_SIZE = 1000;
+
+	/**
+	 * The tables with an allocated key, and the sequence of each.
+	 */
+	public enum Key{
+		CUSTOMER("customer_id_seq"),
+		CAPTAIN("captain_id_seq"),
+		SHIP("ship_id_seq"),
+		TECHNICIAN("technician_id_seq"),
+		CRUISE("cruise_cnum_seq"),
+		RESERVATION("reservation_rnum_seq"),
+		CRUISE_INFO("cruiseinfo_ciid_seq"),
+		REPAIRS("repairs_rid_seq"),
+		SCHEDULE("schedule_id_seq");
+
+		final String sequence;
+		final String statementKey;
+		final String nextBlockSql;
+		final String claimKey;
+		final String stateSql;
+		final String advanceSql;
+
+		Key(String sequence){
+			this.sequence = sequence;
+			this.statementKey = "KeyAllocator." + sequence;
+			this.nextBlockSql = "SELECT nextval('" + sequence + "');";
+			this.claimKey = "KeyAllocator.claim." + sequence;
+			this.stateSql = "SELECT last_value, is_called FROM " + sequence + ";";
+			this.advanceSql = "SELECT max(nextval('" + sequence + "')) FROM generate_series(1, ?);";
+		}
+	}
+
+	/**
+	 * The keys [next, end) of one reserved block.  next runs past end once
+	 * the block is used up.
+	 */
+	private static final class Block{
+		final AtomicLong next;
+		final long end;
+
+		Block(long start, long end){
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+
+	private final DBproject _esql;
+	//current block of each key, null until the first use
+	private final AtomicReferenceArray<Block> _blocks = new AtomicReferenceArray<Block>(Key.values().length);
+	//a lock, not a monitor, so a virtual thread waiting on the round trip does not pin its carrier
+	private final ReentrantLock[] _refills = new ReentrantLock[Key.values().length];
+	private final LongAdder _issued = new LongAdder();
+	private final LongAdder _fetched = new LongAdder();
+
+	public KeyAllocator(DBproject esql){
+		this._esql = esql;
+		for (int i = 0; i < this._refills.length; ++i){
+			this._refills[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Method to take the next key of a table.
+	 *
+	 * @param key the table
+	 * @return a key no other caller of any client receives
+	 * @throws java.sql.SQLException when a new block could not be reserved,
+	 *         i.e. the sequence is missing or exhausted
+	 */
+	public int next(Key key) throws SQLException {
+		int slot = key.ordinal();
+		while (true){
+			Block block = this._blocks.get(slot);
+			if (block != null){
+				long id = block.next.getAndIncrement();
+				if (id < block.end){
+					this._issued.increment();
+					return (int) id;
+				}
+			}//end if
+			refill(key, block);
+		}//end while
+	}
+
+	/**
+	 * Method to keep a key the caller chose, instead of taking one from next,
+	 * out of every block reserved from now on.  When the key lies beyond the
+	 * sequence, the sequence is moved past it with nextval.  A setval could
+	 * move it back under a concurrent nextval of another client and hand out
+	 * a block twice.  A key below the sequence is left to the unique key of
+	 * its table, as before.  Negative keys are never reserved.
+	 *
+	 * @param key the table
+	 * @param id the key the caller chose
+	 * @throws java.sql.SQLException when the sequence could not be moved,
+	 *         i.e. past its maximum; before migration V5 nothing is done
+	 */
+	public void claim(Key key, int id) throws SQLException {
+		Block block = this._blocks.get(key.ordinal());
+		if (id < 0 || block != null && id < block.end){
+			//below a block this client reserved, so below the sequence
+			return;
+		}
+		try{
+			this._esql.withConnection(key.claimKey, conn -> {
+				PreparedStatement stmt = conn.prepare(key.claimKey, key.stateSql);
+				ResultSet rs = stmt.executeQuery();
+				long nextStart;
+				try{
+					rs.next();
+					nextStart = rs.getLong(1) + (rs.getBoolean(2) ? BLOCK_SIZE : 0);
+				}finally{
+					rs.close();
+				}
+				if (id < nextStart){
+					return null;
+				}
+				//the blocks up to and including the one holding id, never handed out
+				PreparedStatement advance = conn.prepare(key.claimKey + ".advance", key.advanceSql);
+				advance.setLong(1, (id - nextStart) / BLOCK_SIZE + 1);
+				advance.executeQuery().close();
+				return null;
+			});
+		}catch (SQLException e){
+			if (!"42P01".equals(e.getSQLState())){
+				throw e;
+			}
+		}//end try
+	}
+
+	private void refill(Key key, Block used) throws SQLException {
+		int slot = key.ordinal();
+		ReentrantLock refill = this._refills[slot];
+		refill.lock();
+		try{
+			//another thread may have replaced the block while this one waited
+			if (this._blocks.get(slot) != used){
+				return;
+			}
+			long start = this._esql.withConnection(key.statementKey, conn -> {
+				PreparedStatement stmt = conn.prepare(key.statementKey, key.nextBlockSql);
+				ResultSet rs = stmt.executeQuery();
+				try{
+					rs.next();
+					return rs.getLong(1);
+				}finally{
+					rs.close();
+				}
+			});
+			//the last block of an integer sequence may be cut short
+			this._blocks.set(slot, new Block(start, Math.min(start + BLOCK_SIZE, Integer.MAX_VALUE + 1L)));
+			this._fetched.increment();
+		}finally{
+			refill.unlock();
+		}//end try
+	}
+
+	/**
+	 * @return the number of keys handed out
+	 */
+	public long getIssued(){
+		return this._issued.sum();
+	}
+
+	@Override
+	public String toString(){
+		return String.format("keys: issued=%d blocks=%d block-size=%d", this._issued.sum(), this._fetched.sum(), BLOCK_SIZE);
+	}
+}
@@ -0,0 +1,139 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size log-linear histogram of latencies in nanoseconds.  Values
+ * below 64 get a bucket each; above that every power of two is split into
+ * 64 sub-buckets, so a reported percentile is within about 1.6% of the
+ * recorded value at any magnitude.  Recording is lock-free and allocation
+ * free, and many threads may record into the same histogram: the totals
+ * are striped adders, so they do not serialize the recording threads.
+ *
+ */
+
+public class LatencyHistogram{
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	//63 - SUB_BITS + 1 magnitudes of SUB_COUNT buckets each
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _sum = new LongAdder();
+	private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+	static int bucketOf(long value){
+		if (value < SUB_COUNT){
+			return (int) Math.max(0, value);
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	//the largest value that falls into a bucket
+	static long highestIn(int bucket){
+		if (bucket < SUB_COUNT){
+			return bucket;
+		}
+		int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+		long sub = bucket % SUB_COUNT;
+		return ((SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Method to record one latency.
+	 *
+	 * @param nanos the latency in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos){
+		nanos = Math.max(0, nanos);
+		this._counts.incrementAndGet(bucketOf(nanos));
+		this._count.increment();
+		this._sum.add(nanos);
+		this._max.accumulate(nanos);
+	}
+
+	/**
+	 * Method to add every value recorded by another histogram to this one.
+	 *
+	 * @param other the histogram to merge in
+	 */
+	public void add(LatencyHistogram other){
+		for (int i = 0; i < BUCKETS; ++i){
+			long c = other._counts.get(i);
+			if (c != 0){
+				this._counts.addAndGet(i, c);
+			}
+		}
+		this._count.add(other._count.sum());
+		this._sum.add(other._sum.sum());
+		this._max.accumulate(other._max.get());
+	}
+
+	public void reset(){
+		for (int i = 0; i < BUCKETS; ++i){
+			this._counts.set(i, 0);
+		}
+		this._count.reset();
+		this._sum.reset();
+		this._max.reset();
+	}
+
+	public long getCount(){
+		return this._count.sum();
+	}
+
+	public long getMax(){
+		return this._max.get();
+	}
+
+	public double getMean(){
+		long n = this._count.sum();
+		return n == 0 ? 0.0 : this._sum.sum() / (double) n;
+	}
+
+	/**
+	 * Method to read a percentile of the recorded latencies.
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the latency in nanoseconds at or below which that share of the
+	 *         values fall, 0 when nothing was recorded
+	 */
+	public long percentile(double percentile){
+		long n = this._count.sum();
+		if (n == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i){
+			seen += this._counts.get(i);
+			if (seen >= rank){
+				return Math.min(highestIn(i), this._max.get());
+			}
+		}
+		return this._max.get();
+	}
+
+	static String formatNanos(double nanos){
+		if (nanos < 1e3){
+			return String.format("%.0fns", nanos);
+		}
+		if (nanos < 1e6){
+			return String.format("%.1fus", nanos / 1e3);
+		}
+		if (nanos < 1e9){
+			return String.format("%.2fms", nanos / 1e6);
+		}
+		return String.format("%.2fs", nanos / 1e9);
+	}
+
+	@Override
+	public String toString(){
+		return String.format("n=%d mean=%s p50=%s p90=%s p99=%s p99.9=%s max=%s", getCount(),
+			formatNanos(getMean()), formatNanos(percentile(50)), formatNanos(percentile(90)),
+			formatNanos(percentile(99)), formatNanos(percentile(99.9)), formatNanos(getMax()));
+	}
+}
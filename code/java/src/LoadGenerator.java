@@ -0,0 +1,358 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+import java.util.function.LongUnaryOperator;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Open-loop load generator.  It either replays a workload recorded with
+ * DBproject --record, keeping the recorded spacing of the operations, or
+ * runs a synthetic mix of BatchRunner commands at a fixed rate, with inputs
+ * drawn from the loaded keys like OperationBenchmark.
+ *
+ * Every operation has an intended start, its recorded offset divided by
+ * --speed or k / --rate, and the clients, virtual threads where the JVM has
+ * them, take the operations in order and wait for their start.  An
+ * operation is never held back by a slow one before it: when every client
+ * is busy it starts late, and its latency is measured from the intended
+ * start, not from when it ran.  A closed-loop benchmark leaves out that
+ * queueing (coordinated omission) and shows the service time only, which
+ * is printed next to it.
+ *
+ * Rows the commands insert get keys from KeyAllocator.  The keys are read
+ * back from the results, and only those rows are removed again at the end,
+ * restoring the sold counts.
+ *
+ * Usage: java LoadGenerator &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+ *        (--replay &lt;workload log&gt; [--speed 1.0] | --mix book=50,seats=40,passengers=8,repairs=2 [--rate 100])
+ *        [--clients 64] [--pool 16] [--seconds 60] [--warmup 5]
+ *
+ */
+
+public class LoadGenerator{
+	static final String DEFAULT_MIX = "book=50,seats=40,passengers=8,repairs=2";
+	private static final String[] COMMANDS = {"book", "seats", "passengers", "repairs", "add-ship", "add-captain", "add-cruise"};
+
+	/**
+	 * One recorded operation, offset from the start of the log.
+	 */
+	record Recorded(long offsetNanos, long latencyNanos, String command){}
+
+	/**
+	 * The latencies and errors of one command.
+	 */
+	static final class Stats{
+		//from the intended start, what a client of the system would see
+		final LatencyHistogram response = new LatencyHistogram();
+		//from the actual start
+		final LatencyHistogram service = new LatencyHistogram();
+		//as recorded, replay only
+		final LatencyHistogram recorded = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+	}
+
+	private final BatchRunner _runner;
+	private final OperationBenchmark.Fixture _fixture;
+	private final Map<String, Stats> _stats = new ConcurrentHashMap<String, Stats>();
+	//how far behind its intended start the latest operation began
+	private final AtomicLong _maxLag = new AtomicLong();
+
+	LoadGenerator(OperationBenchmark.Fixture fixture){
+		this._fixture = fixture;
+		this._runner = new BatchRunner(fixture.esql.getService(), 1);
+	}
+
+	/**
+	 * Method to read a workload log written by WorkloadRecorder, gzipped
+	 * when its name ends in .gz.
+	 *
+	 * @return the operations in order of their start
+	 * @throws java.io.IOException when the log could not be read or a line
+	 *         is malformed
+	 */
+	static List<Recorded> readLog(Path file) throws IOException {
+		List<Recorded> ops = new ArrayList<Recorded>();
+		InputStream in = Files.newInputStream(file);
+		if (file.getFileName().toString().endsWith(".gz")){
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)){
+			String line;
+			int lineNo = 0;
+			long offset = 0;
+			while ((line = reader.readLine()) != null){
+				lineNo++;
+				String trimmed = line.trim();
+				if (trimmed.isEmpty() || trimmed.startsWith("#")){
+					continue;
+				}
+				String[] f = trimmed.split("\\s+", 3);
+				if (f.length < 3){
+					throw new IOException(file + ":" + lineNo + ": expected <start> <latency> <command>");
+				}
+				try{
+					offset += Long.parseLong(f[0]) * 1000;
+					ops.add(new Recorded(offset, Long.parseLong(f[1]) * 1000, f[2]));
+				}catch (NumberFormatException e){
+					throw new IOException(file + ":" + lineNo + ": " + e.getMessage());
+				}//end try
+			}//end while
+		}
+		//threads record out of order, start the replay at the earliest one
+		ops.sort(Comparator.comparingLong(Recorded::offsetNanos));
+		long first = ops.isEmpty() ? 0 : ops.get(0).offsetNanos();
+		for (int i = 0; i < ops.size(); ++i){
+			Recorded r = ops.get(i);
+			ops.set(i, new Recorded(r.offsetNanos() - first, r.latencyNanos(), r.command()));
+		}
+		return ops;
+	}
+
+	/**
+	 * Method to parse a mix such as book=50,seats=40 into cumulative weights
+	 * in the order of COMMANDS.
+	 *
+	 * @throws IllegalArgumentException for an unknown command or a mix
+	 *         without weight
+	 */
+	static int[] parseMix(String mix){
+		int[] weights = new int[COMMANDS.length];
+		for (String part : mix.split(",")){
+			String[] kv = part.trim().split("=");
+			int c = indexOf(kv[0].trim());
+			if (c < 0 || kv.length != 2){
+				throw new IllegalArgumentException("expected <command>=<weight> with a command of " + String.join(", ", COMMANDS) + ": " + part);
+			}
+			weights[c] += Integer.parseInt(kv[1].trim());
+		}//end for
+		for (int c = 1; c < weights.length; ++c){
+			weights[c] += weights[c - 1];
+		}
+		if (weights[weights.length - 1] <= 0){
+			throw new IllegalArgumentException("the mix has no weight: " + mix);
+		}
+		return weights;
+	}
+
+	private static int indexOf(String command){
+		for (int c = 0; c < COMMANDS.length; ++c){
+			if (COMMANDS[c].equals(command)){
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	//one command of the mix with inputs from the loaded keys, inserts without their key
+	String synthetic(int[] mix, ThreadLocalRandom r){
+		OperationBenchmark.Fixture f = this._fixture;
+		int pick = r.nextInt(mix[mix.length - 1]), c = 0;
+		while (pick >= mix[c]){
+			c++;
+		}
+		int s = f.anySailing(r);
+		switch (COMMANDS[c]){
+			case "book": return "book " + f.anyCustomer(r) + " " + f.sailingCnum[s];
+			case "seats": return "seats " + f.sailingCnum[s] + " " + LocalDate.ofEpochDay(f.sailingDay[s]);
+			case "passengers": return "passengers " + f.sailingCnum[s] + " " + StatusCounts.STATUSES[r.nextInt(StatusCounts.STATUSES.length)];
+			case "repairs": return "repairs 10";
+			case "add-ship": return "add-ship Load Model" + r.nextInt(100) + " " + r.nextInt(40) + " " + (1 + r.nextInt(499));
+			case "add-captain": return "add-captain \"Load Captain\" Nowhere";
+			default: return "add-cruise " + (150 + r.nextInt(600)) + " 0 " + (1 + r.nextInt(3)) + " \"2015-06-01 10:00\" \"2015-06-08 10:00\" LOAD LOAD";
+		}
+	}
+
+	/**
+	 * Method to run operations 0, 1, ... until there are no more or the
+	 * next one is due after the run.
+	 *
+	 * @param offsets the intended start of operation k, from the start of
+	 *        the run, or -1 past the last operation
+	 * @param commands the command of operation k
+	 * @param recorded the recorded operation k, or null for a synthetic mix
+	 * @param clients the number of operations that may run at once
+	 * @param warmupNanos operations due before this are run but not measured
+	 * @param nanos the length of the run
+	 * @return the measured nanoseconds, from the end of the warmup to the
+	 *         last completion
+	 * @throws java.lang.Exception when a client failed
+	 */
+	long run(LongUnaryOperator offsets, LongFunction<String> commands, LongFunction<Recorded> recorded, int clients, long warmupNanos, long nanos) throws Exception {
+		ExecutorService workers = WorkerThreads.newExecutor("load-client", clients);
+		AtomicLong next = new AtomicLong();
+		AtomicLong lastEnd = new AtomicLong();
+		long start = System.nanoTime();
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		try{
+			for (int c = 0; c < clients; ++c){
+				running.add(workers.submit(() -> {
+					while (true){
+						long k = next.getAndIncrement();
+						long offset = offsets.applyAsLong(k);
+						if (offset < 0 || offset >= nanos){
+							return null;
+						}
+						long intended = start + offset, now;
+						while ((now = System.nanoTime()) < intended){
+							LockSupport.parkNanos(intended - now);
+						}
+						String command = commands.apply(k);
+						String result = this._runner.execute((int) k + 1, command);
+						long end = System.nanoTime();
+						created(command, result);
+						lastEnd.accumulateAndGet(end, Math::max);
+						this._maxLag.accumulateAndGet(now - intended, Math::max);
+						if (offset < warmupNanos){
+							continue;
+						}
+						int blank = command.indexOf(' ');
+						Stats stats = this._stats.computeIfAbsent(blank < 0 ? command : command.substring(0, blank), n -> new Stats());
+						stats.response.record(end - intended);
+						stats.service.record(end - now);
+						if (recorded != null){
+							stats.recorded.record(recorded.apply(k).latencyNanos());
+						}
+						if (result.contains("\terror\t")){
+							stats.errors.increment();
+						}
+					}//end while
+				}));
+			}//end for
+			for (Future<?> client : running){
+				client.get();
+			}
+		}finally{
+			workers.shutdownNow();
+		}//end try
+		return Math.max(0, lastEnd.get() - start - warmupNanos);
+	}
+
+	//queues the key of the row a command inserted, see BatchRunner for the results
+	private void created(String command, String result){
+		int ok = result.indexOf("\tok\t");
+		if (ok < 0){
+			return;
+		}
+		String[] out = result.substring(ok + 4).split(" ");
+		String[] in = command.trim().split("\\s+", 3);
+		OperationBenchmark.Fixture f = this._fixture;
+		switch (in[0]){
+			case "add-ship": f.addedShips.add(Integer.valueOf(out[2])); break;
+			case "add-captain": f.addedCaptains.add(Integer.valueOf(out[2])); break;
+			case "add-cruise": f.addedCruises.add(Integer.valueOf(out[2])); break;
+			//"<rnum> <status>" with an allocated key, else the status alone
+			case "book": f.addedRnums.add(Integer.valueOf(out.length == 2 ? out[0] : in[1])); break;
+			default: break;
+		}
+	}
+
+	void print(long nanos, double targetRate, boolean replay){
+		Map<String, Stats> sorted = new TreeMap<String, Stats>(this._stats);
+		Stats total = new Stats();
+		long ops = 0;
+		System.out.printf("%-12s %9s %9s %7s %10s %10s %10s %10s %12s%s%n", "command", "ops", "ops/s", "errors",
+			"p50", "p99", "p99.9", "max", "service p99", replay ? "  recorded p99" : "");
+		for (Map.Entry<String, Stats> e : sorted.entrySet()){
+			Stats s = e.getValue();
+			line(e.getKey(), s, nanos, replay);
+			total.response.add(s.response);
+			total.service.add(s.service);
+			total.recorded.add(s.recorded);
+			total.errors.add(s.errors.sum());
+			ops += s.response.getCount();
+		}//end for
+		line("total", total, nanos, replay);
+		System.out.printf("target %.0f ops/s, achieved %.0f ops/s over %.1fs, latest start %s behind schedule%n",
+			targetRate, ops * 1e9 / Math.max(nanos, 1), nanos / 1e9, LatencyHistogram.formatNanos(this._maxLag.get()));
+	}
+
+	private static void line(String name, Stats s, long nanos, boolean replay){
+		LatencyHistogram h = s.response;
+		System.out.printf("%-12s %9d %9.0f %7d %10s %10s %10s %10s %12s%s%n", name, h.getCount(), h.getCount() * 1e9 / Math.max(nanos, 1),
+			s.errors.sum(), LatencyHistogram.formatNanos(h.percentile(50)), LatencyHistogram.formatNanos(h.percentile(99)),
+			LatencyHistogram.formatNanos(h.percentile(99.9)), LatencyHistogram.formatNanos(h.getMax()),
+			LatencyHistogram.formatNanos(s.service.percentile(99)),
+			replay ? String.format("  %13s", LatencyHistogram.formatNanos(s.recorded.percentile(99))) : "");
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java LoadGenerator <dbname> <port> <user> (--replay <workload log> [--speed 1.0] | --mix " + DEFAULT_MIX
+				+ " [--rate 100]) [--clients 64] [--pool 16] [--seconds 60] [--warmup 5]");
+			return;
+		}
+		String replay = null, mix = null;
+		double speed = 1.0, rate = 100;
+		int clients = 64, pool = ConnectionPool.DEFAULT_MAX_SIZE;
+		long seconds = -1, warmup = 5;
+		for (int i = 3; i + 1 < args.length; i += 2){
+			switch (args[i]){
+				case "--replay": replay = args[i + 1]; break;
+				case "--speed": speed = Double.parseDouble(args[i + 1]); break;
+				case "--mix": mix = args[i + 1]; break;
+				case "--rate": rate = Double.parseDouble(args[i + 1]); break;
+				case "--clients": clients = Integer.parseInt(args[i + 1]); break;
+				case "--pool": pool = Integer.parseInt(args[i + 1]); break;
+				case "--seconds": seconds = Long.parseLong(args[i + 1]); break;
+				case "--warmup": warmup = Long.parseLong(args[i + 1]); break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					return;
+			}
+		}//end for
+		if ((replay == null) == (mix == null) || speed <= 0 || rate <= 0 || clients < 1){
+			System.err.println("Give one of --replay and --mix, a positive --speed and --rate, and at least one client");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+
+		DBproject esql = new DBproject(args[0], args[1], args[2], "", pool);
+		try{
+			OperationBenchmark.Fixture f = new OperationBenchmark.Fixture(esql);
+			LoadGenerator load = new LoadGenerator(f);
+			long warmupNanos = warmup * 1000000000L;
+			long measured;
+			double target;
+			if (replay != null){
+				List<Recorded> ops = readLog(Paths.get(replay));
+				double s = speed;
+				long span = ops.isEmpty() ? 0 : (long) (ops.get(ops.size() - 1).offsetNanos() / s);
+				target = ops.size() * 1e9 / Math.max(span, 1);
+				System.out.printf("replaying %d operations over %.1fs at %.2fx, %d clients%n", ops.size(), span / 1e9, s, clients);
+				measured = load.run(k -> k < ops.size() ? (long) (ops.get((int) k).offsetNanos() / s) : -1,
+					k -> ops.get((int) k).command(), k -> ops.get((int) k), clients, warmupNanos,
+					seconds < 0 ? Long.MAX_VALUE : warmupNanos + seconds * 1000000000L);
+			}else{
+				int[] weights = parseMix(mix);
+				double interval = 1e9 / rate;
+				target = rate;
+				System.out.printf("%d customers, %d sailings sampled; mix %s at %.0f ops/s, %d clients%n", f.customers, f.sailingCnum.length, mix, rate, clients);
+				measured = load.run(k -> (long) (k * interval), k -> load.synthetic(weights, ThreadLocalRandom.current()), null, clients,
+					warmupNanos, warmupNanos + (seconds < 0 ? 60 : seconds) * 1000000000L);
+			}//end if
+			load.print(measured, target, replay != null);
+			f.cleanup();
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
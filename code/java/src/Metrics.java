@@ -0,0 +1,303 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects latency histograms, row counts and errors for every
+ * menu operation and every prepared statement key.  A statement's time is
+ * split into the phases of a call: waiting for a pooled connection,
+ * executing up to the first batch of rows, fetching the remaining batches
+ * and rendering the rows to the report output.
+ *
+ * Recording costs a map lookup, two clock reads per phase and a few atomic
+ * increments; rows are timed only on the streaming paths.  When disabled,
+ * start() returns 0 and nothing is recorded.  The numbers can be printed
+ * or written in the Prometheus text format.
+ *
+ */
+
+public class Metrics{
+	public enum Phase {
+		ACQUIRE, EXECUTE, FETCH, RENDER, TOTAL;
+
+		final String label = name().toLowerCase();
+	}
+
+	/**
+	 * A unit of work that is timed as a whole.
+	 */
+	public interface Call<T> {
+		T call() throws SQLException;
+	}
+
+	/**
+	 * The histograms and counters of one operation or statement.
+	 */
+	public final class Timer{
+		private final String _name;
+		//created on first use, most statements never render
+		private final AtomicReferenceArray<LatencyHistogram> _phases = new AtomicReferenceArray<LatencyHistogram>(Phase.values().length);
+		private final LongAdder _rows = new LongAdder();
+		private final ConcurrentHashMap<String, LongAdder> _errors = new ConcurrentHashMap<String, LongAdder>();
+
+		Timer(String name){
+			this._name = name;
+		}
+
+		public String name(){
+			return this._name;
+		}
+
+		/**
+		 * @return the current time to hand to record, 0 when metrics are off
+		 */
+		public long start(){
+			return Metrics.this._enabled ? System.nanoTime() : 0;
+		}
+
+		/**
+		 * Method to record the time of a phase that began at start.
+		 *
+		 * @param phase the phase that ended now
+		 * @param start the value of start() when the phase began
+		 * @return the current time, the start of the next phase, or 0 when
+		 *         nothing was recorded
+		 */
+		public long record(Phase phase, long start){
+			if (start == 0){
+				return 0;
+			}
+			long now = System.nanoTime();
+			histogram(phase).record(now - start);
+			return now;
+		}
+
+		/**
+		 * Method to record a phase time that was summed over many rows.
+		 */
+		public void recordNanos(Phase phase, long nanos){
+			if (Metrics.this._enabled){
+				histogram(phase).record(nanos);
+			}
+		}
+
+		public void rows(long n){
+			if (Metrics.this._enabled){
+				this._rows.add(n);
+			}
+		}
+
+		public void error(SQLException e){
+			if (Metrics.this._enabled){
+				String state = e.getSQLState() == null ? "none" : e.getSQLState();
+				this._errors.computeIfAbsent(state, s -> new LongAdder()).increment();
+			}
+		}
+
+		/**
+		 * Method to run a call and record its total time and its error, if any.
+		 */
+		public <T> T time(Call<T> call) throws SQLException {
+			long start = start();
+			try{
+				return call.call();
+			}catch (SQLException e){
+				error(e);
+				throw e;
+			}finally{
+				record(Phase.TOTAL, start);
+			}//end try
+		}
+
+		public LatencyHistogram histogram(Phase phase){
+			LatencyHistogram h = this._phases.get(phase.ordinal());
+			if (h == null){
+				this._phases.compareAndSet(phase.ordinal(), null, new LatencyHistogram());
+				h = this._phases.get(phase.ordinal());
+			}
+			return h;
+		}
+
+		public long getCalls(){
+			LatencyHistogram total = this._phases.get(Phase.TOTAL.ordinal());
+			return total == null ? 0 : total.getCount();
+		}
+
+		public long getRows(){
+			return this._rows.sum();
+		}
+
+		public Map<String, Long> getErrors(){
+			Map<String, Long> errors = new TreeMap<String, Long>();
+			this._errors.forEach((state, n) -> errors.put(state, n.sum()));
+			return errors;
+		}
+
+		void reset(){
+			for (int i = 0; i < this._phases.length(); ++i){
+				this._phases.set(i, null);
+			}
+			this._rows.reset();
+			this._errors.clear();
+		}
+
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			sb.append(this._name).append(": calls=").append(getCalls()).append(" rows=").append(getRows());
+			Map<String, Long> errors = getErrors();
+			if (!errors.isEmpty()){
+				sb.append(" errors=").append(errors);
+			}
+			for (Phase phase : Phase.values()){
+				LatencyHistogram h = this._phases.get(phase.ordinal());
+				if (h != null && h.getCount() > 0){
+					sb.append(String.format("%n    %-8s %s", phase.label, h));
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	private final ConcurrentHashMap<String, Timer> _operations = new ConcurrentHashMap<String, Timer>();
+	private final ConcurrentHashMap<String, Timer> _statements = new ConcurrentHashMap<String, Timer>();
+	private volatile boolean _enabled = true;
+
+	/**
+	 * @param name the menu operation, i.e. AddShip
+	 * @return the timer of the operation
+	 */
+	public Timer operation(String name){
+		Timer t = this._operations.get(name);
+		return t != null ? t : this._operations.computeIfAbsent(name, Timer::new);
+	}
+
+	/**
+	 * @param key the prepared statement key, i.e. BookCruise.book
+	 * @return the timer of the statement
+	 */
+	public Timer statement(String key){
+		Timer t = this._statements.get(key);
+		return t != null ? t : this._statements.computeIfAbsent(key, Timer::new);
+	}
+
+	public boolean isEnabled(){
+		return this._enabled;
+	}
+
+	public void setEnabled(boolean enabled){
+		this._enabled = enabled;
+	}
+
+	/**
+	 * Method to forget everything recorded so far.
+	 */
+	public void reset(){
+		this._operations.values().forEach(Timer::reset);
+		this._statements.values().forEach(Timer::reset);
+	}
+
+	/**
+	 * Method to print every operation and statement that was used.
+	 *
+	 * @param out where to print
+	 */
+	public void print(PrintStream out){
+		out.println("operations" + (this._enabled ? ":" : " (metrics disabled):"));
+		for (Timer t : new TreeMap<String, Timer>(this._operations).values()){
+			out.println("  " + t);
+		}
+		out.println("statements:");
+		for (Timer t : new TreeMap<String, Timer>(this._statements).values()){
+			out.println("  " + t);
+		}
+	}
+
+	/**
+	 * Method to write the metrics in the Prometheus text exposition format.
+	 * Latencies are summaries in seconds with the 0.5, 0.9, 0.99 and 0.999
+	 * quantiles.
+	 *
+	 * @param out where to write
+	 * @throws java.io.IOException when writing failed
+	 */
+	public void writePrometheus(Writer out) throws IOException {
+		writePrometheus(out, "operation", this._operations);
+		writePrometheus(out, "statement", this._statements);
+		out.flush();
+	}
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private static void writePrometheus(Writer out, String kind, Map<String, Timer> timers) throws IOException {
+		Map<String, Timer> sorted = new TreeMap<String, Timer>(timers);
+		String base = "dbproject_" + kind;
+		out.write("# HELP " + base + "_seconds Latency per " + kind + " and phase.\n");
+		out.write("# TYPE " + base + "_seconds summary\n");
+		for (Timer t : sorted.values()){
+			for (Phase phase : Phase.values()){
+				LatencyHistogram h = t._phases.get(phase.ordinal());
+				if (h == null){
+					continue;
+				}
+				String labels = kind + "=\"" + escape(t._name) + "\",phase=\"" + phase.label + "\"";
+				for (double q : QUANTILES){
+					out.write(base + "_seconds{" + labels + ",quantile=\"" + q + "\"} " + seconds(h.percentile(q * 100)) + "\n");
+				}
+				out.write(base + "_seconds_sum{" + labels + "} " + seconds(h.getMean() * h.getCount()) + "\n");
+				out.write(base + "_seconds_count{" + labels + "} " + h.getCount() + "\n");
+			}//end for
+		}//end for
+		out.write("# HELP " + base + "_rows_total Rows returned or affected per " + kind + ".\n");
+		out.write("# TYPE " + base + "_rows_total counter\n");
+		for (Timer t : sorted.values()){
+			out.write(base + "_rows_total{" + kind + "=\"" + escape(t._name) + "\"} " + t.getRows() + "\n");
+		}
+		out.write("# HELP " + base + "_errors_total Failed calls per " + kind + " and SQLState.\n");
+		out.write("# TYPE " + base + "_errors_total counter\n");
+		for (Timer t : sorted.values()){
+			for (Map.Entry<String, Long> e : t.getErrors().entrySet()){
+				out.write(base + "_errors_total{" + kind + "=\"" + escape(t._name) + "\",sqlstate=\"" + escape(e.getKey()) + "\"} " + e.getValue() + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Method to replace a file with the Prometheus text of the metrics, for
+	 * a node exporter textfile collector.  The text is written to a
+	 * temporary file first and renamed, so a scrape never sees half a file.
+	 *
+	 * @param file the file to replace
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public void writePrometheus(Path file) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try{
+			try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)){
+				writePrometheus(out);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally{
+			Files.deleteIfExists(tmp);
+		}//end try
+	}
+
+	private static String seconds(double nanos){
+		return Double.toString(nanos / 1e9);
+	}
+
+	private static String escape(String label){
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmark of the seven menu operations against a loaded database, i.e.
+ * one built by createPostgreDB.sh from code/data or from DataGenerator
+ * output.  Each operation runs the same statements as its menu action, with
+ * random inputs drawn from the loaded keys, for a warmup period and then a
+ * measured period at every requested thread count.  For each run it prints
+ * the throughput, the latency percentiles and the bytes allocated per
+ * operation by the client threads.
+ *
+ * Rows written by the insert and booking operations get keys above the
+ * current maximum.  The fixture keeps the key of every row it inserted and
+ * removes exactly those rows after each run, restoring the sold counts.
+ *
+ * BookDirect and BookQueued run the same bookings one commit each and
+ * through the group-commit BookingQueue; compare them at a high thread
+ * count, i.e. --ops BookDirect,BookQueued --threads 64.
+ *
+ * The same operations run under JMH through bind, see code/java/jmh and
+ * the jmh profile of the pom.
+ *
+ * Usage: java OperationBenchmark <dbname> <port> <user> [--threads 1,8]
+ *        [--seconds 10] [--warmup 3] [--ops AddShip,RepairsPerShip,...]
+ *        [--queue-batch 256] [--queue-linger 200]
+ *
+ */
+
+public class OperationBenchmark{
+	private static final char[] STATUS = StatusCounts.STATUSES;
+	//bound on the sailings sampled for the seat lookups
+	private static final int SAILING_SAMPLE = 100000;
+	//bound on the customer ids sampled for the bookings
+	private static final int CUSTOMER_SAMPLE = 100000;
+	//the two entries of bind that are not operations
+	public static final String CLEANUP = "cleanup", CLOSE = "close";
+
+	/**
+	 * One benchmarked operation, called repeatedly by every client thread.
+	 */
+	interface Operation {
+		void run(Fixture f, ThreadLocalRandom random) throws SQLException, IOException;
+	}
+
+	/**
+	 * The keys the operations draw their inputs from and the keys of the
+	 * rows they inserted.  Fresh keys come from the KeyAllocator, as for
+	 * every other client, so a run next to live traffic never collides.
+	 */
+	static final class Fixture{
+		final DBproject esql;
+		final int ships, customers, cruises;
+		final int[] sailingCnum, sailingDay, customerIds;
+		//the rows inserted since the last cleanup, the only ones it removes
+		final Queue<Integer> addedShips = new ConcurrentLinkedQueue<Integer>();
+		final Queue<Integer> addedCaptains = new ConcurrentLinkedQueue<Integer>();
+		final Queue<Integer> addedCruises = new ConcurrentLinkedQueue<Integer>();
+		final Queue<Integer> addedRnums = new ConcurrentLinkedQueue<Integer>();
+		//the group-commit queue of BookQueued, set before any run starts
+		BookingQueue queue;
+
+		Fixture(DBproject esql) throws SQLException {
+			this.esql = esql;
+			this.ships = count("SELECT COUNT(*) FROM Ship;");
+			this.customers = count("SELECT COUNT(*) FROM Customer;");
+			this.cruises = count("SELECT COUNT(*) FROM Cruise;");
+
+			int[] cnum = new int[SAILING_SAMPLE], day = new int[SAILING_SAMPLE];
+			int[] n = new int[1];
+			esql.executeQueryStreaming("SELECT C.cnum, C.actual_departure_date - DATE '1970-01-01' FROM Cruise C, CruiseInfo CI"
+				+ " WHERE CI.cruise_id = C.cnum LIMIT " + SAILING_SAMPLE + ";", DBproject.DEFAULT_FETCH_SIZE, row -> {
+				cnum[n[0]] = row.getInt(1);
+				day[n[0]] = row.getInt(2);
+				n[0]++;
+			});
+			if (n[0] == 0 || this.customers == 0){
+				throw new SQLException("the database has no cruises with a ship or no customers, load it first");
+			}
+			this.sailingCnum = Arrays.copyOf(cnum, n[0]);
+			this.sailingDay = Arrays.copyOf(day, n[0]);
+
+			//customer ids need not be dense, book with ids that exist
+			int[] ids = new int[CUSTOMER_SAMPLE];
+			int[] c = new int[1];
+			esql.executeQueryStreaming("SELECT id FROM Customer LIMIT " + CUSTOMER_SAMPLE + ";", DBproject.DEFAULT_FETCH_SIZE, row -> {
+				ids[c[0]++] = row.getInt(1);
+			});
+			this.customerIds = Arrays.copyOf(ids, c[0]);
+		}
+
+		private int count(String sql) throws SQLException {
+			return Integer.parseInt(this.esql.executeQueryAndReturnResult(sql).get(0).get(0));
+		}
+
+		void enableQueue(int maxBatch, long lingerMicros){
+			this.esql.enableBookingQueue(maxBatch, lingerMicros);
+			this.queue = this.esql.getBookingQueue();
+		}
+
+		int anySailing(ThreadLocalRandom random){
+			return random.nextInt(this.sailingCnum.length);
+		}
+
+		int anyCustomer(ThreadLocalRandom random){
+			return this.customerIds[random.nextInt(this.customerIds.length)];
+		}
+
+		int nextKey(KeyAllocator.Key key) throws SQLException {
+			return this.esql.getKeys().next(key);
+		}
+
+		/**
+		 * Removes the rows the operations inserted, and nothing else, and
+		 * takes their bookings back out of the sold counts, in one
+		 * transaction.
+		 */
+		void cleanup() throws SQLException {
+			Integer[] rnums = drain(this.addedRnums), cruises = drain(this.addedCruises);
+			Integer[] captains = drain(this.addedCaptains), ships = drain(this.addedShips);
+			this.esql.withConnection("Benchmark.cleanup", conn -> {
+				conn.connection().setAutoCommit(false);
+				delete(conn, "Benchmark.cleanup.sold", "UPDATE Cruise C SET num_sold = C.num_sold - B.n FROM (SELECT cid, COUNT(*) AS n FROM Reservation"
+					+ " WHERE rnum = ANY(?) AND status = 'R' GROUP BY cid) B WHERE C.cnum = B.cid;", rnums);
+				delete(conn, "Benchmark.cleanup.reservations", "DELETE FROM Reservation WHERE rnum = ANY(?);", rnums);
+				delete(conn, "Benchmark.cleanup.cruises", "DELETE FROM Cruise WHERE cnum = ANY(?);", cruises);
+				delete(conn, "Benchmark.cleanup.captains", "DELETE FROM Captain WHERE id = ANY(?);", captains);
+				delete(conn, "Benchmark.cleanup.ships", "DELETE FROM Ship WHERE id = ANY(?);", ships);
+				conn.connection().commit();
+				return null;
+			});
+			this.esql.getSeatCache().invalidateAll();
+			this.esql.getStatusCounts().invalidateAll();
+		}
+
+		private static Integer[] drain(Queue<Integer> keys){
+			List<Integer> drained = new ArrayList<Integer>();
+			Integer key;
+			while ((key = keys.poll()) != null){
+				drained.add(key);
+			}
+			return drained.toArray(new Integer[0]);
+		}
+
+		private static void delete(ConnectionPool.PooledConnection conn, String key, String sql, Integer[] keys) throws SQLException {
+			if (keys.length == 0){
+				return;
+			}
+			PreparedStatement stmt = conn.prepare(key, sql);
+			stmt.setArray(1, conn.connection().createArrayOf("integer", keys));
+			stmt.executeUpdate();
+		}
+	}
+
+	static Map<String, Operation> operations(){
+		Map<String, Operation> ops = new LinkedHashMap<String, Operation>();
+		ops.put("AddShip", (f, r) -> {
+			int id = f.nextKey(KeyAllocator.Key.SHIP);
+			f.esql.executeUpdate("AddShip", "INSERT INTO Ship (id, make, model, age, seats) VALUES (?, ?, ?, ?, ?);",
+				id, "Bench", "Model" + r.nextInt(100), r.nextInt(40), 1 + r.nextInt(499));
+			f.addedShips.add(id);
+		});
+		ops.put("AddCaptain", (f, r) -> {
+			int id = f.nextKey(KeyAllocator.Key.CAPTAIN);
+			f.esql.executeUpdate("AddCaptain", "INSERT INTO Captain (id, fullname, nationality) VALUES (?, ?, ?);",
+				id, "Bench Captain", "Nowhere");
+			f.addedCaptains.add(id);
+		});
+		ops.put("AddCruise", (f, r) -> {
+			int cnum = f.nextKey(KeyAllocator.Key.CRUISE);
+			f.esql.executeUpdate("AddCruise", "INSERT INTO Cruise (cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port) VALUES (?, ?, ?, ?, CAST(? AS DATE), CAST(? AS DATE), ?, ?);",
+				cnum, 150 + r.nextInt(600), 0, 1 + r.nextInt(3), "2015-06-01 10:00", "2015-06-08 10:00", "BENCH", "BENCH");
+			f.addedCruises.add(cnum);
+			f.esql.getSeatCache().invalidate(cnum);
+		});
+		ops.put("BookCruise", (f, r) -> {
+			int customer = f.anyCustomer(r), cnum = f.sailingCnum[f.anySailing(r)], rnum = f.nextKey(KeyAllocator.Key.RESERVATION);
+			f.esql.executeQuery("BookCruise.status", CruiseService.BOOKING_STATUS_SQL, customer, cnum, cnum);
+			f.esql.getBookingEngine().book(rnum, customer, cnum);
+			f.addedRnums.add(rnum);
+		});
+		//the booking statement alone, one commit per booking
+		ops.put("BookDirect", (f, r) -> {
+			int rnum = f.nextKey(KeyAllocator.Key.RESERVATION);
+			f.esql.getBookingEngine().book(rnum, f.anyCustomer(r), f.sailingCnum[f.anySailing(r)]);
+			f.addedRnums.add(rnum);
+		});
+		//the same bookings through the group-commit queue
+		ops.put("BookQueued", (f, r) -> {
+			int rnum = f.nextKey(KeyAllocator.Key.RESERVATION);
+			AsyncQueries.await(f.queue.submit(rnum, f.anyCustomer(r), f.sailingCnum[f.anySailing(r)]));
+			f.addedRnums.add(rnum);
+		});
+		ops.put("AvailableSeats", (f, r) -> {
+			int i = f.anySailing(r);
+			f.esql.getSeatCache().availableSeats(f.sailingCnum[i], f.sailingDay[i]);
+		});
+		ops.put("RepairsPerShip", (f, r) -> {
+			render(f.esql, "ListsTotalNumberOfRepairsPerShip", DBproject.REPAIRS_PER_SHIP_SQL, Integer.MAX_VALUE);
+		});
+		ops.put("PassengersWithStatus", (f, r) -> {
+			f.esql.getStatusCounts().count(f.sailingCnum[f.anySailing(r)], STATUS[r.nextInt(3)]);
+		});
+		return ops;
+	}
+
+	/**
+	 * Method to bind the operations to a new fixture, for the JMH benchmarks
+	 * of code/java/jmh.  JMH wants them in a named package, which cannot
+	 * name the classes of this one, so they call this through reflection
+	 * and get JDK types only.
+	 *
+	 * @return every operation by name, plus CLEANUP, which removes the rows
+	 *         they inserted, and CLOSE, which closes the database
+	 * @throws java.lang.Exception when the driver is missing or the fixture
+	 *         could not be loaded
+	 */
+	public static Map<String, Callable<Object>> bind(String dbname, String port, String user, int poolSize,
+			int queueBatch, long queueLinger) throws Exception {
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(dbname, port, user, "", poolSize);
+		Fixture f;
+		try{
+			f = new Fixture(esql);
+		}catch (SQLException e){
+			esql.cleanup();
+			throw e;
+		}//end try
+		f.enableQueue(queueBatch, queueLinger);
+		Map<String, Callable<Object>> bound = new LinkedHashMap<String, Callable<Object>>();
+		for (Map.Entry<String, Operation> op : operations().entrySet()){
+			Operation run = op.getValue();
+			bound.put(op.getKey(), () -> {
+				run.run(f, ThreadLocalRandom.current());
+				return null;
+			});
+		}//end for
+		bound.put(CLEANUP, () -> {
+			f.cleanup();
+			return null;
+		});
+		bound.put(CLOSE, () -> {
+			esql.cleanup();
+			return null;
+		});
+		return bound;
+	}
+
+	//runs a report through the renderer the menu uses, into a discarding writer
+	private static void render(DBproject esql, String key, String sql, Object... params) throws SQLException, IOException {
+		ResultRenderer renderer = ResultRenderer.create(ResultRenderer.Format.TSV, Writer.nullWriter());
+		esql.executeQueryStreaming(key, sql, DBproject.DEFAULT_FETCH_SIZE, row -> {
+			try{
+				renderer.row(row);
+			}catch (IOException e){
+				throw new SQLException(e);
+			}
+		}, params);
+	}
+
+	/**
+	 * The outcome of one measured run.
+	 */
+	static final class Result{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+		final LongAdder allocated = new LongAdder();
+		long nanos;
+
+		double opsPerSecond(){
+			return this.nanos == 0 ? 0.0 : this.latency.getCount() * 1e9 / this.nanos;
+		}
+
+		long bytesPerOp(){
+			long n = this.latency.getCount();
+			return n == 0 ? 0 : this.allocated.sum() / n;
+		}
+	}
+
+	static Result run(Fixture f, Operation op, int threads, long nanos, boolean measure) throws Exception {
+		//platform threads, so the allocation counter of each client is exact
+		ExecutorService clients = Executors.newFixedThreadPool(threads, WorkerThreads.daemonFactory("bench-client"));
+		com.sun.management.ThreadMXBean mx = allocationBean();
+		Result result = new Result();
+		long start = System.nanoTime(), deadline = start + nanos;
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; ++t){
+			running.add(clients.submit(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long tid = Thread.currentThread().getId();
+				long allocatedBefore = mx == null ? 0 : mx.getThreadAllocatedBytes(tid);
+				long now;
+				while ((now = System.nanoTime()) < deadline){
+					try{
+						op.run(f, random);
+						if (measure){
+							result.latency.record(System.nanoTime() - now);
+						}
+					}catch (SQLException | IOException e){
+						result.errors.increment();
+					}
+				}
+				if (mx != null){
+					result.allocated.add(mx.getThreadAllocatedBytes(tid) - allocatedBefore);
+				}
+				return null;
+			}));
+		}//end for
+		for (Future<?> client : running){
+			client.get();
+		}
+		result.nanos = System.nanoTime() - start;
+		clients.shutdown();
+		return result;
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean(){
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean){
+			com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (mx.isThreadAllocatedMemorySupported()){
+				mx.setThreadAllocatedMemoryEnabled(true);
+				return mx;
+			}
+		}
+		return null;
+	}
+
+	private static int[] parseList(String value){
+		String[] parts = value.split(",");
+		int[] list = new int[parts.length];
+		for (int i = 0; i < parts.length; ++i){
+			list[i] = Integer.parseInt(parts[i].trim());
+		}
+		return list;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java OperationBenchmark <dbname> <port> <user> [--threads 1,8] [--seconds 10] [--warmup 3] [--ops AddShip,RepairsPerShip,...]"
+				+ " [--queue-batch 256] [--queue-linger 200]");
+			return;
+		}
+		int[] threads = {1, Runtime.getRuntime().availableProcessors()};
+		int seconds = 10, warmup = 3, queueBatch = BookingQueue.DEFAULT_MAX_BATCH;
+		long queueLinger = BookingQueue.DEFAULT_LINGER_MICROS;
+		Map<String, Operation> all = operations();
+		List<String> selected = new ArrayList<String>(all.keySet());
+		for (int i = 3; i + 1 < args.length; i += 2){
+			switch (args[i]){
+				case "--threads": threads = parseList(args[i + 1]); break;
+				case "--seconds": seconds = Integer.parseInt(args[i + 1]); break;
+				case "--warmup": warmup = Integer.parseInt(args[i + 1]); break;
+				case "--ops": selected = Arrays.asList(args[i + 1].split(",")); break;
+				case "--queue-batch": queueBatch = Integer.parseInt(args[i + 1]); break;
+				case "--queue-linger": queueLinger = Long.parseLong(args[i + 1]); break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					return;
+			}
+		}//end for
+		Class.forName("org.postgresql.Driver");
+
+		int maxThreads = Arrays.stream(threads).max().getAsInt();
+		DBproject esql = new DBproject(args[0], args[1], args[2], "", Math.max(ConnectionPool.DEFAULT_MAX_SIZE, maxThreads));
+		try{
+			Fixture f = new Fixture(esql);
+			if (selected.contains("BookQueued")){
+				f.enableQueue(queueBatch, queueLinger);
+			}
+			System.out.printf("%d ships, %d customers, %d cruises, %d sailings sampled%n", f.ships, f.customers, f.cruises, f.sailingCnum.length);
+			System.out.printf("%-22s %7s %10s %7s %10s %10s %10s %10s %10s %8s%n",
+				"operation", "threads", "ops/s", "errors", "mean", "p50", "p99", "p99.9", "max", "B/op");
+			for (String name : selected){
+				Operation op = all.get(name);
+				if (op == null){
+					System.err.println("Unknown operation " + name + ", expected one of " + all.keySet());
+					continue;
+				}
+				for (int t : threads){
+					run(f, op, t, warmup * 1000000000L, false);
+					Result r = run(f, op, t, seconds * 1000000000L, true);
+					f.cleanup();
+					LatencyHistogram h = r.latency;
+					System.out.printf("%-22s %7d %10.0f %7d %10s %10s %10s %10s %10s %8d%n", name, t, r.opsPerSecond(), r.errors.sum(),
+						LatencyHistogram.formatNanos(h.getMean()), LatencyHistogram.formatNanos(h.percentile(50)),
+						LatencyHistogram.formatNanos(h.percentile(99)), LatencyHistogram.formatNanos(h.percentile(99.9)),
+						LatencyHistogram.formatNanos(h.getMax()), r.bytesPerOp());
+				}//end for
+			}//end for
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
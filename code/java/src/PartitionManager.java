@@ -0,0 +1,156 @@
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * This class maintains the month partitions of Reservation, Repairs and
+ * Schedule (migration V7) through the SQL functions of migrations V7 and
+ * V11.  ensureAhead gives the coming months their partitions before rows
+ * arrive for them, one month per transaction, so the DEFAULT partition
+ * stays empty.  Rows that arrive anyway wait in DEFAULT and are moved out
+ * DRAIN_BATCH rows per transaction before their month is attached.
+ * archiveBefore detaches the partitions of months that are over, so the
+ * scans and vacuums of the live tables stop reading them.
+ *
+ * Both are meant to run from a scheduled job, i.e. monthly:
+ *   java -cp "lib/*:bin" DBproject &lt;dbname&gt; &lt;port&gt; &lt;user&gt; --partition-ahead 12 --archive-before 2020-01-01
+ *
+ */
+
+public class PartitionManager{
+	public static final int DEFAULT_MONTHS_AHEAD = 12;
+	public static final String[] TABLES = {"reservation", "repairs", "schedule"};
+
+	//rows moved out of DEFAULT per transaction
+	public static final int DRAIN_BATCH = 10000;
+
+	static final String MONTH_SQL = "SELECT partition_month(CAST(? AS regclass), ?);";
+	static final String DRAIN_SQL = "SELECT partition_drain(CAST(? AS regclass), ?, ?);";
+	static final String DEFAULT_MONTHS_SQL = "SELECT partition_default_months(CAST(? AS regclass));";
+	static final String ARCHIVE_SQL = "SELECT archive_partitions(CAST(? AS regclass), ?, ?);";
+	static final String LIST_SQL =
+		"SELECT c.relname, pg_get_expr(c.relpartbound, c.oid), c.reltuples::bigint, pg_total_relation_size(c.oid)" +
+		" FROM pg_inherits i, pg_class c WHERE i.inhparent = CAST(? AS regclass) AND c.oid = i.inhrelid ORDER BY c.relname;";
+
+	private final DBproject _esql;
+
+	public PartitionManager(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to create the partitions of every month from the current one
+	 * through monthsAhead months ahead that do not exist yet, and of every
+	 * month with rows waiting in DEFAULT.
+	 *
+	 * @return the number of partitions created over all tables
+	 * @throws java.sql.SQLException when a partition could not be created,
+	 *         i.e. before migration V11
+	 */
+	public int ensureAhead(int monthsAhead) throws SQLException {
+		if (monthsAhead < 0){
+			throw new IllegalArgumentException("months ahead must not be negative: " + monthsAhead);
+		}
+		LocalDate first = LocalDate.now().withDayOfMonth(1);
+		int created = 0;
+		for (String table : TABLES){
+			TreeSet<LocalDate> months = new TreeSet<LocalDate>(defaultMonths(table));
+			for (int m = 0; m <= monthsAhead; ++m){
+				months.add(first.plusMonths(m));
+			}
+			for (LocalDate month : months){
+				created += ensureMonth(table, month);
+			}
+		}//end for
+		return created;
+	}
+
+	//one month of one table, 1 when its partition was created
+	private int ensureMonth(String table, LocalDate month) throws SQLException {
+		int state = call("PartitionManager.month", MONTH_SQL, table, Date.valueOf(month));
+		if (state >= 0){
+			return state;
+		}
+		//DEFAULT holds rows of the month: one batch per transaction, then the attach
+		while (call("PartitionManager.drain", DRAIN_SQL, table, Date.valueOf(month), DRAIN_BATCH) > 0){
+			//next batch
+		}
+		return 1;
+	}
+
+	private List<LocalDate> defaultMonths(String table) throws SQLException {
+		return this._esql.withConnection("PartitionManager.defaultMonths", conn -> {
+			PreparedStatement stmt = conn.prepare("PartitionManager.defaultMonths", DEFAULT_MONTHS_SQL);
+			stmt.setString(1, table);
+			ResultSet rs = stmt.executeQuery();
+			try{
+				List<LocalDate> months = new ArrayList<LocalDate>();
+				while (rs.next()){
+					months.add(rs.getDate(1).toLocalDate());
+				}
+				return months;
+			}finally{
+				rs.close();
+			}
+		});
+	}
+
+	/**
+	 * Method to detach the partitions of every month that ends on or before
+	 * a day.  The summaries of V2 and V3 keep counting their rows.
+	 *
+	 * @param before the first day still kept
+	 * @param drop true to drop the detached partitions, false to move them to
+	 *        schema archive
+	 * @return the number of partitions detached over all tables
+	 * @throws java.sql.SQLException when a partition could not be detached
+	 */
+	public int archiveBefore(LocalDate before, boolean drop) throws SQLException {
+		int archived = 0;
+		for (String table : TABLES){
+			archived += call("PartitionManager.archive", ARCHIVE_SQL, table, Date.valueOf(before), drop);
+		}
+		return archived;
+	}
+
+	//one function per transaction, so a failure leaves the table as it was
+	private int call(String key, String sql, Object... params) throws SQLException {
+		return this._esql.withConnection(key, conn -> {
+			PreparedStatement stmt = DBproject.bind(conn.prepare(key, sql), params);
+			ResultSet rs = stmt.executeQuery();
+			try{
+				rs.next();
+				return rs.getInt(1);
+			}finally{
+				rs.close();
+			}
+		});
+	}
+
+	/**
+	 * Method to print the partitions of every table with their bounds,
+	 * estimated rows and size.
+	 */
+	public void print() throws SQLException {
+		for (String table : TABLES){
+			this._esql.withReadConnection("PartitionManager.list", conn -> {
+				PreparedStatement stmt = conn.prepare("PartitionManager.list", LIST_SQL);
+				stmt.setString(1, table);
+				ResultSet rs = stmt.executeQuery();
+				try{
+					while (rs.next()){
+						System.out.printf("%-24s %-56s %12d rows %10d kB%n", rs.getString(1), rs.getString(2), rs.getLong(3), rs.getLong(4) / 1024);
+					}
+				}finally{
+					rs.close();
+				}
+				return null;
+			});
+		}//end for
+	}
+}
@@ -0,0 +1,79 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput benchmark for the connection pool.  The same number of client
+ * threads run the seat availability query against a pool of one connection
+ * and then against a pool of N connections, and the queries per second of
+ * both runs are printed.
+ *
+ * Usage: java PoolBenchmark <dbname> <port> <user> [threads] [poolSize] [seconds]
+ *
+ */
+
+public class PoolBenchmark{
+	private static final String SEATS_SQL =
+		"SELECT S.seats - C.num_sold FROM Ship S, Cruise C, CruiseInfo C2 WHERE C.cnum = ? AND C2.cruise_id = C.cnum AND C2.ship_id = S.id;";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java PoolBenchmark <dbname> <port> <user> [threads] [poolSize] [seconds]");
+			return;
+		}
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+		int poolSize = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+		int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+		Class.forName("org.postgresql.Driver");
+
+		double single = run(args, 1, threads, seconds);
+		double pooled = run(args, poolSize, threads, seconds);
+		System.out.printf("threads=%d  1 connection: %.0f q/s  %d connections: %.0f q/s  speedup: %.2fx%n",
+			threads, single, poolSize, pooled, pooled / single);
+	}
+
+	private static double run(String[] args, int poolSize, int threads, int seconds) throws Exception {
+		DBproject esql = new DBproject(args[0], args[1], args[2], "", poolSize);
+		try{
+			int cruises = Math.max(1, Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Cruise;").get(0).get(0)));
+			//warm up every connection and its statement cache
+			measure(esql, threads, 2, cruises);
+			long ops = measure(esql, threads, seconds, cruises);
+			double rate = ops / (double) seconds;
+			System.out.printf("pool=%d threads=%d ops=%d %.0f q/s%n", poolSize, threads, ops, rate);
+			return rate;
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	private static long measure(DBproject esql, int threads, int seconds, int cruises) throws Exception {
+		ExecutorService clients = WorkerThreads.newExecutor("bench-client", threads);
+		LongAdder ops = new LongAdder();
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; ++t){
+			running.add(clients.submit(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.nanoTime() < deadline){
+					try{
+						esql.executeQuery("bench.seats", SEATS_SQL, random.nextInt(cruises));
+						ops.increment();
+					}catch (SQLException e){
+						System.err.println("query failed: " + e.getMessage());
+						return;
+					}
+				}
+			}));
+		}//end for
+		for (Future<?> f : running){
+			f.get();
+		}
+		clients.shutdown();
+		return ops.sum();
+	}
+}
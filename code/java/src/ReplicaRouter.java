@@ -0,0 +1,251 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class decides which database serves a read.  Writes always go to the
+ * primary; reads go to one of the streaming replicas, picked round-robin or
+ * by the fewest requests in flight.  A replica whose replay lag exceeds the
+ * maximum, or that cannot be reached, is skipped until a later lag check
+ * clears it, and when no replica qualifies the read goes to the primary.
+ * Every route keeps its own latency histogram.
+ *
+ */
+
+public class ReplicaRouter{
+	public static final long DEFAULT_MAX_LAG_MS = 5000;
+	public static final long LAG_CHECK_MS = 1000;
+
+	//replay lag in milliseconds, 0 when the replica has replayed all it received
+	static final String LAG_SQL =
+		"SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0" +
+		" WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0" +
+		" ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END;";
+
+	public enum Policy {
+		ROUND_ROBIN, LEAST_LOADED;
+
+		public static Policy parse(String name){
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/**
+	 * One database the router can send work to, with its pool and metrics.
+	 */
+	public static final class Route{
+		private final String _name;
+		private final ConnectionPool _pool;
+		private final LatencyHistogram _latency = new LatencyHistogram();
+		private final AtomicInteger _inFlight = new AtomicInteger();
+		private final LongAdder _failures = new LongAdder();
+		private volatile long _lagMs = 0;
+		private volatile boolean _reachable = true;
+
+		Route(String name, ConnectionPool pool){
+			this._name = name;
+			this._pool = pool;
+		}
+
+		public String name(){
+			return this._name;
+		}
+
+		public ConnectionPool pool(){
+			return this._pool;
+		}
+
+		public LatencyHistogram latency(){
+			return this._latency;
+		}
+
+		public long getLagMillis(){
+			return this._lagMs;
+		}
+
+		/**
+		 * Method to mark the start of a request on this route.
+		 *
+		 * @return the start time to hand to finish
+		 */
+		long begin(){
+			this._inFlight.incrementAndGet();
+			return System.nanoTime();
+		}
+
+		void finish(long start){
+			this._latency.record(System.nanoTime() - start);
+			this._inFlight.decrementAndGet();
+		}
+
+		//a connection to the replica failed, skip it until the next lag check
+		void markUnreachable(){
+			this._failures.increment();
+			this._reachable = false;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%s: in-flight=%d lag=%dms%s failures=%d latency %s", this._name, this._inFlight.get(),
+				this._lagMs, this._reachable ? "" : " (unreachable)", this._failures.sum(), this._latency);
+		}
+	}
+
+	private final Route _primary;
+	private final List<Route> _replicas;
+	private final AtomicInteger _next = new AtomicInteger();
+	private final ScheduledExecutorService _lagChecker;
+	private volatile Policy _policy = Policy.ROUND_ROBIN;
+	private volatile long _maxLagMs = DEFAULT_MAX_LAG_MS;
+	private final LongAdder _fallbacks = new LongAdder();
+
+	/**
+	 * @param primary the pool of the primary, owned by the caller
+	 * @param replicas the pools of the replicas, closed with the router
+	 */
+	public ReplicaRouter(ConnectionPool primary, List<ConnectionPool> replicas){
+		this._primary = new Route("primary", primary);
+		List<Route> routes = new ArrayList<Route>();
+		for (ConnectionPool pool : replicas){
+			routes.add(new Route("replica " + pool.getUrl(), pool));
+		}
+		this._replicas = Collections.unmodifiableList(routes);
+		if (routes.isEmpty()){
+			this._lagChecker = null;
+			return;
+		}
+		this._lagChecker = Executors.newSingleThreadScheduledExecutor(WorkerThreads.daemonFactory("replica-lag"));
+		this._lagChecker.scheduleWithFixedDelay(this::checkLag, 0, LAG_CHECK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public Route primary(){
+		return this._primary;
+	}
+
+	public List<Route> replicas(){
+		return this._replicas;
+	}
+
+	/**
+	 * @return the route that owns a pool, the primary when it is not a replica pool
+	 */
+	public Route routeOf(ConnectionPool pool){
+		for (Route r : this._replicas){
+			if (r._pool == pool){
+				return r;
+			}
+		}
+		return this._primary;
+	}
+
+	/**
+	 * Method to pick the route of a read.
+	 *
+	 * @return a replica within the lag limit, or the primary when there is none
+	 */
+	public Route read(){
+		List<Route> replicas = this._replicas;
+		int n = replicas.size();
+		if (n == 0){
+			return this._primary;
+		}
+		Route best = null;
+		int start = this._policy == Policy.ROUND_ROBIN ? Math.floorMod(this._next.getAndIncrement(), n) : 0;
+		for (int i = 0; i < n; ++i){
+			Route r = replicas.get((start + i) % n);
+			if (!r._reachable || r._lagMs > this._maxLagMs){
+				continue;
+			}
+			if (this._policy == Policy.ROUND_ROBIN){
+				return r;
+			}
+			if (best == null || r._inFlight.get() < best._inFlight.get()){
+				best = r;
+			}
+		}//end for
+		if (best == null){
+			this._fallbacks.increment();
+			return this._primary;
+		}
+		return best;
+	}
+
+	/**
+	 * Measures the replay lag of every replica.  Runs periodically on the lag
+	 * checker thread, and also clears replicas marked unreachable that answer
+	 * again.
+	 */
+	void checkLag(){
+		for (Route r : this._replicas){
+			ConnectionPool.PooledConnection conn = null;
+			try{
+				conn = r._pool.acquire();
+				Statement stmt = conn.connection().createStatement();
+				try{
+					ResultSet rs = stmt.executeQuery(LAG_SQL);
+					rs.next();
+					r._lagMs = (long) rs.getDouble(1);
+					r._reachable = true;
+				}finally{
+					stmt.close();
+				}
+			}catch (SQLException e){
+				if (conn != null && DBproject.isConnectionFailure(e)){
+					conn.markBroken();
+				}
+				r._reachable = false;
+			}finally{
+				r._pool.release(conn);
+			}//end try
+		}//end for
+	}
+
+	public Policy getPolicy(){
+		return this._policy;
+	}
+
+	public void setPolicy(Policy policy){
+		this._policy = policy;
+	}
+
+	public long getMaxLagMillis(){
+		return this._maxLagMs;
+	}
+
+	public void setMaxLagMillis(long maxLagMs){
+		this._maxLagMs = maxLagMs;
+	}
+
+	/**
+	 * Method to stop the lag checks and close the replica pools.  The primary
+	 * pool belongs to the caller.
+	 */
+	public void close(){
+		if (this._lagChecker != null){
+			this._lagChecker.shutdownNow();
+		}
+		for (Route r : this._replicas){
+			r._pool.close();
+		}
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("read routing: policy=%s max-lag=%dms replicas=%d fallbacks-to-primary=%d",
+			this._policy, this._maxLagMs, this._replicas.size(), this._fallbacks.sum()));
+		sb.append("\n  ").append(this._primary);
+		for (Route r : this._replicas){
+			sb.append("\n  ").append(r);
+		}
+		return sb.toString();
+	}
+}
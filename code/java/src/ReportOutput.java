@@ -0,0 +1,98 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The destination of printed reports: standard out or a file, written
+ * through one large buffer instead of a synchronized console write per
+ * cell.  Reports from several threads are serialized on the output.
+ *
+ */
+
+public final class ReportOutput implements AutoCloseable{
+	public static final int BUFFER_SIZE = 1 << 16;
+	public static final int FILE_BUFFER_SIZE = 1 << 20;
+
+	private final Writer _writer;
+	private final FileChannel _channel;
+	private final String _name;
+	private volatile ResultRenderer.Format _format;
+
+	private ReportOutput(Writer writer, FileChannel channel, String name, ResultRenderer.Format format){
+		this._writer = writer;
+		this._channel = channel;
+		this._name = name;
+		this._format = format;
+	}
+
+	/**
+	 * @return an output writing to standard out, bypassing System.out
+	 */
+	public static ReportOutput console(ResultRenderer.Format format){
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), BUFFER_SIZE);
+		return new ReportOutput(w, null, "standard out", format);
+	}
+
+	/**
+	 * Method to open a report file, replacing its contents.
+	 *
+	 * @param path the file to write
+	 * @param format the report format
+	 * @return an output writing to the file through its channel
+	 * @throws java.io.IOException when the file could not be opened
+	 */
+	public static ReportOutput file(Path path, ResultRenderer.Format format) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		Writer w = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), FILE_BUFFER_SIZE), FILE_BUFFER_SIZE);
+		return new ReportOutput(w, channel, path.toString(), format);
+	}
+
+	public ResultRenderer.Format getFormat(){
+		return this._format;
+	}
+
+	public void setFormat(ResultRenderer.Format format){
+		this._format = format;
+	}
+
+	public Writer writer(){
+		return this._writer;
+	}
+
+	/**
+	 * @return a renderer in the current format writing to this output
+	 */
+	public ResultRenderer renderer(){
+		return ResultRenderer.create(this._format, this._writer);
+	}
+
+	/**
+	 * Method to push the buffered report out.  Console output is flushed
+	 * after every report so it does not lag behind the menu prompts.
+	 */
+	public void flush() throws IOException {
+		this._writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this._channel == null){
+			this._writer.flush();
+			return;
+		}
+		this._writer.close();
+	}
+
+	@Override
+	public String toString(){
+		return this._format + " to " + this._name;
+	}
+}
@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * This class writes query results to a character stream in one of several
+ * report formats.  Rows are rendered as they arrive, nothing is held in
+ * memory beyond the current row, and all output goes through the given
+ * writer, which callers back with a large buffer.
+ *
+ */
+
+public abstract class ResultRenderer{
+
+	public enum Format {
+		//tab separated, the historical output of executeQueryAndPrintResult
+		TSV,
+		CSV,
+		//fixed-width columns sized from the column metadata
+		TABLE,
+		//one JSON object per row
+		JSONL
+	}
+
+	protected final Writer _out;
+	protected int _numCol;
+	private long _rowCount = 0;
+
+	protected ResultRenderer(Writer out){
+		this._out = out;
+	}
+
+	public static ResultRenderer create(Format format, Writer out){
+		switch (format){
+			case CSV: return new Csv(out);
+			case TABLE: return new Table(out);
+			case JSONL: return new JsonLines(out);
+			default: return new Tsv(out);
+		}
+	}
+
+	/**
+	 * Method to render one row.  The header is written before the first row,
+	 * so an empty result prints nothing, like the original console output.
+	 *
+	 * @param row the current row of the result
+	 * @throws java.sql.SQLException when reading the row failed
+	 * @throws java.io.IOException when writing failed
+	 */
+	public final void row(ResultRow row) throws SQLException, IOException {
+		if (this._rowCount == 0){
+			this._numCol = row.columnCount();
+			header(row);
+		}
+		body(row);
+		this._rowCount++;
+	}
+
+	/**
+	 * @return the number of rows rendered so far
+	 */
+	public long rowCount(){
+		return this._rowCount;
+	}
+
+	protected abstract void header(ResultRow row) throws SQLException, IOException;
+
+	protected abstract void body(ResultRow row) throws SQLException, IOException;
+
+	private static final class Tsv extends ResultRenderer{
+		Tsv(Writer out){
+			super(out);
+		}
+
+		protected void header(ResultRow row) throws SQLException, IOException {
+			for (int i = 1; i <= this._numCol; i++){
+				this._out.write(row.columnName(i));
+				this._out.write('\t');
+			}
+			this._out.write('\n');
+		}
+
+		protected void body(ResultRow row) throws SQLException, IOException {
+			for (int i = 1; i <= this._numCol; ++i){
+				this._out.write(String.valueOf(row.getString(i)));
+				this._out.write('\t');
+			}
+			this._out.write('\n');
+		}
+	}
+
+	private static final class Csv extends ResultRenderer{
+		Csv(Writer out){
+			super(out);
+		}
+
+		protected void header(ResultRow row) throws SQLException, IOException {
+			for (int i = 1; i <= this._numCol; i++){
+				if (i > 1){
+					this._out.write(',');
+				}
+				field(row.columnName(i));
+			}
+			this._out.write("\r\n");
+		}
+
+		protected void body(ResultRow row) throws SQLException, IOException {
+			for (int i = 1; i <= this._numCol; ++i){
+				if (i > 1){
+					this._out.write(',');
+				}
+				String value = row.getString(i);
+				if (value != null){
+					field(value);
+				}
+			}
+			this._out.write("\r\n");
+		}
+
+		private void field(String value) throws IOException {
+			boolean quote = false;
+			for (int i = 0; i < value.length() && !quote; ++i){
+				char c = value.charAt(i);
+				quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}
+			if (!quote){
+				this._out.write(value);
+				return;
+			}
+			this._out.write('"');
+			for (int i = 0; i < value.length(); ++i){
+				char c = value.charAt(i);
+				if (c == '"'){
+					this._out.write('"');
+				}
+				this._out.write(c);
+			}
+			this._out.write('"');
+		}
+	}
+
+	private static final class Table extends ResultRenderer{
+		//widest column printed, longer values overflow their column
+		private static final int MAX_WIDTH = 40;
+		private int[] _width;
+
+		Table(Writer out){
+			super(out);
+		}
+
+		protected void header(ResultRow row) throws SQLException, IOException {
+			this._width = new int[this._numCol + 1];
+			ResultSetMetaData rsmd = row.resultSet().getMetaData();
+			StringBuilder rule = new StringBuilder();
+			for (int i = 1; i <= this._numCol; i++){
+				int width = Math.min(MAX_WIDTH, Math.max(rsmd.getColumnDisplaySize(i), 4));
+				this._width[i] = Math.max(width, row.columnName(i).length());
+				pad(row.columnName(i), i);
+				rule.append(i > 1 ? "-+-" : "");
+				for (int w = 0; w < this._width[i]; ++w){
+					rule.append('-');
+				}
+			}
+			this._out.write('\n');
+			this._out.write(rule.toString());
+			this._out.write('\n');
+		}
+
+		protected void body(ResultRow row) throws SQLException, IOException {
+			for (int i = 1; i <= this._numCol; ++i){
+				pad(String.valueOf(row.getString(i)), i);
+			}
+			this._out.write('\n');
+		}
+
+		private void pad(String value, int column) throws IOException {
+			if (column > 1){
+				this._out.write(" | ");
+			}
+			this._out.write(value);
+			for (int w = value.length(); w < this._width[column]; ++w){
+				this._out.write(' ');
+			}
+		}
+	}
+
+	private static final class JsonLines extends ResultRenderer{
+		private String[] _keys;
+		private boolean[] _numeric;
+
+		JsonLines(Writer out){
+			super(out);
+		}
+
+		protected void header(ResultRow row) throws SQLException, IOException {
+			this._keys = new String[this._numCol + 1];
+			this._numeric = new boolean[this._numCol + 1];
+			for (int i = 1; i <= this._numCol; i++){
+				StringBuilder key = new StringBuilder();
+				quote(row.columnName(i), key);
+				this._keys[i] = key.append(':').toString();
+				switch (row.columnType(i)){
+					case Types.INTEGER: case Types.BIGINT: case Types.SMALLINT:
+					case Types.NUMERIC: case Types.DECIMAL: case Types.DOUBLE: case Types.REAL:
+						this._numeric[i] = true;
+						break;
+					default:
+						this._numeric[i] = false;
+				}
+			}
+		}
+
+		protected void body(ResultRow row) throws SQLException, IOException {
+			this._out.write('{');
+			StringBuilder value = new StringBuilder();
+			for (int i = 1; i <= this._numCol; ++i){
+				if (i > 1){
+					this._out.write(',');
+				}
+				this._out.write(this._keys[i]);
+				String v = row.getString(i);
+				if (v == null){
+					this._out.write("null");
+				}else if (this._numeric[i]){
+					this._out.write(v);
+				}else{
+					value.setLength(0);
+					quote(v, value);
+					this._out.append(value);
+				}
+			}
+			this._out.write("}\n");
+		}
+	}
+
+	/**
+	 * Appends a JSON string literal of the value.
+	 */
+	static void quote(String value, StringBuilder out){
+		out.append('"');
+		for (int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			switch (c){
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (c < 0x20){
+						out.append(String.format("\\u%04x", (int) c));
+					}else{
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+}
@@ -0,0 +1,77 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * A reusable view of the current row of a streamed result.  The same
+ * instance is handed out for every row, so values must be read (or copied)
+ * before the cursor advances.
+ *
+ */
+
+public final class ResultRow{
+	private final ResultSet _rs;
+	private final ResultSetMetaData _rsmd;
+	private final int _numCol;
+	private long _rowNumber = 0;
+
+	ResultRow(ResultSet rs) throws SQLException {
+		this._rs = rs;
+		this._rsmd = rs.getMetaData();
+		this._numCol = this._rsmd.getColumnCount();
+	}
+
+	void advance(){
+		this._rowNumber++;
+	}
+
+	/**
+	 * @return the 1-based position of the current row in the result
+	 */
+	public long rowNumber(){
+		return this._rowNumber;
+	}
+
+	public int columnCount(){
+		return this._numCol;
+	}
+
+	public String columnName(int column) throws SQLException {
+		return this._rsmd.getColumnName(column);
+	}
+
+	public int columnType(int column) throws SQLException {
+		return this._rsmd.getColumnType(column);
+	}
+
+	public String getString(int column) throws SQLException {
+		return this._rs.getString(column);
+	}
+
+	public int getInt(int column) throws SQLException {
+		return this._rs.getInt(column);
+	}
+
+	public long getLong(int column) throws SQLException {
+		return this._rs.getLong(column);
+	}
+
+	public Date getDate(int column) throws SQLException {
+		return this._rs.getDate(column);
+	}
+
+	/**
+	 * @return true when the column read last was SQL NULL
+	 */
+	public boolean wasNull() throws SQLException {
+		return this._rs.wasNull();
+	}
+
+	/**
+	 * @return the underlying result set, positioned on the current row
+	 */
+	public ResultSet resultSet(){
+		return this._rs;
+	}
+}
@@ -0,0 +1,172 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A forward-only cursor over a query result that is fetched from the server
+ * in batches of the fetch size.  The cursor owns a pooled connection in a
+ * non-autocommit transaction until it is closed, so it must be used in a
+ * try-with-resources block.
+ *
+ */
+
+public final class RowCursor implements Iterator<ResultRow>, AutoCloseable{
+	private final ConnectionPool _pool;
+	private final ConnectionPool.PooledConnection _conn;
+	private final Statement _stmt;
+	private final boolean _ownsStatement;
+	private final ResultSet _rs;
+	private final ResultRow _row;
+	//times the fetch and render phases, recorded when the cursor closes
+	private final Metrics.Timer _timer;
+	private final long _start;
+	private long _fetchNanos = 0, _renderNanos = 0, _rows = 0;
+	private boolean _ready = false;
+	private boolean _done = false;
+	private boolean _closed = false;
+
+	/**
+	 * @param timer the statement's timer
+	 * @param start the timer's start of the whole call, before the acquire
+	 */
+	RowCursor(ConnectionPool pool, ConnectionPool.PooledConnection conn, Statement stmt, boolean ownsStatement, ResultSet rs,
+			Metrics.Timer timer, long start) throws SQLException {
+		this._pool = pool;
+		this._conn = conn;
+		this._stmt = stmt;
+		this._ownsStatement = ownsStatement;
+		this._rs = rs;
+		this._row = new ResultRow(rs);
+		this._timer = timer;
+		this._start = start;
+	}
+
+	public ResultRow row(){
+		return this._row;
+	}
+
+	//the pool the connection of this cursor goes back to
+	ConnectionPool pool(){
+		return this._pool;
+	}
+
+	@Override
+	public boolean hasNext(){
+		if (this._ready){
+			return true;
+		}
+		try{
+			this._ready = fetch();
+			return this._ready;
+		}catch (SQLException e){
+			close();
+			throw new IllegalStateException(e);
+		}//end try
+	}
+
+	/**
+	 * Method to move to the next row, closing the cursor after the last one.
+	 *
+	 * @return true when the shared row view is positioned on a new row
+	 * @throws java.sql.SQLException when fetching the next batch failed
+	 */
+	boolean fetch() throws SQLException {
+		if (step()){
+			return true;
+		}
+		close();
+		return false;
+	}
+
+	/**
+	 * Method to move to the next row and leave the cursor open after the
+	 * last one, for callers that close it themselves.
+	 *
+	 * @return true when the shared row view is positioned on a new row
+	 * @throws java.sql.SQLException when fetching the next batch failed
+	 */
+	boolean step() throws SQLException {
+		if (this._done){
+			return false;
+		}
+		long t = this._start == 0 ? 0 : System.nanoTime();
+		boolean more = this._rs.next();
+		if (t != 0){
+			this._fetchNanos += System.nanoTime() - t;
+		}
+		if (more){
+			++this._rows;
+			return true;
+		}
+		this._done = true;
+		return false;
+	}
+
+	//true when the phases of this cursor are being timed
+	boolean timed(){
+		return this._start != 0;
+	}
+
+	//time spent writing the rows out, recorded with the cursor
+	void rendered(long nanos){
+		this._renderNanos += nanos;
+	}
+
+	/**
+	 * @return the shared row view, now positioned on the next row
+	 */
+	@Override
+	public ResultRow next(){
+		if (!hasNext()){
+			throw new NoSuchElementException();
+		}
+		this._ready = false;
+		this._row.advance();
+		return this._row;
+	}
+
+	/**
+	 * @return a sequential stream over the rows that closes the cursor when
+	 *         the stream is closed
+	 */
+	public Stream<ResultRow> stream(){
+		Spliterator<ResultRow> split = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(split, false).onClose(this::close);
+	}
+
+	/**
+	 * Method to end the transaction and hand the connection back to the pool.
+	 */
+	@Override
+	public void close(){
+		if (this._closed){
+			return;
+		}
+		this._closed = true;
+		try{
+			this._rs.close();
+			if (this._ownsStatement){
+				this._stmt.close();
+			}
+		}catch (SQLException e){
+			this._conn.markBroken();
+		}finally{
+			//release rolls the read-only transaction back and restores autocommit
+			this._pool.release(this._conn);
+			if (this._start != 0){
+				this._timer.recordNanos(Metrics.Phase.FETCH, this._fetchNanos);
+				if (this._renderNanos != 0){
+					this._timer.recordNanos(Metrics.Phase.RENDER, this._renderNanos);
+				}
+				this._timer.rows(this._rows);
+				this._timer.record(Metrics.Phase.TOTAL, this._start);
+			}
+		}//end try
+	}
+}
@@ -0,0 +1,596 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a captain or a ship from being assigned to two sailings
+ * on overlapping days.  A sailing is a CruiseInfo row with the days of its
+ * cruise's Schedule, from the first departure through the last arrival,
+ * both days included.
+ *
+ * The sailings are held in memory in one interval tree per ship and one per
+ * captain: a balanced search tree by first day, where every node also holds
+ * the latest last day below it.  Checking a new assignment visits only the
+ * subtrees that can overlap it, O(log n) plus the conflicts found, and a
+ * successful assignment is added to both of its trees.  The trees are
+ * loaded on first use and reloaded once older than their time-to-live,
+ * which picks up the assignments of other processes.  The trees are only
+ * locked while they are read or changed, never across a query: a reload
+ * reads the sailings into new trees and swaps them in, and an assignment
+ * locks its ship and its captain while it is written.
+ *
+ * report lists every pair of overlapping sailings that already exist,
+ * sweeping each ship and captain in first-day order, the ships and captains
+ * in parallel on the common fork/join pool.
+ *
+ * The exclusion constraints of migration V8 enforce the same rule in the
+ * database, once the existing conflicts are resolved, see enforce.
+ *
+ */
+
+public class ScheduleConflicts{
+	public static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+	//ships or captains swept by one fork/join task
+	static final int REPORT_LEAF = 64;
+	//locks the ships and captains being assigned are spread over, a power of two
+	static final int ASSIGN_STRIPES = 64;
+
+	static final String LOAD_SQL =
+		"SELECT CI.ciid, CI.cruise_id, CI.ship_id, CI.captain_id, min(S.departure_time), max(S.arrival_time)" +
+		" FROM CruiseInfo CI, Schedule S WHERE S.cruiseNum = CI.cruise_id GROUP BY CI.ciid, CI.cruise_id, CI.ship_id, CI.captain_id;";
+	static final String ENFORCE_SQL = "SELECT enforce_sailing_exclusion();";
+
+	/**
+	 * What a sailing occupies.
+	 */
+	public enum Resource{
+		SHIP, CAPTAIN;
+
+		int of(Sailing s){
+			return this == SHIP ? s.ship() : s.captain();
+		}
+	}
+
+	/**
+	 * One assignment, its days as epoch days.
+	 */
+	public record Sailing(int ciid, int cnum, int ship, int captain, int first, int last){
+		public Sailing{
+			if (last < first){
+				throw new IllegalArgumentException("cruise " + cnum + " arrives before it departs: "
+					+ LocalDate.ofEpochDay(first) + " to " + LocalDate.ofEpochDay(last));
+			}
+		}
+
+		public Sailing(int ciid, int cnum, int ship, int captain, LocalDate departure, LocalDate arrival){
+			this(ciid, cnum, ship, captain, (int) departure.toEpochDay(), (int) arrival.toEpochDay());
+		}
+
+		public LocalDate departure(){
+			return LocalDate.ofEpochDay(this.first);
+		}
+
+		public LocalDate arrival(){
+			return LocalDate.ofEpochDay(this.last);
+		}
+
+		@Override
+		public String toString(){
+			return "cruise " + this.cnum + " (" + departure() + " to " + arrival() + ")";
+		}
+	}
+
+	/**
+	 * Two sailings of the same ship or captain on overlapping days.
+	 */
+	public record Conflict(Resource resource, int id, Sailing first, Sailing second){
+		@Override
+		public String toString(){
+			return this.resource.name().toLowerCase() + " " + this.id + ": " + this.first + " overlaps " + this.second;
+		}
+	}
+
+	/**
+	 * Thrown for an assignment that overlaps other sailings of its captain or
+	 * ship.
+	 */
+	public static final class Conflicting extends RuntimeException{
+		private static final long serialVersionUID = 1L;
+		private final transient List<Conflict> _conflicts;
+
+		Conflicting(List<Conflict> conflicts){
+			super(conflicts.size() == 1 ? conflicts.get(0).toString() : conflicts.get(0) + " and " + (conflicts.size() - 1) + " more");
+			this._conflicts = conflicts;
+		}
+
+		public List<Conflict> getConflicts(){
+			return this._conflicts;
+		}
+	}
+
+	/**
+	 * The sailings of one ship or captain, by (first day, ciid).
+	 */
+	static final class IntervalTree{
+		private static final class Node{
+			final Sailing sailing;
+			Node left, right;
+			int height = 1;
+			//latest last day of this subtree
+			int maxLast;
+
+			Node(Sailing sailing){
+				this.sailing = sailing;
+				this.maxLast = sailing.last();
+			}
+		}
+
+		private static final Comparator<Sailing> ORDER = Comparator.comparingInt(Sailing::first).thenComparingInt(Sailing::ciid);
+
+		private Node _root;
+		private int _size;
+
+		/**
+		 * @param sorted sailings in ORDER
+		 */
+		static IntervalTree of(Sailing[] sorted, int from, int to){
+			IntervalTree tree = new IntervalTree();
+			tree._root = build(sorted, from, to);
+			tree._size = to - from;
+			return tree;
+		}
+
+		//halves of equal size, so the heights already satisfy AVL
+		private static Node build(Sailing[] sorted, int from, int to){
+			if (from >= to){
+				return null;
+			}
+			int mid = (from + to) >>> 1;
+			Node n = new Node(sorted[mid]);
+			n.left = build(sorted, from, mid);
+			n.right = build(sorted, mid + 1, to);
+			update(n);
+			return n;
+		}
+
+		void add(Sailing sailing){
+			this._root = insert(this._root, sailing);
+			this._size++;
+		}
+
+		boolean contains(Sailing sailing){
+			Node n = this._root;
+			while (n != null){
+				int c = ORDER.compare(sailing, n.sailing);
+				if (c == 0){
+					return true;
+				}
+				n = c < 0 ? n.left : n.right;
+			}//end while
+			return false;
+		}
+
+		int size(){
+			return this._size;
+		}
+
+		/**
+		 * Method to collect the sailings overlapping [first, last].
+		 */
+		void overlapping(int first, int last, List<Sailing> out){
+			collect(this._root, first, last, out);
+		}
+
+		private static void collect(Node n, int first, int last, List<Sailing> out){
+			while (n != null && n.maxLast >= first){
+				collect(n.left, first, last, out);
+				if (n.sailing.first() > last){
+					//this node and its right subtree start after the window
+					return;
+				}
+				if (n.sailing.last() >= first){
+					out.add(n.sailing);
+				}
+				n = n.right;
+			}//end while
+		}
+
+		private static Node insert(Node n, Sailing sailing){
+			if (n == null){
+				return new Node(sailing);
+			}
+			if (ORDER.compare(sailing, n.sailing) < 0){
+				n.left = insert(n.left, sailing);
+			}else{
+				n.right = insert(n.right, sailing);
+			}
+			return balance(n);
+		}
+
+		private static int height(Node n){
+			return n == null ? 0 : n.height;
+		}
+
+		private static void update(Node n){
+			n.height = 1 + Math.max(height(n.left), height(n.right));
+			int max = n.sailing.last();
+			if (n.left != null){
+				max = Math.max(max, n.left.maxLast);
+			}
+			if (n.right != null){
+				max = Math.max(max, n.right.maxLast);
+			}
+			n.maxLast = max;
+		}
+
+		private static Node balance(Node n){
+			update(n);
+			int skew = height(n.left) - height(n.right);
+			if (skew > 1){
+				if (height(n.left.left) < height(n.left.right)){
+					n.left = rotateLeft(n.left);
+				}
+				return rotateRight(n);
+			}
+			if (skew < -1){
+				if (height(n.right.right) < height(n.right.left)){
+					n.right = rotateRight(n.right);
+				}
+				return rotateLeft(n);
+			}
+			return n;
+		}
+
+		private static Node rotateRight(Node n){
+			Node l = n.left;
+			n.left = l.right;
+			l.right = n;
+			update(n);
+			update(l);
+			return l;
+		}
+
+		private static Node rotateLeft(Node n){
+			Node r = n.right;
+			n.right = r.left;
+			r.left = n;
+			update(n);
+			update(r);
+			return r;
+		}
+	}
+
+	//the sailings of one ship or captain, in IntervalTree.ORDER
+	private record Group(Resource resource, int id, Sailing[] sailings){}
+
+	//sweeps groups [from, to), splitting until REPORT_LEAF are left
+	private static final class Sweep extends RecursiveTask<List<Conflict>>{
+		private static final long serialVersionUID = 1L;
+		private final transient Group[] _groups;
+		private final int _from, _to;
+
+		Sweep(Group[] groups, int from, int to){
+			this._groups = groups;
+			this._from = from;
+			this._to = to;
+		}
+
+		@Override
+		protected List<Conflict> compute(){
+			if (this._to - this._from <= REPORT_LEAF){
+				List<Conflict> found = new ArrayList<Conflict>();
+				for (int g = this._from; g < this._to; ++g){
+					sweep(this._groups[g], found);
+				}
+				return found;
+			}
+			int mid = (this._from + this._to) >>> 1;
+			Sweep left = new Sweep(this._groups, this._from, mid);
+			left.fork();
+			List<Conflict> right = new Sweep(this._groups, mid, this._to).compute();
+			List<Conflict> found = left.join();
+			found.addAll(right);
+			return found;
+		}
+
+		//every later sailing that departs before this one arrives overlaps it
+		private static void sweep(Group group, List<Conflict> found){
+			Sailing[] s = group.sailings();
+			for (int i = 0; i < s.length; ++i){
+				for (int j = i + 1; j < s.length && s[j].first() <= s[i].last(); ++j){
+					found.add(new Conflict(group.resource(), group.id(), s[i], s[j]));
+				}
+			}//end for
+		}
+	}
+
+	//the trees and their size only change under the lock once published
+	private static final class Index{
+		final Map<Integer, IntervalTree> ships = new HashMap<Integer, IntervalTree>();
+		final Map<Integer, IntervalTree> captains = new HashMap<Integer, IntervalTree>();
+		final long loadedAt = System.currentTimeMillis();
+		int size;
+
+		Map<Integer, IntervalTree> trees(Resource resource){
+			return resource == Resource.SHIP ? this.ships : this.captains;
+		}
+
+		//adds a sailing to both of its trees, unless a reload already read it
+		boolean add(Sailing sailing){
+			IntervalTree ship = this.ships.get(sailing.ship());
+			if (ship != null && ship.contains(sailing)){
+				return false;
+			}
+			for (Resource resource : Resource.values()){
+				IntervalTree tree = trees(resource).get(resource.of(sailing));
+				if (tree == null){
+					trees(resource).put(resource.of(sailing), tree = new IntervalTree());
+				}
+				tree.add(sailing);
+			}//end for
+			this.size++;
+			return true;
+		}
+	}
+
+	private final DBproject _esql;
+	private final long _ttlMs;
+	//guards _index, its trees and _missed, and is never held across a query
+	private final Object _lock = new Object();
+	//one reload at a time
+	private final ReentrantLock _loading = new ReentrantLock();
+	//an assignment holds the stripes of its ship and its captain across the insert
+	private final ReentrantLock[] _stripes = new ReentrantLock[ASSIGN_STRIPES];
+	private Index _index = null;
+	//the assignments written while a reload reads, which its trees may lack
+	private List<Sailing> _missed = null;
+	private volatile int _sailings = 0;
+	private final LongAdder _checks = new LongAdder();
+	private final LongAdder _rejected = new LongAdder();
+	private final LongAdder _loads = new LongAdder();
+
+	public ScheduleConflicts(DBproject esql){
+		this(esql, DEFAULT_TTL_MS);
+	}
+
+	public ScheduleConflicts(DBproject esql, long ttlMs){
+		this._esql = esql;
+		this._ttlMs = ttlMs;
+		for (int i = 0; i < this._stripes.length; ++i){
+			this._stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Method to load the sailings from the database, replacing the trees.
+	 *
+	 * @return the number of sailings loaded
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int load() throws SQLException {
+		return reload(null).size;
+	}
+
+	//reads the sailings into new trees and swaps them in, with the assignments written meanwhile
+	private Index reload(List<Group> groups) throws SQLException {
+		this._loading.lock();
+		try{
+			synchronized (this._lock){
+				this._missed = new ArrayList<Sailing>();
+			}
+			Index index = null;
+			try{
+				index = read(groups);
+			}finally{
+				synchronized (this._lock){
+					if (index != null){
+						for (Sailing s : this._missed){
+							index.add(s);
+						}
+						this._index = index;
+						this._sailings = index.size;
+					}
+					this._missed = null;
+				}
+			}//end try
+			return index;
+		}finally{
+			this._loading.unlock();
+		}//end try
+	}
+
+	//reads every sailing, fills groups unless null and returns the trees built from them
+	private Index read(List<Group> groups) throws SQLException {
+		List<Sailing> all = new ArrayList<Sailing>();
+		try (RowCursor cursor = this._esql.openReadCursor("ScheduleConflicts.load", LOAD_SQL, DBproject.DEFAULT_FETCH_SIZE)){
+			ResultRow row = cursor.row();
+			while (cursor.fetch()){
+				row.advance();
+				int first = (int) row.getDate(5).toLocalDate().toEpochDay();
+				//an arrival before the departure counts as the same day, as in migration V8
+				int last = Math.max(first, (int) row.getDate(6).toLocalDate().toEpochDay());
+				all.add(new Sailing(row.getInt(1), row.getInt(2), row.getInt(3), row.getInt(4), first, last));
+			}//end while
+		}
+		Index index = new Index();
+		Sailing[] sorted = all.toArray(new Sailing[0]);
+		for (Resource resource : Resource.values()){
+			Arrays.parallelSort(sorted, Comparator.comparingInt(resource::of).thenComparing(IntervalTree.ORDER));
+			for (int from = 0, to; from < sorted.length; from = to){
+				int id = resource.of(sorted[from]);
+				to = from + 1;
+				while (to < sorted.length && resource.of(sorted[to]) == id){
+					to++;
+				}
+				index.trees(resource).put(id, IntervalTree.of(sorted, from, to));
+				if (groups != null){
+					groups.add(new Group(resource, id, Arrays.copyOfRange(sorted, from, to)));
+				}
+			}//end for
+		}//end for
+		index.size = sorted.length;
+		this._loads.increment();
+		return index;
+	}
+
+	//loads the index when missing or expired; callers read this._index under the lock afterwards
+	private void ensureLoaded() throws SQLException {
+		synchronized (this._lock){
+			if (this._index != null && !expired(this._index)){
+				return;
+			}
+		}
+		this._loading.lock();
+		try{
+			//another thread may have reloaded while this one waited
+			synchronized (this._lock){
+				if (this._index != null && !expired(this._index)){
+					return;
+				}
+			}
+			reload(null);
+		}finally{
+			this._loading.unlock();
+		}//end try
+	}
+
+	private boolean expired(Index index){
+		return System.currentTimeMillis() - index.loadedAt >= this._ttlMs;
+	}
+
+	/**
+	 * Method to find the sailings a new assignment would overlap.
+	 *
+	 * @param candidate the new assignment
+	 * @return the conflicts, ship first, empty when the assignment is free
+	 * @throws java.sql.SQLException when the sailings had to be loaded and
+	 *         the query failed
+	 */
+	public List<Conflict> check(Sailing candidate) throws SQLException {
+		ensureLoaded();
+		synchronized (this._lock){
+			return conflicts(this._index, candidate);
+		}
+	}
+
+	private List<Conflict> conflicts(Index index, Sailing candidate){
+		this._checks.increment();
+		List<Conflict> found = new ArrayList<Conflict>();
+		List<Sailing> overlapping = new ArrayList<Sailing>();
+		for (Resource resource : Resource.values()){
+			IntervalTree tree = index.trees(resource).get(resource.of(candidate));
+			if (tree == null){
+				continue;
+			}
+			overlapping.clear();
+			tree.overlapping(candidate.first(), candidate.last(), overlapping);
+			for (Sailing s : overlapping){
+				found.add(new Conflict(resource, resource.of(candidate), s, candidate));
+			}
+		}//end for
+		return found;
+	}
+
+	/**
+	 * Method to write a new assignment unless it overlaps another sailing of
+	 * its captain or ship.  Assignments of this process that share a ship or
+	 * a captain are checked and written one at a time, so two of them cannot
+	 * both pass the check; the others are written in parallel.
+	 *
+	 * @param candidate the new assignment
+	 * @param write inserts the assignment, and commits when it turns off
+	 *        autocommit
+	 * @return the result of write
+	 * @throws Conflicting when the assignment overlaps another sailing
+	 * @throws java.sql.SQLException when write failed, i.e. with SQLState
+	 *         23P01 when the constraints of migration V8 found a conflict
+	 *         written by another process
+	 */
+	public <T> T assign(Sailing candidate, DBproject.SqlWork<T> write) throws SQLException {
+		//in stripe order, so two assignments never wait on each other's second stripe
+		int ship = stripe(Resource.SHIP, candidate.ship()), captain = stripe(Resource.CAPTAIN, candidate.captain());
+		ReentrantLock first = this._stripes[Math.min(ship, captain)], second = this._stripes[Math.max(ship, captain)];
+		first.lock();
+		second.lock();
+		try{
+			ensureLoaded();
+			List<Conflict> found;
+			synchronized (this._lock){
+				found = conflicts(this._index, candidate);
+			}
+			if (!found.isEmpty()){
+				this._rejected.increment();
+				throw new Conflicting(found);
+			}
+			T result = this._esql.withConnection("ScheduleConflicts.assign", write);
+			synchronized (this._lock){
+				this._index.add(candidate);
+				this._sailings = this._index.size;
+				if (this._missed != null){
+					this._missed.add(candidate);
+				}
+			}
+			return result;
+		}finally{
+			second.unlock();
+			first.unlock();
+		}//end try
+	}
+
+	private static int stripe(Resource resource, int id){
+		return (id * 2 + resource.ordinal()) & (ASSIGN_STRIPES - 1);
+	}
+
+	/**
+	 * Method to list every pair of existing sailings of the same ship or
+	 * captain that overlap.  The sailings are read again, and also replace
+	 * the trees.
+	 *
+	 * @return the conflicts by ship, then by captain, each by first day
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public List<Conflict> report() throws SQLException {
+		List<Group> groups = new ArrayList<Group>();
+		reload(groups);
+		Group[] all = groups.toArray(new Group[0]);
+		return ForkJoinPool.commonPool().invoke(new Sweep(all, 0, all.length));
+	}
+
+	/**
+	 * Method to add the exclusion constraints of migration V8 that are still
+	 * missing.  A constraint is left out while its conflicts remain.
+	 *
+	 * @return the number of constraints added
+	 * @throws java.sql.SQLException when the function failed, i.e. before
+	 *         migration V8
+	 */
+	public int enforce() throws SQLException {
+		return this._esql.withConnection("ScheduleConflicts.enforce", conn -> {
+			PreparedStatement stmt = conn.prepare("ScheduleConflicts.enforce", ENFORCE_SQL);
+			ResultSet rs = stmt.executeQuery();
+			try{
+				rs.next();
+				return rs.getInt(1);
+			}finally{
+				rs.close();
+			}
+		});
+	}
+
+	@Override
+	public String toString(){
+		return String.format("schedule conflicts: sailings=%d checks=%d rejected=%d loads=%d", this._sailings,
+			this._checks.sum(), this._rejected.sum(), this._loads.sum());
+	}
+}
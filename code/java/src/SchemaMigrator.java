@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class applies the versioned schema migrations of a directory, files
+ * named V&lt;version&gt;__&lt;description&gt;.sql, in version order.  Each
+ * migration runs in its own transaction and is recorded in schema_version,
+ * so running the migrator again only applies the new ones.
+ *
+ */
+
+public class SchemaMigrator{
+	private static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(.+)\\.sql");
+
+	static final String VERSION_TABLE_SQL =
+		"CREATE TABLE IF NOT EXISTS schema_version (" +
+		" version INTEGER NOT NULL PRIMARY KEY," +
+		" description TEXT NOT NULL," +
+		" applied_at TIMESTAMP NOT NULL DEFAULT now());";
+
+	private final DBproject _esql;
+
+	public SchemaMigrator(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to apply every migration of a directory that is not recorded as
+	 * applied yet.
+	 *
+	 * @param dir the directory holding the V*.sql files
+	 * @return the number of migrations applied
+	 * @throws java.sql.SQLException when a migration failed, it is rolled back
+	 * @throws java.io.IOException when the directory could not be read
+	 */
+	public int migrate(Path dir) throws SQLException, IOException {
+		TreeMap<Integer, Path> pending = new TreeMap<Integer, Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "V*.sql")){
+			for (Path file : files){
+				Matcher m = FILE_NAME.matcher(file.getFileName().toString());
+				if (m.matches()){
+					pending.put(Integer.parseInt(m.group(1)), file);
+				}
+			}//end for
+		}
+		Set<Integer> applied = appliedVersions();
+		int count = 0;
+		for (Map.Entry<Integer, Path> e : pending.entrySet()){
+			if (applied.contains(e.getKey())){
+				continue;
+			}
+			Matcher m = FILE_NAME.matcher(e.getValue().getFileName().toString());
+			m.matches();
+			String description = m.group(2).replace('_', ' ');
+			String sql = new String(Files.readAllBytes(e.getValue()), StandardCharsets.UTF_8);
+			long start = System.nanoTime();
+			apply(e.getKey(), description, sql);
+			System.out.printf("Applied V%d %s in %.2fs%n", e.getKey(), description, (System.nanoTime() - start) / 1e9);
+			count++;
+		}//end for
+		if (count == 0){
+			System.out.println("Schema is up to date");
+		}
+		return count;
+	}//end migrate
+
+	private Set<Integer> appliedVersions() throws SQLException {
+		return this._esql.withConnection(conn -> {
+			Set<Integer> versions = new HashSet<Integer>();
+			Statement stmt = conn.connection().createStatement();
+			try{
+				stmt.executeUpdate(VERSION_TABLE_SQL);
+				ResultSet rs = stmt.executeQuery("SELECT version FROM schema_version;");
+				while (rs.next()){
+					versions.add(rs.getInt(1));
+				}
+			}finally{
+				stmt.close();
+			}
+			return versions;
+		});
+	}
+
+	private void apply(int version, String description, String sql) throws SQLException {
+		this._esql.withConnection(conn -> {
+			Connection c = conn.connection();
+			c.setAutoCommit(false);
+			Statement stmt = c.createStatement();
+			try{
+				stmt.execute(sql);
+				PreparedStatement record = c.prepareStatement("INSERT INTO schema_version (version, description) VALUES (?, ?);");
+				record.setInt(1, version);
+				record.setString(2, description);
+				record.executeUpdate();
+				record.close();
+				c.commit();
+			}finally{
+				stmt.close();
+			}
+			return null;
+		});
+	}
+}
@@ -0,0 +1,530 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class is an in-process cache of seat availability keyed by cruise
+ * number.  Entries live in an open-addressing table of parallel int arrays
+ * (cnum, ship seats, seats sold, departure day) so a lookup allocates
+ * nothing and never boxes.
+ *
+ * The table is warmed from one bulk query, kept current by the booking and
+ * cruise-insert paths, and reloaded in the background once it is older than
+ * its time-to-live.  A cruise that is not cached is loaded with a single-row
+ * query on first use.  Bookings and invalidations that arrive while a bulk
+ * load runs are applied to its result after the swap, so a reload never
+ * loses them; a booking that the load already saw may then be counted
+ * twice until the next reload, which errs towards fewer free seats.  A load
+ * that overlapped invalidateAll runs again, as its query may predate the
+ * change that invalidated the table.
+ *
+ * Loads are reads and go to a replica when one is configured, so a sold
+ * count can trail the primary by up to the router's maximum lag.  The seat
+ * limit itself is enforced on the primary by BookingEngine.
+ *
+ */
+
+public class SeatCache{
+	public static final long DEFAULT_TTL_MS = 60 * 1000;
+	//returned when the cruise does not exist or has no ship assigned
+	public static final int UNKNOWN = Integer.MIN_VALUE;
+	//returned when the cruise exists but does not depart on the given day
+	public static final int NO_SAILING = Integer.MIN_VALUE + 1;
+
+	private static final byte EMPTY = 0, FULL = 1, DELETED = 2;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int PENDING_CAPACITY = 64;
+	//bulk queries of one warm before it leaves the table stale for the next lookup
+	private static final int MAX_WARM_PASSES = 3;
+	//pending change of a cruise dropped during a bulk load
+	private static final int DROPPED = Integer.MIN_VALUE;
+
+	static final String WARM_SQL =
+		"SELECT C.cnum, S.seats, C.num_sold, C.actual_departure_date FROM Cruise C, CruiseInfo CI, Ship S" +
+		" WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id;";
+	static final String LOAD_SQL =
+		"SELECT C.cnum, S.seats, C.num_sold, C.actual_departure_date FROM Cruise C, CruiseInfo CI, Ship S" +
+		" WHERE C.cnum = ? AND CI.cruise_id = C.cnum AND CI.ship_id = S.id;";
+
+	private final DBproject _esql;
+	private final long _ttlMs;
+	private final StampedLock _lock = new StampedLock();
+	private final AtomicBoolean _refreshing = new AtomicBoolean();
+	//one bulk load at a time
+	private final ReentrantLock _warming = new ReentrantLock();
+
+	//open-addressing table, guarded by _lock
+	private int[] _keys;
+	private int[] _seats;
+	private int[] _sold;
+	private int[] _departDay;
+	private byte[] _state;
+	private int _size;
+	private int _used;
+	//seats booked per cruise, or DROPPED, since the running bulk load
+	//started, in a second open-addressing table; _pendingKeys is null when
+	//none runs, guarded by _lock
+	private int[] _pendingKeys;
+	private int[] _pendingDelta;
+	private boolean[] _pendingUsed;
+	private int _pendingSize;
+
+	private volatile long _loadedAt = 0;
+	//bumped by invalidateAll, a load is current only if it did not change
+	private final AtomicLong _generation = new AtomicLong();
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _loads = new LongAdder();
+	private final LongAdder _invalidations = new LongAdder();
+
+	public SeatCache(DBproject esql){
+		this(esql, DEFAULT_TTL_MS);
+	}
+
+	public SeatCache(DBproject esql, long ttlMs){
+		this._esql = esql;
+		this._ttlMs = ttlMs;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity){
+		this._keys = new int[capacity];
+		this._seats = new int[capacity];
+		this._sold = new int[capacity];
+		this._departDay = new int[capacity];
+		this._state = new byte[capacity];
+		this._size = 0;
+		this._used = 0;
+	}
+
+	/**
+	 * Method to reload every cruise with a ship assigned from one bulk query,
+	 * replacing the current contents.
+	 *
+	 * @return the number of cruises cached
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int warm() throws SQLException {
+		return this._esql.withReadConnection("SeatCache.warm", this::warm);
+	}//end warm
+
+	/**
+	 * Method to reload every cruise on a connection the caller holds.
+	 *
+	 * @return the number of cruises cached
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	int warm(ConnectionPool.PooledConnection conn) throws SQLException {
+		this._warming.lock();
+		try{
+			int n = 0;
+			for (int pass = 0; pass < MAX_WARM_PASSES; ++pass){
+				long generation = this._generation.get();
+				n = loadAll(conn, generation);
+				if (this._generation.get() == generation){
+					break;
+				}
+			}//end for
+			return n;
+		}finally{
+			this._warming.unlock();
+		}//end try
+	}
+
+	//one bulk query and swap, current if still at generation; callers hold _warming
+	private int loadAll(ConnectionPool.PooledConnection conn, long generation) throws SQLException {
+		long pendingStamp = this._lock.writeLock();
+		try{
+			allocatePending(PENDING_CAPACITY);
+		}finally{
+			this._lock.unlockWrite(pendingStamp);
+		}
+		try{
+			Statement stmt = conn.connection().createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery(WARM_SQL);
+				int n = 0;
+				//load into plain arrays first so readers are blocked only for the swap
+				int[] cnum = new int[INITIAL_CAPACITY], seats = new int[INITIAL_CAPACITY];
+				int[] sold = new int[INITIAL_CAPACITY], day = new int[INITIAL_CAPACITY];
+				while (rs.next()){
+					if (n == cnum.length){
+						cnum = Arrays.copyOf(cnum, n * 2);
+						seats = Arrays.copyOf(seats, n * 2);
+						sold = Arrays.copyOf(sold, n * 2);
+						day = Arrays.copyOf(day, n * 2);
+					}
+					cnum[n] = rs.getInt(1);
+					seats[n] = rs.getInt(2);
+					sold[n] = rs.getInt(3);
+					day[n] = (int) rs.getDate(4).toLocalDate().toEpochDay();
+					n++;
+				}//end while
+				long stamp = this._lock.writeLock();
+				try{
+					allocate(tableSize(n));
+					for (int i = 0; i < n; ++i){
+						put(cnum[i], seats[i], sold[i], day[i]);
+					}
+					applyPending();
+					//stays stale if invalidateAll ran since the query started
+					if (this._generation.get() == generation){
+						this._loadedAt = System.currentTimeMillis();
+					}
+				}finally{
+					this._lock.unlockWrite(stamp);
+				}
+				this._loads.increment();
+				return n;
+			}finally{
+				stmt.close();
+			}
+		}finally{
+			long stamp = this._lock.writeLock();
+			this._pendingKeys = null;
+			this._pendingDelta = null;
+			this._pendingUsed = null;
+			this._lock.unlockWrite(stamp);
+		}//end try
+	}
+
+	//replays what changed while the bulk query ran, callers hold the write lock
+	private void applyPending(){
+		for (int p = 0; p < this._pendingKeys.length; ++p){
+			int i = this._pendingUsed[p] ? indexOf(this._pendingKeys[p]) : -1;
+			if (i < 0){
+				continue;
+			}
+			if (this._pendingDelta[p] == DROPPED){
+				this._state[i] = DELETED;
+				this._size--;
+			}else{
+				this._sold[i] += this._pendingDelta[p];
+			}
+		}//end for
+	}
+
+	private void allocatePending(int capacity){
+		this._pendingKeys = new int[capacity];
+		this._pendingDelta = new int[capacity];
+		this._pendingUsed = new boolean[capacity];
+		this._pendingSize = 0;
+	}
+
+	//the pending slot of a cruise, added with no change yet, callers hold the write lock
+	private int pendingSlot(int cnum){
+		if ((this._pendingSize + 1) * 2 > this._pendingKeys.length){
+			int[] keys = this._pendingKeys, delta = this._pendingDelta;
+			boolean[] used = this._pendingUsed;
+			allocatePending(keys.length * 2);
+			for (int p = 0; p < keys.length; ++p){
+				if (used[p]){
+					this._pendingDelta[pendingSlot(keys[p])] = delta[p];
+				}
+			}
+		}//end if
+		int mask = this._pendingKeys.length - 1;
+		for (int p = hash(cnum) & mask; ; p = (p + 1) & mask){
+			if (!this._pendingUsed[p]){
+				this._pendingUsed[p] = true;
+				this._pendingKeys[p] = cnum;
+				this._pendingDelta[p] = 0;
+				this._pendingSize++;
+				return p;
+			}
+			if (this._pendingKeys[p] == cnum){
+				return p;
+			}
+		}//end for
+	}
+
+	/**
+	 * Method to look up the free seats of a cruise departing on a given day.
+	 * Cached cruises are answered without touching the database.
+	 *
+	 * @param cnum the cruise number
+	 * @param departDay the departure date as days since 1970-01-01
+	 * @return the free seats, NO_SAILING when the cruise departs on another
+	 *         day, or UNKNOWN when the cruise has no ship assigned
+	 * @throws java.sql.SQLException when loading an uncached cruise failed
+	 */
+	public int availableSeats(int cnum, int departDay) throws SQLException {
+		refreshIfStale();
+		long stamp = this._lock.tryOptimisticRead();
+		int result = lookup(cnum, departDay);
+		if (!this._lock.validate(stamp)){
+			stamp = this._lock.readLock();
+			try{
+				result = lookup(cnum, departDay);
+			}finally{
+				this._lock.unlockRead(stamp);
+			}
+		}//end if
+		if (result != UNKNOWN){
+			this._hits.increment();
+			return result;
+		}
+		this._misses.increment();
+		if (!load(cnum)){
+			return UNKNOWN;
+		}
+		stamp = this._lock.readLock();
+		try{
+			return lookup(cnum, departDay);
+		}finally{
+			this._lock.unlockRead(stamp);
+		}
+	}//end availableSeats
+
+	//reads the table without locking, callers validate or hold the lock
+	private int lookup(int cnum, int departDay){
+		int[] keys = this._keys, seats = this._seats, sold = this._sold, day = this._departDay;
+		byte[] state = this._state;
+		int n = keys.length;
+		if (seats.length != n || sold.length != n || day.length != n || state.length != n){
+			//torn optimistic read during a resize, the caller retries locked
+			return UNKNOWN;
+		}
+		int mask = n - 1;
+		for (int i = hash(cnum) & mask, probes = 0; probes < n; i = (i + 1) & mask, ++probes){
+			byte s = state[i];
+			if (s == EMPTY){
+				return UNKNOWN;
+			}
+			if (s == FULL && keys[i] == cnum){
+				if (day[i] != departDay){
+					return NO_SAILING;
+				}
+				return seats[i] - sold[i];
+			}
+		}//end for
+		return UNKNOWN;
+	}
+
+	private boolean load(int cnum) throws SQLException {
+		return this._esql.withReadConnection("SeatCache.load", conn -> {
+			PreparedStatement stmt = conn.prepare("SeatCache.load", LOAD_SQL);
+			stmt.setInt(1, cnum);
+			ResultSet rs = stmt.executeQuery();
+			try{
+				if (!rs.next()){
+					return false;
+				}
+				int seats = rs.getInt(2), sold = rs.getInt(3);
+				int day = (int) rs.getDate(4).toLocalDate().toEpochDay();
+				long stamp = this._lock.writeLock();
+				try{
+					put(cnum, seats, sold, day);
+				}finally{
+					this._lock.unlockWrite(stamp);
+				}
+				return true;
+			}finally{
+				rs.close();
+			}
+		});
+	}
+
+	/**
+	 * Write-through hook of the booking path.  A reservation with status 'R'
+	 * took a seat, any other status leaves the count alone.
+	 *
+	 * @param cnum the booked cruise
+	 * @param status the status the reservation was stored with
+	 */
+	public void recordBooking(int cnum, char status){
+		if (status != 'R'){
+			return;
+		}
+		long stamp = this._lock.writeLock();
+		try{
+			int i = indexOf(cnum);
+			if (i >= 0){
+				this._sold[i]++;
+			}
+			if (this._pendingKeys != null){
+				int p = pendingSlot(cnum);
+				if (this._pendingDelta[p] != DROPPED){
+					this._pendingDelta[p]++;
+				}
+			}
+		}finally{
+			this._lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Method to drop one cruise so its next lookup reloads it, i.e. after the
+	 * cruise was inserted or changed.
+	 *
+	 * @param cnum the cruise number
+	 */
+	public void invalidate(int cnum){
+		long stamp = this._lock.writeLock();
+		try{
+			int i = indexOf(cnum);
+			if (i >= 0){
+				this._state[i] = DELETED;
+				this._size--;
+			}
+			if (this._pendingKeys != null){
+				this._pendingDelta[pendingSlot(cnum)] = DROPPED;
+			}
+		}finally{
+			this._lock.unlockWrite(stamp);
+		}
+		this._invalidations.increment();
+	}
+
+	/**
+	 * Method to mark the whole table stale so it is reloaded in the
+	 * background right away.
+	 */
+	public void invalidateAll(){
+		//first, so a load that swaps in between does not mark itself current
+		this._generation.incrementAndGet();
+		this._loadedAt = 0;
+		this._invalidations.increment();
+		refreshIfStale();
+	}
+
+	private void refreshIfStale(){
+		if (getStalenessMillis() < this._ttlMs || !this._refreshing.compareAndSet(false, true)){
+			return;
+		}
+		try{
+			//warms on the connection the task borrowed, a pool of one has no second
+			this._esql.submitRead("SeatCache.refresh", conn -> {
+				try{
+					warm(conn);
+				}finally{
+					this._refreshing.set(false);
+				}
+				return null;
+			});
+		}catch (RuntimeException e){
+			//i.e. rejected after cleanup, the next lookup tries again
+			this._refreshing.set(false);
+		}//end try
+	}
+
+	//callers hold the write lock
+	private void put(int cnum, int seats, int sold, int day){
+		if ((this._used + 1) * 10 > this._keys.length * 6){
+			rehash();
+		}
+		int mask = this._keys.length - 1;
+		int slot = -1;
+		boolean exists = false;
+		//the load factor bound guarantees an empty slot ends the probe
+		for (int i = hash(cnum) & mask; ; i = (i + 1) & mask){
+			byte s = this._state[i];
+			if (s == FULL && this._keys[i] == cnum){
+				slot = i;
+				exists = true;
+				break;
+			}
+			if (s == DELETED && slot < 0){
+				slot = i;
+			}
+			if (s == EMPTY){
+				if (slot < 0){
+					slot = i;
+					this._used++;
+				}
+				break;
+			}
+		}//end for
+		if (!exists){
+			this._size++;
+		}
+		this._keys[slot] = cnum;
+		this._seats[slot] = seats;
+		this._sold[slot] = sold;
+		this._departDay[slot] = day;
+		this._state[slot] = FULL;
+	}
+
+	private int indexOf(int cnum){
+		int mask = this._keys.length - 1;
+		for (int i = hash(cnum) & mask, probes = 0; probes < this._keys.length; i = (i + 1) & mask, ++probes){
+			if (this._state[i] == EMPTY){
+				return -1;
+			}
+			if (this._state[i] == FULL && this._keys[i] == cnum){
+				return i;
+			}
+		}//end for
+		return -1;
+	}
+
+	private void rehash(){
+		int[] keys = this._keys, seats = this._seats, sold = this._sold, day = this._departDay;
+		byte[] state = this._state;
+		allocate(tableSize(this._size * 2));
+		for (int i = 0; i < keys.length; ++i){
+			if (state[i] == FULL){
+				put(keys[i], seats[i], sold[i], day[i]);
+			}
+		}
+	}
+
+	private static int tableSize(int entries){
+		int capacity = INITIAL_CAPACITY;
+		while (capacity * 6 < entries * 10 + 10){
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private static int hash(int key){
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return milliseconds since the last bulk load, or Long.MAX_VALUE when
+	 *         the cache was never warmed
+	 */
+	public long getStalenessMillis(){
+		long loadedAt = this._loadedAt;
+		return loadedAt == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - loadedAt;
+	}
+
+	public long getHits(){
+		return this._hits.sum();
+	}
+
+	public long getMisses(){
+		return this._misses.sum();
+	}
+
+	public double getHitRate(){
+		long hits = getHits(), total = hits + getMisses();
+		return total == 0 ? 0.0 : hits / (double) total;
+	}
+
+	public int size(){
+		long stamp = this._lock.readLock();
+		try{
+			return this._size;
+		}finally{
+			this._lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public String toString(){
+		long staleness = getStalenessMillis();
+		return String.format("seat cache: cruises=%d hits=%d misses=%d hit-rate=%.1f%% loads=%d invalidations=%d age=%s",
+			size(), getHits(), getMisses(), getHitRate() * 100, this._loads.sum(), this._invalidations.sum(),
+			staleness == Long.MAX_VALUE ? "never loaded" : staleness + "ms");
+	}
+}
@@ -0,0 +1,185 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps the server-side prepared statements of one physical
+ * connection, keyed by the logical operation that uses them.  The cache is
+ * bounded and evicts the least recently used statement when it is full.
+ * Its counters can also be added to Totals shared by several caches, i.e.
+ * every connection of a pool, which keep counting after a cache is closed.
+ *
+ */
+
+public class StatementCache{
+	//default number of statements kept per connection
+	public static final int DEFAULT_CAPACITY = 32;
+
+	private final Connection _connection;
+	private final int _capacity;
+	//access-ordered map, the eldest entry is the least recently used one
+	private final LinkedHashMap<String, Entry> _statements;
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+	private final Totals _totals;
+
+	/**
+	 * Counters summed over several caches, updated by each cache as it
+	 * counts.
+	 */
+	public static final class Totals{
+		private final LongAdder _hits = new LongAdder();
+		private final LongAdder _misses = new LongAdder();
+		private final LongAdder _evictions = new LongAdder();
+
+		public long getHits(){
+			return this._hits.sum();
+		}
+
+		public long getMisses(){
+			return this._misses.sum();
+		}
+
+		public long getEvictions(){
+			return this._evictions.sum();
+		}
+
+		@Override
+		public String toString(){
+			return String.format("hits=%d misses=%d evictions=%d", getHits(), getMisses(), getEvictions());
+		}
+	}
+
+	private static final class Entry{
+		final String sql;
+		final PreparedStatement stmt;
+
+		Entry(String sql, PreparedStatement stmt){
+			this.sql = sql;
+			this.stmt = stmt;
+		}
+	}
+
+	public StatementCache(Connection connection, int capacity){
+		this(connection, capacity, null);
+	}
+
+	/**
+	 * @param totals counters to add this cache's counts to as well, or null
+	 */
+	public StatementCache(Connection connection, int capacity, Totals totals){
+		if (capacity < 1){
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		this._connection = connection;
+		this._capacity = capacity;
+		this._statements = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this._totals = totals;
+	}
+
+	/**
+	 * Method to fetch the prepared statement of a logical operation, preparing
+	 * it on the first use.  The statement is asked to use a server-side plan
+	 * right away instead of after the driver's default threshold.
+	 *
+	 * @param key the logical operation name, i.e. "AddShip"
+	 * @param sql the parameterized SQL text of the operation
+	 * @return the cached prepared statement, with cleared parameters
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public synchronized PreparedStatement prepare(String key, String sql) throws SQLException {
+		Entry entry = this._statements.get(key);
+		if (entry != null && entry.sql.equals(sql)){
+			this._hits++;
+			if (this._totals != null){
+				this._totals._hits.increment();
+			}
+			entry.stmt.clearParameters();
+			return entry.stmt;
+		}//end if
+		this._misses++;
+		if (this._totals != null){
+			this._totals._misses.increment();
+		}
+		if (entry != null){
+			//same key reused with different text, the old plan is useless
+			this._statements.remove(key);
+			closeQuietly(entry.stmt);
+		}//end if
+
+		PreparedStatement stmt = this._connection.prepareStatement(sql);
+		try{
+			stmt.unwrap(PGStatement.class).setPrepareThreshold(1);
+		}catch (SQLException e){
+			// not a PostgreSQL statement, keep the driver default.
+		}//end try
+		this._statements.put(key, new Entry(sql, stmt));
+		evictOverflow();
+		return stmt;
+	}//end prepare
+
+	private void evictOverflow(){
+		Iterator<Map.Entry<String, Entry>> it = this._statements.entrySet().iterator();
+		while (this._statements.size() > this._capacity && it.hasNext()){
+			Entry eldest = it.next().getValue();
+			it.remove();
+			closeQuietly(eldest.stmt);
+			this._evictions++;
+			if (this._totals != null){
+				this._totals._evictions.increment();
+			}
+		}//end while
+	}
+
+	public synchronized long getHits(){
+		return this._hits;
+	}
+
+	public synchronized long getMisses(){
+		return this._misses;
+	}
+
+	public synchronized long getEvictions(){
+		return this._evictions;
+	}
+
+	public synchronized int size(){
+		return this._statements.size();
+	}
+
+	public int capacity(){
+		return this._capacity;
+	}
+
+	/**
+	 * Method to close every cached statement.  The connection itself is left
+	 * open.
+	 */
+	public synchronized void close(){
+		for (Entry entry : this._statements.values()){
+			closeQuietly(entry.stmt);
+		}//end for
+		this._statements.clear();
+	}//end close
+
+	private static void closeQuietly(PreparedStatement stmt){
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("statements=%d/%d hits=%d misses=%d evictions=%d",
+			this._statements.size(), this._capacity, this._hits, this._misses, this._evictions);
+	}
+}
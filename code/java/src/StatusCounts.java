@@ -0,0 +1,480 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is an in-process mirror of the CruiseStatusCount summary
+ * (migration V3): the number of W, C and R reservations of every cruise.
+ * The counters live in pages of 4096 cruises, three int counters per
+ * cruise, found by shifting the cruise number.  A count is an array read
+ * and a booking an atomic increment.  Only pages holding a cruise with
+ * reservations are allocated, so sparse cruise numbers cost a null slot
+ * per 4096 numbers, not a page.
+ *
+ * A page is loaded from the summary with one range query on first use and
+ * reloaded in the background once it is older than its time-to-live.  For
+ * one time-to-live after a warm a missing page means its cruises have no
+ * reservations; a booking on one of them allocates the page.  The
+ * booking path increments the counters of loaded pages.  Bookings that
+ * arrive while a page loads are also kept aside and added to the loaded
+ * counts when the page is swapped in, so a reload never loses them; one the
+ * query already saw is then counted twice until the next reload, like in
+ * SeatCache.  The summary table is exact; the mirror can lag it by one
+ * refresh.  Totals over all cruises are kept in LongAdders and are exact
+ * for the mirror once it is warmed.
+ *
+ * Without the summary table (schema not migrated) counts are read from
+ * Reservation directly.
+ *
+ */
+
+public class StatusCounts{
+	public static final long DEFAULT_TTL_MS = 60 * 1000;
+	public static final char[] STATUSES = {'W', 'C', 'R'};
+
+	private static final int PAGE_BITS = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	static final String WARM_SQL =
+		"SELECT cruise_id, waitlisted, completed, reserved FROM CruiseStatusCount WHERE cruise_id >= 0;";
+	static final String PAGE_SQL =
+		"SELECT cruise_id, waitlisted, completed, reserved FROM CruiseStatusCount WHERE cruise_id BETWEEN ? AND ?;";
+	static final String TOTALS_SQL =
+		"SELECT COALESCE(sum(waitlisted), 0), COALESCE(sum(completed), 0), COALESCE(sum(reserved), 0) FROM CruiseStatusCount;";
+	//the original option 7 query, used until the summary exists
+	static final String SCAN_SQL = "SELECT COUNT(*) FROM Reservation WHERE status = ? AND cid = ?" +
+		" AND departure_date = (SELECT actual_departure_date FROM Cruise WHERE cnum = ?);";
+	static final String SCAN_TOTALS_SQL =
+		"SELECT count(*) FILTER (WHERE status = 'W'), count(*) FILTER (WHERE status = 'C'), count(*) FILTER (WHERE status = 'R') FROM Reservation;";
+
+	private static final class Page{
+		//W, C, R of each cruise of the page, side by side
+		final AtomicIntegerArray counts = new AtomicIntegerArray(3 * PAGE_SIZE);
+		final long loadedAt = System.currentTimeMillis();
+		final AtomicBoolean refreshing = new AtomicBoolean();
+	}
+
+	//the counts of a page without reservations, never written
+	private static final Page EMPTY = new Page();
+
+	//a page load that has not been swapped in, and the bookings on its page since it started
+	private static final class Loading{
+		final int index;
+		final int[] booked = new int[3 * PAGE_SIZE];
+
+		Loading(int index){
+			this.index = index;
+		}
+	}
+
+	private final DBproject _esql;
+	private final long _ttlMs;
+	//page table, replaced under this object's monitor when it grows
+	private volatile AtomicReferenceArray<Page> _pages = new AtomicReferenceArray<Page>(16);
+	//sums over the loaded pages, complete once every page is loaded
+	private final LongAdder[] _totals = {new LongAdder(), new LongAdder(), new LongAdder()};
+	private volatile boolean _complete = false;
+	//when the last warm ran, 0 when the page table is not warmed
+	private volatile long _warmedAt = 0;
+	private volatile boolean _summaryMissing = false;
+	//the page loads in flight, guarded by this object's monitor; bookings
+	//take the monitor only while the count is not 0
+	private final List<Loading> _loading = new ArrayList<Loading>();
+	private volatile int _loadingCount = 0;
+
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _pageLoads = new LongAdder();
+
+	public StatusCounts(DBproject esql){
+		this(esql, DEFAULT_TTL_MS);
+	}
+
+	public StatusCounts(DBproject esql, long ttlMs){
+		this._esql = esql;
+		this._ttlMs = ttlMs;
+	}
+
+	static int slot(char status){
+		switch (status){
+			case 'W': return 0;
+			case 'C': return 1;
+			case 'R': return 2;
+			default: throw new IllegalArgumentException("unknown reservation status: " + status);
+		}
+	}
+
+	/**
+	 * Method to load the counters of every cruise from one bulk query,
+	 * replacing the current contents.
+	 *
+	 * @return the number of cruises with reservations
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int warm() throws SQLException {
+		return this._esql.withReadConnection("StatusCounts.warm", conn -> {
+			Statement stmt = conn.connection().createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery(WARM_SQL);
+				AtomicReferenceArray<Page> pages = new AtomicReferenceArray<Page>(16);
+				long[] totals = new long[3];
+				int n = 0, created = 0;
+				while (rs.next()){
+					int cnum = rs.getInt(1);
+					int index = cnum >>> PAGE_BITS;
+					if (index >= pages.length()){
+						pages = grow(pages, index);
+					}
+					Page p = pages.get(index);
+					if (p == null){
+						p = new Page();
+						pages.set(index, p);
+						created++;
+					}
+					for (int s = 0; s < 3; ++s){
+						int c = rs.getInt(2 + s);
+						p.counts.set((cnum & PAGE_MASK) * 3 + s, c);
+						totals[s] += c;
+					}
+					n++;
+				}//end while
+				synchronized (this){
+					this._pages = pages;
+					for (int s = 0; s < 3; ++s){
+						this._totals[s].reset();
+						this._totals[s].add(totals[s]);
+					}
+					this._complete = true;
+					this._summaryMissing = false;
+					this._warmedAt = System.currentTimeMillis();
+				}
+				this._pageLoads.add(created);
+				return n;
+			}catch (SQLException e){
+				if (isMissingTable(e)){
+					this._summaryMissing = true;
+					return 0;
+				}
+				throw e;
+			}finally{
+				stmt.close();
+			}
+		});
+	}//end warm
+
+	/**
+	 * Method to count the reservations of a cruise with a given status.
+	 * Loaded cruises are answered without touching the database.
+	 *
+	 * @param cnum the cruise number
+	 * @param status W, C or R
+	 * @return the number of reservations
+	 * @throws java.sql.SQLException when loading the counters failed
+	 */
+	public long count(int cnum, char status) throws SQLException {
+		int s = slot(status);
+		if (cnum < 0 || this._summaryMissing){
+			return scan(cnum, status);
+		}
+		Page p = page(cnum);
+		return p == null ? scan(cnum, status) : p.counts.get((cnum & PAGE_MASK) * 3 + s);
+	}
+
+	/**
+	 * Method to read the W, C and R counts of a cruise at once.
+	 *
+	 * @param cnum the cruise number
+	 * @return the counts in the order of STATUSES
+	 * @throws java.sql.SQLException when loading the counters failed
+	 */
+	public long[] counts(int cnum) throws SQLException {
+		long[] counts = new long[3];
+		Page p = cnum < 0 || this._summaryMissing ? null : page(cnum);
+		for (int s = 0; s < 3; ++s){
+			counts[s] = p == null ? scan(cnum, STATUSES[s]) : p.counts.get((cnum & PAGE_MASK) * 3 + s);
+		}
+		return counts;
+	}
+
+	/**
+	 * Method to read the W, C and R counts summed over every cruise.  Once
+	 * the mirror is warmed this reads three counters.
+	 *
+	 * @return the totals in the order of STATUSES
+	 * @throws java.sql.SQLException when the totals had to be queried and failed
+	 */
+	public long[] totals() throws SQLException {
+		if (this._complete){
+			return new long[]{this._totals[0].sum(), this._totals[1].sum(), this._totals[2].sum()};
+		}
+		List<List<String>> rows;
+		try{
+			rows = this._esql.executeReadQueryAndReturnResult(this._summaryMissing ? SCAN_TOTALS_SQL : TOTALS_SQL);
+		}catch (SQLException e){
+			if (!isMissingTable(e)){
+				throw e;
+			}
+			this._summaryMissing = true;
+			rows = this._esql.executeReadQueryAndReturnResult(SCAN_TOTALS_SQL);
+		}//end try
+		long[] totals = new long[3];
+		for (int s = 0; s < 3; ++s){
+			totals[s] = Long.parseLong(rows.get(0).get(s));
+		}
+		return totals;
+	}
+
+	//true while a missing page still means no reservations
+	private boolean knownEmpty(){
+		long warmedAt = this._warmedAt;
+		return warmedAt != 0 && System.currentTimeMillis() - warmedAt < this._ttlMs;
+	}
+
+	//returns the loaded page of a cruise, loading it on a miss, or null when the summary is missing
+	private Page page(int cnum) throws SQLException {
+		int index = cnum >>> PAGE_BITS;
+		AtomicReferenceArray<Page> pages = this._pages;
+		Page p = index < pages.length() ? pages.get(index) : null;
+		if (p == null && knownEmpty()){
+			this._hits.increment();
+			return EMPTY;
+		}
+		if (p != null){
+			this._hits.increment();
+			if (System.currentTimeMillis() - p.loadedAt >= this._ttlMs && p.refreshing.compareAndSet(false, true)){
+				this._esql.submitRead("StatusCounts.page", conn -> {
+					try{
+						loadPage(conn, index);
+					}finally{
+						p.refreshing.set(false);
+					}
+					return null;
+				});
+			}
+			return p;
+		}
+		this._misses.increment();
+		return loadPage(index);
+	}
+
+	private Page loadPage(int index) throws SQLException {
+		return this._esql.withReadConnection("StatusCounts.page", conn -> loadPage(conn, index));
+	}
+
+	private Page loadPage(ConnectionPool.PooledConnection conn, int index) throws SQLException {
+		Page fresh = new Page();
+		Loading loading = new Loading(index);
+		synchronized (this){
+			this._loading.add(loading);
+			this._loadingCount = this._loading.size();
+		}
+		try{
+			PreparedStatement stmt = conn.prepare("StatusCounts.page", PAGE_SQL);
+			stmt.setInt(1, index << PAGE_BITS);
+			stmt.setInt(2, (index << PAGE_BITS) | PAGE_MASK);
+			ResultSet rs = stmt.executeQuery();
+			try{
+				while (rs.next()){
+					int base = (rs.getInt(1) & PAGE_MASK) * 3;
+					for (int s = 0; s < 3; ++s){
+						fresh.counts.set(base + s, rs.getInt(2 + s));
+					}
+				}//end while
+			}finally{
+				rs.close();
+			}
+			this._pageLoads.increment();
+			synchronized (this){
+				if (index >= this._pages.length()){
+					this._pages = grow(this._pages, index);
+				}
+				Page old = this._pages.get(index);
+				this._pages.set(index, fresh);
+				//add the bookings made during the query, and move the totals
+				//from the old page contents to the fresh ones
+				for (int i = 0; i < 3 * PAGE_SIZE; ++i){
+					if (loading.booked[i] != 0){
+						fresh.counts.addAndGet(i, loading.booked[i]);
+					}
+					int delta = fresh.counts.get(i) - (old == null ? 0 : old.counts.get(i));
+					if (delta != 0){
+						this._totals[i % 3].add(delta);
+					}
+				}//end for
+			}
+			return fresh;
+		}catch (SQLException e){
+			if (isMissingTable(e)){
+				this._summaryMissing = true;
+				return null;
+			}
+			throw e;
+		}finally{
+			synchronized (this){
+				this._loading.remove(loading);
+				this._loadingCount = this._loading.size();
+			}
+		}//end try
+	}
+
+	private static AtomicReferenceArray<Page> grow(AtomicReferenceArray<Page> pages, int index){
+		int length = pages.length();
+		while (length <= index){
+			length <<= 1;
+		}
+		AtomicReferenceArray<Page> grown = new AtomicReferenceArray<Page>(length);
+		for (int i = 0; i < pages.length(); ++i){
+			grown.set(i, pages.get(i));
+		}
+		return grown;
+	}
+
+	private long scan(int cnum, char status) throws SQLException {
+		return this._esql.withReadConnection("StatusCounts.scan", conn -> {
+			PreparedStatement stmt = conn.prepare("StatusCounts.scan", SCAN_SQL);
+			stmt.setString(1, String.valueOf(status));
+			stmt.setInt(2, cnum);
+			stmt.setInt(3, cnum);
+			ResultSet rs = stmt.executeQuery();
+			try{
+				rs.next();
+				return rs.getLong(1);
+			}finally{
+				rs.close();
+			}
+		});
+	}
+
+	private static boolean isMissingTable(SQLException e){
+		return "42P01".equals(e.getSQLState());
+	}
+
+	/**
+	 * Write-through hook of the booking path.
+	 *
+	 * @param cnum the booked cruise
+	 * @param status the status the reservation was stored with
+	 */
+	public void recordBooking(int cnum, char status){
+		if (cnum < 0){
+			return;
+		}
+		int s = slot(status);
+		if (this._loadingCount != 0){
+			synchronized (this){
+				record(cnum, s);
+				for (Loading loading : this._loading){
+					if (loading.index == cnum >>> PAGE_BITS){
+						loading.booked[(cnum & PAGE_MASK) * 3 + s]++;
+					}
+				}//end for
+			}
+			return;
+		}//end if
+		//no page load started before this booking committed, so none can miss it
+		record(cnum, s);
+	}
+
+	private void record(int cnum, int s){
+		AtomicReferenceArray<Page> pages = this._pages;
+		int index = cnum >>> PAGE_BITS;
+		Page p = index < pages.length() ? pages.get(index) : null;
+		if (p == null && knownEmpty()){
+			//the cruise had no reservations at the warm, start its page at zero
+			p = allocate(index);
+		}
+		if (p != null){
+			p.counts.incrementAndGet((cnum & PAGE_MASK) * 3 + s);
+			this._totals[s].increment();
+		}else{
+			//a page that was never loaded is not in the totals yet
+			this._complete = false;
+		}
+	}
+
+	private synchronized Page allocate(int index){
+		if (index >= this._pages.length()){
+			this._pages = grow(this._pages, index);
+		}
+		Page p = this._pages.get(index);
+		if (p == null){
+			p = new Page();
+			this._pages.set(index, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Method to reload the loaded pages holding some cruises, i.e. after
+	 * another process changed their reservations.  The pages are reloaded in
+	 * the background and keep answering with their old counts until then.
+	 *
+	 * @param cnums the changed cruises
+	 */
+	public void invalidate(int[] cnums){
+		AtomicReferenceArray<Page> pages = this._pages;
+		BitSet reload = new BitSet();
+		for (int cnum : cnums){
+			int index = cnum >>> PAGE_BITS;
+			//a missing page may be one taken as empty since the warm
+			if (cnum >= 0 && (knownEmpty() || index < pages.length() && pages.get(index) != null)){
+				reload.set(index);
+			}
+		}//end for
+		for (int index = reload.nextSetBit(0); index >= 0; index = reload.nextSetBit(index + 1)){
+			int page = index;
+			this._esql.submitRead("StatusCounts.page", conn -> loadPage(conn, page));
+		}//end for
+	}
+
+	/**
+	 * Method to drop every loaded page, i.e. after reservations were deleted,
+	 * so counts are read from the summary again.
+	 */
+	public synchronized void invalidateAll(){
+		this._pages = new AtomicReferenceArray<Page>(16);
+		for (LongAdder total : this._totals){
+			total.reset();
+		}
+		this._complete = false;
+		this._summaryMissing = false;
+		this._warmedAt = 0;
+	}
+
+	public boolean isComplete(){
+		return this._complete;
+	}
+
+	public long getHits(){
+		return this._hits.sum();
+	}
+
+	public long getMisses(){
+		return this._misses.sum();
+	}
+
+	public int getLoadedPages(){
+		AtomicReferenceArray<Page> pages = this._pages;
+		int n = 0;
+		for (int i = 0; i < pages.length(); ++i){
+			n += pages.get(i) == null ? 0 : 1;
+		}
+		return n;
+	}
+
+	@Override
+	public String toString(){
+		return String.format("status counts: pages=%d hits=%d misses=%d page-loads=%d complete=%b%s",
+			getLoadedPages(), getHits(), getMisses(), this._pageLoads.sum(), this._complete,
+			this._summaryMissing ? " (summary table missing, reading Reservation)" : "");
+	}
+}
@@ -0,0 +1,57 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class creates the executors that run database work concurrently.  On
+ * a JVM with virtual threads every task gets its own virtual thread; older
+ * JVMs fall back to a fixed pool of daemon platform threads.
+ *
+ */
+
+public final class WorkerThreads{
+
+	private WorkerThreads(){
+	}
+
+	/**
+	 * Method to create an executor for blocking database tasks.
+	 *
+	 * @param name prefix of the worker thread names
+	 * @param fallbackThreads number of platform threads when virtual threads
+	 *                        are not available
+	 * @return a new executor, owned by the caller
+	 */
+	public static ExecutorService newExecutor(String name, int fallbackThreads){
+		try{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		}catch (ReflectiveOperationException e){
+			// JDK without virtual threads, use platform threads.
+		}//end try
+		return Executors.newFixedThreadPool(Math.max(1, fallbackThreads), daemonFactory(name));
+	}
+
+	/**
+	 * @return true when the running JVM supports virtual threads
+	 */
+	public static boolean hasVirtualThreads(){
+		try{
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}catch (NoSuchMethodException e){
+			return false;
+		}//end try
+	}
+
+	public static ThreadFactory daemonFactory(String name){
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
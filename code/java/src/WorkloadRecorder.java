@@ -0,0 +1,167 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class records the operations CruiseService runs, from the menu, a
+ * batch or the HTTP front end, as a log LoadGenerator replays.  One line
+ * per operation:
+ *
+ *   &lt;start&gt; &lt;latency&gt; &lt;command&gt;
+ *
+ * where start is the microseconds since the start of the previous line (negative when
+ * threads finish out of order), latency the microseconds it took, and
+ * command a BatchRunner command.  Inserts are recorded without their key,
+ * so a replay adds its rows under new keys.  A file named *.gz is written
+ * gzipped.
+ *
+ * Recording never fails an operation and never makes it wait: record only
+ * queues the operation, and one writer thread formats and writes the
+ * queue in order.  The first write error is printed and the recorder
+ * stops.
+ *
+ */
+
+public class WorkloadRecorder implements AutoCloseable{
+	static final String HEADER = "# dbproject workload: <start us since previous> <latency us> <command>";
+	//how long the writer sleeps on an empty queue
+	static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	//one queued operation, its command already quoted
+	private record Entry(long startNanos, long nanos, String command){}
+
+	private final Writer _out;
+	private final Queue<Entry> _queue = new ConcurrentLinkedQueue<Entry>();
+	private final Thread _writer;
+	//written by the writer thread only
+	private long _previous;
+	private final LongAdder _records = new LongAdder();
+	private volatile boolean _failed = false;
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param file the log to write, replaced when it exists
+	 * @throws java.io.IOException when the file could not be created
+	 */
+	public WorkloadRecorder(Path file) throws IOException {
+		OutputStream out = Files.newOutputStream(file);
+		if (file.getFileName().toString().endsWith(".gz")){
+			out = new GZIPOutputStream(out, 1 << 16);
+		}
+		this._out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+		this._out.write(HEADER);
+		this._out.write('\n');
+		this._previous = System.nanoTime();
+		this._writer = WorkerThreads.daemonFactory("workload-recorder").newThread(this::drain);
+		this._writer.start();
+	}
+
+	/**
+	 * Method to record one operation.
+	 *
+	 * @param startNanos the System.nanoTime the operation started at
+	 * @param nanos how long it took
+	 * @param command the command name and its arguments, nothing is recorded
+	 *        when empty
+	 */
+	public void record(long startNanos, long nanos, Object... command){
+		if (command.length == 0 || this._failed || this._closed){
+			return;
+		}
+		StringBuilder line = new StringBuilder(64);
+		for (Object field : command){
+			line.append(' ');
+			quote(String.valueOf(field), line);
+		}
+		this._queue.offer(new Entry(startNanos, nanos, line.toString()));
+	}
+
+	//the writer thread: writes the queue until closed and empty
+	private void drain(){
+		StringBuilder line = new StringBuilder(64);
+		while (true){
+			boolean closed = this._closed;
+			Entry e = this._queue.poll();
+			if (e == null){
+				if (closed){
+					return;
+				}
+				LockSupport.parkNanos(IDLE_NANOS);
+				continue;
+			}
+			if (this._failed){
+				continue;
+			}
+			line.setLength(0);
+			line.append((e.startNanos() - this._previous) / 1000).append(' ').append(e.nanos() / 1000).append(e.command()).append('\n');
+			this._previous = e.startNanos();
+			try{
+				this._out.write(line.toString());
+				this._records.increment();
+			}catch (IOException ex){
+				this._failed = true;
+				System.err.println("workload recorder: " + ex.getMessage() + ", recording stopped");
+			}//end try
+		}//end while
+	}
+
+	//double quotes a field holding blanks, see BatchRunner.split, which has no escape for a quote itself
+	private static void quote(String field, StringBuilder out){
+		String f = field.replace('"', '\'');
+		boolean blanks = f.isEmpty();
+		for (int i = 0; i < f.length() && !blanks; ++i){
+			blanks = Character.isWhitespace(f.charAt(i));
+		}
+		if (blanks){
+			out.append('"').append(f).append('"');
+		}else{
+			out.append(f);
+		}
+	}
+
+	/**
+	 * @return the number of operations written so far
+	 */
+	public long getRecords(){
+		return this._records.sum();
+	}
+
+	/**
+	 * Method to write what is still queued and close the file.  Operations
+	 * recorded from now on are dropped.
+	 */
+	@Override
+	public void close() throws IOException {
+		this._closed = true;
+		LockSupport.unpark(this._writer);
+		//the writer must be done with the file before it is closed
+		boolean interrupted = false;
+		while (this._writer.isAlive()){
+			try{
+				this._writer.join();
+			}catch (InterruptedException e){
+				interrupted = true;
+			}//end try
+		}//end while
+		if (interrupted){
+			Thread.currentThread().interrupt();
+		}
+		this._out.close();
+	}
+
+	@Override
+	public String toString(){
+		return "workload recorder: " + this._records.sum() + " operations" + (this._failed ? " (stopped)" : "");
+	}
+}
@@ -3,10 +3,10 @@ echo "creating db named ... "$USER"_DB"
 createdb -h localhost -p $PGPORT $USER"_DB"
 pg_ctl status
 
-echo "Copying csv files ... "
-sleep 1
-cp ../data/*.csv /tmp/$USER/myDB/data/.
-
 echo "Initializing tables .. "
 sleep 1
 psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
+
+echo "Loading csv files ... "
+(cd ../java && bash compile.sh)
+java -cp "../java/lib/*:../java/bin" DBproject $USER"_DB" $PGPORT $USER --load ../data --migrate ../sql/migrations
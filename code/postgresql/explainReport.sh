@@ -0,0 +1,25 @@
+#! /bin/bash
+# Rebuilds the database from a data directory (i.e. CSVs written by
+# DataGenerator at a large scale factor) and records EXPLAIN ANALYZE of the
+# menu queries before and after the schema migrations.
+#
+# Example: ./explainReport.sh /tmp/$USER/scaled explain_report.txt
+DATA=${1:-../data}
+REPORT=${2:-explain_report.txt}
+DB=$USER"_DB"
+CP="../java/lib/*:../java/bin"
+
+echo "Rebuilding tables from "$DATA" .. "
+psql -q -h localhost -p $PGPORT $DB < ../sql/create.sql
+(cd ../java && bash compile.sh)
+java -cp "$CP" DBproject $DB $PGPORT $USER --load $DATA
+psql -q -h localhost -p $PGPORT $DB -c "ANALYZE;"
+
+echo "== BEFORE MIGRATIONS ==" > $REPORT
+psql -h localhost -p $PGPORT $DB -f ../sql/explain_hot_paths.sql >> $REPORT 2>&1
+
+java -cp "$CP" DBproject $DB $PGPORT $USER --migrate ../sql/migrations
+
+echo "== AFTER MIGRATIONS ==" >> $REPORT
+psql -h localhost -p $PGPORT $DB -f ../sql/explain_hot_paths.sql >> $REPORT 2>&1
+echo "Report written to "$REPORT
@@ -0,0 +1,53 @@
+-------------------------------------------------------------
+-- Checks of migration V11 on a migrated database.  Everything runs in one
+-- transaction that is rolled back, with keys below zero the data never uses
+-- and a month, 2099-01, that has no partition.
+-- run with: psql -h localhost -p $PGPORT <db> -v ON_ERROR_STOP=1 -f check_partition_drain.sql
+-- Every check prints PASS; the first one that fails stops the script.
+-------------------------------------------------------------
+
+BEGIN;
+
+INSERT INTO Customer (id, fname, lname, gtype, dob) VALUES (-1, 'Check', 'Customer', 'F', DATE '1980-01-01');
+INSERT INTO Cruise (cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port)
+VALUES (-1, 100, 0, 1, DATE '2099-01-05', DATE '2099-01-12', 'CHECK', 'CHECK');
+INSERT INTO Reservation (rnum, ccid, cid, status, departure_date)
+SELECT -n, -1, -1, 'W', DATE '2099-01-05' FROM generate_series(1, 5) n;
+
+DO $$
+BEGIN
+	IF to_regclass('reservation_p2099_01') IS NOT NULL THEN
+		RAISE EXCEPTION 'FAIL: 2099-01 already has a partition, the checks need a month without one';
+	END IF;
+	IF partition_month('reservation', DATE '2099-01-01') <> -1 THEN
+		RAISE EXCEPTION 'FAIL: a month with rows in DEFAULT was created without moving them';
+	END IF;
+	RAISE NOTICE 'PASS: a month with rows in DEFAULT is left to partition_drain';
+
+	IF partition_drain('reservation', DATE '2099-01-01', 2) <> 2 OR partition_drain('reservation', DATE '2099-01-01', 2) <> 2 THEN
+		RAISE EXCEPTION 'FAIL: a drain moved more or less than its batch';
+	END IF;
+	IF EXISTS (SELECT 1 FROM pg_inherits WHERE inhrelid = 'reservation_p2099_01'::regclass) THEN
+		RAISE EXCEPTION 'FAIL: the partition was attached before DEFAULT was drained';
+	END IF;
+	RAISE NOTICE 'PASS: a drain moves one batch at a time';
+
+	IF partition_drain('reservation', DATE '2099-01-01', 2) <> 0 THEN
+		RAISE EXCEPTION 'FAIL: the last drain did not finish the month';
+	END IF;
+	IF (SELECT count(*) FROM ONLY reservation_p2099_01) <> 5 OR (SELECT count(*) FROM Reservation WHERE cid = -1) <> 5 THEN
+		RAISE EXCEPTION 'FAIL: the moved rows are not in the attached partition';
+	END IF;
+	IF EXISTS (SELECT 1 FROM Reservation_default WHERE departure_date >= DATE '2099-01-01' AND departure_date < DATE '2099-02-01') THEN
+		RAISE EXCEPTION 'FAIL: rows of the month stayed in DEFAULT';
+	END IF;
+	RAISE NOTICE 'PASS: the drained month is attached with all its rows';
+
+	IF partition_month('reservation', DATE '2099-01-01') <> 0 OR partition_month('reservation', DATE '2099-02-01') <> 1 THEN
+		RAISE EXCEPTION 'FAIL: partition_month did not create an empty month, or created an existing one';
+	END IF;
+	RAISE NOTICE 'PASS: an empty month is created at once';
+END;
+$$;
+
+ROLLBACK;
@@ -0,0 +1,75 @@
+-------------------------------------------------------------
+-- Checks of migration V9 on a migrated database.  Everything runs in one
+-- transaction that is rolled back, with keys below zero the data never uses.
+-- run with: psql -h localhost -p $PGPORT <db> -v ON_ERROR_STOP=1 -f check_partition_keys.sql
+-- Every check prints PASS; the first one that fails stops the script.
+-------------------------------------------------------------
+
+BEGIN;
+
+-- two cruises departing in different months, and what their rows refer to
+INSERT INTO Customer (id, fname, lname, gtype, dob) VALUES (-1, 'Check', 'Customer', 'F', DATE '1980-01-01');
+INSERT INTO Captain (id, fullname, nationality) VALUES (-1, 'Check Captain', 'Nowhere');
+INSERT INTO Ship (id, make, model, age, seats) VALUES (-1, 'Check', 'Check', 1, 10);
+INSERT INTO Technician (id, full_name) VALUES (-1, 'Check Technician');
+INSERT INTO Cruise (cnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_port, departure_port)
+VALUES (-1, 100, 0, 1, DATE '2015-06-01', DATE '2015-06-08', 'CHECK', 'CHECK'),
+	(-2, 100, 0, 1, DATE '2016-01-01', DATE '2016-01-08', 'CHECK', 'CHECK');
+
+INSERT INTO Reservation (rnum, ccid, cid, status, departure_date) VALUES (-1, -1, -1, 'W', DATE '2015-06-01');
+INSERT INTO Repairs (rid, repair_date, repair_code, captain_id, ship_id, technician_id) VALUES (-1, DATE '2015-06-01', 'MJ', -1, -1, -1);
+INSERT INTO Schedule (id, cruiseNum, departure_time, arrival_time) VALUES (-1, -1, DATE '2015-06-01', DATE '2015-06-08');
+
+DO $$
+BEGIN
+	BEGIN
+		INSERT INTO Reservation (rnum, ccid, cid, status, departure_date) VALUES (-1, -1, -2, 'W', DATE '2016-01-01');
+		RAISE EXCEPTION 'FAIL: a duplicate rnum in another month was accepted';
+	EXCEPTION WHEN unique_violation THEN
+		RAISE NOTICE 'PASS: a duplicate rnum in another month is rejected';
+	END;
+	BEGIN
+		INSERT INTO Repairs (rid, repair_date, repair_code, captain_id, ship_id, technician_id) VALUES (-1, DATE '2016-01-01', 'MN', -1, -1, -1);
+		RAISE EXCEPTION 'FAIL: a duplicate rid in another month was accepted';
+	EXCEPTION WHEN unique_violation THEN
+		RAISE NOTICE 'PASS: a duplicate rid in another month is rejected';
+	END;
+	BEGIN
+		INSERT INTO Schedule (id, cruiseNum, departure_time, arrival_time) VALUES (-1, -2, DATE '2016-01-01', DATE '2016-01-08');
+		RAISE EXCEPTION 'FAIL: a duplicate Schedule id in another month was accepted';
+	EXCEPTION WHEN unique_violation THEN
+		RAISE NOTICE 'PASS: a duplicate Schedule id in another month is rejected';
+	END;
+
+	INSERT INTO Reservation (rnum, ccid, cid, status, departure_date) VALUES (-2, -1, -2, 'W', DATE '2016-01-01');
+	BEGIN
+		UPDATE Reservation SET rnum = -1 WHERE rnum = -2;
+		RAISE EXCEPTION 'FAIL: an rnum changed to one in use in another month was accepted';
+	EXCEPTION WHEN unique_violation THEN
+		RAISE NOTICE 'PASS: an rnum changed to one in use in another month is rejected';
+	END;
+	UPDATE Reservation SET rnum = CASE rnum WHEN -1 THEN -2 ELSE -1 END WHERE rnum IN (-1, -2);
+	RAISE NOTICE 'PASS: two reservations swap their rnums';
+
+	-- rnum -2 is now the reservation on cruise -1
+	DELETE FROM Reservation WHERE rnum = -2;
+	INSERT INTO Reservation (rnum, ccid, cid, status, departure_date) VALUES (-2, -1, -1, 'W', DATE '2015-06-01');
+	RAISE NOTICE 'PASS: a deleted rnum is free again';
+
+	BEGIN
+		INSERT INTO Reservation (rnum, ccid, cid, status, departure_date) VALUES (-3, -1, -1, 'W', DATE '2015-06-02');
+		RAISE EXCEPTION 'FAIL: a reservation departing on another day than its cruise was accepted';
+	EXCEPTION WHEN foreign_key_violation THEN
+		RAISE NOTICE 'PASS: a reservation departing on another day than its cruise is rejected';
+	END;
+
+	UPDATE Cruise SET actual_departure_date = DATE '2016-02-01' WHERE cnum = -1;
+	IF EXISTS (SELECT 1 FROM Reservation WHERE cid = -1 AND departure_date <> DATE '2016-02-01')
+		OR NOT EXISTS (SELECT 1 FROM Reservation WHERE cid = -1) THEN
+		RAISE EXCEPTION 'FAIL: the reservations did not follow the departure of their cruise';
+	END IF;
+	RAISE NOTICE 'PASS: the reservations follow the departure of their cruise';
+END;
+$$;
+
+ROLLBACK;
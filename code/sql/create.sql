@@ -8,6 +8,25 @@ DROP TABLE IF EXISTS Reservation CASCADE;--OK
 DROP TABLE IF EXISTS CruiseInfo CASCADE;--OK
 DROP TABLE IF EXISTS Repairs CASCADE;--OK
 DROP TABLE IF EXISTS Schedule CASCADE;--OK
+-- migrations in sql/migrations are re-applied to a freshly created schema
+DROP TABLE IF EXISTS schema_version CASCADE;--OK
+DROP TABLE IF EXISTS ShipRepairCount CASCADE;--OK
+DROP TABLE IF EXISTS CruiseStatusCount CASCADE;--OK
+DROP TABLE IF EXISTS ReservationKey CASCADE;--OK
+DROP TABLE IF EXISTS RepairsKey CASCADE;--OK
+DROP TABLE IF EXISTS ScheduleKey CASCADE;--OK
+-- partitions detached by PartitionManager
+DROP SCHEMA IF EXISTS archive CASCADE;--OK
+-- month tables of an unfinished partition_drain (V11), not attached to the tables above
+DO $$
+DECLARE
+	t RECORD;
+BEGIN
+	FOR t IN SELECT tablename FROM pg_tables WHERE schemaname = 'public' AND tablename ~ '^(reservation|repairs|schedule)_p[0-9]{4}_[0-9]{2}$' LOOP
+		EXECUTE format('DROP TABLE %I', t.tablename);
+	END LOOP;
+END;
+$$;--OK
 
 -------------
 ---DOMAINS---
@@ -79,16 +98,24 @@ CREATE TABLE Technician
 ---RELATIONS---
 ---------------
 
+-- Reservation, Repairs and Schedule grow without bound and are partitioned
+-- by month (PostgreSQL 11 or later), see migration V7 and PartitionManager.
+-- Rows go to the DEFAULT partition until their month has one.  A primary key
+-- of a partitioned table must include the partition key, so migration V9
+-- keeps rnum, rid and Schedule.id unique across months, and ties
+-- Reservation.departure_date to the departure of its cruise.
 CREATE TABLE Reservation
 (
 	rnum INTEGER NOT NULL,
 	ccid INTEGER NOT NULL,
 	cid INTEGER NOT NULL,
 	status _STATUS,
-	PRIMARY KEY (rnum),
+	departure_date DATE NOT NULL,-- actual_departure_date of the cruise --
+	PRIMARY KEY (rnum, departure_date),
 	FOREIGN KEY (ccid) REFERENCES Customer(id),
 	FOREIGN KEY (cid) REFERENCES Cruise(cnum)
-);
+) PARTITION BY RANGE (departure_date);
+CREATE TABLE Reservation_default PARTITION OF Reservation DEFAULT;
 
 CREATE TABLE CruiseInfo
 (
@@ -110,11 +137,12 @@ CREATE TABLE Repairs
 	captain_id INTEGER NOT NULL,
 	ship_id INTEGER NOT NULL,
 	technician_id INTEGER NOT NULL,
-	PRIMARY KEY (rid),
+	PRIMARY KEY (rid, repair_date),
 	FOREIGN KEY (captain_id) REFERENCES Captain(id),
 	FOREIGN KEY (ship_id) REFERENCES Ship(id),
 	FOREIGN KEY (technician_id) REFERENCES Technician(id)
-);
+) PARTITION BY RANGE (repair_date);
+CREATE TABLE Repairs_default PARTITION OF Repairs DEFAULT;
 
 CREATE TABLE Schedule
 (
@@ -122,99 +150,15 @@ CREATE TABLE Schedule
 	cruiseNum INTEGER NOT NULL,
 	departure_time DATE NOT NULL,
 	arrival_time DATE NOT NULL,
-	PRIMARY KEY (id),
+	PRIMARY KEY (id, departure_time),
 	FOREIGN KEY (cruiseNum) REFERENCES Cruise(cnum)
-);
+) PARTITION BY RANGE (departure_time);
+CREATE TABLE Schedule_default PARTITION OF Schedule DEFAULT;
 
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
 
-COPY Customer (
-	id,
-	fname,
-	lname,
-	gtype,
-	dob,
-	address,
-	phone,
-	zipcode
-)
-FROM 'customer.csv'
-WITH DELIMITER ',';
-
-COPY Captain (
-	id,
-	fullname,
-	nationality
-)
-FROM 'Captains.csv'
-WITH DELIMITER ',';
-
-COPY Ship (
-	id,
-	make,
-	model,
-	age,
-	seats
-)
-FROM 'Ships.csv'
-WITH DELIMITER ',';
-
-COPY Technician (
-	id,
-	full_name
-)
-FROM 'technician.csv'
-WITH DELIMITER ',';
-
-COPY Cruise (
-	cnum,
-	cost,
-	num_sold,
-	num_stops,
-	actual_departure_date,
-	actual_arrival_date,
-	arrival_port,
-	departure_port
-)
-FROM 'Cruises.csv'
-WITH DELIMITER ',';
-
-COPY Reservation (
-	rnum,
-	ccid,
-	cid,
-	status
-)
-FROM 'reservation.csv'
-WITH DELIMITER ',';
-
-COPY CruiseInfo (
-	ciid,
-	cruise_id,
-	captain_id,
-	ship_id
-)
-FROM 'Cruiseinfo.csv'
-WITH DELIMITER ',';
-
-COPY Repairs (
-	rid,
-	repair_date,
-	repair_code,
-	captain_id,
-	ship_id,
-	technician_id
-)
-FROM 'repairs.csv'
-WITH DELIMITER ',';
-
-COPY Schedule (
-	id,
-	cruiseNum,
-	departure_time,
-	arrival_time
-)
-FROM 'schedule.csv'
-WITH DELIMITER ',';
+-- The CSV files in code/data are loaded from the client with COPY FROM STDIN:
+--   java -cp "lib/*:bin" DBproject <dbname> <port> <user> --load ../data
+-- (see postgresql/createPostgreDB.sh), so the server needs no access to them.
@@ -0,0 +1,67 @@
+-------------------------------------------------------------
+-- EXPLAIN ANALYZE of the queries behind menu options 4 to 7 --
+-- run with: psql -h localhost -p $PGPORT <db> -f explain_hot_paths.sql
+-------------------------------------------------------------
+
+-- the most booked cruise, one of its customers and its departure day
+SELECT cid AS cnum FROM Reservation GROUP BY cid ORDER BY count(*) DESC LIMIT 1 \gset
+SELECT ccid AS cust FROM Reservation WHERE cid = :cnum LIMIT 1 \gset
+SELECT actual_departure_date AS depart FROM Cruise WHERE cnum = :cnum \gset
+
+\echo '-- option 4: existing reservation of a customer on a cruise, one Reservation partition'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT R.status FROM Reservation R, Customer C WHERE C.id = :cust AND C.id = R.ccid AND R.cid = :cnum
+AND R.departure_date = (SELECT actual_departure_date FROM Cruise WHERE cnum = :cnum);
+
+\echo '-- option 5: available seats'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT (SELECT S.seats FROM Ship S, Cruise C, CruiseInfo C2 WHERE C.cnum = :cnum AND C.actual_departure_date = :'depart' AND C2.cruise_id = C.cnum AND C2.ship_id = S.id)
+	- (SELECT C.num_sold FROM Cruise C, CruiseInfo C2 WHERE C.num_sold > 0 AND C2.cruise_id = C.cnum AND C.cnum = :cnum);
+
+\echo '-- option 6: repairs per ship'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT S.id, count(R.rid) FROM Repairs R, Ship S WHERE R.ship_id = S.id GROUP BY S.id ORDER BY count DESC;
+
+\echo '-- option 6 after V2: top 10 from the maintained summary'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT ship_id AS id, repairs AS count FROM ShipRepairCount WHERE repairs > 0 ORDER BY repairs DESC, ship_id LIMIT 10;
+
+\echo '-- option 7: passengers with a status on a cruise, one Reservation partition'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT COUNT(*) FROM Reservation WHERE status = 'R' AND cid = :cnum
+AND departure_date = (SELECT actual_departure_date FROM Cruise WHERE cnum = :cnum);
+
+-- Before V7 every row is in the DEFAULT partition; after it these read the
+-- partitions of one month and the rest show as "never executed" or pruned.
+\echo '-- reservations of one departure month'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT status, count(*) FROM Reservation
+WHERE departure_date >= date_trunc('month', DATE :'depart') AND departure_date < date_trunc('month', DATE :'depart') + interval '1 month'
+GROUP BY status;
+
+\echo '-- repairs of one month per ship'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT ship_id, count(*) FROM Repairs
+WHERE repair_date >= date_trunc('month', DATE :'depart') AND repair_date < date_trunc('month', DATE :'depart') + interval '1 month'
+GROUP BY ship_id;
+
+\echo '-- option 7 after V3: one cruise from the maintained summary'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT reserved FROM CruiseStatusCount WHERE cruise_id = :cnum;
+
+SELECT departure_port AS dport, arrival_port AS aport FROM Cruise WHERE cnum = :cnum \gset
+
+\echo '-- cruise search after V4: one route, a 30 day window, first page'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT C.cnum, C.actual_departure_date, C.departure_port, C.arrival_port, S.seats - C.num_sold
+FROM Cruise C, CruiseInfo CI, Ship S WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id
+AND C.departure_port = :'dport' AND C.arrival_port = :'aport'
+AND C.actual_departure_date BETWEEN :'depart' AND DATE :'depart' + 30 AND (C.actual_departure_date, C.cnum) > (DATE :'depart' - 1, -1)
+AND S.seats - C.num_sold >= 1 ORDER BY C.actual_departure_date, C.cnum LIMIT 21;
+
+\echo '-- cruise search after V4: any route, a 7 day window (BRIN)'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT C.cnum, C.actual_departure_date, C.departure_port, C.arrival_port, S.seats - C.num_sold
+FROM Cruise C, CruiseInfo CI, Ship S WHERE CI.cruise_id = C.cnum AND CI.ship_id = S.id
+AND C.actual_departure_date BETWEEN :'depart' AND DATE :'depart' + 7 AND (C.actual_departure_date, C.cnum) > (DATE :'depart' - 1, -1)
+AND S.seats - C.num_sold >= 1 ORDER BY C.actual_departure_date, C.cnum LIMIT 21;
@@ -0,0 +1,122 @@
+-------------------------------------------------------------
+-- V10: the change feed of V6 is opt-in, and names the operation --
+-------------------------------------------------------------
+
+-- A transaction that sent a NOTIFY takes a lock shared by the whole
+-- database when it commits, so the triggers of V6 serialized every booking
+-- whether or not a process listened.  They are now installed only while the
+-- feed is switched on:
+--   java -cp "lib/*:bin" DBproject <dbname> <port> <user> --change-feed on
+-- which calls change_feed_install(), and off again with --change-feed off,
+-- i.e. change_feed_remove().  This migration leaves it off.  A process
+-- listens only while the triggers are installed, see change_feed_installed().
+--
+-- The payload now carries the operation after the table tag, e.g. "CU:12,40"
+-- for two updated cruises: I insert, U update, D delete, T truncate.  An
+-- update of Cruise is only sent when a column the caches read changed, its
+-- ports or dates; the num_sold of a booking is followed through the
+-- Reservation row written with it.
+CREATE OR REPLACE FUNCTION change_feed_send(tag TEXT, op TEXT, keys TEXT) RETURNS void AS $$
+BEGIN
+	IF keys IS NULL THEN
+		RETURN;
+	END IF;
+	IF length(keys) > 7900 THEN
+		keys := '*';
+	END IF;
+	PERFORM pg_notify('dbproject_changes', tag || left(op, 1) || ':' || keys);
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_insert() RETURNS trigger AS $$
+BEGIN
+	PERFORM change_feed_send(TG_ARGV[0], TG_OP, string_agg(DISTINCT k, ','))
+	FROM (SELECT to_jsonb(n) ->> TG_ARGV[1] AS k FROM new_rows n) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_delete() RETURNS trigger AS $$
+BEGIN
+	PERFORM change_feed_send(TG_ARGV[0], TG_OP, string_agg(DISTINCT k, ','))
+	FROM (SELECT to_jsonb(o) ->> TG_ARGV[1] AS k FROM old_rows o) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_update() RETURNS trigger AS $$
+BEGIN
+	PERFORM change_feed_send(TG_ARGV[0], TG_OP, string_agg(DISTINCT k, ','))
+	FROM (SELECT to_jsonb(n) ->> TG_ARGV[1] AS k FROM new_rows n
+		UNION ALL
+		SELECT to_jsonb(o) ->> TG_ARGV[1] FROM old_rows o) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_truncate() RETURNS trigger AS $$
+BEGIN
+	PERFORM change_feed_send(TG_ARGV[0], TG_OP, '*');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- The cruises whose ports or dates changed, or whose cnum did.  A statement
+-- that only sold seats sends nothing.
+CREATE OR REPLACE FUNCTION cruise_feed_update() RETURNS trigger AS $$
+BEGIN
+	PERFORM change_feed_send('C', TG_OP, string_agg(DISTINCT k, ','))
+	FROM (SELECT coalesce(n.cnum, o.cnum)::text AS k FROM new_rows n FULL JOIN old_rows o ON o.cnum = n.cnum
+		WHERE n.cnum IS NULL OR o.cnum IS NULL
+		OR (n.actual_departure_date, n.actual_arrival_date, n.departure_port, n.arrival_port)
+			IS DISTINCT FROM (o.actual_departure_date, o.actual_arrival_date, o.departure_port, o.arrival_port)) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- The feed's triggers: table, tag and key column.
+CREATE OR REPLACE FUNCTION change_feed_tables() RETURNS TABLE (tbl TEXT, tag TEXT, col TEXT) AS $$
+	VALUES ('cruise', 'C', 'cnum'), ('reservation', 'R', 'cid'), ('ship', 'S', 'id'), ('repairs', 'P', 'ship_id');
+$$ LANGUAGE sql IMMUTABLE;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_remove() RETURNS void AS $$
+DECLARE
+	t RECORD;
+BEGIN
+	FOR t IN SELECT * FROM change_feed_tables() LOOP
+		EXECUTE format('DROP TRIGGER IF EXISTS %I ON %I', t.tbl || '_feed_insert', t.tbl);
+		EXECUTE format('DROP TRIGGER IF EXISTS %I ON %I', t.tbl || '_feed_delete', t.tbl);
+		EXECUTE format('DROP TRIGGER IF EXISTS %I ON %I', t.tbl || '_feed_update', t.tbl);
+		EXECUTE format('DROP TRIGGER IF EXISTS %I ON %I', t.tbl || '_feed_truncate', t.tbl);
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_install() RETURNS void AS $$
+DECLARE
+	t RECORD;
+BEGIN
+	PERFORM change_feed_remove();
+	FOR t IN SELECT * FROM change_feed_tables() LOOP
+		EXECUTE format('CREATE TRIGGER %I AFTER INSERT ON %I REFERENCING NEW TABLE AS new_rows'
+			' FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_insert(%L, %L)', t.tbl || '_feed_insert', t.tbl, t.tag, t.col);
+		EXECUTE format('CREATE TRIGGER %I AFTER DELETE ON %I REFERENCING OLD TABLE AS old_rows'
+			' FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_delete(%L, %L)', t.tbl || '_feed_delete', t.tbl, t.tag, t.col);
+		IF t.tbl = 'cruise' THEN
+			EXECUTE 'CREATE TRIGGER cruise_feed_update AFTER UPDATE ON Cruise REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows'
+				' FOR EACH STATEMENT EXECUTE PROCEDURE cruise_feed_update()';
+		ELSE
+			EXECUTE format('CREATE TRIGGER %I AFTER UPDATE ON %I REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows'
+				' FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_update(%L, %L)', t.tbl || '_feed_update', t.tbl, t.tag, t.col);
+		END IF;
+		EXECUTE format('CREATE TRIGGER %I AFTER TRUNCATE ON %I FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_truncate(%L)',
+			t.tbl || '_feed_truncate', t.tbl, t.tag);
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_installed() RETURNS boolean AS $$
+	SELECT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'reservation_feed_insert' AND NOT tgisinternal);
+$$ LANGUAGE sql STABLE;--OK
+
+SELECT change_feed_remove();--OK
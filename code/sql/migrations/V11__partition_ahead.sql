@@ -0,0 +1,149 @@
+-------------------------------------------------------------------
+-- V11: month partitions created ahead, DEFAULT drained in batches --
+-------------------------------------------------------------------
+
+-- partition_months of V7 detached the DEFAULT partition, moved its rows of
+-- the new months and attached it again, all in one transaction.  That held
+-- ACCESS EXCLUSIVE on the parent table until the last row was moved.  Now
+-- one month is handled per call, in its own transaction, and
+-- PartitionManager loops over the months:
+--   partition_month  creates the partition of a month while DEFAULT holds
+--                    none of its rows, which ensureAhead makes the usual
+--                    case by creating months ahead
+--   partition_drain  otherwise moves at most a batch of the month's rows
+--                    per call out of DEFAULT, then attaches the partition
+-- The partition is built as a plain table with a CHECK constraint matching
+-- its bounds and then attached.  On PostgreSQL 12 or later ATTACH takes only
+-- SHARE UPDATE EXCLUSIVE on the parent, which does not block reads or
+-- writes.  The DEFAULT partition is locked by the attach alone, and is empty
+-- for the month by then.
+--
+-- While its rows are moved, the partition is a plain table named like the
+-- partition.  It is not attached yet, so those rows cannot be read through
+-- the parent until the last batch.  This only concerns rows written for a
+-- month that had no partition yet.  As in V7, the rows are written to the
+-- tables directly, so the summaries and key tables do not see them twice.
+
+-- The DEFAULT partition of a partitioned table, null when it has none.
+CREATE OR REPLACE FUNCTION partition_default(parent regclass) RETURNS regclass AS $$
+	SELECT c.oid::regclass FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+	WHERE i.inhparent = parent AND pg_get_expr(c.relpartbound, c.oid) = 'DEFAULT';
+$$ LANGUAGE sql STABLE;--OK
+
+-- Attaches the plain table of a month, whose rows lie in the month, and
+-- drops its bound constraint, which spared the attach a scan of it.
+CREATE OR REPLACE FUNCTION partition_attach(parent regclass, part TEXT, month DATE) RETURNS void AS $$
+BEGIN
+	EXECUTE format('ALTER TABLE %s ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+		parent, part, month, (month + interval '1 month')::date);
+	EXECUTE format('ALTER TABLE %I DROP CONSTRAINT IF EXISTS %I', part, part || '_bound');
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- The plain table of a month, created when missing.
+CREATE OR REPLACE FUNCTION partition_table(parent regclass, part TEXT, month DATE) RETURNS void AS $$
+DECLARE
+	key name := partition_key(parent);
+BEGIN
+	IF to_regclass(quote_ident(part)) IS NOT NULL THEN
+		RETURN;
+	END IF;
+	EXECUTE format('CREATE TABLE %I (LIKE %s INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part, parent);
+	EXECUTE format('ALTER TABLE %I ADD CONSTRAINT %I CHECK (%I IS NOT NULL AND %I >= %L AND %I < %L)',
+		part, part || '_bound', key, key, month, key, (month + interval '1 month')::date);
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- Creates the partition of the month of of_day.  Returns 1 when it created
+-- it, 0 when it exists, and -1 when DEFAULT holds rows of the month, or a
+-- drain was left unfinished, so partition_drain has to move them first.
+CREATE OR REPLACE FUNCTION partition_month(parent regclass, of_day DATE) RETURNS integer AS $$
+DECLARE
+	key name := partition_key(parent);
+	def regclass := partition_default(parent);
+	month DATE := date_trunc('month', of_day)::date;
+	part TEXT := format('%s_p%s', (SELECT relname FROM pg_class WHERE oid = parent), to_char(date_trunc('month', of_day), 'YYYY_MM'));
+	has_rows BOOLEAN := false;
+BEGIN
+	IF key IS NULL THEN
+		RAISE EXCEPTION '% is not partitioned', parent;
+	END IF;
+	IF to_regclass(quote_ident(part)) IS NOT NULL THEN
+		RETURN CASE WHEN EXISTS (SELECT 1 FROM pg_inherits WHERE inhrelid = to_regclass(quote_ident(part))) THEN 0 ELSE -1 END;
+	END IF;
+	IF def IS NOT NULL THEN
+		EXECUTE format('SELECT EXISTS (SELECT 1 FROM %s WHERE %I >= %L AND %I < %L)',
+			def, key, month, key, (month + interval '1 month')::date) INTO has_rows;
+		IF has_rows THEN
+			RETURN -1;
+		END IF;
+	END IF;
+	PERFORM partition_table(parent, part, month);
+	PERFORM partition_attach(parent, part, month);
+	RETURN 1;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- Moves at most batch rows of the month of of_day from DEFAULT into the
+-- month's plain table and returns how many.  Once fewer than a batch
+-- remain, it locks DEFAULT against new rows of the month, moves the rest,
+-- attaches the partition and returns 0.
+CREATE OR REPLACE FUNCTION partition_drain(parent regclass, of_day DATE, batch integer) RETURNS integer AS $$
+DECLARE
+	key name := partition_key(parent);
+	def regclass := partition_default(parent);
+	month DATE := date_trunc('month', of_day)::date;
+	next DATE := (date_trunc('month', of_day) + interval '1 month')::date;
+	part TEXT := format('%s_p%s', (SELECT relname FROM pg_class WHERE oid = parent), to_char(date_trunc('month', of_day), 'YYYY_MM'));
+	moved integer;
+BEGIN
+	IF key IS NULL THEN
+		RAISE EXCEPTION '% is not partitioned', parent;
+	END IF;
+	IF EXISTS (SELECT 1 FROM pg_inherits WHERE inhrelid = to_regclass(quote_ident(part))) THEN
+		RETURN 0;
+	END IF;
+	PERFORM partition_table(parent, part, month);
+	IF def IS NOT NULL THEN
+		EXECUTE format('WITH moved AS (DELETE FROM %1$s WHERE ctid = ANY (ARRAY (SELECT ctid FROM %1$s WHERE %3$I >= %4$L AND %3$I < %5$L LIMIT %6$s)) RETURNING *)'
+			' INSERT INTO %2$I SELECT * FROM moved', def, part, key, month, next, batch);
+		GET DIAGNOSTICS moved = ROW_COUNT;
+		IF moved >= batch THEN
+			RETURN moved;
+		END IF;
+		-- the tail, with the writers of DEFAULT held off until the attach commits
+		EXECUTE format('LOCK TABLE %s IN SHARE ROW EXCLUSIVE MODE', def);
+		EXECUTE format('WITH moved AS (DELETE FROM %1$s WHERE %3$I >= %4$L AND %3$I < %5$L RETURNING *) INSERT INTO %2$I SELECT * FROM moved',
+			def, part, key, month, next);
+	END IF;
+	PERFORM partition_attach(parent, part, month);
+	RETURN 0;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- The months DEFAULT holds rows of, which normally is none.
+CREATE OR REPLACE FUNCTION partition_default_months(parent regclass) RETURNS SETOF DATE AS $$
+DECLARE
+	def regclass := partition_default(parent);
+BEGIN
+	IF def IS NOT NULL THEN
+		RETURN QUERY EXECUTE format('SELECT DISTINCT date_trunc(''month'', %I)::date FROM %s ORDER BY 1', partition_key(parent), def);
+	END IF;
+END;
+$$ LANGUAGE plpgsql STABLE;--OK
+
+-- Kept for scripts that call it: every month from first_day to last_day, in
+-- one transaction, without moving rows.  Months with rows in DEFAULT are
+-- left to partition_drain.  Returns how many partitions it created.
+CREATE OR REPLACE FUNCTION partition_months(parent regclass, first_day DATE, last_day DATE) RETURNS integer AS $$
+DECLARE
+	month DATE := date_trunc('month', first_day)::date;
+	created integer := 0;
+BEGIN
+	WHILE month <= last_day LOOP
+		created := created + greatest(partition_month(parent, month), 0);
+		month := (month + interval '1 month')::date;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;--OK
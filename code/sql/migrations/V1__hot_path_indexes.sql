@@ -0,0 +1,55 @@
+-------------------------------------------
+-- V1: indexes and row width for the menu --
+-------------------------------------------
+
+-- Option 7 counts by (cid, status) and option 4 looks up (ccid, cid); both are
+-- answered from this index without visiting the heap.
+CREATE INDEX IF NOT EXISTS reservation_cid_status_ccid_idx ON Reservation (cid, status, ccid);--OK
+-- Reservation -> Customer foreign key.
+CREATE INDEX IF NOT EXISTS reservation_ccid_idx ON Reservation (ccid);--OK
+-- Waitlisted bookings per cruise, a small fraction of the table.
+CREATE INDEX IF NOT EXISTS reservation_waitlist_idx ON Reservation (cid) WHERE status = 'W';--OK
+
+-- Option 5 and the seat cache join Cruise -> CruiseInfo -> Ship.
+CREATE INDEX IF NOT EXISTS cruiseinfo_cruise_ship_idx ON CruiseInfo (cruise_id, ship_id, captain_id);--OK
+CREATE INDEX IF NOT EXISTS cruiseinfo_ship_idx ON CruiseInfo (ship_id);--OK
+CREATE INDEX IF NOT EXISTS cruiseinfo_captain_idx ON CruiseInfo (captain_id);--OK
+
+-- Option 6 groups Repairs by ship.
+CREATE INDEX IF NOT EXISTS repairs_ship_idx ON Repairs (ship_id);--OK
+
+CREATE INDEX IF NOT EXISTS schedule_cruisenum_idx ON Schedule (cruiseNum);--OK
+
+-- CHAR(n) pads every value to n characters; VARCHAR keeps the same limits
+-- without the padding.  The cast drops the trailing blanks.
+ALTER TABLE Customer
+	ALTER COLUMN fname TYPE VARCHAR(24),
+	ALTER COLUMN lname TYPE VARCHAR(24),
+	ALTER COLUMN address TYPE VARCHAR(256),
+	ALTER COLUMN phone TYPE VARCHAR(10),
+	ALTER COLUMN zipcode TYPE VARCHAR(10);--OK
+
+ALTER TABLE Captain
+	ALTER COLUMN fullname TYPE VARCHAR(128),
+	ALTER COLUMN nationality TYPE VARCHAR(24);--OK
+
+ALTER TABLE Cruise
+	ALTER COLUMN arrival_port TYPE VARCHAR(5),
+	ALTER COLUMN departure_port TYPE VARCHAR(5);--OK
+
+ALTER TABLE Ship
+	ALTER COLUMN make TYPE VARCHAR(32),
+	ALTER COLUMN model TYPE VARCHAR(64);--OK
+
+ALTER TABLE Technician
+	ALTER COLUMN full_name TYPE VARCHAR(128);--OK
+
+ANALYZE Customer;
+ANALYZE Captain;
+ANALYZE Cruise;
+ANALYZE Ship;
+ANALYZE Technician;
+ANALYZE Reservation;
+ANALYZE CruiseInfo;
+ANALYZE Repairs;
+ANALYZE Schedule;
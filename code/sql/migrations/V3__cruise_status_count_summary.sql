@@ -0,0 +1,83 @@
+-----------------------------------------------------
+-- V3: maintained reservation counts per cruise and status (option 7) --
+-----------------------------------------------------
+
+-- One row per cruise with reservations, holding the number of waitlisted,
+-- completed and reserved bookings.  The triggers below keep it equal to
+-- SELECT cid, count(*) FILTER (WHERE status = ...) FROM Reservation GROUP BY cid.
+CREATE TABLE CruiseStatusCount
+(
+	cruise_id INTEGER NOT NULL,
+	waitlisted BIGINT NOT NULL DEFAULT 0 CHECK (waitlisted >= 0),
+	completed BIGINT NOT NULL DEFAULT 0 CHECK (completed >= 0),
+	reserved BIGINT NOT NULL DEFAULT 0 CHECK (reserved >= 0),
+	PRIMARY KEY (cruise_id)
+);--OK
+
+INSERT INTO CruiseStatusCount (cruise_id, waitlisted, completed, reserved)
+SELECT cid, count(*) FILTER (WHERE status = 'W'), count(*) FILTER (WHERE status = 'C'), count(*) FILTER (WHERE status = 'R')
+FROM Reservation GROUP BY cid;--OK
+
+-- Same scheme as V2: statement-level triggers aggregate the transition
+-- tables, then apply one upsert per cruise in cruise order.
+CREATE OR REPLACE FUNCTION cruise_status_count_apply(delta_cruise INTEGER[], delta_w BIGINT[], delta_c BIGINT[], delta_r BIGINT[]) RETURNS void AS $$
+BEGIN
+	INSERT INTO CruiseStatusCount AS T (cruise_id, waitlisted, completed, reserved)
+	SELECT d.cruise_id, d.w, d.c, d.r FROM unnest(delta_cruise, delta_w, delta_c, delta_r) AS d(cruise_id, w, c, r)
+	WHERE d.w <> 0 OR d.c <> 0 OR d.r <> 0 ORDER BY d.cruise_id
+	ON CONFLICT (cruise_id) DO UPDATE SET
+		waitlisted = T.waitlisted + EXCLUDED.waitlisted,
+		completed = T.completed + EXCLUDED.completed,
+		reserved = T.reserved + EXCLUDED.reserved;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION cruise_status_count_insert() RETURNS trigger AS $$
+BEGIN
+	PERFORM cruise_status_count_apply(array_agg(cid), array_agg(w), array_agg(c), array_agg(r))
+	FROM (SELECT cid, count(*) FILTER (WHERE status = 'W') AS w, count(*) FILTER (WHERE status = 'C') AS c,
+		count(*) FILTER (WHERE status = 'R') AS r FROM new_rows GROUP BY cid) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION cruise_status_count_delete() RETURNS trigger AS $$
+BEGIN
+	PERFORM cruise_status_count_apply(array_agg(cid), array_agg(-w), array_agg(-c), array_agg(-r))
+	FROM (SELECT cid, count(*) FILTER (WHERE status = 'W') AS w, count(*) FILTER (WHERE status = 'C') AS c,
+		count(*) FILTER (WHERE status = 'R') AS r FROM old_rows GROUP BY cid) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION cruise_status_count_update() RETURNS trigger AS $$
+BEGIN
+	PERFORM cruise_status_count_apply(array_agg(cid), array_agg(w), array_agg(c), array_agg(r))
+	FROM (SELECT cid, sum(w) AS w, sum(c) AS c, sum(r) AS r FROM (
+		SELECT cid, count(*) FILTER (WHERE status = 'W') AS w, count(*) FILTER (WHERE status = 'C') AS c,
+			count(*) FILTER (WHERE status = 'R') AS r FROM new_rows GROUP BY cid
+		UNION ALL
+		SELECT cid, -count(*) FILTER (WHERE status = 'W'), -count(*) FILTER (WHERE status = 'C'),
+			-count(*) FILTER (WHERE status = 'R') FROM old_rows GROUP BY cid) u
+	GROUP BY cid) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION cruise_status_count_truncate() RETURNS trigger AS $$
+BEGIN
+	DELETE FROM CruiseStatusCount;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE TRIGGER reservation_count_insert AFTER INSERT ON Reservation
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE cruise_status_count_insert();--OK
+CREATE TRIGGER reservation_count_delete AFTER DELETE ON Reservation
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE cruise_status_count_delete();--OK
+CREATE TRIGGER reservation_count_update AFTER UPDATE ON Reservation
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE cruise_status_count_update();--OK
+CREATE TRIGGER reservation_count_truncate AFTER TRUNCATE ON Reservation
+	FOR EACH STATEMENT EXECUTE PROCEDURE cruise_status_count_truncate();--OK
+
+ANALYZE CruiseStatusCount;--OK
@@ -0,0 +1,27 @@
+-----------------------------------------------------
+-- V4: indexes of the cruise search (route and date) --
+-----------------------------------------------------
+
+-- A search names a departure port, optionally an arrival port, and a window
+-- of departure dates, and pages through the hits in (departure date, cnum)
+-- order.  With both ports fixed the index range is already in page order, so
+-- the keyset condition (actual_departure_date, cnum) > (last date, last cnum)
+-- starts the next page with one index descent instead of skipping OFFSET rows.
+CREATE INDEX IF NOT EXISTS cruise_route_departure_idx
+	ON Cruise (departure_port, arrival_port, actual_departure_date, cnum);--OK
+-- Searches by arrival port only.
+CREATE INDEX IF NOT EXISTS cruise_arrival_departure_idx
+	ON Cruise (arrival_port, actual_departure_date, cnum);--OK
+
+-- Searches by date window only.  A block range index keeps the lowest and
+-- highest departure of every 32 heap pages, a few kilobytes for the whole
+-- table, and is only selective when the heap is in departure order.  New
+-- cruises are mostly appended with later departures than the existing ones,
+-- so the table is put in that order once here and stays close to it.
+CREATE INDEX cruise_departure_cluster_tmp ON Cruise (actual_departure_date, cnum);--OK
+CLUSTER Cruise USING cruise_departure_cluster_tmp;--OK
+DROP INDEX cruise_departure_cluster_tmp;--OK
+CREATE INDEX IF NOT EXISTS cruise_departure_brin_idx
+	ON Cruise USING brin (actual_departure_date) WITH (pages_per_range = 32);--OK
+
+ANALYZE Cruise;--OK
@@ -0,0 +1,35 @@
+-----------------------------------------------------
+-- V5: key sequences of every table, handed out in blocks --
+-----------------------------------------------------
+
+-- Keys used to be typed in by the operator, so two clients adding a ship at
+-- once could pick the same id.  Each table now has a sequence that
+-- KeyAllocator draws from.  One nextval reserves a block of 1000 keys
+-- (INCREMENT BY must equal KeyAllocator.BLOCK_SIZE), and the client hands out
+-- the keys of the block from memory, so an insert needs no extra round trip.
+-- Keys are unique across clients, though not gapless, and a block
+-- left unused when a client exits is not handed out again.
+--
+-- The sequences are owned by their key columns, so dropping the tables in
+-- create.sql drops them as well.  Each one starts right after the largest
+-- key already loaded.
+CREATE SEQUENCE customer_id_seq AS integer INCREMENT BY 1000 MINVALUE 0 OWNED BY Customer.id;--OK
+CREATE SEQUENCE captain_id_seq AS integer INCREMENT BY 1000 MINVALUE 0 OWNED BY Captain.id;--OK
+CREATE SEQUENCE ship_id_seq AS integer INCREMENT BY 1000 MINVALUE 0 OWNED BY Ship.id;--OK
+CREATE SEQUENCE technician_id_seq AS integer INCREMENT BY 1000 MINVALUE 0 OWNED BY Technician.id;--OK
+CREATE SEQUENCE cruise_cnum_seq AS integer INCREMENT BY 1000 MINVALUE 0 OWNED BY Cruise.cnum;--OK
+CREATE SEQUENCE reservation_rnum_seq AS integer INCREMENT BY 1000 MINVALUE 0 OWNED BY Reservation.rnum;--OK
+CREATE SEQUENCE cruiseinfo_ciid_seq AS integer INCREMENT BY 1000 MINVALUE 0 OWNED BY CruiseInfo.ciid;--OK
+CREATE SEQUENCE repairs_rid_seq AS integer INCREMENT BY 1000 MINVALUE 0 OWNED BY Repairs.rid;--OK
+CREATE SEQUENCE schedule_id_seq AS integer INCREMENT BY 1000 MINVALUE 0 OWNED BY Schedule.id;--OK
+
+-- is_called = false makes the next nextval return exactly this value
+SELECT setval('customer_id_seq', COALESCE(max(id) + 1, 0), false) FROM Customer;--OK
+SELECT setval('captain_id_seq', COALESCE(max(id) + 1, 0), false) FROM Captain;--OK
+SELECT setval('ship_id_seq', COALESCE(max(id) + 1, 0), false) FROM Ship;--OK
+SELECT setval('technician_id_seq', COALESCE(max(id) + 1, 0), false) FROM Technician;--OK
+SELECT setval('cruise_cnum_seq', COALESCE(max(cnum) + 1, 0), false) FROM Cruise;--OK
+SELECT setval('reservation_rnum_seq', COALESCE(max(rnum) + 1, 0), false) FROM Reservation;--OK
+SELECT setval('cruiseinfo_ciid_seq', COALESCE(max(ciid) + 1, 0), false) FROM CruiseInfo;--OK
+SELECT setval('repairs_rid_seq', COALESCE(max(rid) + 1, 0), false) FROM Repairs;--OK
+SELECT setval('schedule_id_seq', COALESCE(max(id) + 1, 0), false) FROM Schedule;--OK
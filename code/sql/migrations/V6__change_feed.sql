@@ -0,0 +1,102 @@
+-----------------------------------------------------
+-- V6: change notifications for the client caches --
+-----------------------------------------------------
+
+-- Every statement that changes Cruise, Reservation, Ship or Repairs sends
+-- one NOTIFY on channel dbproject_changes, delivered when it commits.
+-- The payload is a table tag and the distinct keys of the rows it touched,
+-- e.g. "C:12,40" for two cruises:
+--   C  Cruise        by cnum
+--   R  Reservation   by cruise (cid)
+--   S  Ship          by id
+--   P  Repairs       by ship (ship_id)
+-- A payload must stay below 8000 bytes.  A statement touching more keys than
+-- fit sends "<tag>:*" instead, meaning every row of the table.  ChangeFeed
+-- listens on the channel and invalidates the cached rows.
+--
+-- Same scheme as V2 and V3: statement-level triggers over the transition
+-- tables, so a bulk insert sends one notification rather than one per row.
+-- The key column is passed as the second trigger argument and read with
+-- to_jsonb, so one function serves every table.
+CREATE OR REPLACE FUNCTION change_feed_send(tag TEXT, keys TEXT) RETURNS void AS $$
+BEGIN
+	IF keys IS NULL THEN
+		RETURN;
+	END IF;
+	IF length(keys) > 7900 THEN
+		keys := '*';
+	END IF;
+	PERFORM pg_notify('dbproject_changes', tag || ':' || keys);
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_insert() RETURNS trigger AS $$
+BEGIN
+	PERFORM change_feed_send(TG_ARGV[0], string_agg(DISTINCT k, ','))
+	FROM (SELECT to_jsonb(n) ->> TG_ARGV[1] AS k FROM new_rows n) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_delete() RETURNS trigger AS $$
+BEGIN
+	PERFORM change_feed_send(TG_ARGV[0], string_agg(DISTINCT k, ','))
+	FROM (SELECT to_jsonb(o) ->> TG_ARGV[1] AS k FROM old_rows o) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- an update may move a row to another key, i.e. a reservation to another
+-- cruise, so both the old and the new keys are sent
+CREATE OR REPLACE FUNCTION change_feed_update() RETURNS trigger AS $$
+BEGIN
+	PERFORM change_feed_send(TG_ARGV[0], string_agg(DISTINCT k, ','))
+	FROM (SELECT to_jsonb(n) ->> TG_ARGV[1] AS k FROM new_rows n
+		UNION ALL
+		SELECT to_jsonb(o) ->> TG_ARGV[1] FROM old_rows o) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION change_feed_truncate() RETURNS trigger AS $$
+BEGIN
+	PERFORM change_feed_send(TG_ARGV[0], '*');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE TRIGGER cruise_feed_insert AFTER INSERT ON Cruise
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_insert('C', 'cnum');--OK
+CREATE TRIGGER cruise_feed_delete AFTER DELETE ON Cruise
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_delete('C', 'cnum');--OK
+CREATE TRIGGER cruise_feed_update AFTER UPDATE ON Cruise
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_update('C', 'cnum');--OK
+CREATE TRIGGER cruise_feed_truncate AFTER TRUNCATE ON Cruise
+	FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_truncate('C');--OK
+
+CREATE TRIGGER reservation_feed_insert AFTER INSERT ON Reservation
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_insert('R', 'cid');--OK
+CREATE TRIGGER reservation_feed_delete AFTER DELETE ON Reservation
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_delete('R', 'cid');--OK
+CREATE TRIGGER reservation_feed_update AFTER UPDATE ON Reservation
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_update('R', 'cid');--OK
+CREATE TRIGGER reservation_feed_truncate AFTER TRUNCATE ON Reservation
+	FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_truncate('R');--OK
+
+CREATE TRIGGER ship_feed_insert AFTER INSERT ON Ship
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_insert('S', 'id');--OK
+CREATE TRIGGER ship_feed_delete AFTER DELETE ON Ship
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_delete('S', 'id');--OK
+CREATE TRIGGER ship_feed_update AFTER UPDATE ON Ship
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_update('S', 'id');--OK
+CREATE TRIGGER ship_feed_truncate AFTER TRUNCATE ON Ship
+	FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_truncate('S');--OK
+
+CREATE TRIGGER repairs_feed_insert AFTER INSERT ON Repairs
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_insert('P', 'ship_id');--OK
+CREATE TRIGGER repairs_feed_delete AFTER DELETE ON Repairs
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_delete('P', 'ship_id');--OK
+CREATE TRIGGER repairs_feed_update AFTER UPDATE ON Repairs
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_update('P', 'ship_id');--OK
+CREATE TRIGGER repairs_feed_truncate AFTER TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_truncate('P');--OK
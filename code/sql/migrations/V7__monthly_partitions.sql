@@ -0,0 +1,252 @@
+-----------------------------------------------------
+-- V7: Reservation, Repairs and Schedule partitioned by month --
+-----------------------------------------------------
+
+-- The three tables only grow, and sailed cruises are rarely read again.
+-- create.sql declares them PARTITION BY RANGE with a DEFAULT partition:
+--   Reservation  by departure_date, the departure of its cruise
+--   Repairs      by repair_date
+--   Schedule     by departure_time
+-- This migration converts tables created by an older create.sql, then gives
+-- every month from the oldest row to a year ahead its own partition, named
+-- <table>_pYYYY_MM.  PartitionManager keeps adding months ahead and detaches
+-- old ones.  Needs PostgreSQL 11 or later.
+--
+-- A query that fixes the partition key reads one month only.  The triggers
+-- of V2, V3 and V6 stay on the parent tables and see the rows of every
+-- partition.  Rows moved between partitions by the functions below are
+-- written to the partitions directly, so the summaries do not count them
+-- twice, and archived partitions keep being counted in the summaries.
+--
+-- The primary keys now include the partition key, so they no longer reject
+-- a reused rnum, rid or Schedule id in another month by themselves.  V9 adds
+-- the check back.
+
+CREATE SCHEMA IF NOT EXISTS archive;--OK
+
+-- The partition key column of a partitioned table.
+CREATE OR REPLACE FUNCTION partition_key(parent regclass) RETURNS name AS $$
+	SELECT a.attname FROM pg_partitioned_table p JOIN pg_attribute a ON a.attrelid = p.partrelid AND a.attnum = p.partattrs[0]
+	WHERE p.partrelid = parent;
+$$ LANGUAGE sql STABLE;--OK
+
+-- Creates the missing month partitions from the month of first_day through
+-- the month of last_day and returns how many it created.  The default
+-- partition is detached meanwhile, so a new partition is not checked against
+-- it, its rows of the new months are moved over one month at a time, and it
+-- is scanned once when attached again.
+CREATE OR REPLACE FUNCTION partition_months(parent regclass, first_day DATE, last_day DATE) RETURNS integer AS $$
+DECLARE
+	key name := partition_key(parent);
+	base name := (SELECT relname FROM pg_class WHERE oid = parent);
+	def regclass;
+	has_rows BOOLEAN := false;
+	month DATE;
+	next DATE;
+	part TEXT;
+	created DATE[] := '{}';
+BEGIN
+	IF key IS NULL THEN
+		RAISE EXCEPTION '% is not partitioned', parent;
+	END IF;
+	SELECT c.oid INTO def FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+	WHERE i.inhparent = parent AND pg_get_expr(c.relpartbound, c.oid) = 'DEFAULT';
+	month := date_trunc('month', first_day)::date;
+	WHILE month <= last_day LOOP
+		next := (month + interval '1 month')::date;
+		part := format('%s_p%s', base, to_char(month, 'YYYY_MM'));
+		IF to_regclass(quote_ident(part)) IS NULL THEN
+			IF def IS NOT NULL AND cardinality(created) = 0 THEN
+				EXECUTE format('ALTER TABLE %s DETACH PARTITION %s', parent, def);
+				EXECUTE format('SELECT EXISTS (SELECT 1 FROM %s)', def) INTO has_rows;
+				IF has_rows THEN
+					EXECUTE format('CREATE INDEX partition_months_tmp ON %s (%I)', def, key);
+				END IF;
+			END IF;
+			EXECUTE format('CREATE TABLE %I PARTITION OF %s FOR VALUES FROM (%L) TO (%L)', part, parent, month, next);
+			created := created || month;
+		END IF;
+		month := next;
+	END LOOP;
+	IF def IS NULL OR cardinality(created) = 0 THEN
+		RETURN cardinality(created);
+	END IF;
+	IF has_rows THEN
+		-- into the partitions themselves: the parent's statement triggers must not see the rows again
+		FOREACH month IN ARRAY created LOOP
+			next := (month + interval '1 month')::date;
+			EXECUTE format('INSERT INTO %I SELECT * FROM %s WHERE %I >= %L AND %I < %L',
+				format('%s_p%s', base, to_char(month, 'YYYY_MM')), def, key, month, key, next);
+			EXECUTE format('DELETE FROM %s WHERE %I >= %L AND %I < %L', def, key, month, key, next);
+		END LOOP;
+		DROP INDEX partition_months_tmp;
+	END IF;
+	EXECUTE format('ALTER TABLE %s ATTACH PARTITION %s DEFAULT', parent, def);
+	RETURN cardinality(created);
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- Detaches the month partitions that end on or before a day, and moves them
+-- to schema archive or drops them.  Returns how many it detached.
+CREATE OR REPLACE FUNCTION archive_partitions(parent regclass, before DATE, drop_them BOOLEAN) RETURNS integer AS $$
+DECLARE
+	part RECORD;
+	archived integer := 0;
+BEGIN
+	FOR part IN
+		SELECT c.oid::regclass AS rel, substring(pg_get_expr(c.relpartbound, c.oid) FROM 'TO \(''([^'']*)''\)')::date AS upper_bound
+		FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+		WHERE i.inhparent = parent ORDER BY 2
+	LOOP
+		CONTINUE WHEN part.upper_bound IS NULL OR part.upper_bound > before;
+		EXECUTE format('ALTER TABLE %s DETACH PARTITION %s', parent, part.rel);
+		IF drop_them THEN
+			EXECUTE format('DROP TABLE %s', part.rel);
+		ELSE
+			EXECUTE format('ALTER TABLE %s SET SCHEMA archive', part.rel);
+		END IF;
+		archived := archived + 1;
+	END LOOP;
+	RETURN archived;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- Converts the tables of an older create.sql.  The rows are copied into the
+-- default partition directly, as the summaries already count them, and
+-- partition_months spreads them over the months below.  The V5 sequences
+-- move to the new key columns before the old tables, which own them, are
+-- dropped.
+DO $$
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM pg_partitioned_table WHERE partrelid = 'reservation'::regclass) THEN
+		ALTER TABLE Reservation RENAME TO reservation_unpartitioned;
+		ALTER TABLE reservation_unpartitioned RENAME CONSTRAINT reservation_pkey TO reservation_unpartitioned_pkey;
+		CREATE TABLE Reservation
+		(
+			rnum INTEGER NOT NULL,
+			ccid INTEGER NOT NULL,
+			cid INTEGER NOT NULL,
+			status _STATUS,
+			departure_date DATE NOT NULL,
+			PRIMARY KEY (rnum, departure_date),
+			FOREIGN KEY (ccid) REFERENCES Customer(id),
+			FOREIGN KEY (cid) REFERENCES Cruise(cnum)
+		) PARTITION BY RANGE (departure_date);
+		CREATE TABLE Reservation_default PARTITION OF Reservation DEFAULT;
+		INSERT INTO Reservation_default (rnum, ccid, cid, status, departure_date)
+		SELECT R.rnum, R.ccid, R.cid, R.status, C.actual_departure_date FROM reservation_unpartitioned R, Cruise C WHERE C.cnum = R.cid;
+		ALTER SEQUENCE IF EXISTS reservation_rnum_seq OWNED BY Reservation.rnum;
+		DROP TABLE reservation_unpartitioned;
+	END IF;
+
+	IF NOT EXISTS (SELECT 1 FROM pg_partitioned_table WHERE partrelid = 'repairs'::regclass) THEN
+		ALTER TABLE Repairs RENAME TO repairs_unpartitioned;
+		ALTER TABLE repairs_unpartitioned RENAME CONSTRAINT repairs_pkey TO repairs_unpartitioned_pkey;
+		CREATE TABLE Repairs
+		(
+			rid INTEGER NOT NULL,
+			repair_date DATE NOT NULL,
+			repair_code _CODE,
+			captain_id INTEGER NOT NULL,
+			ship_id INTEGER NOT NULL,
+			technician_id INTEGER NOT NULL,
+			PRIMARY KEY (rid, repair_date),
+			FOREIGN KEY (captain_id) REFERENCES Captain(id),
+			FOREIGN KEY (ship_id) REFERENCES Ship(id),
+			FOREIGN KEY (technician_id) REFERENCES Technician(id)
+		) PARTITION BY RANGE (repair_date);
+		CREATE TABLE Repairs_default PARTITION OF Repairs DEFAULT;
+		INSERT INTO Repairs_default SELECT rid, repair_date, repair_code, captain_id, ship_id, technician_id FROM repairs_unpartitioned;
+		ALTER SEQUENCE IF EXISTS repairs_rid_seq OWNED BY Repairs.rid;
+		DROP TABLE repairs_unpartitioned;
+	END IF;
+
+	IF NOT EXISTS (SELECT 1 FROM pg_partitioned_table WHERE partrelid = 'schedule'::regclass) THEN
+		ALTER TABLE Schedule RENAME TO schedule_unpartitioned;
+		ALTER TABLE schedule_unpartitioned RENAME CONSTRAINT schedule_pkey TO schedule_unpartitioned_pkey;
+		CREATE TABLE Schedule
+		(
+			id INTEGER NOT NULL,
+			cruiseNum INTEGER NOT NULL,
+			departure_time DATE NOT NULL,
+			arrival_time DATE NOT NULL,
+			PRIMARY KEY (id, departure_time),
+			FOREIGN KEY (cruiseNum) REFERENCES Cruise(cnum)
+		) PARTITION BY RANGE (departure_time);
+		CREATE TABLE Schedule_default PARTITION OF Schedule DEFAULT;
+		INSERT INTO Schedule_default SELECT id, cruiseNum, departure_time, arrival_time FROM schedule_unpartitioned;
+		ALTER SEQUENCE IF EXISTS schedule_id_seq OWNED BY Schedule.id;
+		DROP TABLE schedule_unpartitioned;
+	END IF;
+END;
+$$;--OK
+
+-- every month with rows, and a year ahead
+SELECT partition_months('reservation', COALESCE(min(departure_date), current_date), (current_date + interval '12 months')::date) FROM Reservation;--OK
+SELECT partition_months('repairs', COALESCE(min(repair_date), current_date), (current_date + interval '12 months')::date) FROM Repairs;--OK
+SELECT partition_months('schedule', COALESCE(min(departure_time), current_date), (current_date + interval '12 months')::date) FROM Schedule;--OK
+
+-- The indexes of V1 are created on the parents, and so on every partition.
+-- They were dropped with the converted tables and are no-ops otherwise.
+CREATE INDEX IF NOT EXISTS reservation_cid_status_ccid_idx ON Reservation (cid, status, ccid);--OK
+CREATE INDEX IF NOT EXISTS reservation_ccid_idx ON Reservation (ccid);--OK
+CREATE INDEX IF NOT EXISTS reservation_waitlist_idx ON Reservation (cid) WHERE status = 'W';--OK
+CREATE INDEX IF NOT EXISTS repairs_ship_idx ON Repairs (ship_id);--OK
+CREATE INDEX IF NOT EXISTS schedule_cruisenum_idx ON Schedule (cruiseNum);--OK
+
+-- Same for the triggers of V2, V3 and V6.
+DROP TRIGGER IF EXISTS repairs_count_insert ON Repairs;--OK
+DROP TRIGGER IF EXISTS repairs_count_delete ON Repairs;--OK
+DROP TRIGGER IF EXISTS repairs_count_update ON Repairs;--OK
+DROP TRIGGER IF EXISTS repairs_count_truncate ON Repairs;--OK
+CREATE TRIGGER repairs_count_insert AFTER INSERT ON Repairs
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE ship_repair_count_insert();--OK
+CREATE TRIGGER repairs_count_delete AFTER DELETE ON Repairs
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE ship_repair_count_delete();--OK
+CREATE TRIGGER repairs_count_update AFTER UPDATE ON Repairs
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE ship_repair_count_update();--OK
+CREATE TRIGGER repairs_count_truncate AFTER TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE ship_repair_count_truncate();--OK
+
+DROP TRIGGER IF EXISTS reservation_count_insert ON Reservation;--OK
+DROP TRIGGER IF EXISTS reservation_count_delete ON Reservation;--OK
+DROP TRIGGER IF EXISTS reservation_count_update ON Reservation;--OK
+DROP TRIGGER IF EXISTS reservation_count_truncate ON Reservation;--OK
+CREATE TRIGGER reservation_count_insert AFTER INSERT ON Reservation
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE cruise_status_count_insert();--OK
+CREATE TRIGGER reservation_count_delete AFTER DELETE ON Reservation
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE cruise_status_count_delete();--OK
+CREATE TRIGGER reservation_count_update AFTER UPDATE ON Reservation
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE cruise_status_count_update();--OK
+CREATE TRIGGER reservation_count_truncate AFTER TRUNCATE ON Reservation
+	FOR EACH STATEMENT EXECUTE PROCEDURE cruise_status_count_truncate();--OK
+
+DROP TRIGGER IF EXISTS reservation_feed_insert ON Reservation;--OK
+DROP TRIGGER IF EXISTS reservation_feed_delete ON Reservation;--OK
+DROP TRIGGER IF EXISTS reservation_feed_update ON Reservation;--OK
+DROP TRIGGER IF EXISTS reservation_feed_truncate ON Reservation;--OK
+CREATE TRIGGER reservation_feed_insert AFTER INSERT ON Reservation
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_insert('R', 'cid');--OK
+CREATE TRIGGER reservation_feed_delete AFTER DELETE ON Reservation
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_delete('R', 'cid');--OK
+CREATE TRIGGER reservation_feed_update AFTER UPDATE ON Reservation
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_update('R', 'cid');--OK
+CREATE TRIGGER reservation_feed_truncate AFTER TRUNCATE ON Reservation
+	FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_truncate('R');--OK
+
+DROP TRIGGER IF EXISTS repairs_feed_insert ON Repairs;--OK
+DROP TRIGGER IF EXISTS repairs_feed_delete ON Repairs;--OK
+DROP TRIGGER IF EXISTS repairs_feed_update ON Repairs;--OK
+DROP TRIGGER IF EXISTS repairs_feed_truncate ON Repairs;--OK
+CREATE TRIGGER repairs_feed_insert AFTER INSERT ON Repairs
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_insert('P', 'ship_id');--OK
+CREATE TRIGGER repairs_feed_delete AFTER DELETE ON Repairs
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_delete('P', 'ship_id');--OK
+CREATE TRIGGER repairs_feed_update AFTER UPDATE ON Repairs
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_update('P', 'ship_id');--OK
+CREATE TRIGGER repairs_feed_truncate AFTER TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE change_feed_truncate('P');--OK
+
+ANALYZE Reservation;--OK
+ANALYZE Repairs;--OK
+ANALYZE Schedule;--OK
@@ -0,0 +1,128 @@
+------------------------------------------------------------
+-- V8: no ship or captain on two overlapping sailings --
+------------------------------------------------------------
+
+-- A cruise is assigned its captain and ship in CruiseInfo and sails on the
+-- days of its Schedule rows.  CruiseInfo.sailing holds the days of the
+-- cruise, from the first departure through the last arrival, both days
+-- included.  It is derived from Schedule by the triggers below, and stays
+-- NULL while the cruise has no schedule.  The columns of Schedule are DATEs,
+-- so the range is a daterange.
+--
+-- Two exclusion constraints then reject a second CruiseInfo row with the
+-- same ship, or the same captain, on overlapping days.  They are GiST
+-- indexes over (ship_id, sailing) and (captain_id, sailing), which is why
+-- btree_gist is needed: it provides the = operator class for integers.
+-- ScheduleConflicts checks the same rule in memory, before the insert, and
+-- reports the conflicts of the existing rows.
+CREATE EXTENSION IF NOT EXISTS btree_gist;--OK
+
+ALTER TABLE CruiseInfo ADD COLUMN sailing daterange;--OK
+
+-- NULL without a schedule; daterange(NULL, NULL) would be every day
+CREATE OR REPLACE FUNCTION cruise_sailing(cnum INTEGER) RETURNS daterange AS $$
+	SELECT CASE WHEN min(departure_time) IS NULL THEN NULL
+		ELSE daterange(min(departure_time), greatest(max(arrival_time), min(departure_time)), '[]') END
+	FROM Schedule WHERE cruiseNum = cnum;
+$$ LANGUAGE sql STABLE;--OK
+
+UPDATE CruiseInfo CI SET sailing = s.sailing
+FROM (SELECT cruiseNum, daterange(min(departure_time), greatest(max(arrival_time), min(departure_time)), '[]') AS sailing
+	FROM Schedule GROUP BY cruiseNum) s
+WHERE s.cruiseNum = CI.cruise_id;--OK
+
+-- a new assignment takes the days of its cruise's schedule
+CREATE OR REPLACE FUNCTION cruiseinfo_sailing() RETURNS trigger AS $$
+BEGIN
+	NEW.sailing := cruise_sailing(NEW.cruise_id);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE TRIGGER cruiseinfo_sailing BEFORE INSERT OR UPDATE OF cruise_id ON CruiseInfo
+	FOR EACH ROW EXECUTE PROCEDURE cruiseinfo_sailing();--OK
+
+-- Same scheme as V2 and V3 for Schedule: statement-level triggers over the
+-- transition tables recompute the sailing of every cruise a statement
+-- touched, once per cruise.  An update may move a row to another cruise, so
+-- both the old and the new cruise are recomputed.
+CREATE OR REPLACE FUNCTION schedule_sailing_apply(cnums INTEGER[]) RETURNS void AS $$
+BEGIN
+	UPDATE CruiseInfo SET sailing = cruise_sailing(cruise_id)
+	WHERE cruise_id = ANY (cnums);
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION schedule_sailing_insert() RETURNS trigger AS $$
+BEGIN
+	PERFORM schedule_sailing_apply(array_agg(DISTINCT cruiseNum)) FROM new_rows;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION schedule_sailing_delete() RETURNS trigger AS $$
+BEGIN
+	PERFORM schedule_sailing_apply(array_agg(DISTINCT cruiseNum)) FROM old_rows;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION schedule_sailing_update() RETURNS trigger AS $$
+BEGIN
+	PERFORM schedule_sailing_apply(array_agg(DISTINCT c))
+	FROM (SELECT cruiseNum AS c FROM new_rows UNION SELECT cruiseNum FROM old_rows) d;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION schedule_sailing_truncate() RETURNS trigger AS $$
+BEGIN
+	UPDATE CruiseInfo SET sailing = NULL WHERE sailing IS NOT NULL;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE TRIGGER schedule_sailing_insert AFTER INSERT ON Schedule
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE schedule_sailing_insert();--OK
+CREATE TRIGGER schedule_sailing_delete AFTER DELETE ON Schedule
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE schedule_sailing_delete();--OK
+CREATE TRIGGER schedule_sailing_update AFTER UPDATE ON Schedule
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE schedule_sailing_update();--OK
+CREATE TRIGGER schedule_sailing_truncate AFTER TRUNCATE ON Schedule
+	FOR EACH STATEMENT EXECUTE PROCEDURE schedule_sailing_truncate();--OK
+
+-- Adds the exclusion constraints that are missing and returns how many were
+-- added.  Existing rows that overlap leave their constraint out with a
+-- warning, so the migration still applies to a database that has
+-- conflicts.  List them with
+--   java -cp "lib/*:bin" DBproject <dbname> <port> <user> --conflicts
+-- which calls this function again once none are left.
+CREATE OR REPLACE FUNCTION enforce_sailing_exclusion() RETURNS integer AS $$
+DECLARE
+	added integer := 0;
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'cruiseinfo_ship_sailing_excl') THEN
+		BEGIN
+			ALTER TABLE CruiseInfo ADD CONSTRAINT cruiseinfo_ship_sailing_excl
+				EXCLUDE USING gist (ship_id WITH =, sailing WITH &&);
+			added := added + 1;
+		EXCEPTION WHEN exclusion_violation THEN
+			RAISE WARNING 'a ship has overlapping sailings, cruiseinfo_ship_sailing_excl not added: %', SQLERRM;
+		END;
+	END IF;
+	IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'cruiseinfo_captain_sailing_excl') THEN
+		BEGIN
+			ALTER TABLE CruiseInfo ADD CONSTRAINT cruiseinfo_captain_sailing_excl
+				EXCLUDE USING gist (captain_id WITH =, sailing WITH &&);
+			added := added + 1;
+		EXCEPTION WHEN exclusion_violation THEN
+			RAISE WARNING 'a captain has overlapping sailings, cruiseinfo_captain_sailing_excl not added: %', SQLERRM;
+		END;
+	END IF;
+	RETURN added;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+SELECT enforce_sailing_exclusion();--OK
+
+ANALYZE CruiseInfo;--OK
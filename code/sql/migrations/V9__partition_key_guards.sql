@@ -0,0 +1,130 @@
+---------------------------------------------------------------------
+-- V9: unique keys and in-step departures across the partitions of V7 --
+---------------------------------------------------------------------
+
+-- The primary keys of V7 include the partition key, so on their own they
+-- would accept a reused rnum, rid or Schedule id in another month.  One
+-- plain table per partitioned table holds every key in use, and its primary
+-- key rejects the second one with the usual unique_violation (23505),
+-- whatever month the row goes to and whether the key was typed in or taken
+-- from the sequences of V5:
+--   ReservationKey  Reservation.rnum
+--   RepairsKey      Repairs.rid
+--   ScheduleKey     Schedule.id
+-- Same scheme as V2, V3 and V6: statement-level triggers over the transition
+-- tables, with the key table and column as trigger arguments.  Rows moved
+-- between partitions by partition_months are written to the partitions
+-- directly and keep their keys.  The keys of archived partitions stay taken.
+CREATE TABLE ReservationKey
+(
+	rnum INTEGER NOT NULL,
+	PRIMARY KEY (rnum)
+);--OK
+
+CREATE TABLE RepairsKey
+(
+	rid INTEGER NOT NULL,
+	PRIMARY KEY (rid)
+);--OK
+
+CREATE TABLE ScheduleKey
+(
+	id INTEGER NOT NULL,
+	PRIMARY KEY (id)
+);--OK
+
+CREATE OR REPLACE FUNCTION unique_key_insert() RETURNS trigger AS $$
+BEGIN
+	EXECUTE format('INSERT INTO %I (%2$I) SELECT %2$I FROM new_rows', TG_ARGV[0], TG_ARGV[1]);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION unique_key_delete() RETURNS trigger AS $$
+BEGIN
+	EXECUTE format('DELETE FROM %I K USING old_rows o WHERE K.%2$I = o.%2$I', TG_ARGV[0], TG_ARGV[1]);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- Only the keys an update changed: the old ones go first, so two rows may
+-- swap keys, and EXCEPT ALL keeps a key set on two rows at once so it fails.
+CREATE OR REPLACE FUNCTION unique_key_update() RETURNS trigger AS $$
+BEGIN
+	EXECUTE format('DELETE FROM %I K USING (SELECT %2$I FROM old_rows EXCEPT ALL SELECT %2$I FROM new_rows) o WHERE K.%2$I = o.%2$I',
+		TG_ARGV[0], TG_ARGV[1]);
+	EXECUTE format('INSERT INTO %I (%2$I) SELECT %2$I FROM new_rows EXCEPT ALL SELECT %2$I FROM old_rows',
+		TG_ARGV[0], TG_ARGV[1]);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+CREATE OR REPLACE FUNCTION unique_key_truncate() RETURNS trigger AS $$
+BEGIN
+	EXECUTE format('TRUNCATE %I', TG_ARGV[0]);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;--OK
+
+-- the keys of the rows already there, archived partitions included; a
+-- key used twice already fails the migration
+INSERT INTO ReservationKey (rnum) SELECT rnum FROM Reservation;--OK
+INSERT INTO RepairsKey (rid) SELECT rid FROM Repairs;--OK
+INSERT INTO ScheduleKey (id) SELECT id FROM Schedule;--OK
+DO $$
+DECLARE
+	part RECORD;
+BEGIN
+	FOR part IN
+		SELECT tablename, CASE split_part(tablename, '_p', 1) WHEN 'reservation' THEN 'reservationkey'
+			WHEN 'repairs' THEN 'repairskey' ELSE 'schedulekey' END AS keys,
+			CASE split_part(tablename, '_p', 1) WHEN 'reservation' THEN 'rnum' WHEN 'repairs' THEN 'rid' ELSE 'id' END AS col
+		FROM pg_tables WHERE schemaname = 'archive' AND split_part(tablename, '_p', 1) IN ('reservation', 'repairs', 'schedule')
+	LOOP
+		EXECUTE format('INSERT INTO %I (%2$I) SELECT %2$I FROM archive.%3$I', part.keys, part.col, part.tablename);
+	END LOOP;
+END;
+$$;--OK
+
+CREATE TRIGGER reservation_key_insert AFTER INSERT ON Reservation
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_insert('reservationkey', 'rnum');--OK
+CREATE TRIGGER reservation_key_delete AFTER DELETE ON Reservation
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_delete('reservationkey', 'rnum');--OK
+CREATE TRIGGER reservation_key_update AFTER UPDATE ON Reservation
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_update('reservationkey', 'rnum');--OK
+CREATE TRIGGER reservation_key_truncate AFTER TRUNCATE ON Reservation
+	FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_truncate('reservationkey');--OK
+
+CREATE TRIGGER repairs_key_insert AFTER INSERT ON Repairs
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_insert('repairskey', 'rid');--OK
+CREATE TRIGGER repairs_key_delete AFTER DELETE ON Repairs
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_delete('repairskey', 'rid');--OK
+CREATE TRIGGER repairs_key_update AFTER UPDATE ON Repairs
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_update('repairskey', 'rid');--OK
+CREATE TRIGGER repairs_key_truncate AFTER TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_truncate('repairskey');--OK
+
+CREATE TRIGGER schedule_key_insert AFTER INSERT ON Schedule
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_insert('schedulekey', 'id');--OK
+CREATE TRIGGER schedule_key_delete AFTER DELETE ON Schedule
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_delete('schedulekey', 'id');--OK
+CREATE TRIGGER schedule_key_update AFTER UPDATE ON Schedule
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_update('schedulekey', 'id');--OK
+CREATE TRIGGER schedule_key_truncate AFTER TRUNCATE ON Schedule
+	FOR EACH STATEMENT EXECUTE PROCEDURE unique_key_truncate('schedulekey');--OK
+
+-- Reservation.departure_date, its partition key, is the departure of its
+-- cruise.  A foreign key over both columns rejects any other date, and
+-- moves the reservations, to their new partition, when the cruise's
+-- departure changes.  It replaces the foreign key on cid alone.
+UPDATE Reservation R SET departure_date = C.actual_departure_date
+FROM Cruise C WHERE C.cnum = R.cid AND R.departure_date <> C.actual_departure_date;--OK
+
+ALTER TABLE Cruise ADD CONSTRAINT cruise_departure_key UNIQUE (cnum, actual_departure_date);--OK
+ALTER TABLE Reservation DROP CONSTRAINT IF EXISTS reservation_cid_fkey;--OK
+ALTER TABLE Reservation ADD CONSTRAINT reservation_departure_fkey FOREIGN KEY (cid, departure_date)
+	REFERENCES Cruise (cnum, actual_departure_date) ON UPDATE CASCADE;--OK
+
+ANALYZE ReservationKey;--OK
+ANALYZE RepairsKey;--OK
+ANALYZE ScheduleKey;--OK